@@ -0,0 +1,75 @@
+package com.commercehub.core.state.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.Trigger;
+
+/**
+ * Measures {@link StateMachine#attachStateful(com.commercehub.core.state.Stateful)}
+ * for a new cookie, which activates the default states and fills the cookie,
+ * and for a restored cookie, which loads activation and history from it.
+ *
+ * <p>The restored cookie is taken from a machine that has fired the first
+ * transition of its {@link BenchmarkCharts#cycle(String) cycle}, so it holds
+ * more than the default states.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttachBenchmark {
+    @Param({"exclusive", "concurrent", "synthetic"})
+    public String machineName;
+
+    @Param({"binary", "serializable"})
+    public String cookieType;
+
+    private StateMachine machine;
+    private BenchmarkStateful fresh;
+    private BenchmarkStateful restored;
+
+    @Setup
+    public void setUp() throws Exception {
+        StateChart chart = BenchmarkCharts.chart(machineName);
+        machine = chart.newStateMachine();
+        fresh = new BenchmarkStateful(
+            BenchmarkCharts.newCookie(cookieType, chart));
+        restored = new BenchmarkStateful(
+            BenchmarkCharts.newCookie(cookieType, chart));
+        Trigger trigger = new BenchmarkTrigger();
+        restored.attachTo(machine);
+        machine.pullTrigger(trigger, BenchmarkCharts.cycle(machineName)[0],
+            null);
+    }
+
+    @Benchmark
+    public StateMachine attachNew() {
+        fresh.getStateCookie().clear();
+        machine.attachStateful(fresh);
+        return machine;
+    }
+
+    @Benchmark
+    public StateMachine attachRestored() {
+        machine.attachStateful(restored);
+        return machine;
+    }
+}
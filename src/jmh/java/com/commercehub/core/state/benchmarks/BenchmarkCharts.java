@@ -0,0 +1,256 @@
+package com.commercehub.core.state.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.commercehub.core.state.ConcurrentState;
+import com.commercehub.core.state.ExclusiveState;
+import com.commercehub.core.state.State;
+import com.commercehub.core.state.StateAction;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateCookie;
+import com.commercehub.core.state.Transition;
+import com.commercehub.core.state.TriggerTransitionMap;
+import com.commercehub.core.state.impl.pojo.BinaryStateCookie;
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+import com.commercehub.core.state.impl.xml.XMLStateMachineFactory;
+
+/**
+ * The machines the benchmarks run against, and the trigger parameters that
+ * cycle each of them through real state changes.
+ *
+ * <ul>
+ * <li><code>exclusive</code> and <code>concurrent</code> are the alphabetical
+ * test machines, read from the test resources and wired to the no-op
+ * {@link BenchmarkTrigger} and {@link NoopAction} by
+ * <code>benchmark-clientimpl.xml</code>.</li>
+ * <li><code>lanes</code> is a small programmatic chart with a concurrent
+ * state and a history state.</li>
+ * <li><code>synthetic</code> is a programmatic chart of 1,011 states: ten
+ * regions of ten groups of nine leaves. Siblings are chained by
+ * <code>next</code> (leaves), <code>group</code> and <code>region</code>
+ * transitions, and <code>home</code> returns from the last region to the
+ * first; its cycle walks every leaf.</li>
+ * </ul>
+ *
+ * @author Matthew Mark Miller
+ */
+public final class BenchmarkCharts {
+    /** Where the alphabetical test machines live */
+    public static final String XML = "/com/commercehub/core/state/impl/xml/";
+
+    /** The client implementation binding the test names to no-op classes */
+    public static final String CLIENT_IMPL =
+        "/com/commercehub/core/state/benchmarks/benchmark-clientimpl.xml";
+
+    private static final int SYNTHETIC_FANOUT = 10;
+    private static final int SYNTHETIC_LEAVES = 9;
+
+    private BenchmarkCharts() {
+    }
+
+    /**
+     * Builds a chart by name.
+     *
+     * @param machine <code>exclusive</code>, <code>concurrent</code>,
+     *                <code>lanes</code> or <code>synthetic</code>
+     *
+     * @return a frozen StateChart
+     *
+     * @throws Exception if an XML machine can't be parsed
+     */
+    public static StateChart chart(String machine) throws Exception {
+        if ("lanes".equals(machine)) {
+            return lanes();
+        } else if ("synthetic".equals(machine)) {
+            return synthetic();
+        }
+        return new XMLStateMachineFactory().getStateChartFromInputStreams(
+            new ByteArrayInputStream(definition(machine)),
+            new ByteArrayInputStream(clientImpl()));
+    }
+
+    /**
+     * The trigger parameters that move a machine through one full cycle, each
+     * of them firing a transition. For every machine but
+     * <code>exclusive</code>, the cycle can be repeated indefinitely. The
+     * exclusive machine ends in B, which it can't leave; callers start it over
+     * with a new cookie.
+     *
+     * @param machine a machine name accepted by {@link #chart(String)}
+     *
+     * @return trigger parameters, in order
+     */
+    public static String[] cycle(String machine) {
+        if ("exclusive".equals(machine)) {
+            return new String[] {"siblings", "ancestor-to-descendent",
+                "descendent-to-ancestor", "ancestors", "self"};
+        } else if ("concurrent".equals(machine)) {
+            return new String[] {"exc-to-conc", "internal", "conc-to-exc"};
+        } else if ("lanes".equals(machine)) {
+            return new String[] {"go", "hop", "back"};
+        }
+        List<String> params = new ArrayList<String>();
+        for (int r = 0; r < SYNTHETIC_FANOUT; r++) {
+            for (int g = 0; g < SYNTHETIC_FANOUT; g++) {
+                for (int l = 1; l < SYNTHETIC_LEAVES; l++) {
+                    params.add("next");
+                }
+                if (g < SYNTHETIC_FANOUT - 1) {
+                    params.add("group");
+                }
+            }
+            params.add(r < SYNTHETIC_FANOUT - 1 ? "region" : "home");
+        }
+        return params.toArray(new String[params.size()]);
+    }
+
+    /**
+     * Creates an empty cookie.
+     *
+     * @param cookieType <code>binary</code> or <code>serializable</code>
+     * @param chart the chart the cookie is for
+     *
+     * @return a new StateCookie
+     */
+    public static StateCookie newCookie(String cookieType, StateChart chart) {
+        return "binary".equals(cookieType)
+            ? new BinaryStateCookie(chart)
+            : (StateCookie) new SerializableStateCookie();
+    }
+
+    /**
+     * The XML definition of an alphabetical machine.
+     *
+     * @param machine <code>exclusive</code> or <code>concurrent</code>
+     *
+     * @return the definition's bytes
+     *
+     * @throws IOException if the resource can't be read
+     */
+    public static byte[] definition(String machine) throws IOException {
+        return read(XML + machine + "-alphabetical-statemachine.xml");
+    }
+
+    /**
+     * The benchmark client implementation XML.
+     *
+     * @return the client implementation's bytes
+     *
+     * @throws IOException if the resource can't be read
+     */
+    public static byte[] clientImpl() throws IOException {
+        return read(CLIENT_IMPL);
+    }
+
+    private static byte[] read(String resource) throws IOException {
+        InputStream in = BenchmarkCharts.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("No resource " + resource);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static StateChart lanes() {
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        ConcurrentState lanes = new ConcurrentState("lanes", false);
+        ExclusiveState parked = new ExclusiveState("parked", true, false);
+        root.addChild(lanes);
+        root.addChild(parked);
+        root.setDefaultChild(lanes);
+        StateAction noop = new NoopAction();
+        for (int i = 0; i < 3; i++) {
+            ExclusiveState lane = new ExclusiveState("lane" + i, false, false);
+            lane.addEntryAction(noop, null);
+            lane.addExitAction(noop, null);
+            lanes.addChild(lane);
+            parked.addChild(new ExclusiveState("bay" + i, false, false));
+        }
+
+        TriggerTransitionMap map = new TriggerTransitionMap();
+        Transition go = new Transition(lanes,
+            root.findDescendant("parked.bay1"), "go");
+        go.addAction(noop, null);
+        map.addTriggerTransition(BenchmarkTrigger.class, "go", go);
+        map.addTriggerTransition(BenchmarkTrigger.class, "hop",
+            new Transition(parked, parked, "hop"));
+        map.addTriggerTransition(BenchmarkTrigger.class, "back",
+            new Transition(parked, lanes, "back"));
+        return new StateChart(root, "lanes", null, null, map);
+    }
+
+    private static StateChart synthetic() {
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        StateAction noop = new NoopAction();
+        TriggerTransitionMap map = new TriggerTransitionMap();
+        ExclusiveState[] regions = new ExclusiveState[SYNTHETIC_FANOUT];
+        for (int r = 0; r < SYNTHETIC_FANOUT; r++) {
+            regions[r] = new ExclusiveState("r" + r, false, false);
+            root.addChild(regions[r]);
+            ExclusiveState[] groups = new ExclusiveState[SYNTHETIC_FANOUT];
+            for (int g = 0; g < SYNTHETIC_FANOUT; g++) {
+                groups[g] = new ExclusiveState("g" + g, false, false);
+                groups[g].addEntryAction(noop, null);
+                groups[g].addExitAction(noop, null);
+                regions[r].addChild(groups[g]);
+                ExclusiveState[] leaves = new ExclusiveState[SYNTHETIC_LEAVES];
+                for (int l = 0; l < SYNTHETIC_LEAVES; l++) {
+                    leaves[l] = new ExclusiveState("l" + l, false, false);
+                    leaves[l].addEntryAction(noop, null);
+                    groups[g].addChild(leaves[l]);
+                }
+                groups[g].setDefaultChild(leaves[0]);
+                chain(map, "next", leaves, noop);
+            }
+            regions[r].setDefaultChild(groups[0]);
+            chain(map, "group", groups, null);
+        }
+        root.setDefaultChild(regions[0]);
+        chain(map, "region", regions, null);
+        map.addTriggerTransition(BenchmarkTrigger.class, "home",
+            transition(regions[SYNTHETIC_FANOUT - 1], regions[0], "home",
+                null));
+        return new StateChart(root, "synthetic", null, null, map);
+    }
+
+    /**
+     * Maps a parameter to a transition from each State to the next. A pull
+     * fires every mapped transition that can fire, in mapping order, so the
+     * transitions are mapped last to first; otherwise one pull would run all
+     * the way down the chain.
+     *
+     * @param map the map to add to
+     * @param param the trigger parameter
+     * @param states sibling States, in chain order
+     * @param action a transition action, or null
+     */
+    private static void chain(TriggerTransitionMap map, String param,
+                              State[] states, StateAction action) {
+        for (int i = states.length - 2; i >= 0; i--) {
+            map.addTriggerTransition(BenchmarkTrigger.class, param,
+                transition(states[i], states[i + 1], param, action));
+        }
+    }
+
+    private static Transition transition(State exit, State entry,
+                                         String name, StateAction action) {
+        Transition transition = new Transition(exit, entry, name);
+        if (action != null) {
+            transition.addAction(action, null);
+        }
+        return transition;
+    }
+}
@@ -0,0 +1,51 @@
+package com.commercehub.core.state.benchmarks;
+
+import com.commercehub.core.state.StateCookie;
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.Stateful;
+import com.commercehub.core.state.Trigger;
+
+/**
+ * A Stateful holding only a cookie. It answers {@link #isInState(String)}
+ * from the machine it was last attached to with {@link #attachTo(StateMachine)},
+ * so Conditions can be evaluated against it.
+ *
+ * @author Matthew Mark Miller
+ */
+public class BenchmarkStateful implements Stateful {
+    private final StateCookie cookie;
+    private StateMachine machine;
+
+    public BenchmarkStateful(StateCookie cookie) {
+        this.cookie = cookie;
+    }
+
+    /**
+     * Attaches a machine to this Stateful.
+     *
+     * @param stateMachine a StateMachine
+     */
+    public void attachTo(StateMachine stateMachine) {
+        stateMachine.attachStateful(this);
+        machine = stateMachine;
+    }
+
+    public boolean isSupported(Trigger trigger, Object param) {
+        return machine != null && machine.isSupported(trigger.getClass(), param);
+    }
+
+    public boolean pullTrigger(Trigger trigger, Object param) {
+        return machine != null && machine.pullTrigger(trigger, param, null);
+    }
+
+    public StateCookie getStateCookie() {
+        return cookie;
+    }
+
+    public void notifyPropertyChanged(String propertyName, Object newValue) {
+    }
+
+    public boolean isInState(String statePath) {
+        return machine != null && machine.isInState(statePath);
+    }
+}
@@ -0,0 +1,18 @@
+package com.commercehub.core.state.benchmarks;
+
+import com.commercehub.core.state.Condition;
+import com.commercehub.core.state.Stateful;
+import com.commercehub.core.state.Trigger;
+
+/**
+ * A Trigger that always passes, so benchmarks measure the engine rather than
+ * trigger evaluation. Mapped as <code>HubActionTrigger</code> in the benchmark
+ * client implementation.
+ *
+ * @author Matthew Mark Miller
+ */
+public class BenchmarkTrigger implements Trigger {
+    public boolean eval(Stateful stateful, Object param, Condition con) {
+        return true;
+    }
+}
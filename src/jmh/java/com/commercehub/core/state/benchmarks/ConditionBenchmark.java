@@ -0,0 +1,71 @@
+package com.commercehub.core.state.benchmarks;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.commercehub.core.state.Condition;
+import com.commercehub.core.state.ConditionEvaluator;
+import com.commercehub.core.state.InAnyStateConditionEvaluator;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.impl.xml.ExpressionParser;
+
+/**
+ * Measures {@link Condition#eval(Set, ConditionEvaluator)} of a parsed
+ * expression over a set of Statefuls attached to the concurrent alphabetical
+ * machine, half of them in B and half in C.
+ *
+ * @author Matthew Mark Miller
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConditionBenchmark {
+    @Param({"all(C.D.E, C.G.H) or some(B)",
+        "not any(J, C.G.I) and none(J.L.M)"})
+    public String expression;
+
+    @Param({"8"})
+    public int statefulCount;
+
+    private Condition condition;
+    private Set statefuls;
+    private ConditionEvaluator evaluator;
+
+    @Setup
+    public void setUp() throws Exception {
+        condition = new ExpressionParser().parse(expression);
+        StateChart chart = BenchmarkCharts.chart("concurrent");
+        statefuls = new HashSet();
+        for (int i = 0; i < statefulCount; i++) {
+            BenchmarkStateful stateful = new BenchmarkStateful(
+                BenchmarkCharts.newCookie("binary", chart));
+            stateful.attachTo(chart.newStateMachine());
+            if (i % 2 == 1) {
+                stateful.pullTrigger(new BenchmarkTrigger(), "exc-to-conc");
+            }
+            statefuls.add(stateful);
+        }
+        evaluator = new InAnyStateConditionEvaluator();
+    }
+
+    @Benchmark
+    public boolean eval() {
+        return condition.eval(statefuls, evaluator);
+    }
+}
@@ -0,0 +1,84 @@
+package com.commercehub.core.state.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.impl.binary.BinaryChartLoader;
+import com.commercehub.core.state.impl.binary.BinaryChartWriter;
+import com.commercehub.core.state.impl.xml.StreamingStateChartLoader;
+import com.commercehub.core.state.impl.xml.XMLStateMachineFactory;
+
+/**
+ * Measures building a StateMachine from XML with {@link
+ * XMLStateMachineFactory#getStateMachineFromInputStreams(java.io.InputStream,
+ * java.io.InputStream)}: parsing the definition and client implementation,
+ * wiring and freezing the chart. The factory's definition cache is cleared
+ * before each call, so every call parses. <code>loadStreaming</code> builds
+ * the same machine with a {@link StreamingStateChartLoader}, and
+ * <code>loadCompiled</code> from its {@linkplain BinaryChartWriter compiled
+ * form}, for comparison. Both inputs are held in memory, so no I/O is measured.
+ *
+ * @author Matthew Mark Miller
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FactoryBenchmark {
+    @Param({"exclusive", "concurrent"})
+    public String machineName;
+
+    private XMLStateMachineFactory factory;
+    private byte[] definition;
+    private byte[] clientImpl;
+    private StreamingStateChartLoader streamingLoader;
+    private BinaryChartLoader loader;
+    private ByteBuffer compiled;
+
+    @Setup
+    public void setUp() throws Exception {
+        factory = new XMLStateMachineFactory();
+        definition = BenchmarkCharts.definition(machineName);
+        clientImpl = BenchmarkCharts.clientImpl();
+        streamingLoader = new StreamingStateChartLoader(
+            factory.getClientImplRegistry(new ByteArrayInputStream(clientImpl)));
+        loader = new BinaryChartLoader();
+        compiled = ByteBuffer.wrap(BinaryChartWriter.toByteArray(
+            BenchmarkCharts.chart(machineName)));
+    }
+
+    @Benchmark
+    public StateMachine getStateMachineFromInputStreams() throws Exception {
+        XMLStateMachineFactory.clearDefinitionCache();
+        return factory.getStateMachineFromInputStreams(
+            new ByteArrayInputStream(definition),
+            new ByteArrayInputStream(clientImpl));
+    }
+
+    @Benchmark
+    public StateMachine loadStreaming() throws Exception {
+        return streamingLoader.load(new ByteArrayInputStream(definition))
+            .newStateMachine();
+    }
+
+    @Benchmark
+    public StateMachine loadCompiled() throws Exception {
+        return loader.load(compiled).newStateMachine();
+    }
+}
@@ -0,0 +1,15 @@
+package com.commercehub.core.state.benchmarks;
+
+import com.commercehub.core.state.StateAction;
+import com.commercehub.core.state.Stateful;
+
+/**
+ * A StateAction that does nothing. Stands in for the printing test actions so
+ * benchmarks don't measure console output.
+ *
+ * @author Matthew Mark Miller
+ */
+public class NoopAction implements StateAction {
+    public void execute(Stateful stateful, Object param) {
+    }
+}
@@ -0,0 +1,87 @@
+package com.commercehub.core.state.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateCookie;
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.Trigger;
+
+/**
+ * Measures the steady-state cost of {@link StateMachine#pullTrigger(Trigger,
+ * Object, com.commercehub.core.state.TransitionRecordFactory)} on a warmed
+ * machine. Each invocation fires one transition of the machine's
+ * {@link BenchmarkCharts#cycle(String) cycle}, so every call exits and enters
+ * states and runs actions. The <code>exclusive</code> machine can't return to
+ * its starting state, so after its last transition the cookie is cleared and
+ * the stateful reattached; one call in five includes that reattachment.
+ *
+ * <p>The <code>jmh</code> task runs with the GC profiler, which reports
+ * allocation per call:</p>
+ *
+ * <pre>gradle jmh -PjmhArgs="PullTrigger"</pre>
+ *
+ * <p>With the <code>binary</code> cookie, <code>gc.alloc.rate.norm</code>
+ * should be 0 B/op on every machine but <code>exclusive</code>. The
+ * <code>serializable</code> cookie is included for comparison; it allocates
+ * the path name sets it stores.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PullTriggerBenchmark {
+    @Param({"lanes", "exclusive", "concurrent", "synthetic"})
+    public String machineName;
+
+    @Param({"binary", "serializable"})
+    public String cookieType;
+
+    private StateMachine machine;
+    private BenchmarkStateful stateful;
+    private Trigger trigger;
+    private String[] params;
+    private boolean restart;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        StateChart chart = BenchmarkCharts.chart(machineName);
+        StateCookie cookie = BenchmarkCharts.newCookie(cookieType, chart);
+        machine = chart.newStateMachine();
+        stateful = new BenchmarkStateful(cookie);
+        stateful.attachTo(machine);
+        trigger = new BenchmarkTrigger();
+        params = BenchmarkCharts.cycle(machineName);
+        restart = "exclusive".equals(machineName);
+    }
+
+    @Benchmark
+    public boolean pullTrigger() {
+        boolean fired = machine.pullTrigger(trigger, params[next], null);
+        if (++next == params.length) {
+            next = 0;
+            if (restart) {
+                stateful.getStateCookie().clear();
+                machine.attachStateful(stateful);
+            }
+        }
+        return fired;
+    }
+}
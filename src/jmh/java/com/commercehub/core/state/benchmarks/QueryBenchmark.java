@@ -0,0 +1,69 @@
+package com.commercehub.core.state.benchmarks;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateMachine;
+
+/**
+ * Measures the read-only questions a client asks of an attached machine
+ * before pulling a trigger: {@link StateMachine#isParameterViable(Class,
+ * Object)}, {@link StateMachine#getRank(Class, Object)} and {@link
+ * StateMachine#getApplicableParameters(Class)}. The parameter asked about is
+ * the second of the machine's {@link BenchmarkCharts#cycle(String) cycle},
+ * which is applicable after the first has fired.
+ *
+ * @author Matthew Mark Miller
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+    @Param({"exclusive", "concurrent", "synthetic"})
+    public String machineName;
+
+    private StateMachine machine;
+    private String param;
+
+    @Setup
+    public void setUp() throws Exception {
+        StateChart chart = BenchmarkCharts.chart(machineName);
+        machine = chart.newStateMachine();
+        new BenchmarkStateful(BenchmarkCharts.newCookie("binary", chart))
+            .attachTo(machine);
+        String[] cycle = BenchmarkCharts.cycle(machineName);
+        machine.pullTrigger(new BenchmarkTrigger(), cycle[0], null);
+        param = cycle[1];
+    }
+
+    @Benchmark
+    public boolean isParameterViable() {
+        return machine.isParameterViable(BenchmarkTrigger.class, param);
+    }
+
+    @Benchmark
+    public int getRank() {
+        return machine.getRank(BenchmarkTrigger.class, param);
+    }
+
+    @Benchmark
+    public Set getApplicableParameters() {
+        return machine.getApplicableParameters(BenchmarkTrigger.class);
+    }
+}
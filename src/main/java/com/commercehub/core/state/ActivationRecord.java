@@ -0,0 +1,353 @@
+package com.commercehub.core.state;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * The per-instance half of a StateMachine: which States of a {@link StateChart}
+ * are active, and which child each ExclusiveState last had active. Everything
+ * else about a machine lives in its shared, immutable StateChart.
+ *
+ * <p>States are addressed by their {@link State#getOrdinal() ordinal} within
+ * the chart, and both activation and history are kept as bitsets of
+ * <code>long</code> words. A State's history bit is set when it is the history
+ * child of its parent; since a chart numbers each State's children
+ * contiguously, the history child of an ExclusiveState is the single set bit in
+ * its children's range. Scans over the whole machine -- active states, cookie
+ * fill and cookie load -- touch only set bits, a word at a time.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public final class ActivationRecord {
+    private static final int ADDRESS_BITS = 6;
+    private static final int WORD_BITS = 1 << ADDRESS_BITS;
+
+    private final StateChart chart;
+    private final StateMachine machine;
+
+    /** Activation bits, indexed by state ordinal */
+    private final long[] active;
+
+    /** History bits, indexed by the ordinal of the history child */
+    private final long[] history;
+
+    /** Scratch bits used while filling an OrdinalStateCookie */
+    private final long[] scratch;
+
+    /**
+     * Initializes a new, entirely inactive ActivationRecord.
+     *
+     * @param chart the StateChart whose States this record tracks
+     * @param machine the StateMachine this record belongs to
+     */
+    ActivationRecord(StateChart chart, StateMachine machine) {
+        this.chart = chart;
+        this.machine = machine;
+        int words = (chart.getStateCount() + WORD_BITS - 1) >>> ADDRESS_BITS;
+        active = new long[words];
+        history = new long[words];
+        scratch = new long[words];
+    }
+
+    /**
+     * Whether a State is active in this record. States from other charts are
+     * never active.
+     *
+     * @param state a State
+     *
+     * @return true if the State is active
+     */
+    public boolean isActive(State state) {
+        int ordinal = state.getOrdinal();
+        return ordinal >= 0 && ordinal < chart.getStateCount()
+            && chart.getState(ordinal) == state && get(active, ordinal);
+    }
+
+    /**
+     * Whether the State with a given ordinal is active in this record.
+     *
+     * @param ordinal a State ordinal of this record's chart
+     *
+     * @return true if the State is active
+     */
+    public boolean isActive(int ordinal) {
+        return get(active, ordinal);
+    }
+
+    /**
+     * Sets the activation of a State.
+     *
+     * @param state a State of this record's chart
+     * @param yn new activation
+     */
+    void setActive(State state, boolean yn) {
+        int ordinal = state.getOrdinal();
+        if (yn) {
+            active[ordinal >>> ADDRESS_BITS] |= 1L << ordinal;
+        } else {
+            active[ordinal >>> ADDRESS_BITS] &= ~(1L << ordinal);
+        }
+    }
+
+    /**
+     * The ordinal of the first active State at or after an ordinal.
+     *
+     * @param from the ordinal to start from
+     *
+     * @return an ordinal, or -1 if no later State is active
+     */
+    public int nextActive(int from) {
+        return nextSetBit(active, from, chart.getStateCount());
+    }
+
+    /**
+     * The active child of a State, found by scanning the bits of its
+     * children's range.
+     *
+     * @param parent a State of this record's chart
+     *
+     * @return the first active child, or null if none is active
+     */
+    State getActiveChild(State parent) {
+        int ordinal = parent.getOrdinal();
+        int first = chart.getFirstChildOrdinal(ordinal);
+        int child = nextSetBit(active, first,
+                first + chart.getChildCount(ordinal));
+        return child < 0 ? null : chart.getState(child);
+    }
+
+    /**
+     * The child of an ExclusiveState that was most recently active.
+     *
+     * @param parent an ExclusiveState of this record's chart
+     *
+     * @return a State, or null if the parent has never had an active child
+     */
+    public State getHistoryChild(State parent) {
+        int ordinal = parent.getOrdinal();
+        int first = chart.getFirstChildOrdinal(ordinal);
+        int child = nextSetBit(history, first,
+                first + chart.getChildCount(ordinal));
+        return child < 0 ? null : chart.getState(child);
+    }
+
+    /**
+     * Records the most recently active child of an ExclusiveState.
+     *
+     * @param parent an ExclusiveState of this record's chart
+     * @param child a child of parent, or null
+     */
+    void setHistoryChild(State parent, State child) {
+        int ordinal = parent.getOrdinal();
+        int first = chart.getFirstChildOrdinal(ordinal);
+        for (int i = first, end = first + chart.getChildCount(ordinal);
+                i < end; i++) {
+            history[i >>> ADDRESS_BITS] &= ~(1L << i);
+        }
+        if (child != null) {
+            int bit = child.getOrdinal();
+            history[bit >>> ADDRESS_BITS] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Clears all activation and history.
+     */
+    void reset() {
+        Arrays.fill(active, 0L);
+        Arrays.fill(history, 0L);
+    }
+
+    /**
+     * Loads activation and history from a StateCookie, replacing any current
+     * values. The root State is always active. History is only kept for the
+     * children of inactive ExclusiveStates; path names that don't name a State
+     * of this chart are ignored.
+     *
+     * @param cookie a StateCookie
+     */
+    void load(StateCookie cookie) {
+        reset();
+        active[0] |= 1L;
+        for (Iterator it = cookie.getActiveStatePathNames().iterator();
+                it.hasNext();) {
+            State state = chart.findByName((String) it.next());
+            if (state != null) {
+                setActive(state, true);
+            }
+        }
+        for (Iterator it = cookie.getHistoryStatePathNames().iterator();
+                it.hasNext();) {
+            State state = chart.findByName((String) it.next());
+            if (state != null && state.getParent() instanceof ExclusiveState
+                    && !isActive(state.getParent().getOrdinal())) {
+                setHistoryChild(state.getParent(), state);
+            }
+        }
+    }
+
+    /**
+     * Loads activation and history directly from the bitsets of an
+     * OrdinalStateCookie written for a chart with the same fingerprint.
+     * History bits that the path name form would not carry are dropped.
+     *
+     * @param cookie an OrdinalStateCookie
+     *
+     * @return false, leaving this record untouched, if the cookie was written
+     *         for a differently shaped chart
+     */
+    boolean load(OrdinalStateCookie cookie) {
+        if (cookie.getChartFingerprint() != chart.getFingerprint()) {
+            return false;
+        }
+        cookie.copyStates(active, history);
+        active[0] |= 1L;
+        int count = chart.getStateCount();
+        for (int i = nextSetBit(history, 1, count); i >= 0;
+                i = nextSetBit(history, i + 1, count)) {
+            int parent = chart.getParentOrdinal(i);
+            if (get(active, parent)
+                    || !(chart.getState(parent) instanceof ExclusiveState)) {
+                history[i >>> ADDRESS_BITS] &= ~(1L << i);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fills an OrdinalStateCookie with this record's bitsets, keeping only the
+     * history of inactive States.
+     *
+     * @param cookie an OrdinalStateCookie
+     */
+    void fill(OrdinalStateCookie cookie) {
+        System.arraycopy(history, 0, scratch, 0, history.length);
+        int count = chart.getStateCount();
+        for (int i = nextSetBit(scratch, 1, count); i >= 0;
+                i = nextSetBit(scratch, i + 1, count)) {
+            if (get(active, chart.getParentOrdinal(i))) {
+                scratch[i >>> ADDRESS_BITS] &= ~(1L << i);
+            }
+        }
+        cookie.setStates(chart.getFingerprint(), active, scratch);
+    }
+
+    /**
+     * Fills a pair of Sets with the path names of the active States (excluding
+     * the root) and of the history children of inactive States.
+     *
+     * @param activeSet a Set of active state path names
+     * @param historySet a Set of history state path names
+     */
+    void fillStateSets(Set<String> activeSet, Set<String> historySet) {
+        int count = chart.getStateCount();
+        for (int i = nextSetBit(active, 1, count); i >= 0;
+                i = nextSetBit(active, i + 1, count)) {
+            activeSet.add(chart.getState(i).getPathName());
+        }
+        for (int i = nextSetBit(history, 1, count); i >= 0;
+                i = nextSetBit(history, i + 1, count)) {
+            if (!get(active, chart.getParentOrdinal(i))) {
+                historySet.add(chart.getState(i).getPathName());
+            }
+        }
+    }
+
+    /**
+     * The StateChart this record tracks.
+     *
+     * @return a StateChart
+     */
+    public StateChart getStateChart() {
+        return chart;
+    }
+
+    /**
+     * The Stateful currently attached to this record's machine, used to
+     * execute actions.
+     *
+     * @return a Stateful, or null if none is attached
+     */
+    Stateful getStateful() {
+        return machine.getStateful();
+    }
+
+    /**
+     * Starts the activities of a State that has just become active.
+     *
+     * @param state a State of this record's chart
+     * @param activities the State's activities
+     */
+    void startActivities(State state, ParametricActivity[] activities) {
+        machine.startActivities(state, activities);
+    }
+
+    /**
+     * Stops the running activities of a State that is becoming inactive.
+     *
+     * @param state a State of this record's chart
+     */
+    void stopActivities(State state) {
+        machine.stopActivities(state);
+    }
+
+    /**
+     * Arms the timeout of a State that has just become active.
+     *
+     * @param state a State of this record's chart
+     * @param timeout the State's timeout
+     */
+    void armTimeout(State state, StateTimeout timeout) {
+        machine.armTimeout(state, timeout);
+    }
+
+    /**
+     * Cancels the armed timeout of a State that is becoming inactive.
+     *
+     * @param state a State of this record's chart
+     */
+    void disarmTimeout(State state) {
+        machine.disarmTimeout(state);
+    }
+
+    /**
+     * Tests a bit.
+     *
+     * @param words a bitset
+     * @param bit a bit index
+     *
+     * @return true if the bit is set
+     */
+    private static boolean get(long[] words, int bit) {
+        return (words[bit >>> ADDRESS_BITS] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Finds the first set bit in a range.
+     *
+     * @param words a bitset
+     * @param from first bit index to test, inclusive
+     * @param to last bit index to test, exclusive
+     *
+     * @return a bit index, or -1 if no bit in the range is set
+     */
+    private static int nextSetBit(long[] words, int from, int to) {
+        if (from >= to) {
+            return -1;
+        }
+        int index = from >>> ADDRESS_BITS;
+        long word = words[index] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int bit = (index << ADDRESS_BITS)
+                    + Long.numberOfTrailingZeros(word);
+                return bit < to ? bit : -1;
+            }
+            if (++index << ADDRESS_BITS >= to) {
+                return -1;
+            }
+            word = words[index];
+        }
+    }
+}
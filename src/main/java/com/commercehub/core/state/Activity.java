@@ -0,0 +1,42 @@
+package com.commercehub.core.state;
+
+/**
+ * An Activity is client code that runs for as long as a state is active --
+ * polling a carrier, waiting on a remote service -- without holding up the
+ * trigger that entered the state. Unlike a {@link StateAction}, it doesn't
+ * run inside a transition: it is started on another thread once the state's
+ * entry actions have run, and is interrupted when the state is exited.
+ *
+ * <p>When an activity finishes, its owning Stateful is sent an {@link
+ * ActivityCompletedTrigger}, whose parameter is the activity's result. Map
+ * that trigger and result to a transition to leave the state when its work is
+ * done. An activity whose state is exited first is never heard from.</p>
+ *
+ * <p>An activity may be running for many machines at once, so it should keep
+ * no state of its own between calls.</p>
+ *
+ * @author Matthew Mark Miller
+ * @see ActivityHost
+ */
+public interface Activity {
+    /**
+     * Does this activity's work, on a thread of its own. Blocking calls
+     * should be interruptible; a long computation should check {@link
+     * Thread#interrupted()} now and then, and give up once its state has
+     * been exited.
+     *
+     * @param stateful The Stateful whose state became active. Its state may
+     *                 change while this activity runs; only read from it what
+     *                 is safe to read from another thread.
+     * @param param a parameter associated with this activity in a state
+     *              machine definition, usually a string, can be null.
+     *
+     * @return the parameter of the {@link ActivityCompletedTrigger} pulled on
+     *         the Stateful
+     *
+     * @throws Exception if the work fails. The completion trigger is pulled
+     *                   with the parameter {@link
+     *                   ActivityCompletedTrigger#FAILED} instead.
+     */
+    Object perform(Stateful stateful, Object param) throws Exception;
+}
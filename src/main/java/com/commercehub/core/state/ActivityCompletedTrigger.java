@@ -0,0 +1,60 @@
+package com.commercehub.core.state;
+
+import com.commercehub.core.state.annotations.RefName;
+
+/**
+ * Pulled on a Stateful when one of its {@link Activity activities} finishes,
+ * with the activity's result as its parameter. Map it to the transitions that
+ * should follow the activity's work.
+ *
+ * <p>Evaluates true only while the state that started the activity is still
+ * in the activation it started in. A completion that arrives after its state
+ * was exited -- even if the state has since been re-entered -- fires
+ * nothing.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+@RefName("activity-completed")
+public class ActivityCompletedTrigger implements Trigger {
+    /** The parameter pulled with when an activity throws */
+    public static final String FAILED = "failed";
+
+    private final ActivityRun run;
+    private final Throwable failure;
+
+    /**
+     * Initializes a new ActivityCompletedTrigger.
+     *
+     * @param run the run that completed
+     * @param failure what the activity threw, or null
+     */
+    ActivityCompletedTrigger(ActivityRun run, Throwable failure) {
+        this.run = run;
+        this.failure = failure;
+    }
+
+    /**
+     * The activity that completed.
+     *
+     * @return a ParametricActivity
+     */
+    public ParametricActivity getActivity() {
+        return run.getActivity();
+    }
+
+    /**
+     * What the activity threw, if it failed.
+     *
+     * @return a Throwable, or null if the activity returned normally
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @see Trigger#eval(Stateful, Object, Condition)
+     */
+    public boolean eval(Stateful stateful, Object param, Condition cond) {
+        return !run.isStopped();
+    }
+}
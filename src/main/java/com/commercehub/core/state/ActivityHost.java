@@ -0,0 +1,43 @@
+package com.commercehub.core.state;
+
+/**
+ * Where a StateMachine runs its states' {@link Activity activities}, and how
+ * it hands their completions back to the Stateful that owns it. Set one with
+ * {@link StateMachine#setActivityHost(ActivityHost)}; a machine with none
+ * runs activities on a shared pool of daemon threads, and pulls each
+ * completion straight through {@link Stateful#pullTrigger(Trigger, Object)}
+ * on the thread that finished it. A machine whose chart has activities or
+ * timeouts locks itself while it pulls a trigger, so a completion or expired
+ * timeout waits for any trigger its owner is pulling.
+ *
+ * <p>A {@link StateMachineExecutor} mailbox sets itself as its machine's
+ * host, so completions are queued behind the other triggers submitted for
+ * the Stateful rather than racing them. A {@link StatefulRegistry} gives
+ * each machine it owns a host that pulls completions with the machine's
+ * stripe locked.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public interface ActivityHost {
+    /**
+     * Starts an activity, or the delivery of an expired timeout. The task
+     * may block for as long as its activity runs, so it should get a thread
+     * of its own.
+     *
+     * @param activity runs an activity and delivers its completion, or
+     *                 delivers an expired timeout
+     */
+    void execute(Runnable activity);
+
+    /**
+     * Hands a completed activity's or expired timeout's trigger to the
+     * Stateful it ran for. Called on a thread given to {@link
+     * #execute(Runnable)}.
+     *
+     * @param stateful the Stateful that owns the activity's machine
+     * @param trigger an {@link ActivityCompletedTrigger} or {@link
+     *                TimeoutTrigger}
+     * @param param the activity's result, or the timeout's parameter
+     */
+    void deliver(Stateful stateful, Trigger trigger, Object param);
+}
@@ -0,0 +1,94 @@
+package com.commercehub.core.state;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * One start of one activity, for one machine. Runs the activity, and when it
+ * finishes, delivers an {@link ActivityCompletedTrigger} through its
+ * machine's {@link ActivityHost} -- unless the state was exited first.
+ *
+ * <p>A run is stopped on the machine's own thread, as its state is exited.
+ * A completion may already be on its way by then; the trigger checks {@link
+ * #isStopped()} when it is evaluated, on that same thread, so a completion
+ * never fires a transition out of a later activation of its state.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+final class ActivityRun extends FutureTask<Object> {
+    private final StateMachine machine;
+    private final Stateful stateful;
+    private final ParametricActivity activity;
+
+    private volatile boolean stopped;
+
+    /**
+     * Initializes a new ActivityRun.
+     *
+     * @param machine the machine whose state became active
+     * @param stateful the Stateful attached to the machine
+     * @param activity the activity to run
+     */
+    ActivityRun(StateMachine machine, final Stateful stateful,
+                final ParametricActivity activity) {
+        super(new Callable<Object>() {
+                public Object call() throws Exception {
+                    return activity.perform(stateful);
+                }
+            });
+        this.machine = machine;
+        this.stateful = stateful;
+        this.activity = activity;
+    }
+
+    /**
+     * The activity being run.
+     *
+     * @return a ParametricActivity
+     */
+    ParametricActivity getActivity() {
+        return activity;
+    }
+
+    /**
+     * Stops this run: interrupts the activity if it is running, and refuses
+     * its completion.
+     */
+    void stop() {
+        stopped = true;
+        cancel(true);
+    }
+
+    /**
+     * Whether this run's state has been exited since it started.
+     *
+     * @return true if stopped
+     */
+    boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Delivers the completion of an activity that finished on its own.
+     */
+    protected void done() {
+        if (stopped || isCancelled()) {
+            return;
+        }
+        Object result;
+        Throwable failure = null;
+        try {
+            result = get();
+        } catch (ExecutionException ee) {
+            failure = ee.getCause();
+            result = ActivityCompletedTrigger.FAILED;
+        } catch (InterruptedException ie) {
+            //get() on a finished task doesn't wait
+            Thread.currentThread().interrupt();
+            return;
+        }
+        machine.getActivityHost().deliver(stateful,
+            new ActivityCompletedTrigger(this, failure), result);
+    }
+}
@@ -0,0 +1,269 @@
+package com.commercehub.core.state;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves state cookies from one revision of a chart to the next. A migration
+ * is declared as a map from old path names to new ones and compiled, once, to
+ * a table from old ordinals to new ordinals; migrating a cookie is then a
+ * pass over its bits.
+ *
+ * <p>An old State the map doesn't mention moves to the new State with the same
+ * path name, if there is one, and is dropped otherwise. Mapping a path to null
+ * drops it. After remapping, the new activation is completed the way entering
+ * a State would complete it: the ancestors of every active State are active,
+ * every child of an active ConcurrentState is active, and an active
+ * ExclusiveState has exactly one active child: the first of several, or else
+ * its history child, or else its default child.
+ * History follows the same table; history of a State whose parent is active
+ * is dropped.</p>
+ *
+ * <p>Migrations are immutable, and may be shared between threads.</p>
+ *
+ * @author Matthew Mark Miller
+ * @see ChartVersions
+ */
+public final class ChartMigration {
+    private static final int ADDRESS_BITS = 6;
+    private static final int DROPPED = -1;
+
+    private final StateChart from;
+    private final StateChart to;
+
+    /** Old ordinal : new ordinal, or DROPPED */
+    private final int[] remap;
+
+    /**
+     * Compiles a migration between two charts.
+     *
+     * @param from the chart cookies are migrated from
+     * @param to the chart cookies are migrated to
+     * @param pathMap old path name : new path name, or null to drop the old
+     *                State. May be empty, but not null.
+     *
+     * @throws StateMachineConfigurationException if a path name isn't a State
+     *                                            of its chart
+     */
+    public ChartMigration(StateChart from, StateChart to,
+                          Map<String, String> pathMap)
+                   throws StateMachineConfigurationException {
+        this.from = from;
+        this.to = to;
+        remap = new int[from.getStateCount()];
+        for (int i = 0; i < remap.length; i++) {
+            State state = to.findByName(from.getState(i).getPathName());
+            remap[i] = state == null ? DROPPED : state.getOrdinal();
+        }
+        remap[0] = 0;
+        for (Map.Entry<String, String> entry: pathMap.entrySet()) {
+            State oldState = from.findByName(entry.getKey());
+            if (oldState == null) {
+                throw new StateMachineConfigurationException("Migration from "
+                    + "state " + entry.getKey() + ", which isn't in "
+                    + from.getName());
+            }
+            if (entry.getValue() == null) {
+                remap[oldState.getOrdinal()] = DROPPED;
+                continue;
+            }
+            State newState = to.findByName(entry.getValue());
+            if (newState == null) {
+                throw new StateMachineConfigurationException("Migration to "
+                    + "state " + entry.getValue() + ", which isn't in "
+                    + to.getName());
+            }
+            remap[oldState.getOrdinal()] = newState.getOrdinal();
+        }
+    }
+
+    /**
+     * The chart cookies are migrated from.
+     *
+     * @return a StateChart
+     */
+    public StateChart getFrom() {
+        return from;
+    }
+
+    /**
+     * The chart cookies are migrated to.
+     *
+     * @return a StateChart
+     */
+    public StateChart getTo() {
+        return to;
+    }
+
+    /**
+     * Where a State of the old chart moves to.
+     *
+     * @param ordinal an ordinal in the old chart
+     *
+     * @return an ordinal in the new chart, or -1 if the State is dropped
+     */
+    public int getTargetOrdinal(int ordinal) {
+        return remap[ordinal];
+    }
+
+    /**
+     * Migrates a cookie in place. An {@link OrdinalStateCookie} written for
+     * the old chart is moved onto the new chart by ordinal; any other cookie
+     * is read and rewritten by path name.
+     *
+     * @param cookie a cookie holding states of the old chart
+     *
+     * @throws IllegalArgumentException if an ordinal cookie was written for
+     *                                  another chart, or can't hold states of
+     *                                  the new chart
+     */
+    public void migrate(StateCookie cookie) {
+        int words = wordsFor(from);
+        long[] oldActive = new long[words];
+        long[] oldHistory = new long[words];
+        OrdinalStateCookie ordinalCookie = null;
+        if (cookie instanceof OrdinalStateCookie) {
+            ordinalCookie = (OrdinalStateCookie) cookie;
+            if (ordinalCookie.getChartFingerprint() != from.getFingerprint()) {
+                throw new IllegalArgumentException("Cookie was written for a "
+                    + "chart other than " + from.getName() + ".");
+            }
+            ordinalCookie.copyStates(oldActive, oldHistory);
+        } else {
+            readPaths(cookie.getActiveStatePathNames(), oldActive);
+            readPaths(cookie.getHistoryStatePathNames(), oldHistory);
+        }
+
+        words = wordsFor(to);
+        long[] active = new long[words];
+        long[] history = new long[words];
+        move(oldActive, active);
+        move(oldHistory, history);
+        complete(active, history);
+
+        if (ordinalCookie != null) {
+            ordinalCookie.setStates(to, active, history);
+        } else {
+            cookie.clear();
+            cookie.setActive(pathNames(active));
+            cookie.setHistoryStates(pathNames(history));
+            if (cookie instanceof VersionedStateCookie) {
+                ((VersionedStateCookie) cookie).setChartFingerprint(
+                    to.getFingerprint());
+            }
+        }
+    }
+
+    private void readPaths(Set paths, long[] bits) {
+        for (Iterator it = paths.iterator(); it.hasNext();) {
+            State state = from.findByName((String) it.next());
+            if (state != null) {
+                set(bits, state.getOrdinal());
+            }
+        }
+    }
+
+    private void move(long[] oldBits, long[] newBits) {
+        for (int i = 1; i < remap.length; i++) {
+            if (remap[i] != DROPPED && get(oldBits, i)) {
+                set(newBits, remap[i]);
+            }
+        }
+    }
+
+    /**
+     * Makes a remapped activation consistent. Ancestors are activated from
+     * the deepest ordinals up, then children from the root down; ordinals are
+     * breadth first, so each sweep sees a State's relatives already settled.
+     */
+    private void complete(long[] active, long[] history) {
+        int count = to.getStateCount();
+        set(active, 0);
+        for (int i = count - 1; i > 0; i--) {
+            if (get(active, i)) {
+                set(active, to.getParentOrdinal(i));
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && !get(active, to.getParentOrdinal(i))) {
+                clear(active, i);
+            }
+            if (!get(active, i) || to.getChildCount(i) == 0) {
+                continue;
+            }
+            State state = to.getState(i);
+            int first = to.getFirstChildOrdinal(i);
+            int last = first + to.getChildCount(i);
+            if (state instanceof ExclusiveState) {
+                //one active child: the first, else the history child, else
+                //the default child
+                int child = DROPPED;
+                for (int c = first; c < last; c++) {
+                    if (get(active, c)) {
+                        if (child == DROPPED) {
+                            child = c;
+                        } else {
+                            clear(active, c);
+                        }
+                    }
+                }
+                for (int c = first; c < last && child == DROPPED; c++) {
+                    if (get(history, c)) {
+                        child = c;
+                    }
+                }
+                State defaultChild = ((ExclusiveState) state).getDefaultChild();
+                if (child == DROPPED && defaultChild != null) {
+                    child = defaultChild.getOrdinal();
+                }
+                if (child != DROPPED) {
+                    set(active, child);
+                }
+            } else {
+                for (int c = first; c < last; c++) {
+                    set(active, c);
+                }
+            }
+        }
+        for (int i = 1; i < count; i++) {
+            if (get(history, i) && get(active, to.getParentOrdinal(i))) {
+                clear(history, i);
+            }
+        }
+        active[0] &= ~1L;
+    }
+
+    private Set<String> pathNames(long[] bits) {
+        Set<String> paths = new HashSet<String>();
+        for (int i = 1; i < to.getStateCount(); i++) {
+            if (get(bits, i)) {
+                paths.add(to.getState(i).getPathName());
+            }
+        }
+        return paths;
+    }
+
+    private static int wordsFor(StateChart chart) {
+        return (chart.getStateCount() + 63) >>> ADDRESS_BITS;
+    }
+
+    private static boolean get(long[] bits, int ordinal) {
+        return (bits[ordinal >>> ADDRESS_BITS] & (1L << ordinal)) != 0;
+    }
+
+    private static void set(long[] bits, int ordinal) {
+        bits[ordinal >>> ADDRESS_BITS] |= 1L << ordinal;
+    }
+
+    private static void clear(long[] bits, int ordinal) {
+        bits[ordinal >>> ADDRESS_BITS] &= ~(1L << ordinal);
+    }
+
+    public String toString() {
+        return "ChartMigration(" + from.getName() + " -> " + to.getName()
+            + ": " + Arrays.toString(remap) + ")";
+    }
+}
@@ -0,0 +1,181 @@
+package com.commercehub.core.state;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The revisions of one machine definition, oldest first, and the migrations
+ * between them. Publishing a revision swaps it in for new machines without
+ * disturbing machines already running: a StateMachine holds the chart it was
+ * created from for its whole life. Cookies held by Statefuls are migrated
+ * lazily, the next time they are attached through {@link #attach(Stateful)},
+ * by running them through each migration between their revision and the
+ * current one.
+ *
+ * <p>A cookie's revision is recognized by the chart fingerprint it carries, if
+ * it is an {@link OrdinalStateCookie} or a stamped {@link
+ * VersionedStateCookie}. Revisions that only change transitions share a
+ * fingerprint; such a cookie is taken to be of the newest of them. A cookie
+ * without a fingerprint is taken to be of the newest revision that has every
+ * State it names.</p>
+ *
+ * <p>ChartVersions are thread-safe. Publishing is serialized; attaching reads
+ * a snapshot of the revisions and never blocks.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public class ChartVersions {
+    /** Revisions, oldest first; replaced, never modified, on publish */
+    private volatile List<StateChart> charts;
+
+    /** migrations.get(i) moves cookies from charts.get(i) to charts.get(i + 1) */
+    private volatile List<ChartMigration> migrations;
+
+    /**
+     * Initializes a new ChartVersions with its first revision.
+     *
+     * @param chart revision 1
+     */
+    public ChartVersions(StateChart chart) {
+        charts = Collections.singletonList(chart);
+        migrations = Collections.emptyList();
+    }
+
+    /**
+     * Publishes a new revision. Machines created or attached from now on run
+     * it; machines already running keep their revision.
+     *
+     * @param chart the new revision
+     * @param pathMap how States of the current revision move to the new
+     *                revision; see {@link ChartMigration}
+     *
+     * @return the new revision's number
+     *
+     * @throws StateMachineConfigurationException if the path map names a
+     *                                            State of neither revision
+     */
+    public synchronized int publish(StateChart chart,
+                                    Map<String, String> pathMap)
+                             throws StateMachineConfigurationException {
+        ChartMigration migration =
+            new ChartMigration(getCurrent(), chart, pathMap);
+        List<StateChart> newCharts = new ArrayList<StateChart>(charts);
+        newCharts.add(chart);
+        List<ChartMigration> newMigrations =
+            new ArrayList<ChartMigration>(migrations);
+        newMigrations.add(migration);
+        migrations = Collections.unmodifiableList(newMigrations);
+        charts = Collections.unmodifiableList(newCharts);
+        return newCharts.size();
+    }
+
+    /**
+     * The current revision.
+     *
+     * @return a StateChart
+     */
+    public StateChart getCurrent() {
+        List<StateChart> snapshot = charts;
+        return snapshot.get(snapshot.size() - 1);
+    }
+
+    /**
+     * The number of the current revision; the first is 1.
+     *
+     * @return a revision number
+     */
+    public int getCurrentVersion() {
+        return charts.size();
+    }
+
+    /**
+     * Returns a revision.
+     *
+     * @param version a revision number, from 1 to {@link
+     *                #getCurrentVersion()}
+     *
+     * @return a StateChart
+     */
+    public StateChart getVersion(int version) {
+        return charts.get(version - 1);
+    }
+
+    /**
+     * Creates a new, unattached machine of the current revision.
+     *
+     * @return a StateMachine
+     */
+    public StateMachine newStateMachine() {
+        return getCurrent().newStateMachine();
+    }
+
+    /**
+     * Migrates a Stateful's cookie to the current revision, if it's of an
+     * older one, and attaches it to a new machine of the current revision.
+     *
+     * @param stateful a Stateful
+     *
+     * @return the attached StateMachine
+     *
+     * @throws StateMachineConfigurationException if the cookie doesn't belong
+     *                                            to any revision
+     */
+    public StateMachine attach(Stateful stateful)
+                        throws StateMachineConfigurationException {
+        List<StateChart> chartSnapshot = charts;
+        List<ChartMigration> migrationSnapshot = migrations;
+        StateCookie cookie = stateful.getStateCookie();
+        if (!cookie.isNew()) {
+            int index = indexOf(chartSnapshot, cookie);
+            for (int i = index; i < migrationSnapshot.size(); i++) {
+                migrationSnapshot.get(i).migrate(cookie);
+            }
+        }
+        StateMachine machine =
+            chartSnapshot.get(chartSnapshot.size() - 1).newStateMachine();
+        machine.attachStateful(stateful);
+        return machine;
+    }
+
+    /**
+     * Finds the revision a cookie belongs to.
+     *
+     * @return an index into charts
+     */
+    private static int indexOf(List<StateChart> charts, StateCookie cookie)
+                        throws StateMachineConfigurationException {
+        long fingerprint = 0;
+        if (cookie instanceof OrdinalStateCookie) {
+            fingerprint = ((OrdinalStateCookie) cookie).getChartFingerprint();
+        } else if (cookie instanceof VersionedStateCookie) {
+            fingerprint = ((VersionedStateCookie) cookie).getChartFingerprint();
+        }
+        for (int i = charts.size() - 1; i >= 0; i--) {
+            if (fingerprint != 0
+                    ? charts.get(i).getFingerprint() == fingerprint
+                    : hasStates(charts.get(i), cookie)) {
+                return i;
+            }
+        }
+        throw new StateMachineConfigurationException("State cookie "
+            + cookie + " doesn't belong to any revision of "
+            + charts.get(0).getName());
+    }
+
+    private static boolean hasStates(StateChart chart, StateCookie cookie) {
+        return hasStates(chart, cookie.getActiveStatePathNames())
+            && hasStates(chart, cookie.getHistoryStatePathNames());
+    }
+
+    private static boolean hasStates(StateChart chart, Iterable paths) {
+        for (Iterator it = paths.iterator(); it.hasNext();) {
+            if (chart.findByName((String) it.next()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
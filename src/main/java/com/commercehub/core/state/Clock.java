@@ -0,0 +1,23 @@
+package com.commercehub.core.state;
+
+/**
+ * The time source of a {@link TimingWheel}. Tests substitute a clock they
+ * advance by hand, so that timeouts expire exactly when they are told to.
+ *
+ * @author Matthew Mark Miller
+ */
+public interface Clock {
+    /** Reads {@link System#currentTimeMillis()} */
+    Clock SYSTEM = new Clock() {
+            public long currentTimeMillis() {
+                return System.currentTimeMillis();
+            }
+        };
+
+    /**
+     * The current time.
+     *
+     * @return milliseconds since the epoch
+     */
+    long currentTimeMillis();
+}
@@ -1,9 +1,6 @@
 
 package com.commercehub.core.state;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-
 /**
  * A state in which all child states are active when the state is active.
  * Concurrent states act as containers for independent sub-state machines.
@@ -35,91 +32,96 @@ public class ConcurrentState extends State {
      * active throughout the transition, and since all children of a concurrent
      * state are active when the state itself is active, no deactivations are
      * performed.</p>
+     *
+     * @param record the ActivationRecord of a machine
      */
-    protected void naaDeactivateAsNeeded() {
+    protected void naaDeactivateAsNeeded(ActivationRecord record) {
     }
 
     /**
-     * Deactivate this state. Deactivates all children, than executes any exit
-     * actions, and finally marks itself inactive.
+     * Deactivate this state. Deactivates all children, disarms its timeout
+     * and stops its activities, than executes any exit actions, and finally
+     * marks itself inactive.
+     *
+     * @param record the ActivationRecord of a machine
      */
-    protected void deactivateSelf() {
-        Iterator it = getChildren().iterator();
-        while (it.hasNext()) {
-            State nextChild = (State) it.next();
-            nextChild.deactivateSelf();
+    protected void deactivateSelf(ActivationRecord record) {
+        State[] children = getChildArray();
+        for (int i = 0; i < children.length; i++) {
+            children[i].deactivateSelf(record);
         }
-        doActions(getExitActions());
-        setActive(false);
+        exitSelf(record);
     }
 
     /**
      * This operation is invoked on the nearest active ancestor (NAA) of the
-     * entry state of a transition. It directs the NAA to activate a descendant
-     * and perform any other necessary activations.
+     * entry state of a transition, before the entry path below it is
+     * activated.
      *
-     * <p>The path argument is assumed to be relative to this state, i.e. the
-     * path begins with a child of this state.</p>
+     * <p>Concurrent states do nothing with this notification; their children
+     * are already active.</p>
      *
-     * @param path path of states to activate
+     * @param record the ActivationRecord of a machine
+     * @param pathHead the child of this state on the entry path
      */
-    protected void naaActivatePath(LinkedList path) {
-        //copy the path, so it may be consumed.
-        LinkedList tempPath = new LinkedList(path);
-
-        State pathHead = (State) tempPath.removeFirst();
-        pathHead.activateSelf(tempPath);
+    protected void naaActivatePath(ActivationRecord record, State pathHead) {
     }
 
     /**
-     * Activate this state and the specified path of descendants. Activates
-     * children as appropriate. <em>This operation consumes the head of the
-     * <code>path</code> argument.</em>
+     * Activates this state as one step of an entry path, along with every
+     * child that isn't on the path.
      *
-     * @param path path of descendants to activate
+     * @param record the ActivationRecord of a machine
+     * @param next the child of this state on the entry path, or null if this
+     *             state is the entry state
      */
-    protected void activateSelf(LinkedList path) {
-        if (!isActive()) {
-            doActions(getEntryActions());
-            setActive(true);
+    protected void activateOnPath(ActivationRecord record, State next) {
+        if (!isActive(record)) {
+            doActions(record, getEntryActionArray());
+            setActive(record, true);
+            startActivities(record);
+            armTimeout(record);
         }
 
-        if (path.size() == 0) {
-            activateChildren(null, isDeepHistory());
+        if (next == null) {
+            activateChildren(record, null, isDeepHistory());
         } else {
-            State pathHead = (State) path.removeFirst();
-            activateChildren(pathHead, false);
-            pathHead.activateSelf(path);
+            activateChildren(record, next, false);
         }
     }
 
     /**
      * Activates this state. Activates children as appropriate.
      *
+     * @param record the ActivationRecord of a machine
      * @param observeDeepHistory Informs all children to observe deep history.
      */
-    protected void activateSelf(boolean observeDeepHistory) {
-        if (!isActive()) {
-            doActions(getEntryActions());
-            setActive(true);
+    protected void activateSelf(ActivationRecord record,
+                                boolean observeDeepHistory) {
+        if (!isActive(record)) {
+            doActions(record, getEntryActionArray());
+            setActive(record, true);
+            startActivities(record);
+            armTimeout(record);
         }
-        activateChildren(null, isDeepHistory() || observeDeepHistory);
+        activateChildren(record, null, isDeepHistory() || observeDeepHistory);
     }
 
     /**
      * Loops through child states, activating children that aren't along the
      * entry branch of a transition
      *
+     * @param record the ActivationRecord of a machine
      * @param toSkip a State representing the next leaf in a transition entry
      *               branch
      * @param observeDeepHistory Informs all children to observe deep history.
      */
-    private void activateChildren(State toSkip, boolean observeDeepHistory) {
-        Iterator it = getChildren().iterator();
-        while (it.hasNext()) {
-            State nextChild = (State) it.next();
-            if (nextChild != toSkip) {
-                nextChild.activateSelf(observeDeepHistory);
+    private void activateChildren(ActivationRecord record, State toSkip,
+                                  boolean observeDeepHistory) {
+        State[] children = getChildArray();
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] != toSkip) {
+                children[i].activateSelf(record, observeDeepHistory);
             }
         }
     }
@@ -1,8 +1,10 @@
 
 package com.commercehub.core.state;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -12,6 +14,30 @@ import java.util.Set;
  * @author mmiller
  */
 public class Condition {
+    /** Kind of a top-level Condition, which ORs its clauses */
+    public static final int ROOT = 0;
+
+    /** Kind of a clause added by {@link #addAndClause()} */
+    public static final int AND = 1;
+
+    /** Kind of a clause added by {@link #addOrClause()} */
+    public static final int OR = 2;
+
+    /** Kind of a clause added by {@link #addNotClause()} */
+    public static final int NOT = 3;
+
+    /** Kind of a clause added by {@link #addAnyClause(Set)} */
+    public static final int ANY = 4;
+
+    /** Kind of a clause added by {@link #addAllClause(Set)} */
+    public static final int ALL = 5;
+
+    /** Kind of a clause added by {@link #addSomeClause(Set)} */
+    public static final int SOME = 6;
+
+    /** Kind of a clause added by {@link #addNoneClause(Set)} */
+    public static final int NONE = 7;
+
     /** DOCUMENT ME! */
     LinkedList conditionStack;
 
@@ -83,6 +109,35 @@ public class Condition {
         return "Condition";
     }
 
+    /**
+     * The kind of this condition or clause, one of the constants above. With
+     * {@link #getClauses()} and {@link #getCheckStates()}, this is enough to
+     * rebuild an equivalent Condition through the addXXXClause methods.
+     *
+     * @return a kind
+     */
+    public int getKind() {
+        return ROOT;
+    }
+
+    /**
+     * The clauses of this condition, in the order they were added.
+     *
+     * @return an unmodifiable List of Conditions
+     */
+    public List<Condition> getClauses() {
+        return Collections.unmodifiableList((List<Condition>) conditionStack);
+    }
+
+    /**
+     * The state strings tested by an ANY, ALL, SOME or NONE clause.
+     *
+     * @return a Set of Strings, or null if this isn't a state clause
+     */
+    public Set<String> getCheckStates() {
+        return null;
+    }
+
     /**
      * DOCUMENT ME!
      *
@@ -191,6 +246,10 @@ public class Condition {
         protected String getName() {
             return "AND";
         }
+
+        public int getKind() {
+            return AND;
+        }
     }
 
     /**
@@ -228,6 +287,10 @@ public class Condition {
         protected String getName() {
             return "OR";
         }
+
+        public int getKind() {
+            return OR;
+        }
     }
 
     /**
@@ -260,6 +323,10 @@ public class Condition {
         protected String getName() {
             return "NOT";
         }
+
+        public int getKind() {
+            return NOT;
+        }
     }
 
     /**
@@ -307,6 +374,14 @@ public class Condition {
         protected String getName() {
             return "ANY " + inCondition;
         }
+
+        public int getKind() {
+            return ANY;
+        }
+
+        public Set<String> getCheckStates() {
+            return Collections.unmodifiableSet((Set<String>) inCondition);
+        }
     }
 
     /**
@@ -357,6 +432,14 @@ public class Condition {
         protected String getName() {
             return "ALL " + inCondition;
         }
+
+        public int getKind() {
+            return ALL;
+        }
+
+        public Set<String> getCheckStates() {
+            return Collections.unmodifiableSet((Set<String>) inCondition);
+        }
     }
 
     /**
@@ -408,6 +491,14 @@ public class Condition {
         protected String getName() {
             return "SOME " + inCondition;
         }
+
+        public int getKind() {
+            return SOME;
+        }
+
+        public Set<String> getCheckStates() {
+            return Collections.unmodifiableSet((Set<String>) inCondition);
+        }
     }
 
     /**
@@ -455,5 +546,13 @@ public class Condition {
         protected String getName() {
             return "NONE " + inCondition;
         }
+
+        public int getKind() {
+            return NONE;
+        }
+
+        public Set<String> getCheckStates() {
+            return Collections.unmodifiableSet((Set<String>) inCondition);
+        }
     }
 }
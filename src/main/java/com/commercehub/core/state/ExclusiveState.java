@@ -1,9 +1,6 @@
 
 package com.commercehub.core.state;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Set;
 
 /**
  * A state in which at most one child state may be active.
@@ -37,13 +34,6 @@ public class ExclusiveState extends State {
     /** Whether this state is a history state */
     private boolean history;
 
-    /**
-     * If this state has been previously active, the history child is the
-     * previously active child. This value is maintained even if the state is
-     * not a history state, since some ancestor may require deep history.
-     */
-    private State historyChild;
-
     /**
      * Initializes a new exclusive state object.
      *
@@ -72,6 +62,7 @@ public class ExclusiveState extends State {
      * @throws IllegalArgumentException DOCUMENT ME!
      */
     public State setDefaultChild(State child) {
+        checkNotFrozen();
         if (child != null && !getChildren().contains(child)) {
             String message =
                 "Default child must actually be a child state, or null.";
@@ -83,22 +74,15 @@ public class ExclusiveState extends State {
     }
 
     /**
-     * Returns the active child of this exclusive State or null if none is
-     * active. This result is not cached.
+     * Returns the active child of this exclusive State in a machine, or null
+     * if none is active.
+     *
+     * @param record the ActivationRecord of a machine
      *
      * @return the Active Child state
      */
-    public State getActiveChild() {
-        State activeChild = null;
-        Iterator it = getChildren().iterator();
-        while (it.hasNext()) {
-            State nextChild = (State) it.next();
-            if (nextChild.isActive()) {
-                activeChild = nextChild;
-                break;
-            }
-        }
-        return activeChild;
+    public State getActiveChild(ActivationRecord record) {
+        return record.getActiveChild(this);
     }
 
     /**
@@ -125,14 +109,17 @@ public class ExclusiveState extends State {
 
     /**
      * The active child state of this state, at the time this state was last
-     * active. This value is available without regard for whether this is a
-     * {@link #isHistory() history} state. If this state has never been active,
-     * this operation will return <code>null</code>.
+     * active in a machine. This value is maintained without regard for whether
+     * this is a {@link #isHistory() history} state, since some ancestor may
+     * require deep history. If this state has never been active, this
+     * operation will return <code>null</code>.
+     *
+     * @param record the ActivationRecord of a machine
      *
      * @return last active child of this state
      */
-    public State getHistoryChild() {
-        return historyChild;
+    public State getHistoryChild(ActivationRecord record) {
+        return record.getHistoryChild(this);
     }
 
     /**
@@ -144,6 +131,7 @@ public class ExclusiveState extends State {
      * @return previous value
      */
     public boolean setHistory(boolean yn) {
+        checkNotFrozen();
         boolean oldValue = history;
         history = yn;
         return oldValue;
@@ -153,140 +141,95 @@ public class ExclusiveState extends State {
      * This operation is invoked on the Nearest Active Ancestor (NAA) of the
      * entry state of a transition. It directs the NAA to perform any necessary
      * deactivations.
+     *
+     * @param record the ActivationRecord of a machine
      */
-    protected void naaDeactivateAsNeeded() {
-        State activeChild = getActiveChild();
+    protected void naaDeactivateAsNeeded(ActivationRecord record) {
+        State activeChild = getActiveChild(record);
         if (activeChild != null) {
-            activeChild.deactivateSelf();
+            activeChild.deactivateSelf(record);
         }
     }
 
     /**
-     * Deactivate this state. Deactivates its active child, then performs any
-     * exit actions, and finally marks itself inactive.
+     * Deactivate this state. Deactivates its active child, disarms its
+     * timeout and stops its activities, then performs any exit actions, and
+     * finally marks itself inactive.
+     *
+     * @param record the ActivationRecord of a machine
      */
-    protected void deactivateSelf() {
-        State activeChild = getActiveChild();
+    protected void deactivateSelf(ActivationRecord record) {
+        State activeChild = getActiveChild(record);
         if (activeChild != null) {
-            activeChild.deactivateSelf();
+            activeChild.deactivateSelf(record);
         }
-        doActions(getExitActions());
-        setActive(false);
+        exitSelf(record);
     }
 
     /**
      * This operation is invoked on the nearest active ancestor (NAA) of the
-     * entry state of a transition. It directs the NAA to activate a descendant
-     * and perform any other necessary activations.
+     * entry state of a transition, before the entry path below it is
+     * activated. The child on the path becomes this state's history child.
      *
-     * <p>The path argument is assumed to be relative to this state, i.e. the
-     * path begins with a child of this state.</p>
-     *
-     * @param path path of states to activate
+     * @param record the ActivationRecord of a machine
+     * @param pathHead the child of this state on the entry path
      */
-    protected void naaActivatePath(LinkedList path) {
-        if (!path.isEmpty()) {
-            //copy the path, so it may be consumed.
-            LinkedList tempPath = new LinkedList(path);
-
-            historyChild = (State) tempPath.removeFirst();
-            historyChild.activateSelf(tempPath);
-        }
+    protected void naaActivatePath(ActivationRecord record, State pathHead) {
+        record.setHistoryChild(this, pathHead);
     }
 
     /**
-     * Activates this state and the specified path of descendants. <em>This
-     * operation consumes the head of the <code>path</code> argument.</em>
+     * Activates this state as one step of an entry path. The next state on
+     * the path becomes this state's history child; at the end of the path,
+     * the history or default child is activated.
      *
-     * @param path path of descendants to activate
+     * @param record the ActivationRecord of a machine
+     * @param next the child of this state on the entry path, or null if this
+     *             state is the entry state
      */
-    protected void activateSelf(LinkedList path) {
-        if (!isActive()) {
-        	setActive(true);
-            doActions(getEntryActions());
+    protected void activateOnPath(ActivationRecord record, State next) {
+        if (!isActive(record)) {
+            setActive(record, true);
+            doActions(record, getEntryActionArray());
+            startActivities(record);
+            armTimeout(record);
         }
 
-        if (path.size() == 0) {
+        if (next == null) {
+            State historyChild = record.getHistoryChild(this);
             if ((history || isDeepHistory()) && historyChild != null) {
-                historyChild.activateSelf(isDeepHistory());
+                historyChild.activateSelf(record, isDeepHistory());
             } else if (defaultChild != null) {
-                historyChild = defaultChild;
-                defaultChild.activateSelf(false);
+                record.setHistoryChild(this, defaultChild);
+                defaultChild.activateSelf(record, false);
             }
         } else {
-            historyChild = (State) path.removeFirst();
-            historyChild.activateSelf(path);
+            record.setHistoryChild(this, next);
         }
     }
 
     /**
      * Activates this state and its default or history child as appropriate.
      *
+     * @param record the ActivationRecord of a machine
      * @param observeDeepHistory Informs children to observe deep history
      */
-    protected void activateSelf(boolean observeDeepHistory) {
-        if (!isActive()) {
-            doActions(getEntryActions());
-            setActive(true);
+    protected void activateSelf(ActivationRecord record,
+                                boolean observeDeepHistory) {
+        if (!isActive(record)) {
+            doActions(record, getEntryActionArray());
+            setActive(record, true);
+            startActivities(record);
+            armTimeout(record);
         }
         observeDeepHistory |= isDeepHistory();
 
+        State historyChild = record.getHistoryChild(this);
         if ((history || observeDeepHistory) && historyChild != null) {
-            historyChild.activateSelf(observeDeepHistory);
+            historyChild.activateSelf(record, observeDeepHistory);
         } else if (defaultChild != null) {
-            historyChild = defaultChild;
-            defaultChild.activateSelf(false);
-        }
-    }
-
-    /**
-     * Resets the activation of this state and its children. Exclusive states
-     * need to reset historyChild as well.
-     */
-    protected void reset() {
-        this.historyChild = null;
-        super.reset();
-    }
-
-    /**
-     * Initializes the activation of this state and its children from the values
-     * stores in a loaded StateCookie. Exclusive states need to set historyChild
-     * as well.
-     *
-     * @param cookie A StateCookie
-     */
-    protected void initFromCookie(StateCookie cookie) {
-        if (!isActive()) { //enforces exclusivity between activation and history
-            this.historyChild = cookie.getHistoryChild(this);
-        }
-
-        super.initFromCookie(cookie);
-    }
-
-    /**
-     * Fills a cookie with the activation of this state and its children.
-     * Exclusive states need to fill in their historyChild as well.
-     *
-     * @param cookie A StateCookie
-     */
-    protected void fillCookie(StateCookie cookie) {
-        if (!isActive() && historyChild != null) {
-            cookie.setHistoryChild(historyChild);
-        }
-        super.fillCookie(cookie);
-    }
-
-    /**
-     * Fills a pair of Sets with the active path names of this state and its
-     * children. Exclusive states need to fill in the history Set as well.
-     *
-     * @param activeSet a Set of active states
-     * @param historySet a Set of history states
-     */
-    protected void fillStateSets(Set activeSet, Set historySet) {
-        if (!isActive() && historyChild != null) {
-            historySet.add(historyChild.getPathName());
+            record.setHistoryChild(this, defaultChild);
+            defaultChild.activateSelf(record, false);
         }
-        super.fillStateSets(activeSet, historySet);
     }
 }
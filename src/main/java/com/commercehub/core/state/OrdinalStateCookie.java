@@ -0,0 +1,56 @@
+package com.commercehub.core.state;
+
+/**
+ * A StateCookie that records activation and history by State ordinal rather
+ * than by path name. A StateMachine whose {@link StateChart#getFingerprint()
+ * chart fingerprint} matches the cookie's copies its bitsets directly instead
+ * of going through path names; any other machine falls back to the path name
+ * methods of {@link StateCookie}.
+ *
+ * <p>Both bitsets are arrays of <code>long</code> words, bit <em>n</em> of the
+ * array standing for the State with ordinal <em>n</em>. A State's history bit
+ * is set when it is the history child of its (inactive) parent.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public interface OrdinalStateCookie extends StateCookie {
+    /**
+     * The fingerprint of the chart whose ordinals this cookie holds.
+     *
+     * @return a fingerprint
+     */
+    long getChartFingerprint();
+
+    /**
+     * Copies this cookie's bitsets into the given arrays, which are at least
+     * as long as the cookie's own.
+     *
+     * @param active receives the activation bits
+     * @param history receives the history bits
+     */
+    void copyStates(long[] active, long[] history);
+
+    /**
+     * Replaces this cookie's contents with bitsets for a chart.
+     *
+     * @param chartFingerprint the fingerprint of the chart the bits belong to
+     * @param active activation bits, not retained
+     * @param history history bits, not retained
+     *
+     * @throws IllegalArgumentException if this cookie can't hold states of
+     *                                  that chart
+     */
+    void setStates(long chartFingerprint, long[] active, long[] history);
+
+    /**
+     * Replaces this cookie's contents with bitsets for a chart, moving the
+     * cookie onto that chart if it was written for another. Used by {@link
+     * ChartMigration} to move a cookie onto a new revision of its chart.
+     * @param chart the chart the bits belong to
+     * @param active activation bits, not retained
+     * @param history history bits, not retained
+     * @throws IllegalArgumentException if this cookie can't hold states of
+     *                                  that chart
+     */
+    void setStates(StateChart chart, long[] active, long[] history);
+}
@@ -0,0 +1,53 @@
+package com.commercehub.core.state;
+
+/**
+ * An activity with a parameter. Used by States.
+ *
+ * @author Matthew Mark Miller
+ */
+public class ParametricActivity {
+    private final Activity activity;
+    private final Object param;
+
+    /**
+     * Initializes a new ParametricActivity object.
+     *
+     * @param activity An instantiated Activity
+     * @param param A parameter, usually a string
+     */
+    public ParametricActivity(Activity activity, Object param) {
+        this.activity = activity;
+        this.param = param;
+    }
+
+    /**
+     * Performs the Activity with a parameter
+     *
+     * @param stateful The stateful object to perform the Activity for.
+     *
+     * @return the Activity's result
+     *
+     * @throws Exception if the Activity fails
+     */
+    public Object perform(Stateful stateful) throws Exception {
+        return activity.perform(stateful, param);
+    }
+
+    /**
+     * Returns the Activity
+     *
+     * @return an Activity
+     */
+    public Activity getActivity() {
+        return activity;
+    }
+
+    /**
+     * Returns the Parameter
+     *
+     * @return a Parameter
+     */
+    public Object getParam() {
+        return param;
+    }
+}
@@ -0,0 +1,44 @@
+package com.commercehub.core.state;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The {@link ActivityHost} of a machine that hasn't been given one. Runs
+ * activities on a cached pool of daemon threads shared by every machine,
+ * created on first use, and pulls completions straight through the Stateful.
+ * The machine is serialized by its own lock: a machine whose chart has
+ * activities or timeouts locks itself while it pulls a trigger.
+ *
+ * @author Matthew Mark Miller
+ */
+class PooledActivityHost implements ActivityHost {
+    static final PooledActivityHost INSTANCE = new PooledActivityHost();
+
+    /**
+     * Holds the shared pool, so that it isn't created until an activity
+     * runs.
+     */
+    private static class Pool {
+        static final ExecutorService THREADS = Executors.newCachedThreadPool(
+            new StateMachineExecutor.DaemonThreadFactory("state-activity"));
+    }
+
+    /**
+     * Runs an activity on the shared pool.
+     *
+     * @see ActivityHost#execute(Runnable)
+     */
+    public void execute(Runnable activity) {
+        Pool.THREADS.execute(activity);
+    }
+
+    /**
+     * Pulls the trigger on the Stateful.
+     *
+     * @see ActivityHost#deliver(Stateful, Trigger, Object)
+     */
+    public void deliver(Stateful stateful, Trigger trigger, Object param) {
+        stateful.pullTrigger(trigger, param);
+    }
+}
@@ -1,12 +1,14 @@
 
 package com.commercehub.core.state;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.StringTokenizer;
 
 /**
  * A representation of a legitimate set of logical attribute values of a
@@ -40,10 +42,17 @@ import java.util.Set;
  * In the example above, the complete list of states is "open", "open.accepted",
  * and "open.shipped".</p>
  *
- * <p>A state is either {@link #isActive() active or inactive}. When a state is
- * active, it may be inferred that the relevant logical attributes of the
- * described business object have the values implied by that state. A state may
- * be active only if its parent is active.</p>
+ * <p>A state is either {@link #isActive(ActivationRecord) active or inactive}
+ * in a given machine. When a state is active, it may be inferred that the
+ * relevant logical attributes of the described business object have the
+ * values implied by that state. A state may be active only if its parent is
+ * active. Activation is not held by the state itself but by the {@link
+ * ActivationRecord} of each machine, so that one tree of states can be shared
+ * by many machines through a {@link StateChart}.</p>
+ *
+ * <p>Once its StateChart has been built a state is frozen: it has a fixed
+ * {@link #getOrdinal() ordinal}, and its children and actions may no longer be
+ * changed.</p>
  *
  * <p>A state may enforce {@link #isDeepHistory() deep history}. When a deep
  * history state is made active, all its descendants which were active when the
@@ -92,9 +101,6 @@ public abstract class State {
      */
     public static final char STATE_CHILD_SEPARATOR = ',';
 
-    /** StateMachine object owning this state */
-    protected StateMachine stateMachine;
-
     /** Name of this state */
     private String name;
 
@@ -107,11 +113,27 @@ public abstract class State {
     /** Used to store the path name of this state * */
     private String pathName;
 
-    /** Used to store this state's path * */
-    private LinkedList<State> path;
+    /** This state's index in its StateChart, or -1 before it is frozen */
+    private int ordinal = -1;
+
+    /** Whether this state belongs to a compiled StateChart */
+    private boolean frozen;
+
+    /** This state and its ancestors, root first. Set when frozen. */
+    private State[] pathArray;
+
+    /** Number of ancestors of this state. Set when frozen. */
+    private int depth;
 
-    /** Whether this state is currently active */
-    private boolean active;
+    /** This state's children, in order. Set when frozen. */
+    private State[] childArray;
+
+    /** Entry and exit actions, copied when frozen for the fire path */
+    private ParametricAction[] entryActionArray;
+    private ParametricAction[] exitActionArray;
+
+    /** Activities, copied when frozen for the fire path */
+    private ParametricActivity[] activityArray;
 
     /** Whether this state is a deep history state */
     private boolean deepHistory;
@@ -128,6 +150,15 @@ public abstract class State {
      */
     private List<ParametricAction> exitActions;
 
+    /**
+     * This state's activities (started after its entry actions, stopped before
+     * its exit actions). The elements are of type {@link ParametricActivity}.
+     */
+    private List<ParametricActivity> activities;
+
+    /** How long this state may stay active, or null for as long as it likes */
+    private StateTimeout timeout;
+
     /**
      * Initializes a new state object.
      *
@@ -149,6 +180,7 @@ public abstract class State {
         children = new LinkedHashSet<State>();
         entryActions = new LinkedList<ParametricAction>();
         exitActions = new LinkedList<ParametricAction>();
+        activities = new LinkedList<ParametricActivity>();
     }
 
     /**
@@ -205,10 +237,10 @@ public abstract class State {
         if (newChild == null) {
             throw new NullPointerException("child may not be null");
         }
+        checkNotFrozen();
         boolean added = children.add(newChild);
         if (added) {
             newChild.setParent(this);
-            newChild.setStateMachine(this.stateMachine);
         }
         return added;
     }
@@ -220,6 +252,7 @@ public abstract class State {
      * @param toRemove child state to remove
      */
     public void removeChild(State toRemove) {
+        checkNotFrozen();
         if (toRemove != null) {
             toRemove.setParent(null);
         }
@@ -251,6 +284,7 @@ public abstract class State {
         if (newAction == null) {
             throw new NullPointerException("action may not be null");
         }
+        checkNotFrozen();
         entryActions.add(new ParametricAction(newAction, param));
     }
 
@@ -272,6 +306,7 @@ public abstract class State {
         if (newAction == null) {
             throw new NullPointerException("action may not be null");
         }
+        checkNotFrozen();
         entryActions.add(index, new ParametricAction(newAction, param));
     }
 
@@ -295,6 +330,7 @@ public abstract class State {
         if (newAction == null) {
             throw new NullPointerException("action may not be null");
         }
+        checkNotFrozen();
         return entryActions.set(index,
                 new ParametricAction(newAction, param));
     }
@@ -312,6 +348,7 @@ public abstract class State {
      *                                   number of entry actions
      */
     public ParametricAction removeEntryAction(int index) {
+        checkNotFrozen();
         return entryActions.remove(index);
     }
 
@@ -329,6 +366,7 @@ public abstract class State {
     public boolean removeEntryAction(ParametricAction action) {
         boolean removed = false;
         boolean again = true;
+        checkNotFrozen();
         while (again) {
             again = entryActions.remove(action);
             removed |= again;
@@ -361,6 +399,7 @@ public abstract class State {
         if (newAction == null) {
             throw new NullPointerException("action may not be null");
         }
+        checkNotFrozen();
         exitActions.add(new ParametricAction(newAction, param));
     }
 
@@ -382,6 +421,7 @@ public abstract class State {
         if (newAction == null) {
             throw new NullPointerException("action may not be null");
         }
+        checkNotFrozen();
         exitActions.add(index, new ParametricAction(newAction, param));
     }
 
@@ -405,6 +445,7 @@ public abstract class State {
         if (newAction == null) {
             throw new NullPointerException("action may not be null");
         }
+        checkNotFrozen();
         return exitActions.set(index,
                 new ParametricAction(newAction, param));
     }
@@ -422,6 +463,7 @@ public abstract class State {
      *                                   number of exit actions
      */
     public ParametricAction removeExitAction(int index) {
+        checkNotFrozen();
         return exitActions.remove(index);
     }
 
@@ -439,6 +481,7 @@ public abstract class State {
     public boolean removeExitAction(ParametricAction action) {
         boolean removed = false;
         boolean again = true;
+        checkNotFrozen();
         while (again) {
             again = exitActions.remove(action);
             removed |= again;
@@ -447,21 +490,277 @@ public abstract class State {
     }
 
     /**
-     * Whether this state is active.
+     * An {@link Collections#unmodifiableList(List) unmodifiable list} of this
+     * state's activities.
+     *
+     * @return ParametricActivities
+     */
+    public List<ParametricActivity> getActivities() {
+        return Collections.unmodifiableList(activities);
+    }
+
+    /**
+     * Add <code>newActivity</code> to the list of activities. Each is started
+     * on its own thread whenever this state becomes active, and stopped when
+     * it becomes inactive.
+     *
+     * @param newActivity activity to add
+     * @param param parameter for the activity, usually a String, may be null
+     *
+     * @throws NullPointerException if <code>newActivity</code> is null
+     */
+    public void addActivity(Activity newActivity, Object param) {
+        if (newActivity == null) {
+            throw new NullPointerException("activity may not be null");
+        }
+        checkNotFrozen();
+        activities.add(new ParametricActivity(newActivity, param));
+    }
+
+    /**
+     * Removes every occurrence of <code>activity</code> from the list of
+     * activities.
+     *
+     * @param activity activity to remove
+     *
+     * @return whether <code>activity</code> was originally in the list of
+     *         activities
+     */
+    public boolean removeActivity(ParametricActivity activity) {
+        checkNotFrozen();
+        return activities.removeAll(Collections.singleton(activity));
+    }
+
+    /**
+     * This state's timeout.
+     *
+     * @return a StateTimeout, or null if this state has none
+     */
+    public StateTimeout getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets this state's timeout, replacing any it had. Each time this state
+     * becomes active, a trigger of the given class is armed to be pulled
+     * once the delay has passed, unless the state has become inactive first.
+     *
+     * @param delayMillis how long after activation the timeout expires
+     * @param triggerClass the trigger pulled when it expires
+     * @param param the parameter it is pulled with, may be null
+     *
+     * @throws IllegalArgumentException if delayMillis is negative, or the
+     *                                  trigger class can't be instantiated
+     */
+    public void setTimeout(long delayMillis,
+                           Class<? extends TimeoutTrigger> triggerClass,
+                           Object param) {
+        setTimeout(new StateTimeout(delayMillis, triggerClass, param));
+    }
+
+    /**
+     * Sets this state's timeout, replacing any it had.
+     *
+     * @param newTimeout a StateTimeout, or null to remove the timeout
+     */
+    public void setTimeout(StateTimeout newTimeout) {
+        checkNotFrozen();
+        this.timeout = newTimeout;
+    }
+
+    /**
+     * Whether this state is active in a machine.
+     *
+     * @param record the ActivationRecord of a machine
      *
      * @return whether this state is active
      */
-    public boolean isActive() {
-        return active;
+    public boolean isActive(ActivationRecord record) {
+        return record.isActive(this);
     }
 
     /**
-     * Set the "active" flag. Simple mutator, for subclasses only.
+     * Set the "active" flag in a machine. Simple mutator, for subclasses only.
      *
+     * @param record the ActivationRecord of a machine
      * @param yn new "active" value
      */
-    protected void setActive(boolean yn) {
-        active = yn;
+    protected void setActive(ActivationRecord record, boolean yn) {
+        record.setActive(this, yn);
+    }
+
+    /**
+     * This state's index within its StateChart. Ordinals are assigned breadth
+     * first from the root state, which is always 0.
+     *
+     * @return an ordinal, or -1 if this state has not been frozen
+     */
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    /**
+     * Whether this state belongs to a compiled StateChart and can no longer be
+     * modified.
+     *
+     * @return whether this state is frozen
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Assigns this state its ordinal and freezes it. Called only while a
+     * StateChart is being built.
+     *
+     * @param ordinal index of this state in its StateChart
+     *
+     * @throws IllegalStateException if this state is already part of a
+     *                               StateChart
+     */
+    void freeze(int ordinal) {
+        checkNotFrozen();
+        getPathName();
+        depth = 0;
+        for (State p = parent; p != null; p = p.parent) {
+            depth++;
+        }
+        pathArray = new State[depth + 1];
+        State ancestor = this;
+        for (int i = depth; i >= 0; i--) {
+            pathArray[i] = ancestor;
+            ancestor = ancestor.parent;
+        }
+        childArray = children.toArray(new State[children.size()]);
+        entryActionArray = entryActions.toArray(
+                new ParametricAction[entryActions.size()]);
+        exitActionArray = exitActions.toArray(
+                new ParametricAction[exitActions.size()]);
+        activityArray = activities.toArray(
+                new ParametricActivity[activities.size()]);
+        this.ordinal = ordinal;
+        frozen = true;
+    }
+
+    /**
+     * Replaces each entry and exit action with the equivalent action shared by
+     * the rest of the chart. Called by {@link StateChartOptimizer} before this
+     * state is frozen.
+     *
+     * @param pool the chart's shared actions
+     */
+    void internActions(StateChartOptimizer.ActionPool pool) {
+        checkNotFrozen();
+        pool.intern(entryActions);
+        pool.intern(exitActions);
+    }
+
+    /**
+     * The number of ancestors of this state; the root state has depth 0. Only
+     * available once this state is frozen.
+     *
+     * @return depth of this state
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * The ancestor of this state at a given depth, or this state itself at its
+     * own depth. Only available once this state is frozen.
+     *
+     * @param ancestorDepth a depth from 0 to {@link #getDepth()}
+     *
+     * @return a State
+     */
+    State getAncestor(int ancestorDepth) {
+        return pathArray[ancestorDepth];
+    }
+
+    /**
+     * The depth of the deepest active State on the path from the root to this
+     * state. Every ancestor of an active state is active, so the active states
+     * on the path are a prefix of it and are found by binary search.
+     *
+     * @param record the ActivationRecord of a machine
+     *
+     * @return a depth from 0 to {@link #getDepth()}
+     */
+    int getNearestActiveDepth(ActivationRecord record) {
+        int low = 0;
+        int high = depth;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (record.isActive(pathArray[mid].ordinal)) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * This state and its ancestors as an array, root first, so that a state's
+     * index is its depth. Only available once this state is frozen; the array
+     * must not be modified.
+     *
+     * @return the path of this state from the root state
+     */
+    State[] getPathArray() {
+        return pathArray;
+    }
+
+    /**
+     * This state's children as an array, in the order they were added. Only
+     * available once this state is frozen; the array must not be modified.
+     *
+     * @return child states
+     */
+    State[] getChildArray() {
+        return childArray;
+    }
+
+    /**
+     * This state's entry actions as an array. Only available once this state
+     * is frozen; the array must not be modified.
+     *
+     * @return entry ParametricActions
+     */
+    ParametricAction[] getEntryActionArray() {
+        return entryActionArray;
+    }
+
+    /**
+     * This state's exit actions as an array. Only available once this state
+     * is frozen; the array must not be modified.
+     *
+     * @return exit ParametricActions
+     */
+    ParametricAction[] getExitActionArray() {
+        return exitActionArray;
+    }
+
+    /**
+     * This state's activities as an array. Only available once this state is
+     * frozen; the array must not be modified.
+     *
+     * @return ParametricActivities
+     */
+    ParametricActivity[] getActivityArray() {
+        return activityArray;
+    }
+
+    /**
+     * Refuses modification once this state is frozen.
+     *
+     * @throws IllegalStateException if this state is frozen
+     */
+    protected void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("State " + getName()
+                + " belongs to a StateChart and may not be modified.");
+        }
     }
 
     /**
@@ -475,13 +774,17 @@ public abstract class State {
 
     /**
      * A list containing this state and all its ancestors, in order beginning
-     * with the root state. This method caches the path, and thus should not be
-     * called until the state has been assigned to its parent.
+     * with the root state. The list is newly created and may be consumed by
+     * the caller. Once this state is frozen the list is copied from the path
+     * computed then.
      *
      * @return path of this state from the root state
      */
     public LinkedList<State> getPath() {
-        path = new LinkedList<State>();
+        if (frozen) {
+            return new LinkedList<State>(Arrays.asList(pathArray));
+        }
+        LinkedList<State> path = new LinkedList<State>();
         path.add(this);
         State nextParent = parent;
         while (nextParent != null) {
@@ -516,15 +819,6 @@ public abstract class State {
         return pathName;
     }
 
-    /**
-     * Stateful object described by the state machine that owns this state.
-     *
-     * @return stateful object
-     */
-    public Stateful getStateful() {
-        return stateMachine.getStateful();
-    }
-
     /**
      * Parent state of this state.
      *
@@ -557,162 +851,172 @@ public abstract class State {
     }
 
     /**
-     * Notify this state that it is the entry state of a transition that has
-     * fired. All activations occur by {@link Transition#fire() firing
-     * transitions}, which is the only way this method should be invoked. The
-     * transition must provide its <code>exitState</code> and list of transition
-     * actions.
+     * Finds a descendant of this state given its dot separated path name,
+     * relative to this state.
      *
-     * @param exitState exit state of the transition activating this state
-     * @param transitionActions actions to be performed on behalf of the
-     *                          activating transition
+     * @param dottedName Dotted path name of a descendant. The empty String
+     *                   names this state.
+     *
+     * @return the State, or null if it can't be found
      */
-    void notifyTransitionFired(State exitState, List<ParametricAction> transitionActions) {
-        if (!isActive()) {
-            LinkedList<State> entryPath = getPath();
-            State naa = null;
-            do {
-                naa = entryPath.removeFirst();
-            } while (entryPath.size() > 0
-                    && entryPath.getFirst().isActive());
-
-            naa.naaDeactivateAsNeeded();
+    public State findDescendant(String dottedName) {
+        StringTokenizer st =
+                new StringTokenizer(dottedName,
+                        String.valueOf(STATE_PATH_CHAR));
 
-            //transition actions
-            doActions(transitionActions);
-
-            naa.naaActivatePath(entryPath);
-        } else {
-            //the entry state is already active.  The transition
-            //has already been applied.
-            doActions(transitionActions);
+        State cursorState = this;
+        while (st.hasMoreTokens()) {
+            String currentToken = st.nextToken();
+            boolean found = false;
+            Iterator<State> i = cursorState.children.iterator();
+            while (!found && i.hasNext()) {
+                State childState = i.next();
+                if (childState.getName().equals(currentToken)) {
+                    cursorState = childState;
+                    found = true;
+                }
+            }
+            if (!found) {
+                return null;
+            }
         }
+        return cursorState;
     }
 
     /**
      * This operation is invoked on the Nearest Active Ancestor (NAA) of the
      * entry state of a transition. It directs the NAA to perform any necessary
      * deactivations.
+     *
+     * @param record the ActivationRecord of a machine
      */
-    protected abstract void naaDeactivateAsNeeded();
+    protected abstract void naaDeactivateAsNeeded(ActivationRecord record);
 
     /**
      * Deactivate this state. Deactivates children as necessary.
+     *
+     * @param record the ActivationRecord of a machine
      */
-    protected abstract void deactivateSelf();
+    protected abstract void deactivateSelf(ActivationRecord record);
 
     /**
-     * This operation is invoked on the nearest active ancestor (NAA) of the
-     * entry state of a transition. It directs the NAA to activate a descendant
-     * and perform any other necessary activations.
+     * Tears down this state alone, once its children are inactive: disarms its
+     * timeout, stops its activities, executes its exit actions, and marks it
+     * inactive. Shared by
+     * {@link #deactivateSelf(ActivationRecord)} and the exit chain of a
+     * {@link TransitionPlan}.
      *
-     * <p>The path argument is assumed to be relative to this state, i.e. the
-     * path begins with a child of this state.</p>
+     * @param record the ActivationRecord of a machine
+     */
+    protected final void exitSelf(ActivationRecord record) {
+        disarmTimeout(record);
+        stopActivities(record);
+        doActions(record, getExitActionArray());
+        setActive(record, false);
+    }
+
+    /**
+     * This operation is invoked on the nearest active ancestor (NAA) of the
+     * entry state of a transition, before the entry path below it is
+     * activated. It directs the NAA to perform any bookkeeping for the child
+     * through which the path continues.
      *
-     * @param path path of states to activate
+     * @param record the ActivationRecord of a machine
+     * @param pathHead the child of this state on the entry path
      */
-    protected abstract void naaActivatePath(LinkedList<State> path);
+    protected abstract void naaActivatePath(ActivationRecord record,
+                                            State pathHead);
 
     /**
-     * Activate this state and the specified path of descendants. Activates
-     * children as appropriate. <em>This operation consumes the head of the
-     * <code>path</code> argument.</em>
+     * Activates this state as one step of an entry path, which a {@link
+     * TransitionPlan} walks from the top down. Activates any children off the
+     * path as appropriate; at the end of the path, activates history or
+     * default children. The next state on the path is activated by the plan,
+     * not by this state.
      *
-     * @param path path of descendants to activate
+     * @param record the ActivationRecord of a machine
+     * @param next the child of this state on the entry path, or null if this
+     *             state is the entry state
      */
-    protected abstract void activateSelf(LinkedList<State> path);
+    protected abstract void activateOnPath(ActivationRecord record,
+                                           State next);
 
     /**
      * Activates this state. Activates children as appropriate.
      *
+     * @param record the ActivationRecord of a machine
      * @param observeDeepHistory whether a deep history node has been
      *                           encountered
      */
-    protected abstract void activateSelf(boolean observeDeepHistory);
+    protected abstract void activateSelf(ActivationRecord record,
+                                         boolean observeDeepHistory);
 
 
     /**
-     * Utility to execute a list of {@link StateAction actions}.
+     * Utility to execute an array of {@link StateAction actions} against the
+     * Stateful attached to a machine.
      *
+     * @param record the ActivationRecord of a machine
      * @param actions actions to execute
      */
-    protected void doActions(List<ParametricAction> actions) {
-        Stateful stateful = getStateful();
+    protected void doActions(ActivationRecord record,
+                             ParametricAction[] actions) {
+        Stateful stateful = record.getStateful();
         if (stateful != null) {
-            Iterator it = actions.iterator();
-            while (it.hasNext()) {
-                ParametricAction action = (ParametricAction) it.next();
-                action.execute(stateful);
+            for (int i = 0; i < actions.length; i++) {
+                actions[i].execute(stateful);
             }
         }
     }
 
     /**
-     * Sets the parent state machine of this State. Useful for retreiving the
-     * stateful the Machine is operating on, and for calling {@link
-     * StateMachine#doActions(List)}.
+     * Starts this state's activities in a machine, once it has become active.
+     * Like actions, activities only run for a machine with a Stateful
+     * attached.
      *
-     * @param stateMachine a StateMachine object
+     * @param record the ActivationRecord of a machine
      */
-    void setStateMachine(StateMachine stateMachine) {
-        this.stateMachine = stateMachine;
-    }
-
-    /**
-     * Resets the activation of this state and its children.
-     */
-    protected void reset() {
-        this.setActive(false);
-        Iterator<State> iterator = getChildren().iterator();
-        while (iterator.hasNext()) {
-            iterator.next().reset();
+    protected void startActivities(ActivationRecord record) {
+        if (activityArray.length != 0) {
+            record.startActivities(this, activityArray);
         }
     }
 
     /**
-     * Initializes the activation of this state and its children from the values
-     * stores in a loaded StateCookie.
+     * Stops this state's running activities in a machine, before it becomes
+     * inactive. A stopped activity is interrupted, and its completion is
+     * never delivered.
      *
-     * @param cookie A StateCookie
+     * @param record the ActivationRecord of a machine
      */
-    protected void initFromCookie(StateCookie cookie) {
-        this.setActive(cookie.isActive(this) || this.getParent() == null);
-        Iterator<State> iterator = getChildren().iterator();
-        while (iterator.hasNext()) {
-            iterator.next().initFromCookie(cookie);
+    protected void stopActivities(ActivationRecord record) {
+        if (activityArray.length != 0) {
+            record.stopActivities(this);
         }
     }
 
     /**
-     * Fills a cookie with the activation of this state and its children.
-     * Exclusive states need to fill in their historyChild as well.
+     * Arms this state's timeout in a machine, once it has become active.
+     * Like actions, timeouts are only armed for a machine with a Stateful
+     * attached.
      *
-     * @param cookie A StateCookie
+     * @param record the ActivationRecord of a machine
      */
-    protected void fillCookie(StateCookie cookie) {
-        if (this.isActive() && this.getParent() != null) { //excludes root state
-            cookie.setActive(this);
-        }
-        Iterator<State> iterator = getChildren().iterator();
-        while (iterator.hasNext()) {
-            iterator.next().fillCookie(cookie);
+    protected void armTimeout(ActivationRecord record) {
+        if (timeout != null) {
+            record.armTimeout(this, timeout);
         }
     }
 
     /**
-     * Fills a pair of Sets with the active path names of this state and its
-     * children.
+     * Cancels this state's armed timeout in a machine, before it becomes
+     * inactive.
      *
-     * @param activeSet a Set of active states
-     * @param historySet a Set of history states
+     * @param record the ActivationRecord of a machine
      */
-    protected void fillStateSets(Set<String> activeSet, Set<String> historySet) {
-        if (this.isActive() && this.getParent() != null) { //excludes root state
-            activeSet.add(this.getPathName());
-        }
-        Iterator<State> iterator = getChildren().iterator();
-        while (iterator.hasNext()) {
-            iterator.next().fillStateSets(activeSet, historySet);
+    protected void disarmTimeout(ActivationRecord record) {
+        if (timeout != null) {
+            record.disarmTimeout(this);
         }
     }
 
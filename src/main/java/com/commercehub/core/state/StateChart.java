@@ -0,0 +1,334 @@
+package com.commercehub.core.state;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compiled, immutable definition of a StateMachine: its tree of States,
+ * its Transitions and their actions and ranks, its TriggerTransitionMap and
+ * Conditions, and its property maps. One StateChart is built per machine
+ * definition and shared by every {@link StateMachine} created from it, each of
+ * which holds only a small {@link ActivationRecord}.
+ *
+ * <p>Constructing a StateChart freezes its States, Transitions and
+ * TriggerTransitionMap; any later attempt to modify them throws an
+ * IllegalStateException. A StateChart may safely be shared between
+ * threads.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public class StateChart {
+    /** Separates States when computing a fingerprint */
+    private static final char STATE_SEPARATOR = '\n';
+
+    private final State rootState;
+    private final String description;
+    private final TriggerTransitionMap triggerTransitionMap;
+    private final Map<String, List<String>> possiblePropertyValueMap;
+    private final List<PropertyValuePair> defaultPropertyValues;
+
+    /** States, indexed by ordinal */
+    private final State[] states;
+
+    /** Ordinal of each state's parent, -1 for the root */
+    private final int[] parentOrdinals;
+
+    /**
+     * Ordinal of each state's first child. Ordinals are assigned breadth
+     * first, so the children of a state are always numbered contiguously.
+     */
+    private final int[] firstChildOrdinals;
+
+    /** Number of children of each state */
+    private final int[] childCounts;
+
+    /** Hash of the shape of the state tree */
+    private final long fingerprint;
+
+    /** Path name : State */
+    private final Map<String, State> statesByPath;
+
+    /** Whether any State has activities */
+    private final boolean activities;
+
+    /** Whether any State has a timeout */
+    private final boolean timeouts;
+
+    /**
+     * Compiles and freezes a StateChart.
+     *
+     * @param rootState the root State of a fully built State tree
+     * @param description a description of the business process modelled
+     * @param possiblePropertyValueMap property name : List of possible values,
+     *                                 may be null
+     * @param defaultPropertyValues properties set when a Stateful is first
+     *                              attached, may be null
+     * @param triggerTransitionMap a fully wired TriggerTransitionMap
+     *
+     * @throws IllegalArgumentException if the root State or
+     *                                  TriggerTransitionMap is null
+     */
+    public StateChart(State rootState, String description,
+                      Map<String, ? extends List<String>> possiblePropertyValueMap,
+                      List<PropertyValuePair> defaultPropertyValues,
+                      TriggerTransitionMap triggerTransitionMap) {
+        if (rootState == null || triggerTransitionMap == null) {
+            throw new IllegalArgumentException(
+                "A StateChart needs a root State and a TriggerTransitionMap.");
+        }
+        this.rootState = rootState;
+        this.description = description;
+        this.triggerTransitionMap = triggerTransitionMap;
+        this.possiblePropertyValueMap = copyPropertyValues(
+                possiblePropertyValueMap);
+        this.defaultPropertyValues =
+            defaultPropertyValues == null
+            ? Collections.<PropertyValuePair>emptyList()
+            : Collections.unmodifiableList(
+                new ArrayList<PropertyValuePair>(defaultPropertyValues));
+
+        List<State> ordered = new ArrayList<State>();
+        LinkedList<State> queue = new LinkedList<State>();
+        queue.add(rootState);
+        while (!queue.isEmpty()) {
+            State next = queue.removeFirst();
+            ordered.add(next);
+            queue.addAll(next.getChildren());
+        }
+        states = ordered.toArray(new State[ordered.size()]);
+        statesByPath = new HashMap<String, State>();
+        boolean anyActivities = false;
+        boolean anyTimeouts = false;
+        for (int i = 0; i < states.length; i++) {
+            states[i].freeze(i);
+            statesByPath.put(states[i].getPathName(), states[i]);
+            anyActivities |= states[i].getActivityArray().length != 0;
+            anyTimeouts |= states[i].getTimeout() != null;
+        }
+        activities = anyActivities;
+        timeouts = anyTimeouts;
+
+        parentOrdinals = new int[states.length];
+        firstChildOrdinals = new int[states.length];
+        childCounts = new int[states.length];
+        int nextChild = 1;
+        for (int i = 0; i < states.length; i++) {
+            State parent = states[i].getParent();
+            parentOrdinals[i] = i == 0 ? -1 : parent.getOrdinal();
+            firstChildOrdinals[i] = nextChild;
+            childCounts[i] = states[i].getChildren().size();
+            nextChild += childCounts[i];
+        }
+        fingerprint = fingerprint(states);
+        triggerTransitionMap.freeze();
+    }
+
+    /**
+     * Copies a property value map into an unmodifiable map.
+     *
+     * @param values property name : List of possible values, may be null
+     *
+     * @return an unmodifiable Map, never null
+     */
+    private static Map<String, List<String>> copyPropertyValues(
+        Map<String, ? extends List<String>> values) {
+        Map<String, List<String>> copy =
+            new LinkedHashMap<String, List<String>>();
+        if (values != null) {
+            for (Map.Entry<String, ? extends List<String>> entry:
+                    values.entrySet()) {
+                copy.put(entry.getKey(),
+                    Collections.unmodifiableList(
+                        new ArrayList<String>(entry.getValue())));
+            }
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Computes a 64 bit FNV-1a hash of the kind and path name of each State,
+     * in ordinal order.
+     *
+     * @param states States, indexed by ordinal
+     *
+     * @return a fingerprint
+     */
+    private static long fingerprint(State[] states) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < states.length; i++) {
+            String key = (states[i] instanceof ConcurrentState ? 'C' : 'E')
+                + states[i].getPathName() + STATE_SEPARATOR;
+            for (int j = 0; j < key.length(); j++) {
+                hash ^= key.charAt(j);
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Creates a new, unattached StateMachine backed by this chart.
+     *
+     * @return a StateMachine
+     */
+    public StateMachine newStateMachine() {
+        return new StateMachine(this);
+    }
+
+    /**
+     * Returns the name of this chart (also the name of its root state)
+     *
+     * @return a String
+     */
+    public String getName() {
+        return rootState.getName();
+    }
+
+    /**
+     * Returns a description of the business process modelled in this chart
+     *
+     * @return a String
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Returns the root State.
+     *
+     * @return a State
+     */
+    public State getRootState() {
+        return rootState;
+    }
+
+    /**
+     * Returns the TriggerTransitionMap of this chart.
+     *
+     * @return a frozen TriggerTransitionMap
+     */
+    public TriggerTransitionMap getTriggerTransitionMap() {
+        return triggerTransitionMap;
+    }
+
+    /**
+     * Returns the unmodifiable map of possible values for each property.
+     *
+     * @return property name : List of possible values
+     */
+    public Map<String, List<String>> getPossiblePropertyValueMap() {
+        return possiblePropertyValueMap;
+    }
+
+    /**
+     * Returns the unmodifiable list of properties set when a new Stateful is
+     * attached.
+     *
+     * @return a List of PropertyValuePairs
+     */
+    public List<PropertyValuePair> getDefaultPropertyValues() {
+        return defaultPropertyValues;
+    }
+
+    /**
+     * Whether any State of this chart has {@link Activity activities}.
+     *
+     * @return true if machines of this chart may run activities
+     */
+    public boolean hasActivities() {
+        return activities;
+    }
+
+    /**
+     * Whether any State of this chart has a {@link StateTimeout timeout}.
+     *
+     * @return true if machines of this chart may arm timeouts
+     */
+    public boolean hasTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * A hash of the shape of this chart: the kind and path name of every
+     * State, in ordinal order. Two charts with the same fingerprint number
+     * their States the same way, so activation recorded by ordinal in one is
+     * valid in the other.
+     *
+     * @return a fingerprint
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * The number of States in this chart, including the root.
+     *
+     * @return a count
+     */
+    public int getStateCount() {
+        return states.length;
+    }
+
+    /**
+     * Returns a State given its ordinal.
+     *
+     * @param ordinal a State ordinal, from 0 to getStateCount() - 1
+     *
+     * @return a State
+     */
+    public State getState(int ordinal) {
+        return states[ordinal];
+    }
+
+    /**
+     * The ordinal of a State's parent.
+     *
+     * @param ordinal a State ordinal
+     *
+     * @return the parent's ordinal, or -1 for the root State
+     */
+    public int getParentOrdinal(int ordinal) {
+        return parentOrdinals[ordinal];
+    }
+
+    /**
+     * The ordinal of a State's first child. A State's children are numbered
+     * contiguously from this ordinal, in the order they were added.
+     *
+     * @param ordinal a State ordinal
+     *
+     * @return the ordinal of the first child, meaningless if the State has no
+     *         children
+     */
+    public int getFirstChildOrdinal(int ordinal) {
+        return firstChildOrdinals[ordinal];
+    }
+
+    /**
+     * The number of children of a State.
+     *
+     * @param ordinal a State ordinal
+     *
+     * @return a count
+     */
+    public int getChildCount(int ordinal) {
+        return childCounts[ordinal];
+    }
+
+    /**
+     * Finds a State given its dot separated path name.
+     *
+     * @param dottedName Dotted path name of a State. The empty path name
+     *                   finds the root State.
+     *
+     * @return the State, or null if there is no such State
+     */
+    public State findByName(String dottedName) {
+        return statesByPath.get(dottedName);
+    }
+}
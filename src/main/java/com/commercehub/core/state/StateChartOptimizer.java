@@ -0,0 +1,321 @@
+package com.commercehub.core.state;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An optional pass over a wired but unbuilt chart, run between parsing and
+ * {@link StateChart} construction, that removes what no machine of the chart
+ * can ever use:
+ *
+ * <ul>
+ * <li>States that can't become active. A machine starts in its root's
+ *     default states; from there, every transition exiting a state that can
+ *     be active is assumed to fire, whatever its trigger and condition, and
+ *     the states it activates can be active in turn. Everything else is
+ *     pruned from the tree, with its descendants.</li>
+ * <li>Transitions whose exit state can't become active, with their mappings.
+ *     Ranked states that can't become active are dropped from the
+ *     transitions that remain.</li>
+ * <li>Mappings that repeat an earlier mapping of the same trigger class,
+ *     parameter and transition with an equivalent condition, or none.</li>
+ * <li>Duplicate {@link ParametricAction ParametricActions}: entry, exit and
+ *     transition actions with the same StateAction and an equal parameter
+ *     share one instance.</li>
+ * </ul>
+ *
+ * <p>Machines of the optimized chart behave as machines of the original chart
+ * would, from a new Stateful. A cookie written by the original chart may name
+ * pruned states, and the fingerprints of the two charts differ when anything
+ * was pruned; move such cookies over with a {@link ChartMigration}.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public final class StateChartOptimizer {
+    private StateChartOptimizer() {
+    }
+
+    /**
+     * Optimizes a chart before it is built. States are pruned from the tree
+     * under <code>rootState</code> in place; the mappings that remain are
+     * replayed into a new map, which the StateChart should be built with.
+     *
+     * @param rootState the root of a tree of unfrozen States
+     * @param map a wired, unfrozen TriggerTransitionMap of those States
+     *
+     * @return what was removed, and the new map
+     *
+     * @throws IllegalStateException if the States or map are already part of
+     *                               a StateChart
+     */
+    public static Report optimize(State rootState, TriggerTransitionMap map) {
+        if (rootState.isFrozen()) {
+            throw new IllegalStateException("State " + rootState.getName()
+                + " already belongs to a StateChart.");
+        }
+        Set<Transition> transitions = new HashSet<Transition>();
+        Set<State> reachable = map.getReachableStates(rootState, transitions);
+
+        List<String> removedStates = new ArrayList<String>();
+        LinkedList<State> unwalked = new LinkedList<State>();
+        unwalked.add(rootState);
+        while (!unwalked.isEmpty()) {
+            State state = unwalked.removeFirst();
+            for (State child: new ArrayList<State>(state.getChildren())) {
+                if (reachable.contains(child)) {
+                    unwalked.add(child);
+                } else {
+                    recordSubtree(child, removedStates);
+                    state.removeChild(child);
+                }
+            }
+        }
+
+        TriggerTransitionMap optimized = new TriggerTransitionMap();
+        List<TriggerTransitionMap.Mapping> kept =
+            new ArrayList<TriggerTransitionMap.Mapping>();
+        Set<String> removedTransitions = new HashSet<String>();
+        int collapsedMappings = 0;
+        for (TriggerTransitionMap.Mapping mapping: map.getMappings()) {
+            Transition transition = mapping.getTransition();
+            if (!transitions.contains(transition)) {
+                removedTransitions.add(transition.getName());
+            } else if (repeats(mapping, kept)) {
+                collapsedMappings++;
+            } else {
+                kept.add(mapping);
+                if (mapping.getCondition() == null) {
+                    optimized.addTriggerTransition(mapping.getTriggerClass(),
+                        mapping.getParam(), transition);
+                } else {
+                    optimized.addTriggerTransition(mapping.getTriggerClass(),
+                        mapping.getParam(), transition,
+                        mapping.getCondition());
+                }
+            }
+        }
+
+        ActionPool pool = new ActionPool();
+        for (State state: reachable) {
+            state.internActions(pool);
+        }
+        int removedRanks = 0;
+        for (Transition transition: transitions) {
+            removedRanks += transition.optimize(pool, reachable);
+        }
+
+        List<String> transitionNames =
+            new ArrayList<String>(removedTransitions);
+        Collections.sort(transitionNames);
+        return new Report(optimized, removedStates, transitionNames,
+            removedRanks, collapsedMappings, pool.merged);
+    }
+
+    private static void recordSubtree(State state, List<String> paths) {
+        paths.add(state.getPathName());
+        for (State child: state.getChildren()) {
+            recordSubtree(child, paths);
+        }
+    }
+
+    /**
+     * Whether a mapping repeats one already kept: same trigger class,
+     * parameter and transition, and an equivalent condition.
+     */
+    private static boolean repeats(TriggerTransitionMap.Mapping mapping,
+                                   List<TriggerTransitionMap.Mapping> kept) {
+        for (TriggerTransitionMap.Mapping earlier: kept) {
+            if (earlier.getTriggerClass() == mapping.getTriggerClass()
+                    && earlier.getTransition() == mapping.getTransition()
+                    && (earlier.getParam() == null
+                        ? mapping.getParam() == null
+                        : earlier.getParam().equals(mapping.getParam()))
+                    && sameCondition(earlier.getCondition(),
+                        mapping.getCondition())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares conditions by their structure: kind, checked states and
+     * clauses.
+     */
+    private static boolean sameCondition(Condition a, Condition b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a.getKind() != b.getKind()) {
+            return false;
+        }
+        Set<String> aStates = a.getCheckStates();
+        Set<String> bStates = b.getCheckStates();
+        if (aStates == null ? bStates != null : !aStates.equals(bStates)) {
+            return false;
+        }
+        List<Condition> aClauses = a.getClauses();
+        List<Condition> bClauses = b.getClauses();
+        if (aClauses.size() != bClauses.size()) {
+            return false;
+        }
+        for (int i = 0; i < aClauses.size(); i++) {
+            if (!sameCondition(aClauses.get(i), bClauses.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The ParametricActions of one chart, one per StateAction and parameter.
+     */
+    static final class ActionPool {
+        /** StateAction : parameter : shared ParametricAction */
+        private final Map<StateAction, Map<Object, ParametricAction>> actions =
+            new IdentityHashMap<StateAction, Map<Object, ParametricAction>>();
+
+        private int merged;
+
+        /**
+         * Replaces each action in a list with its shared equivalent.
+         *
+         * @param list a modifiable List of ParametricActions
+         */
+        void intern(List list) {
+            for (int i = 0; i < list.size(); i++) {
+                ParametricAction action = (ParametricAction) list.get(i);
+                ParametricAction shared = intern(action);
+                if (shared != action) {
+                    list.set(i, shared);
+                    merged++;
+                }
+            }
+        }
+
+        private ParametricAction intern(ParametricAction action) {
+            Map<Object, ParametricAction> byParam =
+                actions.get(action.getStateAction());
+            if (byParam == null) {
+                byParam = new HashMap<Object, ParametricAction>();
+                actions.put(action.getStateAction(), byParam);
+            }
+            ParametricAction shared = byParam.get(action.getParam());
+            if (shared == null) {
+                byParam.put(action.getParam(), action);
+                shared = action;
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * What an optimization removed, and the map the optimized chart should be
+     * built with.
+     */
+    public static final class Report {
+        private final TriggerTransitionMap triggerTransitionMap;
+        private final List<String> removedStates;
+        private final List<String> removedTransitions;
+        private final int removedRanks;
+        private final int collapsedMappings;
+        private final int mergedActions;
+
+        Report(TriggerTransitionMap triggerTransitionMap,
+               List<String> removedStates, List<String> removedTransitions,
+               int removedRanks, int collapsedMappings, int mergedActions) {
+            this.triggerTransitionMap = triggerTransitionMap;
+            this.removedStates = Collections.unmodifiableList(removedStates);
+            this.removedTransitions =
+                Collections.unmodifiableList(removedTransitions);
+            this.removedRanks = removedRanks;
+            this.collapsedMappings = collapsedMappings;
+            this.mergedActions = mergedActions;
+        }
+
+        /**
+         * The optimized map, to build the StateChart with.
+         *
+         * @return an unfrozen TriggerTransitionMap
+         */
+        public TriggerTransitionMap getTriggerTransitionMap() {
+            return triggerTransitionMap;
+        }
+
+        /**
+         * The path names of the pruned states, each before its descendants.
+         *
+         * @return an unmodifiable List of path names
+         */
+        public List<String> getRemovedStates() {
+            return removedStates;
+        }
+
+        /**
+         * The names of the transitions that can never fire, sorted.
+         *
+         * @return an unmodifiable List of transition names
+         */
+        public List<String> getRemovedTransitions() {
+            return removedTransitions;
+        }
+
+        /**
+         * The number of ranked states dropped from transitions.
+         *
+         * @return a count
+         */
+        public int getRemovedRanks() {
+            return removedRanks;
+        }
+
+        /**
+         * The number of mappings that repeated an earlier mapping.
+         *
+         * @return a count
+         */
+        public int getCollapsedMappings() {
+            return collapsedMappings;
+        }
+
+        /**
+         * The number of ParametricActions replaced by an equivalent one.
+         *
+         * @return a count
+         */
+        public int getMergedActions() {
+            return mergedActions;
+        }
+
+        /**
+         * Whether anything was removed or merged.
+         *
+         * @return true if the optimized chart is the same as the original
+         */
+        public boolean isEmpty() {
+            return removedStates.isEmpty() && removedTransitions.isEmpty()
+                && removedRanks == 0 && collapsedMappings == 0
+                && mergedActions == 0;
+        }
+
+        public String toString() {
+            StringBuffer sb = new StringBuffer();
+            sb.append("Removed ").append(removedStates.size())
+                .append(" states ").append(removedStates)
+                .append(", ").append(removedTransitions.size())
+                .append(" transitions ").append(removedTransitions)
+                .append(", ").append(removedRanks).append(" state ranks and ")
+                .append(collapsedMappings)
+                .append(" repeated mappings; merged ").append(mergedActions)
+                .append(" actions");
+            return sb.toString();
+        }
+    }
+}
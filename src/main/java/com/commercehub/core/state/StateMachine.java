@@ -1,13 +1,13 @@
 
 package com.commercehub.core.state;
 
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
 
 
 /**
@@ -18,11 +18,15 @@ import java.util.StringTokenizer;
  * snapshot of State activation and history via {@link  #getStateCookie()}.
  *
  * <p>StateMachines are generated and "wired" to Actions and Triggers by a
- * {@link StateMachineFactory}. They can be moderately expensive to create and
- * implementations of the Factory should pool machines. Objects implementing the
- * Stateful interface that are being removed from active duty should call {@link
- * #detachStateful()} which informs a StateMachine that it can return itself to
- * the pool.</p>
+ * {@link StateMachineFactory}. Everything that is fixed by a machine
+ * definition -- States, Transitions, Conditions and property maps -- lives in
+ * an immutable {@link StateChart} shared by every machine built from that
+ * definition; a StateMachine itself holds only its Stateful and an {@link
+ * ActivationRecord}, so new machines are cheap to create from a chart.
+ * Factories may still pool machines (see {@link StateMachinePool}). Objects
+ * implementing the Stateful interface that are being removed from active
+ * duty should call {@link #detachStateful()} which informs a StateMachine
+ * that it can return itself to the pool.</p>
  *
  * <p>Convenience methods {@link #findByName(String)} and {@link
  * #getActiveStateString()} exist to return a String representing the current
@@ -31,6 +35,23 @@ import java.util.StringTokenizer;
  * logging purposes, and not used to manage or examine state. Use a StateCookie
  * for that.</p>
  *
+ * <p>States may have {@link Activity activities}, which a machine starts on
+ * its {@link ActivityHost} as their states are entered and stops as they are
+ * exited. Attaching a Stateful starts the activities of the states its cookie
+ * says are active; detaching it stops them all. Completions arrive from other
+ * threads, so a machine whose chart has activities or timeouts locks itself
+ * while it pulls a trigger, attaches or detaches: a completion or timeout
+ * never changes the machine at the same time as its owner's own
+ * triggers.</p>
+ *
+ * <p>States may also have a {@link StateTimeout timeout}, which a machine arms
+ * on its {@link TimingWheel} as the state is entered and cancels as it is
+ * exited. An expired timeout's {@link TimeoutTrigger} is handed to the
+ * machine's ActivityHost to execute, and delivered through it like an
+ * activity's completion, so the wheel's thread never runs a transition. A
+ * {@link TimedStateCookie} keeps the deadlines of the armed timeouts, and
+ * attaching a Stateful re-arms them.</p>
+ *
  * @author Orr Bernstein, Matthew Mark Miller
  */
 public class StateMachine {
@@ -39,52 +60,75 @@ public class StateMachine {
 
     public static final int RANK_APPLICABLE_BUT_UNRANKED =
             Integer.MAX_VALUE - 1;
-    private State rootState;
-    private TriggerTransitionMap triggerTransitionMap;
-    private Map<String, ? extends List<String>> possiblePropertyValueMap;
-    private List<PropertyValuePair> defaultPropertyValues;
-    private String description;
+    private final StateChart chart;
+    private final ActivationRecord record;
+    private final State rootState;
+    private final TriggerTransitionMap triggerTransitionMap;
 
     private Stateful stateful;
 
+    /** The pool this machine returns to when detached, if any */
+    private StateMachinePool pool;
+    private String poolKey;
+    private volatile boolean pooledOut;
+
     /**
-     * Initializes a new StateMachine object. But you'll probably want to get
-     * one from a StateMachineFactory instead, so that it will be properly
-     * constructed and wired with Triggers, Transitions, Property Maps and
-     * Actions.
-     *
-     * @param rootState the root State of this StateMachine.
-     * @param description a description of the business process modelled in this
-     *                    StateMachine
-     * @param possiblePropertyValueMap
-     * @param defaultPropertyValues
+     * Whether triggers are pulled with this machine locked, because its
+     * chart delivers triggers from other threads
      */
-    public StateMachine(State rootState, String description,
-            Map<String, ? extends List<String>> possiblePropertyValueMap,
-            List<PropertyValuePair> defaultPropertyValues) {
-        this.rootState = rootState;
-        this.description = description;
-        this.possiblePropertyValueMap = possiblePropertyValueMap;
-        this.defaultPropertyValues = defaultPropertyValues;
-        rootState.setStateMachine(this);
-    }
+    private final boolean locking;
+
+    /** Runs this machine's activities; null for the shared default */
+    private volatile ActivityHost activityHost;
+
+    /** State : its running activities. Created when first needed. */
+    private Map<State, ActivityRun[]> runningActivities;
+
+    /** Arms this machine's timeouts; null for the shared wheel */
+    private volatile TimingWheel timingWheel;
+
+    /** State : its armed timeout. Created when first needed. */
+    private Map<State, TimingWheel.Timeout> armedTimeouts;
 
     /**
-     * Sets a TriggerTransitionMap, which will be used to validate legal
-     * Transitions when a Trigger is pulled on this StateMachine's Stateful.
+     * Initializes a new, unattached StateMachine backed by a StateChart. A
+     * chart's {@link StateChart#newStateMachine()} is the usual way to get
+     * one.
      *
-     * @param triggerTransitionMap
+     * @param chart the compiled definition this machine runs
      *
-     * @throws IllegalArgumentException
+     * @throws IllegalArgumentException if the chart is null
      */
-    public void setTriggerTransitionMap(TriggerTransitionMap triggerTransitionMap) {
-        if (triggerTransitionMap == null) {
+    public StateMachine(StateChart chart) {
+        if (chart == null) {
             throw new IllegalArgumentException(
                     "Invalid argument to StateMachine - "
                             + System.getProperty("line.separator")
-                            + "TriggerTransitionMap should be non-null.");
+                            + "StateChart should be non-null.");
         }
-        this.triggerTransitionMap = triggerTransitionMap;
+        this.chart = chart;
+        this.rootState = chart.getRootState();
+        this.triggerTransitionMap = chart.getTriggerTransitionMap();
+        this.record = new ActivationRecord(chart, this);
+        this.locking = chart.hasActivities() || chart.hasTimeouts();
+    }
+
+    /**
+     * Returns the StateChart this machine runs.
+     *
+     * @return a StateChart, shared with other machines
+     */
+    public StateChart getStateChart() {
+        return chart;
+    }
+
+    /**
+     * Returns this machine's activation and history.
+     *
+     * @return an ActivationRecord
+     */
+    protected final ActivationRecord getActivationRecord() {
+        return record;
     }
 
     /**
@@ -113,7 +157,7 @@ public class StateMachine {
      * @return a String
      */
     public String getDescription() {
-        return description;
+        return chart.getDescription();
     }
 
     /**
@@ -128,27 +172,7 @@ public class StateMachine {
      * @return the State referenced by dottedName, or null if it can't be found
      */
     public State findByName(String dottedName) {
-        StringTokenizer st =
-                new StringTokenizer(dottedName,
-                        String.valueOf(State.STATE_PATH_CHAR));
-
-        State cursorState = rootState;
-        while (st.hasMoreTokens()) {
-            String currentToken = st.nextToken();
-            boolean found = false;
-            Iterator i = cursorState.getChildren().iterator();
-            while (!found && i.hasNext()) {
-                State childState = (State) i.next();
-                if (childState.getName().equals(currentToken)) {
-                    cursorState = childState;
-                    found = true;
-                }
-            }
-            if (!found) {
-                return null;
-            }
-        }
-        return cursorState;
+        return chart.findByName(dottedName);
     }
 
     /**
@@ -163,7 +187,7 @@ public class StateMachine {
         boolean inState = false;
         State testState = findByName(stateName);
         if (testState != null) {
-            inState = testState.isActive();
+            inState = testState.isActive(record);
         }
         return inState;
     }
@@ -181,6 +205,10 @@ public class StateMachine {
      * execute process may be performed recursively until no transitions
      * qualify.
      *
+     * <p>On a machine whose Stateful holds an {@link OrdinalStateCookie},
+     * pulling a trigger allocates nothing beyond what the trigger, its
+     * condition and the fired actions themselves allocate.</p>
+     *
      * @param trigger the trigger
      * @param param additional qualifying parameter for mapping trigger to
      *              transitions (e.g. a Hub3 Action Label)
@@ -192,41 +220,83 @@ public class StateMachine {
      */
     public boolean pullTrigger(Trigger trigger, Object param,
             TransitionRecordFactory factory) {
+        if (locking) {
+            synchronized (this) {
+                return pull(trigger, param, factory);
+            }
+        }
+        return pull(trigger, param, factory);
+    }
+
+    private boolean pull(Trigger trigger, Object param,
+            TransitionRecordFactory factory) {
         boolean transitionFired = false;
         StateCookie cookie = stateful.getStateCookie();
         Class<? extends Trigger> triggerClass = trigger.getClass();
-        Set transitions =
-                triggerTransitionMap.getTransitions(triggerClass, param);
+        Transition[] transitions =
+                triggerTransitionMap.getTransitionArray(triggerClass, param);
 
-        Iterator transitionsIter = transitions.iterator();
-        while (transitionsIter.hasNext()) {
-            Transition transition = (Transition) transitionsIter.next();
-            if (transition.canFire()) {
+        for (int i = 0; i < transitions.length; i++) {
+            Transition transition = transitions[i];
+            if (transition.canFire(record)) {
                 Condition condition =
                         triggerTransitionMap.getCondition(triggerClass, transition,
                                 param);
-
-                Stateful cachedStateful = stateful; // Trigger might detach the stateful.
-                boolean evalResult = trigger.eval(stateful, param, condition);
-                stateful = cachedStateful;
-
-                if (evalResult) {
-                    transition.fire();
-                    if (factory != null) {
-                        factory.newTransitionRecord(transition, stateful);
-                    }
-                    transitionFired = true;
-                }
+                transitionFired |=
+                        fire(trigger, param, transition, condition, factory);
             }
         }
 
-        if (transitionFired) {
-            fillCookieWithSets(cookie);
+        //an expired timeout is saved even if it fired nothing
+        if (transitionFired || trigger instanceof TimeoutTrigger) {
+            saveState(cookie);
         }
 
         return transitionFired;
     }
 
+    /**
+     * Evaluates a trigger against one transition that can fire, and fires it
+     * if the trigger agrees. This is the body of {@link #pullTrigger(Trigger,
+     * Object, TransitionRecordFactory)} for a single transition, for
+     * subclasses that look transitions up themselves.
+     *
+     * @param trigger the trigger
+     * @param param the trigger parameter
+     * @param transition a transition whose exit state is active
+     * @param condition the transition's condition for this trigger and
+     *                  parameter, may be null
+     * @param factory records the transition if it fires, may be null
+     *
+     * @return true if the transition fired
+     */
+    protected final boolean fire(Trigger trigger, Object param,
+            Transition transition, Condition condition,
+            TransitionRecordFactory factory) {
+        Stateful cachedStateful = stateful; // Trigger might detach the stateful.
+        boolean evalResult = trigger.eval(stateful, param, condition);
+        stateful = cachedStateful;
+
+        if (evalResult) {
+            transition.fire(record);
+            if (factory != null) {
+                factory.newTransitionRecord(transition, stateful);
+            }
+        }
+        return evalResult;
+    }
+
+    /**
+     * Stores this machine's activation and history in a cookie. Called once
+     * by {@link #pullTrigger(Trigger, Object, TransitionRecordFactory)} after
+     * any transitions fire, or a timeout expires.
+     *
+     * @param cookie the cookie of the Stateful the trigger was pulled on
+     */
+    protected final void saveState(StateCookie cookie) {
+        fillCookieWithSets(cookie);
+    }
+
     /**
      * Tests whether a trigger and parameter pair is mapped to a transition in
      * this state machine. This method doesn't test or mutate state.
@@ -270,24 +340,11 @@ public class StateMachine {
      */
     public Set<State> getActiveStates() {
         Set<State> activeStates = new HashSet<State>();
-        walkActiveStates(rootState, activeStates);
-        return activeStates;
-    }
-
-    /**
-     * DOCUMENT ME!
-     *
-     * @param stateToWalk DOCUMENT ME!
-     * @param actives DOCUMENT ME!
-     */
-    private void walkActiveStates(State stateToWalk, Set<State> actives) {
-        if (stateToWalk.isActive()) {
-            actives.add(stateToWalk);
-        }
-        Iterator iterator = stateToWalk.getChildren().iterator();
-        while (iterator.hasNext()) {
-            walkActiveStates((State) iterator.next(), actives);
+        for (int i = record.nextActive(0); i >= 0;
+                i = record.nextActive(i + 1)) {
+            activeStates.add(chart.getState(i));
         }
+        return activeStates;
     }
 
     /**
@@ -302,13 +359,11 @@ public class StateMachine {
      */
     public boolean isApplicable(Class<? extends Trigger> triggerClass, Object param) {
         boolean anyApplicable = false;
-        Set transitions =
-                triggerTransitionMap.getTransitions(
-                        triggerClass, param);
+        Transition[] transitions =
+                triggerTransitionMap.getTransitionArray(triggerClass, param);
 
-        Iterator iterator = transitions.iterator();
-        while (!anyApplicable && iterator.hasNext()) {
-            anyApplicable |= ((Transition) iterator.next()).canFire();
+        for (int i = 0; !anyApplicable && i < transitions.length; i++) {
+            anyApplicable |= transitions[i].canFire(record);
         }
 
         return anyApplicable;
@@ -319,15 +374,76 @@ public class StateMachine {
      *
      * @return a Stateful, or null if one has not been set.
      */
-    Stateful getStateful() {
+    protected final Stateful getStateful() {
         return stateful;
     }
 
     /**
-     * Clears this StateMachine and returns it to a pooled state.
+     * Returns the cookie of the Stateful we are driving, which holds this
+     * machine's activation and history as of the last trigger that fired.
+     *
+     * @return a StateCookie, or null if no Stateful is attached
      */
-    public void detachStateful() {
+    public StateCookie getStateCookie() {
+        Stateful current = stateful;
+        return current == null ? null : current.getStateCookie();
+    }
+
+    /**
+     * Clears this StateMachine and returns it to a pooled state. If the
+     * machine was borrowed from a {@link StateMachinePool}, its activation,
+     * history, activity host and timing wheel are reset and it is returned to
+     * that pool; it must not be used again by the caller.
+     */
+    public synchronized void detachStateful() {
+        stopAllActivities();
+        disarmAllTimeouts();
         this.stateful = null;
+        if (pool != null) {
+            record.reset();
+            this.activityHost = null;
+            this.timingWheel = null;
+            pool.release(this);
+        }
+    }
+
+    /**
+     * Records the pool that created this machine, and the definition it was
+     * created for.
+     *
+     * @param pool a StateMachinePool
+     * @param poolKey the definition name this machine is pooled under
+     */
+    void setPool(StateMachinePool pool, String poolKey) {
+        this.pool = pool;
+        this.poolKey = poolKey;
+    }
+
+    /**
+     * Returns the definition name this machine is pooled under.
+     *
+     * @return a String, or null if this machine isn't pooled
+     */
+    String getPoolKey() {
+        return poolKey;
+    }
+
+    /**
+     * Whether this machine is currently checked out of its pool.
+     *
+     * @return true if checked out
+     */
+    boolean isPooledOut() {
+        return pooledOut;
+    }
+
+    /**
+     * Marks this machine as checked out of, or returned to, its pool.
+     *
+     * @param pooledOut true if checked out
+     */
+    void setPooledOut(boolean pooledOut) {
+        this.pooledOut = pooledOut;
     }
 
     /**
@@ -338,17 +454,20 @@ public class StateMachine {
      *
      * @param stateful an object implementing the Stateful interface.
      */
-    public void attachStateful(Stateful stateful) {
+    public synchronized void attachStateful(Stateful stateful) {
+        stopAllActivities();
+        disarmAllTimeouts();
         this.stateful = null; //ensures that no actions are executed.
         StateCookie cookie = stateful.getStateCookie();
         boolean initialState = cookie.isNew();
         if (initialState) {
             //create default state
-            rootState.reset();
-            rootState.activateSelf(false);
+            record.reset();
+            rootState.activateSelf(record, false);
             fillCookieWithSets(cookie);
-        } else {
-            rootState.initFromCookie(cookie);
+        } else if (!(cookie instanceof OrdinalStateCookie)
+                || !record.load((OrdinalStateCookie) cookie)) {
+            record.load(cookie);
         }
 
         this.stateful = stateful;
@@ -357,6 +476,284 @@ public class StateMachine {
         if (initialState) {
             setDefaultProperties();
         }
+        if (chart.hasActivities()) {
+            startActiveActivities();
+        }
+        if (chart.hasTimeouts()) {
+            armActiveTimeouts(cookie);
+        }
+    }
+
+    /**
+     * Sets where this machine runs its activities and delivers their
+     * completions. Activities already running deliver through the new host.
+     *
+     * @param host an ActivityHost, or null for the shared default
+     */
+    public void setActivityHost(ActivityHost host) {
+        this.activityHost = host;
+    }
+
+    /**
+     * Returns where this machine runs its activities.
+     *
+     * @return an ActivityHost, never null
+     */
+    public ActivityHost getActivityHost() {
+        ActivityHost host = activityHost;
+        return host == null ? PooledActivityHost.INSTANCE : host;
+    }
+
+    /**
+     * The number of activities started for the active states of this machine
+     * that haven't finished yet.
+     *
+     * @return a count
+     */
+    public int getRunningActivityCount() {
+        int count = 0;
+        if (runningActivities != null) {
+            for (ActivityRun[] runs: runningActivities.values()) {
+                for (int i = 0; i < runs.length; i++) {
+                    if (!runs[i].isDone()) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts the activities of a State that has just become active. Does
+     * nothing while no Stateful is attached.
+     *
+     * @param state a State of this machine's chart
+     * @param activities the State's activities
+     */
+    void startActivities(State state, ParametricActivity[] activities) {
+        Stateful current = stateful;
+        if (current == null) {
+            return;
+        }
+        if (runningActivities == null) {
+            runningActivities = new IdentityHashMap<State, ActivityRun[]>();
+        }
+        ActivityRun[] runs = new ActivityRun[activities.length];
+        for (int i = 0; i < activities.length; i++) {
+            runs[i] = new ActivityRun(this, current, activities[i]);
+        }
+        stopRuns(runningActivities.put(state, runs));
+        ActivityHost host = getActivityHost();
+        for (int i = 0; i < runs.length; i++) {
+            host.execute(TransitionContext.wrap(runs[i]));
+        }
+    }
+
+    /**
+     * Stops the running activities of a State that is becoming inactive.
+     *
+     * @param state a State of this machine's chart
+     */
+    void stopActivities(State state) {
+        if (runningActivities != null) {
+            stopRuns(runningActivities.remove(state));
+        }
+    }
+
+    private void stopAllActivities() {
+        if (runningActivities != null) {
+            for (ActivityRun[] runs: runningActivities.values()) {
+                stopRuns(runs);
+            }
+            runningActivities.clear();
+        }
+    }
+
+    private static void stopRuns(ActivityRun[] runs) {
+        if (runs != null) {
+            for (int i = 0; i < runs.length; i++) {
+                runs[i].stop();
+            }
+        }
+    }
+
+    /**
+     * Sets the wheel this machine arms its timeouts on. Timeouts already
+     * armed stay on the old wheel.
+     *
+     * @param wheel a TimingWheel, or null for the {@link
+     *              TimingWheel#getShared() shared wheel}
+     */
+    public void setTimingWheel(TimingWheel wheel) {
+        this.timingWheel = wheel;
+    }
+
+    /**
+     * Returns the wheel this machine arms its timeouts on.
+     *
+     * @return a TimingWheel, never null
+     */
+    public TimingWheel getTimingWheel() {
+        TimingWheel wheel = timingWheel;
+        return wheel == null ? TimingWheel.getShared() : wheel;
+    }
+
+    /**
+     * The number of timeouts armed for the active states of this machine
+     * that haven't expired yet.
+     *
+     * @return a count
+     */
+    public int getArmedTimeoutCount() {
+        int count = 0;
+        if (armedTimeouts != null) {
+            for (TimingWheel.Timeout timeout: armedTimeouts.values()) {
+                if (!timeout.isExpired()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Arms the timeout of a State that has just become active, for its full
+     * delay. Does nothing while no Stateful is attached.
+     *
+     * @param state a State of this machine's chart
+     * @param timeout the State's timeout
+     */
+    void armTimeout(State state, StateTimeout timeout) {
+        if (stateful != null) {
+            TimingWheel wheel = getTimingWheel();
+            long now = wheel.getClock().currentTimeMillis();
+            arm(wheel, state, timeout, now + timeout.getDelayMillis());
+        }
+    }
+
+    private void arm(TimingWheel wheel, State state,
+                     final StateTimeout timeout, long deadline) {
+        final Stateful current = stateful;
+        final TimeoutTrigger trigger = timeout.newTrigger();
+        final Runnable delivery = new Runnable() {
+                public void run() {
+                    getActivityHost().deliver(current, trigger,
+                        timeout.getParam());
+                }
+            };
+        TimingWheel.Timeout armed = new TimingWheel.Timeout(new Runnable() {
+                public void run() {
+                    getActivityHost().execute(delivery);
+                }
+            });
+        trigger.setTimeout(armed);
+        keepTimeout(state, armed);
+        wheel.schedule(armed, deadline);
+    }
+
+    private void keepTimeout(State state, TimingWheel.Timeout armed) {
+        if (armedTimeouts == null) {
+            armedTimeouts = new IdentityHashMap<State, TimingWheel.Timeout>();
+        }
+        TimingWheel.Timeout replaced = armedTimeouts.put(state, armed);
+        if (replaced != null) {
+            replaced.cancel();
+        }
+    }
+
+    /**
+     * Cancels the armed timeout of a State that is becoming inactive.
+     *
+     * @param state a State of this machine's chart
+     */
+    void disarmTimeout(State state) {
+        if (armedTimeouts != null) {
+            TimingWheel.Timeout armed = armedTimeouts.remove(state);
+            if (armed != null) {
+                armed.cancel();
+            }
+        }
+    }
+
+    private void disarmAllTimeouts() {
+        if (armedTimeouts != null) {
+            for (TimingWheel.Timeout armed: armedTimeouts.values()) {
+                armed.cancel();
+            }
+            armedTimeouts.clear();
+        }
+    }
+
+    /**
+     * Arms the timeout of every active State, for a newly attached Stateful:
+     * at the deadline its cookie kept, or for the full delay if it kept
+     * none. A timeout the cookie says has already expired isn't armed
+     * again.
+     *
+     * @param cookie the Stateful's cookie
+     */
+    private void armActiveTimeouts(StateCookie cookie) {
+        Map<String, Long> deadlines = cookie instanceof TimedStateCookie
+            ? ((TimedStateCookie) cookie).getTimeoutDeadlines() : null;
+        TimingWheel wheel = getTimingWheel();
+        long now = wheel.getClock().currentTimeMillis();
+        for (int i = record.nextActive(0); i >= 0;
+                i = record.nextActive(i + 1)) {
+            State state = chart.getState(i);
+            StateTimeout timeout = state.getTimeout();
+            if (timeout != null) {
+                Long deadline = deadlines == null
+                    ? null : deadlines.get(state.getPathName());
+                if (deadline == null) {
+                    arm(wheel, state, timeout, now + timeout.getDelayMillis());
+                } else if (deadline.longValue() == TimedStateCookie.EXPIRED) {
+                    keepTimeout(state, TimingWheel.Timeout.spent());
+                } else {
+                    arm(wheel, state, timeout, deadline.longValue());
+                }
+            }
+        }
+        if (cookie instanceof TimedStateCookie) {
+            fillDeadlines((TimedStateCookie) cookie);
+        }
+    }
+
+    /**
+     * Stores the deadlines of this machine's armed timeouts in a cookie.
+     * Timeouts that have already expired are stored as {@link
+     * TimedStateCookie#EXPIRED}, so they don't expire again when the cookie
+     * is next attached.
+     *
+     * @param cookie a TimedStateCookie
+     */
+    private void fillDeadlines(TimedStateCookie cookie) {
+        Map<String, Long> deadlines = new HashMap<String, Long>();
+        if (armedTimeouts != null) {
+            for (Map.Entry<State, TimingWheel.Timeout> entry:
+                    armedTimeouts.entrySet()) {
+                TimingWheel.Timeout armed = entry.getValue();
+                deadlines.put(entry.getKey().getPathName(), Long.valueOf(
+                    armed.isExpired()
+                    ? TimedStateCookie.EXPIRED : armed.getDeadline()));
+            }
+        }
+        cookie.setTimeoutDeadlines(deadlines);
+    }
+
+    /**
+     * Starts the activities of every active State, for a newly attached
+     * Stateful.
+     */
+    private void startActiveActivities() {
+        for (int i = record.nextActive(0); i >= 0;
+                i = record.nextActive(i + 1)) {
+            State state = chart.getState(i);
+            ParametricActivity[] activities = state.getActivityArray();
+            if (activities.length != 0) {
+                startActivities(state, activities);
+            }
+        }
     }
 
     /**
@@ -368,12 +765,23 @@ public class StateMachine {
      * @param cookie DOCUMENT ME!
      */
     private void fillCookieWithSets(StateCookie cookie) {
+        if (cookie instanceof TimedStateCookie) {
+            fillDeadlines((TimedStateCookie) cookie);
+        }
+        if (cookie instanceof OrdinalStateCookie) {
+            record.fill((OrdinalStateCookie) cookie);
+            return;
+        }
         HashSet<String> activeStates = new HashSet<String>();
         HashSet<String> historyStates = new HashSet<String>();
 
-        rootState.fillStateSets(activeStates, historyStates);
+        record.fillStateSets(activeStates, historyStates);
         cookie.setActive(activeStates);
         cookie.setHistoryStates(historyStates);
+        if (cookie instanceof VersionedStateCookie) {
+            ((VersionedStateCookie) cookie).setChartFingerprint(
+                    chart.getFingerprint());
+        }
     }
 
     /**
@@ -391,7 +799,7 @@ public class StateMachine {
      */
     private void setDefaultProperties() {
         SetPropertyStateAction action = new SetPropertyStateAction();
-        Iterator iterator = defaultPropertyValues.iterator();
+        Iterator iterator = chart.getDefaultPropertyValues().iterator();
         while (iterator.hasNext()) {
             action.execute(getStateful(), iterator.next());
         }
@@ -407,14 +815,7 @@ public class StateMachine {
      * @return a List of Strings representing possible values.
      */
     public List<String> getPossibleValues(String propertyName) {
-        List<String> possible = null;
-        if (possiblePropertyValueMap != null
-                && possiblePropertyValueMap.containsKey(propertyName)) {
-            possible =
-                    Collections.unmodifiableList((List<String>) possiblePropertyValueMap
-                            .get(propertyName));
-        }
-        return possible;
+        return chart.getPossiblePropertyValueMap().get(propertyName);
     }
 
     /**
@@ -478,17 +879,15 @@ public class StateMachine {
      */
     public int getRank(Class<? extends Trigger> triggerClass, Object param) {
         int rank = RANK_INAPPLICABLE_PARAMETER;
-        Set allTransitions =
-                triggerTransitionMap.getTransitions(triggerClass, param);
-        Iterator transIter = allTransitions.iterator();
-        while (transIter.hasNext()) {
-            Transition t = (Transition) transIter.next();
-            if (t.canFire()) {
+        Transition[] allTransitions =
+                triggerTransitionMap.getTransitionArray(triggerClass, param);
+        for (int t = 0; t < allTransitions.length; t++) {
+            if (allTransitions[t].canFire(record)) {
                 rank = Math.min(rank, RANK_APPLICABLE_BUT_UNRANKED);
-                Iterator stateIter = t.getRankedStates().iterator();
-                for (int i = 0; stateIter.hasNext(); i++) {
-                    State checkState = (State) stateIter.next();
-                    if (checkState.isActive()) {
+                State[] rankedStates =
+                        allTransitions[t].getRankedStateArray();
+                for (int i = 0; i < rankedStates.length; i++) {
+                    if (rankedStates[i].isActive(record)) {
                         rank = Math.min(rank, i);
                         break;
                     }
@@ -541,7 +940,7 @@ public class StateMachine {
         Iterator i = children.iterator();
         while (i.hasNext()) {
             State child = (State) i.next();
-            if (!child.isActive() && !includeInactiveStates) {
+            if (!child.isActive(record) && !includeInactiveStates) {
                 continue;
             }
             sb.append(child.getName());
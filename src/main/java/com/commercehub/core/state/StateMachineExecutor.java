@@ -0,0 +1,379 @@
+package com.commercehub.core.state;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives many attached StateMachines from a few threads. A StateMachine isn't
+ * thread-safe, so each Stateful attached here gets a {@link Mailbox}: a queue
+ * of the triggers submitted for it, drained by one thread at a time. Triggers
+ * for one Stateful run one after another, to completion, in the order they
+ * were submitted; triggers for different Statefuls run in parallel on the
+ * executor's threads. There is no lock shared between mailboxes.
+ *
+ * <p>A mailbox is scheduled on the executor only while it has triggers
+ * waiting, and runs at most {@link #getBatchSize()} of them before giving its
+ * thread to the next mailbox, so a busy Stateful can't starve the others. An
+ * idle mailbox is a queue and a flag, so hundreds of thousands of them are
+ * cheap to keep.</p>
+ *
+ * <p>A trigger's actions run on an executor thread, with a copy of the
+ * {@link TransitionContext} of the thread that submitted it. An action may
+ * submit more triggers to its own mailbox, which run after it; it must not
+ * wait on their results.</p>
+ *
+ * <p>A mailbox is its machine's {@link ActivityHost}: activities run on the
+ * shared activity pool, not on this executor's threads, and their completion
+ * triggers are submitted to the mailbox like any other trigger.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public class StateMachineExecutor {
+    private static final int DEFAULT_BATCH_SIZE = 64;
+
+    private final Executor executor;
+    private final ExecutorService ownedPool;
+    private final int batchSize;
+
+    /**
+     * Initializes a new StateMachineExecutor that runs mailboxes on its own
+     * pool of daemon threads, one per processor. {@link #shutdown()} stops
+     * the pool.
+     */
+    public StateMachineExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Initializes a new StateMachineExecutor that runs mailboxes on its own
+     * pool of daemon threads. {@link #shutdown()} stops the pool.
+     *
+     * @param threads the size of the pool, must be positive
+     */
+    public StateMachineExecutor(int threads) {
+        this(Executors.newFixedThreadPool(threads,
+                new DaemonThreadFactory("state-machine")),
+            DEFAULT_BATCH_SIZE, true);
+    }
+
+    /**
+     * Initializes a new StateMachineExecutor that runs mailboxes on a given
+     * executor. The executor isn't shut down by {@link #shutdown()}.
+     *
+     * @param executor runs mailboxes
+     * @param batchSize the most triggers a mailbox runs before yielding its
+     *                  thread, must be positive
+     *
+     * @throws IllegalArgumentException if batchSize isn't positive
+     */
+    public StateMachineExecutor(Executor executor, int batchSize) {
+        this(executor, batchSize, false);
+    }
+
+    private StateMachineExecutor(Executor executor, int batchSize,
+                                 boolean owned) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                "A mailbox must run at least one trigger per batch.");
+        }
+        this.executor = executor;
+        this.ownedPool = owned ? (ExecutorService) executor : null;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The most triggers a mailbox runs before yielding its thread.
+     *
+     * @return a positive count
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Attaches a Stateful to a new machine of a chart, and returns the
+     * mailbox to submit its triggers to.
+     *
+     * @param chart the chart to run
+     * @param stateful the Stateful to drive
+     *
+     * @return a new Mailbox
+     */
+    public Mailbox attach(StateChart chart, Stateful stateful) {
+        StateMachine machine = chart.newStateMachine();
+        Mailbox mailbox = new Mailbox(machine);
+        machine.attachStateful(stateful);
+        return mailbox;
+    }
+
+    /**
+     * Returns a mailbox for a machine that's already attached. Nothing else
+     * may use the machine while the mailbox does.
+     *
+     * @param machine an attached StateMachine
+     *
+     * @return a new Mailbox
+     */
+    public Mailbox attach(StateMachine machine) {
+        return new Mailbox(machine);
+    }
+
+    /**
+     * Stops the pool this executor created, letting submitted triggers run.
+     * Does nothing to an executor given to it.
+     */
+    public void shutdown() {
+        if (ownedPool != null) {
+            ownedPool.shutdown();
+        }
+    }
+
+    /**
+     * The triggers waiting for one attached Stateful. Mailboxes are
+     * thread-safe; any thread may submit to one.
+     */
+    public final class Mailbox implements ActivityHost {
+        private final StateMachine machine;
+        private final Queue<FutureTask<?>> queue =
+            new ConcurrentLinkedQueue<FutureTask<?>>();
+
+        /** Whether this mailbox is on, or waiting for, an executor thread */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private final AtomicInteger pending = new AtomicInteger();
+
+        /** Whether {@link #detach()} was called, refusing later triggers */
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private final Runnable drain = new Runnable() {
+                public void run() {
+                    drain();
+                }
+            };
+
+        Mailbox(StateMachine machine) {
+            this.machine = machine;
+            machine.setActivityHost(this);
+        }
+
+        /**
+         * The machine this mailbox drives. Only code running in this
+         * mailbox, such as a trigger or action, may use it.
+         *
+         * @return a StateMachine
+         */
+        public StateMachine getStateMachine() {
+            return machine;
+        }
+
+        /**
+         * The number of submitted triggers that haven't started.
+         *
+         * @return a count
+         */
+        public int getPendingCount() {
+            return pending.get();
+        }
+
+        /**
+         * Submits a trigger, without recording transitions.
+         *
+         * @param trigger the trigger
+         * @param param the trigger parameter
+         *
+         * @return the result of {@link StateMachine#pullTrigger(Trigger,
+         *         Object, TransitionRecordFactory)}: whether any transition
+         *         fired
+         *
+         * @see #submit(Trigger, Object, TransitionRecordFactory)
+         */
+        public Future<Boolean> submit(Trigger trigger, Object param) {
+            return submit(trigger, param, null);
+        }
+
+        /**
+         * Submits a trigger to be pulled after every trigger submitted
+         * before it.
+         *
+         * @param trigger the trigger
+         * @param param the trigger parameter
+         * @param factory records fired transitions, may be null
+         *
+         * @return the result of {@link StateMachine#pullTrigger(Trigger,
+         *         Object, TransitionRecordFactory)}: whether any transition
+         *         fired. A trigger or action that throws fails the Future,
+         *         as does a trigger that reaches a detached machine.
+         *
+         * @throws IllegalStateException if this mailbox has been detached
+         * @throws RejectedExecutionException if the executor won't run this
+         *                                    mailbox; every trigger waiting
+         *                                    in it is cancelled
+         */
+        public Future<Boolean> submit(final Trigger trigger,
+                                      final Object param,
+                                      final TransitionRecordFactory factory) {
+            checkOpen();
+            FutureTask<Boolean> task = new FutureTask<Boolean>(
+                TransitionContext.wrap(new Callable<Boolean>() {
+                    public Boolean call() {
+                        //submitted while another thread detached
+                        if (machine.getStateful() == null) {
+                            throw new IllegalStateException(
+                                "The mailbox has been detached.");
+                        }
+                        return Boolean.valueOf(
+                            machine.pullTrigger(trigger, param, factory));
+                    }
+                }));
+            enqueue(task);
+            return task;
+        }
+
+        /**
+         * Detaches the machine's Stateful after every trigger submitted so
+         * far has run.
+         *
+         * Nothing more may be submitted once this is called.
+         *
+         * @return completes once the Stateful is detached
+         *
+         * @throws IllegalStateException if this mailbox has been detached
+         * @throws RejectedExecutionException if the executor won't run this
+         *                                    mailbox
+         */
+        public Future<?> detach() {
+            if (!closed.compareAndSet(false, true)) {
+                throw new IllegalStateException(
+                    "The mailbox has been detached.");
+            }
+            FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+                    public void run() {
+                        machine.detachStateful();
+                    }
+                }, null);
+            enqueue(task);
+            return task;
+        }
+
+        /**
+         * Runs an activity on the shared activity pool.
+         *
+         * @see ActivityHost#execute(Runnable)
+         */
+        public void execute(Runnable activity) {
+            PooledActivityHost.INSTANCE.execute(activity);
+        }
+
+        /**
+         * Submits an activity's completion to this mailbox. A completion
+         * arriving after the mailbox is detached, after the executor has shut
+         * down, or for a Stateful the machine no longer drives is dropped.
+         *
+         * @see ActivityHost#deliver(Stateful, Trigger, Object)
+         */
+        public void deliver(final Stateful stateful, final Trigger trigger,
+                            final Object param) {
+            if (closed.get() || machine.getStateful() != stateful) {
+                return;
+            }
+            FutureTask<Boolean> task = new FutureTask<Boolean>(
+                TransitionContext.wrap(new Callable<Boolean>() {
+                    public Boolean call() {
+                        //the machine may have moved on while this waited
+                        return Boolean.valueOf(
+                            machine.getStateful() == stateful
+                                && machine.pullTrigger(trigger, param, null));
+                    }
+                }));
+            try {
+                enqueue(task);
+            } catch (RejectedExecutionException ree) {
+                //nothing is left to run it
+            }
+        }
+
+        private void checkOpen() {
+            if (closed.get()) {
+                throw new IllegalStateException(
+                    "The mailbox has been detached.");
+            }
+        }
+
+        private void enqueue(FutureTask<?> task) {
+            pending.incrementAndGet();
+            queue.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(drain);
+                } catch (RejectedExecutionException ree) {
+                    scheduled.set(false);
+                    FutureTask<?> waiting;
+                    while ((waiting = queue.poll()) != null) {
+                        waiting.cancel(false);
+                        pending.decrementAndGet();
+                    }
+                    throw ree;
+                }
+            }
+        }
+
+        /**
+         * Runs a batch of waiting triggers on an executor thread.
+         */
+        private void drain() {
+            try {
+                for (int i = 0; i < batchSize; i++) {
+                    FutureTask<?> task = queue.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    pending.decrementAndGet();
+                    task.run();
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            //a trigger may have arrived after the last poll
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Names its daemon threads after a prefix, a pool number and a thread
+     * number.
+     */
+    static class DaemonThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOLS = new AtomicInteger();
+
+        private final String prefix;
+        private final int pool = POOLS.incrementAndGet();
+        private final AtomicInteger threads = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + pool + "-"
+                + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
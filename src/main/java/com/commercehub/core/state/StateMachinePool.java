@@ -0,0 +1,363 @@
+package com.commercehub.core.state;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe pool of wired StateMachines, keyed by the name of
+ * the machine definition they were built from.
+ *
+ * <p>Machines are handed out by {@link #attach(String, Stateful)} or {@link
+ * #borrow(String)} and come back to the pool when their Stateful calls {@link
+ * StateMachine#detachStateful()}, which also clears their activation and
+ * history. At most <code>maxPerDefinition</code> machines are ever created for
+ * a single definition; once that many are checked out, borrowers wait for one
+ * to be returned.</p>
+ *
+ * <p>Subclasses supply machines for a definition name via {@link
+ * #createStateMachine(String)}. A subclass whose definitions can change calls
+ * {@link #evictIdle(String)} when one does, and overrides {@link
+ * #isCurrent(String, StateMachine)} so that machines built from the old
+ * definition aren't pooled again when they are returned.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public abstract class StateMachinePool {
+    private final int maxPerDefinition;
+    private final long maxWaitMillis;
+
+    /** Definition name : DefinitionPool */
+    private final Map<String, DefinitionPool> pools;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * Initializes a new StateMachinePool object.
+     *
+     * @param maxPerDefinition the most machines that will be created for any
+     *                         one definition, must be positive
+     * @param maxWaitMillis how long a borrower will wait for a machine to be
+     *                      returned before giving up. Zero or less waits
+     *                      indefinitely.
+     *
+     * @throws IllegalArgumentException if maxPerDefinition is not positive
+     */
+    protected StateMachinePool(int maxPerDefinition, long maxWaitMillis) {
+        if (maxPerDefinition < 1) {
+            throw new IllegalArgumentException(
+                "A pool must allow at least one machine per definition.");
+        }
+        this.maxPerDefinition = maxPerDefinition;
+        this.maxWaitMillis = maxWaitMillis;
+        pools = new ConcurrentHashMap<String, DefinitionPool>();
+    }
+
+    /**
+     * Creates a new, fully wired StateMachine for a definition. Called without
+     * any pool locks held.
+     *
+     * @param definition the name of a machine definition
+     *
+     * @return a wired StateMachine, never null
+     *
+     * @throws StateMachineConfigurationException if the definition can't be
+     *                                            built
+     */
+    protected abstract StateMachine createStateMachine(String definition)
+        throws StateMachineConfigurationException;
+
+    /**
+     * Borrows a machine for a definition and attaches it to a Stateful.
+     *
+     * @param definition the name of a machine definition
+     * @param stateful the Stateful to drive
+     *
+     * @return an attached StateMachine
+     *
+     * @throws StateMachineConfigurationException if a new machine was needed
+     *                                            and could not be built
+     */
+    public StateMachine attach(String definition, Stateful stateful)
+        throws StateMachineConfigurationException {
+        StateMachine machine = borrow(definition);
+        machine.attachStateful(stateful);
+        return machine;
+    }
+
+    /**
+     * Borrows a detached machine for a definition, creating one if the pool
+     * has none idle and is under its bound, and otherwise waiting for one to
+     * be returned.
+     *
+     * @param definition the name of a machine definition
+     *
+     * @return a detached, reset StateMachine
+     *
+     * @throws StateMachineConfigurationException if a new machine was needed
+     *                                            and could not be built
+     * @throws IllegalStateException if the wait for a returned machine timed
+     *                               out or was interrupted
+     */
+    public StateMachine borrow(String definition)
+        throws StateMachineConfigurationException {
+        DefinitionPool pool = getDefinitionPool(definition);
+        StateMachine machine = pool.take();
+        if (machine == null) {
+            try {
+                machine = createStateMachine(definition);
+            } catch (StateMachineConfigurationException smce) {
+                pool.abandonReservation();
+                throw smce;
+            } catch (RuntimeException re) {
+                pool.abandonReservation();
+                throw re;
+            }
+            machine.setPool(this, definition);
+            machine.setPooledOut(true);
+        }
+        return machine;
+    }
+
+    /**
+     * Whether a returned machine was built from the current version of its
+     * definition, and so may be pooled again. Called with the definition's
+     * pool locked; it should be quick and must not call back into this pool.
+     * This implementation always returns true.
+     *
+     * @param definition the name of a machine definition
+     * @param machine a returned StateMachine created for it
+     *
+     * @return true if the machine may be reused
+     */
+    protected boolean isCurrent(String definition, StateMachine machine) {
+        return true;
+    }
+
+    /**
+     * Discards the idle machines of a definition, such as when it has been
+     * replaced. Machines still checked out are dropped when they are
+     * returned, if {@link #isCurrent(String, StateMachine)} says they are
+     * stale.
+     *
+     * @param definition the name of a machine definition
+     */
+    protected void evictIdle(String definition) {
+        DefinitionPool pool = pools.get(definition);
+        if (pool != null) {
+            pool.evict();
+        }
+    }
+
+    /**
+     * Returns a machine to its definition's idle list. Called by {@link
+     * StateMachine#detachStateful()}; machines that are not currently checked
+     * out are ignored.
+     *
+     * @param machine a StateMachine created by this pool
+     */
+    void release(StateMachine machine) {
+        DefinitionPool pool = pools.get(machine.getPoolKey());
+        if (pool != null) {
+            pool.give(machine);
+        }
+    }
+
+    /**
+     * Returns the pool for a definition, creating it if necessary.
+     *
+     * @param definition the name of a machine definition
+     *
+     * @return a DefinitionPool
+     */
+    private DefinitionPool getDefinitionPool(String definition) {
+        DefinitionPool pool = pools.get(definition);
+        if (pool == null) {
+            synchronized (pools) {
+                pool = pools.get(definition);
+                if (pool == null) {
+                    pool = new DefinitionPool();
+                    pools.put(definition, pool);
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * The number of borrows satisfied by an idle machine.
+     *
+     * @return a count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of borrows that required a new machine to be created.
+     *
+     * @return a count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The number of borrows that had to wait for a machine to be returned.
+     *
+     * @return a count
+     */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /**
+     * The total time borrowers have spent waiting for returned machines.
+     *
+     * @return elapsed milliseconds
+     */
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    /**
+     * The number of idle machines currently held for a definition.
+     *
+     * @param definition the name of a machine definition
+     *
+     * @return a count
+     */
+    public int getIdleCount(String definition) {
+        DefinitionPool pool = pools.get(definition);
+        if (pool == null) {
+            return 0;
+        }
+        synchronized (pool) {
+            return pool.idle.size();
+        }
+    }
+
+    /**
+     * Returns a String summarizing this pool's metrics.
+     *
+     * @return a String
+     */
+    public String toString() {
+        return "StateMachinePool[hits=" + getHits() + ", misses="
+            + getMisses() + ", waits=" + getWaits() + ", waitMillis="
+            + getWaitMillis() + "]";
+    }
+
+    /**
+     * The idle machines and creation count for a single definition. All state
+     * is guarded by the DefinitionPool's monitor.
+     */
+    private class DefinitionPool {
+        private final LinkedList<StateMachine> idle =
+            new LinkedList<StateMachine>();
+        private int created;
+
+        /**
+         * Takes an idle machine, or reserves the right to create one by
+         * returning null.
+         *
+         * @return an idle StateMachine, or null if the caller should create
+         *         one
+         */
+        synchronized StateMachine take() {
+            if (!idle.isEmpty()) {
+                hits.incrementAndGet();
+                return checkOut(idle.removeFirst());
+            }
+            if (created < maxPerDefinition) {
+                created++;
+                misses.incrementAndGet();
+                return null;
+            }
+
+            waits.incrementAndGet();
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            try {
+                while (idle.isEmpty() && created >= maxPerDefinition) {
+                    if (maxWaitMillis <= 0) {
+                        wait();
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            throw new IllegalStateException("Timed out after "
+                                + maxWaitMillis + "ms waiting for a pooled "
+                                + "StateMachine.");
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(
+                    "Interrupted while waiting for a pooled StateMachine.");
+            } finally {
+                waitNanos.addAndGet(System.nanoTime() - start);
+            }
+
+            if (idle.isEmpty()) {
+                //a failed creation freed up a reservation
+                created++;
+                misses.incrementAndGet();
+                return null;
+            }
+            return checkOut(idle.removeFirst());
+        }
+
+        /**
+         * Marks a machine as checked out.
+         *
+         * @param machine an idle StateMachine
+         *
+         * @return the same machine
+         */
+        private StateMachine checkOut(StateMachine machine) {
+            machine.setPooledOut(true);
+            return machine;
+        }
+
+        /**
+         * Releases a reservation made by {@link #take()} when creation failed.
+         */
+        synchronized void abandonReservation() {
+            created--;
+            notify();
+        }
+
+        /**
+         * Returns a checked-out machine to the idle list.
+         *
+         * @param machine a StateMachine
+         */
+        synchronized void give(StateMachine machine) {
+            if (machine.isPooledOut()) {
+                machine.setPooledOut(false);
+                if (isCurrent(machine.getPoolKey(), machine)) {
+                    idle.addLast(machine);
+                } else {
+                    created--;
+                }
+                notify();
+            }
+        }
+
+        /**
+         * Discards the idle machines, freeing their places under the bound.
+         */
+        synchronized void evict() {
+            created -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.commercehub.core.state;
+
+/**
+ * How long a State may stay active before a {@link TimeoutTrigger} is pulled
+ * on its Stateful. A machine arms a state's timeout on a {@link TimingWheel}
+ * when the state becomes active, and cancels it when the state becomes
+ * inactive; a timeout that expires pulls a new instance of its trigger class
+ * with its parameter. Map that class and parameter to the transitions out of
+ * the state.
+ *
+ * @author Matthew Mark Miller
+ * @see State#setTimeout(long, Class, Object)
+ */
+public final class StateTimeout {
+    private final long delayMillis;
+    private final Class<? extends TimeoutTrigger> triggerClass;
+    private final Object param;
+
+    /**
+     * Initializes a new StateTimeout.
+     *
+     * @param delayMillis how long after activation the timeout expires
+     * @param triggerClass the trigger pulled when it expires, which needs a
+     *                     public no-argument constructor
+     * @param param the parameter it is pulled with, may be null
+     *
+     * @throws IllegalArgumentException if delayMillis is negative, or the
+     *                                  trigger class can't be instantiated
+     */
+    public StateTimeout(long delayMillis,
+                        Class<? extends TimeoutTrigger> triggerClass,
+                        Object param) {
+        if (delayMillis < 0) {
+            throw new IllegalArgumentException(
+                "A timeout can't expire before its state is entered.");
+        }
+        try {
+            triggerClass.getConstructor();
+        } catch (NoSuchMethodException nsme) {
+            throw new IllegalArgumentException(triggerClass
+                + " needs a public no-argument constructor.");
+        }
+        this.delayMillis = delayMillis;
+        this.triggerClass = triggerClass;
+        this.param = param;
+    }
+
+    /**
+     * How long after activation this timeout expires.
+     *
+     * @return milliseconds
+     */
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * The class of trigger pulled when this timeout expires.
+     *
+     * @return a TimeoutTrigger class
+     */
+    public Class<? extends TimeoutTrigger> getTriggerClass() {
+        return triggerClass;
+    }
+
+    /**
+     * The parameter the trigger is pulled with.
+     *
+     * @return a parameter, usually a String, may be null
+     */
+    public Object getParam() {
+        return param;
+    }
+
+    /**
+     * Instantiates the trigger for one arming of this timeout.
+     *
+     * @return a new TimeoutTrigger
+     *
+     * @throws IllegalStateException if the trigger's constructor fails
+     */
+    TimeoutTrigger newTrigger() {
+        try {
+            return triggerClass.newInstance();
+        } catch (InstantiationException ie) {
+            throw new IllegalStateException(ie);
+        } catch (IllegalAccessException iae) {
+            throw new IllegalStateException(iae);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.commercehub.core.state;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Owns the attached StateMachines of many Statefuls, keyed by an id, and lets
+ * any number of threads drive them. A StateMachine isn't thread-safe, so
+ * every call that reads or changes a machine's activation -- {@link
+ * #pullTrigger(Object, Trigger, Object, TransitionRecordFactory) pullTrigger},
+ * {@link #isApplicable(Object, Class, Object) isApplicable}, {@link
+ * #getRank(Object, Class, Object) getRank}, {@link
+ * #copyStateCookie(Object, StateCookie) copyStateCookie}, attaching and
+ * detaching -- holds the lock of the id's
+ * stripe. Ids are spread over a fixed set of stripes, so calls for different
+ * ids rarely wait on each other, and calls for one id never run at once.
+ *
+ * <p>{@link #isSupported(Object, Class, Object) isSupported} and {@link
+ * #getSupportedParameters(Object, Class) getSupportedParameters} only read
+ * the machine's chart, which is immutable, and take no lock.</p>
+ *
+ * <p>Triggers and actions run with their stripe locked. They may use the
+ * Stateful they were pulled on, but must not call this registry for another
+ * id, which may share a stripe held by another thread.</p>
+ *
+ * <p>Each registered machine's {@link ActivityHost} pulls the triggers of
+ * completed activities and expired timeouts through this registry, so they
+ * take the stripe lock like any other trigger. Activities themselves run on
+ * the shared activity pool.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public class StatefulRegistry {
+    /** Id : attached StateMachine */
+    private final ConcurrentMap<Object, StateMachine> machines =
+        new ConcurrentHashMap<Object, StateMachine>();
+
+    private final Object[] stripes;
+
+    /**
+     * Initializes a new StatefulRegistry with four stripes per processor.
+     */
+    public StatefulRegistry() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Initializes a new StatefulRegistry.
+     *
+     * @param stripes the least number of locks to spread ids over, rounded
+     *                up to a power of two; must be positive
+     *
+     * @throws IllegalArgumentException if stripes isn't positive
+     */
+    public StatefulRegistry(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException(
+                "A registry needs at least one stripe.");
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new Object[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * The number of locks ids are spread over.
+     *
+     * @return a power of two
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    private Object stripe(Object id) {
+        int h = id.hashCode();
+        //spread the high bits down, as a HashMap does
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    private StateMachine machine(Object id) {
+        StateMachine machine = machines.get(id);
+        if (machine == null) {
+            throw new IllegalArgumentException("No Stateful is registered as "
+                + id);
+        }
+        return machine;
+    }
+
+    /**
+     * Attaches a Stateful to a new machine of a chart and registers it under
+     * an id. A machine already registered under the id is detached.
+     *
+     * @param id identifies the Stateful, such as an order number
+     * @param chart the chart to run
+     * @param stateful the Stateful to drive
+     *
+     * @return the attached StateMachine. Use it only through this registry.
+     */
+    public StateMachine attach(Object id, StateChart chart, Stateful stateful) {
+        StateMachine machine = chart.newStateMachine();
+        machine.setActivityHost(new RegistryHost(id, machine));
+        synchronized (stripe(id)) {
+            machine.attachStateful(stateful);
+            StateMachine replaced = machines.put(id, machine);
+            if (replaced != null) {
+                replaced.detachStateful();
+            }
+        }
+        return machine;
+    }
+
+    /**
+     * Detaches and forgets the machine registered under an id.
+     *
+     * @param id identifies a Stateful
+     *
+     * @return true if a machine was registered under the id
+     */
+    public boolean detach(Object id) {
+        synchronized (stripe(id)) {
+            StateMachine machine = machines.remove(id);
+            if (machine == null) {
+                return false;
+            }
+            machine.detachStateful();
+            return true;
+        }
+    }
+
+    /**
+     * Whether a machine is registered under an id.
+     *
+     * @param id identifies a Stateful
+     *
+     * @return true if registered
+     */
+    public boolean contains(Object id) {
+        return machines.containsKey(id);
+    }
+
+    /**
+     * The number of registered machines.
+     *
+     * @return a count
+     */
+    public int size() {
+        return machines.size();
+    }
+
+    /**
+     * Pulls a trigger on the machine registered under an id.
+     *
+     * @param id identifies a Stateful
+     * @param trigger the trigger
+     * @param param the trigger parameter
+     * @param factory records fired transitions, may be null
+     *
+     * @return true if any transitions fired
+     *
+     * @throws IllegalArgumentException if no machine is registered under the
+     *                                  id
+     *
+     * @see StateMachine#pullTrigger(Trigger, Object, TransitionRecordFactory)
+     */
+    public boolean pullTrigger(Object id, Trigger trigger, Object param,
+                               TransitionRecordFactory factory) {
+        synchronized (stripe(id)) {
+            return machine(id).pullTrigger(trigger, param, factory);
+        }
+    }
+
+    /**
+     * Tests whether a trigger and parameter could fire a transition of the
+     * machine registered under an id, in its current state.
+     *
+     * @param id identifies a Stateful
+     * @param triggerClass the class of a trigger
+     * @param param the trigger parameter
+     *
+     * @return true if applicable
+     *
+     * @throws IllegalArgumentException if no machine is registered under the
+     *                                  id
+     *
+     * @see StateMachine#isApplicable(Class, Object)
+     */
+    public boolean isApplicable(Object id,
+                                Class<? extends Trigger> triggerClass,
+                                Object param) {
+        synchronized (stripe(id)) {
+            return machine(id).isApplicable(triggerClass, param);
+        }
+    }
+
+    /**
+     * Ranks a trigger and parameter against the current state of the
+     * machine registered under an id.
+     *
+     * @param id identifies a Stateful
+     * @param triggerClass the class of a trigger
+     * @param param the trigger parameter
+     *
+     * @return a rank
+     *
+     * @throws IllegalArgumentException if no machine is registered under the
+     *                                  id
+     *
+     * @see StateMachine#getRank(Class, Object)
+     */
+    public int getRank(Object id, Class<? extends Trigger> triggerClass,
+                       Object param) {
+        synchronized (stripe(id)) {
+            return machine(id).getRank(triggerClass, param);
+        }
+    }
+
+    /**
+     * Copies the cookie of the Stateful registered under an id, as of the
+     * last trigger that fired, into a cookie owned by the caller. The live
+     * cookie is updated in place by later triggers, so it is never handed
+     * out. Chart fingerprints and timeout deadlines are copied when both
+     * cookies keep them.
+     *
+     * @param id identifies a Stateful
+     * @param copy an empty cookie to fill
+     *
+     * @return the copy
+     *
+     * @throws IllegalArgumentException if no machine is registered under the
+     *                                  id
+     */
+    public StateCookie copyStateCookie(Object id, StateCookie copy) {
+        synchronized (stripe(id)) {
+            StateCookie cookie = machine(id).getStateCookie();
+            copy.clear();
+            copy.setActive(new HashSet<String>(
+                cookie.getActiveStatePathNames()));
+            copy.setHistoryStates(new HashSet<String>(
+                cookie.getHistoryStatePathNames()));
+            if (cookie instanceof VersionedStateCookie
+                    && copy instanceof VersionedStateCookie) {
+                ((VersionedStateCookie) copy).setChartFingerprint(
+                    ((VersionedStateCookie) cookie).getChartFingerprint());
+            }
+            if (cookie instanceof TimedStateCookie
+                    && copy instanceof TimedStateCookie) {
+                ((TimedStateCookie) copy).setTimeoutDeadlines(
+                    new HashMap<String, Long>(
+                        ((TimedStateCookie) cookie).getTimeoutDeadlines()));
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Returns the path names of the active states of the Stateful registered
+     * under an id, as of the last trigger that fired.
+     *
+     * @param id identifies a Stateful
+     *
+     * @return a Set of path names, owned by the caller
+     *
+     * @throws IllegalArgumentException if no machine is registered under the
+     *                                  id
+     */
+    public Set getActiveStatePathNames(Object id) {
+        synchronized (stripe(id)) {
+            return new HashSet(
+                machine(id).getStateCookie().getActiveStatePathNames());
+        }
+    }
+
+    /**
+     * Tests whether a trigger and parameter are mapped to any transition of
+     * the chart of the machine registered under an id. Takes no lock.
+     *
+     * @param id identifies a Stateful
+     * @param triggerClass the class of a trigger
+     * @param param the trigger parameter
+     *
+     * @return true if supported
+     *
+     * @throws IllegalArgumentException if no machine is registered under the
+     *                                  id
+     *
+     * @see StateMachine#isSupported(Class, Object)
+     */
+    public boolean isSupported(Object id,
+                               Class<? extends Trigger> triggerClass,
+                               Object param) {
+        return machine(id).isSupported(triggerClass, param);
+    }
+
+    /**
+     * Returns the parameters mapped to a trigger class by the chart of the
+     * machine registered under an id. Takes no lock.
+     *
+     * @param id identifies a Stateful
+     * @param triggerClass the class of a trigger
+     *
+     * @return a Set of parameters, owned by the caller
+     *
+     * @throws IllegalArgumentException if no machine is registered under the
+     *                                  id
+     *
+     * @see StateMachine#getSupportedParameters(Class)
+     */
+    public Set getSupportedParameters(Object id,
+                                      Class<? extends Trigger> triggerClass) {
+        return machine(id).getSupportedParameters(triggerClass);
+    }
+
+    /**
+     * The {@link ActivityHost} of a registered machine. Delivers under the
+     * id's stripe lock, and only while the machine is still the one
+     * registered under the id.
+     */
+    private class RegistryHost implements ActivityHost {
+        private final Object id;
+        private final StateMachine machine;
+
+        RegistryHost(Object id, StateMachine machine) {
+            this.id = id;
+            this.machine = machine;
+        }
+
+        /**
+         * Runs an activity on the shared activity pool.
+         *
+         * @see ActivityHost#execute(Runnable)
+         */
+        public void execute(Runnable activity) {
+            PooledActivityHost.INSTANCE.execute(activity);
+        }
+
+        /**
+         * Pulls the trigger on the machine with its stripe locked. A machine
+         * that has been detached or replaced drops the trigger.
+         *
+         * @see ActivityHost#deliver(Stateful, Trigger, Object)
+         */
+        public void deliver(Stateful stateful, Trigger trigger, Object param) {
+            synchronized (stripe(id)) {
+                if (machines.get(id) == machine) {
+                    machine.pullTrigger(trigger, param, null);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.commercehub.core.state;
+
+import java.util.Map;
+
+/**
+ * A StateCookie that remembers when the {@link StateTimeout timeouts} of its
+ * active states expire, so that a machine attached to it later -- in another
+ * process, after a restart -- arms them for what was left of their delay
+ * rather than for all of it. StateMachines fill the deadlines whenever they
+ * fill these cookies. A timeout whose deadline passed while no machine was
+ * attached expires as soon as one is.
+ * @author Matthew Mark Miller
+ */
+public interface TimedStateCookie extends StateCookie {
+    /** The deadline kept for a timeout that has already expired */
+    long EXPIRED = Long.MIN_VALUE;
+
+    /**
+     * The deadlines of the armed timeouts of this cookie's active states.
+     * @return state path name : deadline in milliseconds, or {@link
+     *         #EXPIRED}; never null
+     */
+    Map<String, Long> getTimeoutDeadlines();
+
+    /**
+     * Replaces the deadlines of this cookie's armed timeouts.
+     * @param deadlines state path name : deadline in milliseconds
+     */
+    void setTimeoutDeadlines(Map<String, Long> deadlines);
+}
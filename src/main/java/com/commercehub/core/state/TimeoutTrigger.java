@@ -0,0 +1,48 @@
+package com.commercehub.core.state;
+
+import com.commercehub.core.state.annotations.RefName;
+
+/**
+ * Pulled on a Stateful when a {@link StateTimeout} of one of its active
+ * states expires. Subclass it to tell timeouts apart by class, as well as by
+ * parameter; subclasses need a public no-argument constructor, and should
+ * only evaluate true if this class does.
+ *
+ * <p>Evaluates true only while the state that armed it is still in the
+ * activation it was armed in. A timeout that expires just as its state is
+ * exited -- even if the state has since been re-entered -- fires nothing. A
+ * TimeoutTrigger pulled by hand, never armed, always evaluates true.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+@RefName("timeout")
+public class TimeoutTrigger implements Trigger {
+    private volatile TimingWheel.Timeout timeout;
+
+    /**
+     * Records the wheel entry this trigger is pulled for.
+     *
+     * @param timeout a Timeout, cancelled when its state is exited
+     */
+    void setTimeout(TimingWheel.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * When the timeout that pulled this trigger expired.
+     *
+     * @return milliseconds, or 0 if this trigger was never armed
+     */
+    public long getDeadline() {
+        TimingWheel.Timeout armed = timeout;
+        return armed == null ? 0 : armed.getDeadline();
+    }
+
+    /**
+     * @see Trigger#eval(Stateful, Object, Condition)
+     */
+    public boolean eval(Stateful stateful, Object param, Condition cond) {
+        TimingWheel.Timeout armed = timeout;
+        return armed == null || !armed.isCancelled();
+    }
+}
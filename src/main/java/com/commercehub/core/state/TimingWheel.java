@@ -0,0 +1,448 @@
+package com.commercehub.core.state;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, for keeping millions of pending timeouts --
+ * one or more per Stateful -- without a scheduled task per timeout. Time is
+ * cut into ticks; each level of the wheel is a ring of slots, and a slot of
+ * level <i>n</i> spans <code>slots<sup>n</sup></code> ticks. A timeout is
+ * kept in a doubly linked list in the slot of the lowest level whose span
+ * reaches its deadline, so both {@link #schedule(Timeout, long) scheduling}
+ * and {@link Timeout#cancel() cancelling} take constant time, whatever the
+ * number of pending timeouts. When the lowest level wraps, the next slot of
+ * the level above is cascaded down into it.
+ *
+ * <p>A wheel does nothing by itself: each call to {@link #advance()} reads
+ * its {@link Clock}, ticks up to the current time and runs the tasks of the
+ * timeouts that expired, on the calling thread. {@link #start()} starts a
+ * daemon thread that advances the wheel once a tick; tests drive a wheel
+ * with their own Clock and call advance() themselves.</p>
+ *
+ * <p>A timeout never expires before its deadline, and expires within a tick
+ * after it, as long as the wheel is advanced. A wheel is thread-safe; its
+ * tasks run without its lock held, so they may schedule and cancel. Tasks
+ * hold up every later timeout of the tick, so they should hand any real work
+ * to another thread.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public class TimingWheel {
+    private static final long DEFAULT_TICK_MILLIS = 100;
+    private static final int DEFAULT_SLOTS = 512;
+
+    private static final int PENDING = 0;
+    private static final int EXPIRED = 1;
+    private static final int CANCELLED = 2;
+
+    private final Clock clock;
+    private final long tickMillis;
+
+    /** log2 of the slots per level */
+    private final int bits;
+    private final int mask;
+
+    /** Heads of each slot's list of timeouts, by level */
+    private final Timeout[][] levels;
+
+    /** The last tick processed */
+    private long currentTick;
+
+    /** Number of pending timeouts */
+    private int size;
+
+    private Thread driver;
+
+    /**
+     * Holds the shared wheel, so that its thread isn't started until a
+     * timeout is armed.
+     */
+    private static class Shared {
+        static final TimingWheel WHEEL = new TimingWheel(Clock.SYSTEM);
+
+        static {
+            WHEEL.start();
+        }
+    }
+
+    /**
+     * The wheel shared by StateMachines that haven't been given one: 512
+     * slots of 100 ms on the system clock, advanced by its own daemon
+     * thread.
+     *
+     * @return a started TimingWheel
+     */
+    public static TimingWheel getShared() {
+        return Shared.WHEEL;
+    }
+
+    /**
+     * Initializes a new TimingWheel of 512 slots of 100 ms per level.
+     *
+     * @param clock the wheel's time source
+     */
+    public TimingWheel(Clock clock) {
+        this(clock, DEFAULT_TICK_MILLIS, DEFAULT_SLOTS);
+    }
+
+    /**
+     * Initializes a new TimingWheel. It has as many levels as it needs to
+     * hold any deadline.
+     *
+     * @param clock the wheel's time source
+     * @param tickMillis the length of a tick, the wheel's resolution
+     * @param slots the slots per level, a power of two of at least 2
+     *
+     * @throws IllegalArgumentException if clock is null, tickMillis isn't
+     *                                  positive or slots isn't a power of two
+     *                                  of at least 2
+     */
+    public TimingWheel(Clock clock, long tickMillis, int slots) {
+        if (clock == null) {
+            throw new IllegalArgumentException("A wheel needs a Clock.");
+        }
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("Ticks must be positive.");
+        }
+        if (slots < 2 || Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException(
+                "Slots must be a power of two of at least 2: " + slots);
+        }
+        this.clock = clock;
+        this.tickMillis = tickMillis;
+        bits = Integer.numberOfTrailingZeros(slots);
+        mask = slots - 1;
+        //enough levels to span any tick a long can hold
+        levels = new Timeout[(Long.SIZE - 1 + bits - 1) / bits][slots];
+        currentTick = clock.currentTimeMillis() / tickMillis;
+    }
+
+    /**
+     * The wheel's time source.
+     *
+     * @return a Clock
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * The length of a tick.
+     *
+     * @return milliseconds
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * The number of timeouts that have neither expired nor been cancelled.
+     *
+     * @return a count
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Schedules a task to run once a deadline has passed.
+     *
+     * @param task the task to run
+     * @param deadlineMillis when to run it, in the time of this wheel's clock
+     *
+     * @return a Timeout that cancels the task
+     */
+    public Timeout schedule(Runnable task, long deadlineMillis) {
+        Timeout timeout = new Timeout(task);
+        schedule(timeout, deadlineMillis);
+        return timeout;
+    }
+
+    /**
+     * Schedules a new Timeout to expire once a deadline has passed. A
+     * deadline already passed expires on the next tick; a timeout cancelled
+     * before it was scheduled never expires.
+     *
+     * @param timeout a Timeout that has never been scheduled
+     * @param deadlineMillis when it expires, in the time of this wheel's
+     *                       clock
+     *
+     * @throws IllegalStateException if the timeout has already been
+     *                               scheduled
+     */
+    public synchronized void schedule(Timeout timeout, long deadlineMillis) {
+        if (timeout.wheel != null) {
+            throw new IllegalStateException("A Timeout is scheduled once.");
+        }
+        timeout.wheel = this;
+        timeout.deadline = deadlineMillis;
+        //round up, so as never to expire early
+        long tick = deadlineMillis / tickMillis;
+        if (tick * tickMillis < deadlineMillis) {
+            tick++;
+        }
+        //the current tick's slot has already been processed
+        timeout.tick = Math.max(tick, currentTick + 1);
+        if (timeout.state == PENDING) {
+            insert(timeout);
+            size++;
+        }
+    }
+
+    /**
+     * Ticks up to the current time of this wheel's clock, and runs the tasks
+     * of the timeouts that expired, in the order they expired. A task that
+     * throws doesn't stop the others from running.
+     *
+     * @return the number of tasks run
+     *
+     * @throws RuntimeException the first exception thrown by a task, once
+     *                          every task has run
+     */
+    public int advance() {
+        List<Timeout> expired = new ArrayList<Timeout>();
+        synchronized (this) {
+            long target = clock.currentTimeMillis() / tickMillis;
+            while (currentTick < target) {
+                if (size == 0) {
+                    //nothing to cascade or expire
+                    currentTick = target;
+                    break;
+                }
+                tick(expired);
+            }
+        }
+        RuntimeException failure = null;
+        for (int i = 0; i < expired.size(); i++) {
+            try {
+                expired.get(i).task.run();
+            } catch (RuntimeException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return expired.size();
+    }
+
+    /**
+     * Starts a daemon thread that advances this wheel once a tick, until
+     * {@link #stop()}. Does nothing if the wheel is already started.
+     */
+    public synchronized void start() {
+        if (driver != null) {
+            return;
+        }
+        driver = new Thread(new Runnable() {
+                public void run() {
+                    drive();
+                }
+            }, "timing-wheel");
+        driver.setDaemon(true);
+        driver.start();
+    }
+
+    /**
+     * Stops the thread started by {@link #start()}. Pending timeouts stay
+     * pending.
+     */
+    public void stop() {
+        Thread stopping;
+        synchronized (this) {
+            stopping = driver;
+            driver = null;
+        }
+        if (stopping != null) {
+            stopping.interrupt();
+        }
+    }
+
+    private void drive() {
+        while (true) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException ie) {
+                return;
+            }
+            try {
+                advance();
+            } catch (RuntimeException ex) {
+                //a failed task mustn't stop every later timeout
+            }
+        }
+    }
+
+    /**
+     * Processes the next tick: cascades any higher level slots that come due,
+     * then expires the lowest level's slot.
+     *
+     * @param expired collects the expired timeouts
+     */
+    private void tick(List<Timeout> expired) {
+        long tick = ++currentTick;
+        for (int level = 1; level < levels.length; level++) {
+            int shift = level * bits;
+            if ((tick & ((1L << shift) - 1)) != 0) {
+                break;
+            }
+            Timeout timeout = take(level, (int) ((tick >>> shift) & mask));
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                insert(timeout);
+                timeout = next;
+            }
+        }
+        Timeout timeout = take(0, (int) (tick & mask));
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            timeout.state = EXPIRED;
+            size--;
+            expired.add(timeout);
+            timeout = next;
+        }
+    }
+
+    /**
+     * Empties a slot.
+     *
+     * @return the head of the slot's list, or null
+     */
+    private Timeout take(int level, int slot) {
+        Timeout head = levels[level][slot];
+        levels[level][slot] = null;
+        return head;
+    }
+
+    /**
+     * Links a timeout into the slot of the lowest level whose span reaches
+     * its tick.
+     */
+    private void insert(Timeout timeout) {
+        long delta = timeout.tick - currentTick;
+        int level = delta <= mask
+            ? 0 : (Long.SIZE - 1 - Long.numberOfLeadingZeros(delta)) / bits;
+        int slot = (int) ((timeout.tick >>> (level * bits)) & mask);
+        Timeout head = levels[level][slot];
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        levels[level][slot] = timeout;
+    }
+
+    /**
+     * Unlinks a pending timeout from its slot.
+     */
+    private void unlink(Timeout timeout) {
+        if (timeout.prev == null) {
+            levels[timeout.level][timeout.slot] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        size--;
+    }
+
+    /**
+     * A task waiting in a TimingWheel.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+
+        /** Set once scheduled */
+        private volatile TimingWheel wheel;
+        private long deadline;
+        private long tick;
+
+        /** Guarded by the wheel */
+        private int level;
+        private int slot;
+        private Timeout prev;
+        private Timeout next;
+
+        private volatile int state = PENDING;
+
+        /**
+         * Initializes a new, unscheduled Timeout.
+         *
+         * @param task runs when the timeout expires
+         */
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * A timeout that expired before it could be scheduled here, such as
+         * one restored from a cookie.
+         *
+         * @return an expired Timeout with no task
+         */
+        static Timeout spent() {
+            Timeout timeout = new Timeout(null);
+            timeout.state = EXPIRED;
+            return timeout;
+        }
+
+        /**
+         * When this timeout expires.
+         *
+         * @return milliseconds, in the time of its wheel's clock
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Cancels this timeout. A pending timeout is taken off its wheel, and
+         * its task won't run; a timeout that has already expired is only
+         * marked cancelled, for its task to check.
+         *
+         * @return true if the timeout was pending
+         */
+        public boolean cancel() {
+            TimingWheel owner = wheel;
+            if (owner == null) {
+                state = CANCELLED;
+                return false;
+            }
+            synchronized (owner) {
+                boolean pending = state == PENDING;
+                if (pending) {
+                    owner.unlink(this);
+                }
+                state = CANCELLED;
+                return pending;
+            }
+        }
+
+        /**
+         * Whether this timeout has been cancelled.
+         *
+         * @return true if cancelled
+         */
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        /**
+         * Whether this timeout's deadline has passed on its wheel.
+         *
+         * @return true if expired, and not since cancelled
+         */
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+    }
+}
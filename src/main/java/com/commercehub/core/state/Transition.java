@@ -6,12 +6,13 @@ import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * States are activated by transitions. Each transition has an {@link
  * #getExitState() exit state} and an {@link #getEntryState() entry state}. A
- * transition may be {@link #fire() fired} if its exit state is active. When
- * fired, it activates its entry state.
+ * transition may be {@link #fire(ActivationRecord) fired} in a machine if its
+ * exit state is active there. When fired, it activates its entry state.
  *
  * <p>Note that it is not the responsibility of the transition to deactivate its
  * exit state. The exit state may be, and usually is, deactivated when a
@@ -23,6 +24,9 @@ import java.util.List;
  * transition's actions are fired after its exit state is deactivated, if it is
  * to be deactivated, and before its entry state is activated.</p>
  *
+ * <p>A transition belongs to a {@link StateChart}, not to any one machine, and
+ * is frozen along with the chart's TriggerTransitionMap.</p>
+ *
  * @author Orr Bernstein, <a href="mailto:jpulley@commercehub.com">J. Pulley</a>
  * @version 1.0
  * @version 1.1 6-Aug-2005
@@ -32,22 +36,26 @@ public class Transition {
     private State entry;
     private List actions;
     private String name;
-    private StateMachine machine;
     private Collection rankedStates;
+    private boolean frozen;
+
+    /** Actions and ranked states, copied when frozen for the fire path */
+    private ParametricAction[] actionArray;
+    private State[] rankedStateArray;
+
+    /** What firing this transition does, compiled when frozen */
+    private TransitionPlan plan;
 
     /**
      * Initializes a new transition.
      *
-     * @param machine the StateMachine this Transition will run in.
      * @param exit exit state
      * @param entry entry state
      * @param name the transition name, as referenced by triggers
      *
      * @throws NullPointerException if either argument is <code>null</code>
      */
-    public Transition(StateMachine machine, State exit, State entry,
-                      String name) {
-        this.machine = machine;
+    public Transition(State exit, State entry, String name) {
         this.exit = exit;
         this.entry = entry;
         this.name = name;
@@ -101,6 +109,7 @@ public class Transition {
         if (newAction == null) {
             throw new NullPointerException("action may not be null");
         }
+        checkNotFrozen();
         actions.add(new ParametricAction(newAction, param));
     }
 
@@ -122,6 +131,7 @@ public class Transition {
         if (newAction == null) {
             throw new NullPointerException("action may not be null");
         }
+        checkNotFrozen();
         actions.add(index, new ParametricAction(newAction, param));
     }
 
@@ -145,6 +155,7 @@ public class Transition {
         if (newAction == null) {
             throw new NullPointerException("action may not be null");
         }
+        checkNotFrozen();
         return (ParametricAction) actions.set(index,
                 new ParametricAction(newAction, param));
     }
@@ -162,6 +173,7 @@ public class Transition {
      *                                   number of actions
      */
     public ParametricAction removeAction(int index) {
+        checkNotFrozen();
         return (ParametricAction) actions.remove(index);
     }
 
@@ -178,6 +190,7 @@ public class Transition {
     public boolean removeAction(ParametricAction action) {
         boolean removed = false;
         boolean again = true;
+        checkNotFrozen();
         while (again) {
             again = actions.remove(action);
             removed |= again;
@@ -195,31 +208,89 @@ public class Transition {
     }
 
     /**
-     * Fires this transition. The entry state is activated, and is passed this
-     * transition's list of actions to be fired.
+     * Fires this transition in a machine by executing the plan compiled when
+     * it was frozen: states are exited, this transition's actions run, and the
+     * entry state is activated.
      *
-     * @throws IllegalStateException if the exit state is not active
+     * @param record the ActivationRecord of the machine
      */
-    public void fire() {
-        entry.notifyTransitionFired(exit, getActions());
+    public void fire(ActivationRecord record) {
+        plan.execute(record);
     }
 
     /**
-     * Returns true if the exit State is active.
+     * Returns true if the exit State is active in a machine.
+     *
+     * @param record the ActivationRecord of the machine
      *
      * @return true, if the exit State is active
      */
-    public boolean canFire() {
-        return exit.isActive();
+    public boolean canFire(ActivationRecord record) {
+        return exit.isActive(record);
     }
 
     /**
-     * Returns the StateMachine that owns this Transition
+     * Freezes this transition, after which its actions and ranked states may
+     * no longer be changed, and compiles its {@link TransitionPlan}. Called
+     * when its StateChart is built, after its states are frozen.
+     */
+    void freeze() {
+        actionArray = (ParametricAction[]) actions.toArray(
+                new ParametricAction[actions.size()]);
+        rankedStateArray = (State[]) rankedStates.toArray(
+                new State[rankedStates.size()]);
+        plan = new TransitionPlan(exit, entry, actionArray);
+        frozen = true;
+    }
+
+    /**
+     * Replaces each action with the equivalent action shared by the rest of
+     * the chart, and forgets ranked states that can never be active. Called
+     * by {@link StateChartOptimizer} before this transition is frozen.
+     *
+     * @param pool the chart's shared actions
+     * @param reachable every state that can be active
      *
-     * @return A StateMachine
+     * @return the number of ranked states forgotten
      */
-    public StateMachine getStateMachine() {
-        return machine;
+    int optimize(StateChartOptimizer.ActionPool pool, Set<State> reachable) {
+        checkNotFrozen();
+        pool.intern(actions);
+        int ranked = rankedStates.size();
+        rankedStates.retainAll(reachable);
+        return ranked - rankedStates.size();
+    }
+
+    /**
+     * This transition's ranked states as an array. Only available once this
+     * transition is frozen; the array must not be modified.
+     *
+     * @return ranked States, in rank order
+     */
+    State[] getRankedStateArray() {
+        return rankedStateArray;
+    }
+
+    /**
+     * The execution plan compiled for this transition. Only available once
+     * this transition is frozen.
+     *
+     * @return a TransitionPlan
+     */
+    TransitionPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Refuses modification once this transition is frozen.
+     *
+     * @throws IllegalStateException if this transition is frozen
+     */
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Transition " + name
+                + " belongs to a StateChart and may not be modified.");
+        }
     }
 
     /**
@@ -235,6 +306,7 @@ public class Transition {
      * @param state DOCUMENT ME!
      */
     public void addRankedState(State state) {
+        checkNotFrozen();
         rankedStates.add(state);
     }
 
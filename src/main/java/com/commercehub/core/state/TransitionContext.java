@@ -1,9 +1,8 @@
-
 package com.commercehub.core.state;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 
 /**
  * A TransitionContext is attached to a TransitionRecord and provides
@@ -12,10 +11,24 @@ import java.util.WeakHashMap;
  * why a specific transition was fired. TransitionContexts are doled out by
  * thread.
  *
+ * <p>Each thread's context is held in a ThreadLocal, so threads never share a
+ * context and a context goes away with its thread. A thread that never calls
+ * {@link #getInstance()} has no context, and costs nothing: {@link
+ * #current()} returns null, and {@link #wrap(Runnable)} returns its task
+ * unchanged. Pooled threads should {@link #remove()} their context between
+ * units of work.</p>
+ *
+ * <p>Work handed to another thread doesn't see the submitting thread's
+ * context, unless it is {@link #wrap(Runnable) wrapped}: a wrapped task runs
+ * with a copy of the context captured when it was wrapped. A {@link
+ * StateMachineExecutor} wraps each trigger it is given, so triggers and their
+ * actions see the context of the thread that submitted them.</p>
+ *
  * @author mmiller
  */
 public class TransitionContext {
-    private static Map contextsByThread = new WeakHashMap();
+    private static final ThreadLocal<TransitionContext> CONTEXTS =
+        new ThreadLocal<TransitionContext>();
 
     private HashMap map;
 
@@ -27,21 +40,116 @@ public class TransitionContext {
     }
 
     /**
-     * DOCUMENT ME!
+     * Returns this thread's context, creating it on first use.
      *
-     * @return DOCUMENT ME!
+     * @return this thread's TransitionContext
      */
     public static TransitionContext getInstance() {
-        Thread thisThread = Thread.currentThread();
-        TransitionContext context =
-            (TransitionContext) contextsByThread.get(thisThread);
+        TransitionContext context = CONTEXTS.get();
         if (context == null) {
             context = new TransitionContext();
-            contextsByThread.put(thisThread, context);
+            CONTEXTS.set(context);
         }
         return context;
     }
 
+    /**
+     * Returns this thread's context, without creating one.
+     *
+     * @return this thread's TransitionContext, or null if it has none
+     */
+    public static TransitionContext current() {
+        return CONTEXTS.get();
+    }
+
+    /**
+     * Discards this thread's context.
+     */
+    public static void remove() {
+        CONTEXTS.remove();
+    }
+
+    /**
+     * Copies this thread's context, for a task that will run elsewhere.
+     *
+     * @return a new TransitionContext, or null if this thread has none
+     */
+    public static TransitionContext capture() {
+        TransitionContext context = CONTEXTS.get();
+        if (context == null) {
+            return null;
+        }
+        TransitionContext copy = new TransitionContext();
+        copy.map.putAll(context.map);
+        return copy;
+    }
+
+    /**
+     * Wraps a task to run with a copy of this thread's context. The running
+     * thread's own context is put back when the task ends.
+     *
+     * @param task a task to be run by another thread
+     *
+     * @return a wrapping task, or the task itself if this thread has no
+     *         context
+     */
+    public static Runnable wrap(final Runnable task) {
+        final TransitionContext captured = capture();
+        if (captured == null) {
+            return task;
+        }
+        return new Runnable() {
+                public void run() {
+                    TransitionContext previous = enter(captured);
+                    try {
+                        task.run();
+                    } finally {
+                        exit(previous);
+                    }
+                }
+            };
+    }
+
+    /**
+     * Wraps a task to run with a copy of this thread's context. The running
+     * thread's own context is put back when the task ends.
+     *
+     * @param task a task to be run by another thread
+     *
+     * @return a wrapping task, or the task itself if this thread has no
+     *         context
+     */
+    public static <V> Callable<V> wrap(final Callable<V> task) {
+        final TransitionContext captured = capture();
+        if (captured == null) {
+            return task;
+        }
+        return new Callable<V>() {
+                public V call() throws Exception {
+                    TransitionContext previous = enter(captured);
+                    try {
+                        return task.call();
+                    } finally {
+                        exit(previous);
+                    }
+                }
+            };
+    }
+
+    private static TransitionContext enter(TransitionContext context) {
+        TransitionContext previous = CONTEXTS.get();
+        CONTEXTS.set(context);
+        return previous;
+    }
+
+    private static void exit(TransitionContext previous) {
+        if (previous == null) {
+            CONTEXTS.remove();
+        } else {
+            CONTEXTS.set(previous);
+        }
+    }
+
     /**
      * Sets a context key/value pair. If the key already exists within this
      * context, its value is replaced with this new one.
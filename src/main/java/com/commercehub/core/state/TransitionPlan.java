@@ -0,0 +1,162 @@
+package com.commercehub.core.state;
+
+/**
+ * What firing a {@link Transition} does, worked out once when the transition
+ * is frozen. The plan holds the least common ancestor (LCA) of the exit and
+ * entry states, the chain of states to exit between the exit state and the
+ * LCA, and the chain of states to enter from below the LCA down to the entry
+ * state, so firing is a walk over arrays.
+ *
+ * <p>Only what depends on a machine's activation is left to run time: the
+ * active descendants of the exit state, and the history or default children
+ * of entered states. When the LCA is an ExclusiveState its entry side child
+ * is inactive whenever the exit state is active, so the LCA is the nearest
+ * active ancestor (NAA) of the entry state and the exit chain applies. When
+ * it isn't -- the LCA is concurrent, the exit state is an ancestor of the
+ * entry state, or the exit state isn't active -- the NAA is searched for along
+ * the entry path and deactivation proceeds from it as usual.</p>
+ *
+ * <p>Actions stay with their states rather than being merged into one array,
+ * so that each runs while the activation of the states around it is as it
+ * would be without a plan.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+final class TransitionPlan {
+    private final State exit;
+    private final State entry;
+    private final ParametricAction[] actions;
+
+    /** The entry state and its ancestors, root first */
+    private final State[] entryPath;
+
+    /** Depth of the least common ancestor of the exit and entry states */
+    private final int lcaDepth;
+
+    /**
+     * Ancestors of the exit state below the LCA, deepest first, or null if
+     * they can't be exited as a chain
+     */
+    private final State[] exitChain;
+
+    /**
+     * Compiles a plan.
+     *
+     * @param exit exit state of a transition, frozen
+     * @param entry entry state of a transition, frozen
+     * @param actions the transition's actions
+     *
+     * @throws IllegalStateException if either state isn't part of a
+     *                               StateChart
+     */
+    TransitionPlan(State exit, State entry, ParametricAction[] actions) {
+        if (!exit.isFrozen() || !entry.isFrozen()) {
+            throw new IllegalStateException("Transition from "
+                + exit.getName() + " to " + entry.getName()
+                + " connects states outside its StateChart.");
+        }
+        this.exit = exit;
+        this.entry = entry;
+        this.actions = actions;
+        entryPath = entry.getPathArray();
+        State[] exitPath = exit.getPathArray();
+
+        int lca = 0;
+        int limit = Math.min(exit.getDepth(), entry.getDepth());
+        while (lca < limit && exitPath[lca + 1] == entryPath[lca + 1]) {
+            lca++;
+        }
+        lcaDepth = lca;
+        exitChain = exitChain(exitPath, lca);
+    }
+
+    /**
+     * The ancestors of the exit state strictly below the LCA, deepest first,
+     * if they can be exited one after the other: the LCA is an ExclusiveState
+     * on the exit state's proper ancestry and so is every state in the chain.
+     * A concurrent state in the chain would deactivate its other children
+     * too.
+     *
+     * @param exitPath the exit state and its ancestors, root first
+     * @param lca depth of the least common ancestor
+     *
+     * @return a chain, or null
+     */
+    private State[] exitChain(State[] exitPath, int lca) {
+        int exitDepth = exitPath.length - 1;
+        if (lca >= exitDepth || lca >= entryPath.length - 1
+                || !(exitPath[lca] instanceof ExclusiveState)) {
+            return null;
+        }
+        State[] chain = new State[exitDepth - lca - 1];
+        for (int i = 0; i < chain.length; i++) {
+            chain[i] = exitPath[exitDepth - 1 - i];
+            if (!(chain[i] instanceof ExclusiveState)) {
+                return null;
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * Fires the transition in a machine.
+     *
+     * @param record the ActivationRecord of the machine
+     */
+    void execute(ActivationRecord record) {
+        if (entry.isActive(record)) {
+            //the entry state is already active.  The transition
+            //has already been applied.
+            entry.doActions(record, actions);
+            return;
+        }
+
+        int last = entryPath.length - 1;
+        int naa;
+        if (lcaDepth < last
+                && record.isActive(entryPath[lcaDepth].getOrdinal())
+                && !record.isActive(entryPath[lcaDepth + 1].getOrdinal())) {
+            naa = lcaDepth;
+        } else {
+            naa = entry.getNearestActiveDepth(record);
+        }
+        State naaState = entryPath[naa];
+
+        if (naa == lcaDepth && exitChain != null && exit.isActive(record)) {
+            exit.deactivateSelf(record);
+            for (int i = 0; i < exitChain.length; i++) {
+                exitChain[i].exitSelf(record);
+            }
+        } else {
+            naaState.naaDeactivateAsNeeded(record);
+        }
+
+        //transition actions
+        entry.doActions(record, actions);
+
+        naaState.naaActivatePath(record, entryPath[naa + 1]);
+        for (int i = naa + 1; i < last; i++) {
+            entryPath[i].activateOnPath(record, entryPath[i + 1]);
+        }
+        entry.activateOnPath(record, null);
+    }
+
+    /**
+     * Depth of the least common ancestor of the exit and entry states.
+     *
+     * @return a depth
+     */
+    int getLcaDepth() {
+        return lcaDepth;
+    }
+
+    /**
+     * Whether the exit side of this plan was compiled to a chain.
+     *
+     * @return true if the states between the exit state and the LCA are
+     *         exited without looking up active children
+     */
+    boolean hasExitChain() {
+        return exitChain != null;
+    }
+}
@@ -1,13 +1,19 @@
 
 package com.commercehub.core.state;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Mapping of {@linkplain Trigger triggers and their parameters} to {@linkplain
@@ -30,6 +36,12 @@ import java.util.Set;
  * any transition mapped to the runtime trigger class, regardless of additional
  * parameterization in the map.
  *
+ * <p>A mapping parameter that is a {@link Set} maps the transition under each
+ * of its members: a runtime parameter matches the mapping if the set contains
+ * it. Each concrete trigger class is resolved once into an index from
+ * parameter value to transitions, so a lookup costs the same however many
+ * values a mapping accepts.</p>
+ *
  * <p>
  * <p>This mapping maintains transitions in the order in which they were
  * added.</p>
@@ -50,10 +62,18 @@ public class TriggerTransitionMap {
     private static final int EXACT_MATCH_SCORE = 2;
 
     /**
-     * Used to getTransitions TriggerTransitionKey : LinkedHashSet<Transition>
+     * Used to getTransitions TriggerTransitionKey : LinkedHashSet<Transition>.
+     * Keys are kept in the order in which they were first mapped.
      */
     private Map<TriggerTransitionKey, Set<Transition>> keyTransitions;
 
+    /**
+     * Dispatch index used by getTransitions, built lazily for each concrete
+     * trigger class and discarded whenever a new mapping is added.
+     * Class : TriggerDispatch
+     */
+    private Map<Class, TriggerDispatch> dispatchIndex;
+
     /**
      * Used to getTransitions Transition : LinkedHashSet<TriggerTransitionKey>
      */
@@ -63,13 +83,19 @@ public class TriggerTransitionMap {
     private Map<State, Set> exitTransitions;
 
     /**
-     * Used to getConditions TriggerTransitionConditionKey :
-     * LinkedHashSet<Condition>
+     * Used to getConditions Transition : ConditionTable, a per-transition
+     * index of TriggerTransitionConditionKey : Condition
      */
-    private Map<TriggerTransitionConditionKey, Condition> transitionConditions;
+    private Map<Transition, ConditionTable> transitionConditions;
 
     /** Used to getEntryStates Transition : Set <State> */
     private Map<Transition, Set> transitionEntryStates;
+
+    /** Every mapping, in the order it was added */
+    private List<Mapping> mappings;
+
+    /** Whether this map belongs to a compiled StateChart */
+    private volatile boolean frozen;
 //    /** Used to record the results of viability calculations, which can be
 //     * expensive
 //     * TriggerTransitionKey : Set<State> : Boolean
@@ -80,11 +106,14 @@ public class TriggerTransitionMap {
      * Initializes a new TriggerTransitionMap.
      */
     public TriggerTransitionMap() {
-        keyTransitions = new HashMap<TriggerTransitionKey, Set<Transition>>();
+        keyTransitions =
+            new LinkedHashMap<TriggerTransitionKey, Set<Transition>>();
+        dispatchIndex = new ConcurrentHashMap<Class, TriggerDispatch>();
         transitionKeys = new HashMap<Transition, Set<TriggerParamPair>>();
         exitTransitions = new HashMap<State, Set>();
-        transitionConditions = new HashMap<TriggerTransitionConditionKey, Condition>();
+        transitionConditions = new HashMap<Transition, ConditionTable>();
         transitionEntryStates = new HashMap<Transition, Set>();
+        mappings = new ArrayList<Mapping>();
         //keyStateViability = new HashMap();
     }
 
@@ -99,6 +128,23 @@ public class TriggerTransitionMap {
      */
     public void addTriggerTransition(Class triggerClass, Object param,
                                      Transition transition) {
+        map(triggerClass, param, transition);
+        mappings.add(new Mapping(triggerClass, param, transition, null));
+    }
+
+    /**
+     * Maps a transition without recording it in the mapping log.
+     *
+     * @param triggerClass class of a trigger implementation
+     * @param param parameter object, may be <code>null</code>
+     * @param transition transition to store under the combined key
+     */
+    private void map(Class triggerClass, Object param,
+                     Transition transition) {
+        if (frozen) {
+            throw new IllegalStateException("This TriggerTransitionMap "
+                + "belongs to a StateChart and may not be modified.");
+        }
         setupTriggerTransitionMap(triggerClass, param, transition);
 
         setupTriggerSet(triggerClass, param, transition);
@@ -155,6 +201,7 @@ public class TriggerTransitionMap {
             keyTransitions.put(key, transitionSet);
         }
         transitionSet.add(transition);
+        dispatchIndex.clear();
 	}
 
     /**
@@ -177,17 +224,64 @@ public class TriggerTransitionMap {
     public void addTriggerTransition(Class triggerClass, Object param,
                                      Transition transition,
                                      Condition condition) {
-        addTriggerTransition(triggerClass, param, transition);
+        map(triggerClass, param, transition);
+        mappings.add(new Mapping(triggerClass, param, transition, condition));
 
         TriggerTransitionConditionKey ttcKey =
             new TriggerTransitionConditionKey(triggerClass, transition, param);
 
-        transitionConditions.put(ttcKey, condition);
+        ConditionTable table = transitionConditions.get(transition);
+        if (table == null) {
+            table = new ConditionTable();
+            transitionConditions.put(transition, table);
+        }
+        table.put(ttcKey, condition);
+    }
+
+    /**
+     * Resolves the condition lookup table of every conditionally mapped
+     * transition for the trigger classes it was mapped with. Called once
+     * mapping is complete (see StateMachineHandler) so that condition lookups
+     * on a wired machine are constant time; subclasses of the mapped trigger
+     * classes are resolved on first use.
+     */
+    public void indexConditions() {
+        for (ConditionTable table: transitionConditions.values()) {
+            for (TriggerTransitionConditionKey key: table.conditions.keySet()) {
+                table.getDispatch(key.triggerCls);
+            }
+        }
+    }
+
+    /**
+     * Indexes conditions and freezes this map and all of its transitions.
+     * Called when a StateChart is built; any later attempt to add a mapping
+     * throws an IllegalStateException.
+     */
+    void freeze() {
+        if (!frozen) {
+            indexConditions();
+            for (Transition transition: transitionKeys.keySet()) {
+                transition.freeze();
+            }
+            frozen = true;
+        }
+    }
+
+    /**
+     * Every mapping added to this map, in the order it was added. Replaying
+     * them into a new map builds an identical one.
+     *
+     * @return an unmodifiable List of Mappings
+     */
+    public List<Mapping> getMappings() {
+        return Collections.unmodifiableList(mappings);
     }
 
     /**
      * Builds and returns a modifiable set containing the parameters for a given
-     * trigger class. This operation will not return <code>null</code>, although
+     * trigger class. The members of a set-valued mapping parameter are listed
+     * individually. This operation will not return <code>null</code>, although
      * it may return an empty set.</p>
      *
      * @param triggerClass a trigger, possibly mapped to some transitions
@@ -195,48 +289,61 @@ public class TriggerTransitionMap {
      * @return parameters
      */
     public Set<Object> getParameters(Class triggerClass) {
-        Set<Object> allParameters = new LinkedHashSet<Object>();
-
-        //add transitions to the set
-        Iterator<TriggerTransitionKey> iter = keyTransitions.keySet().iterator();
-        while (iter.hasNext()) {
-            TriggerTransitionKey key = iter.next();
-            if (key.triggerCls.isAssignableFrom(triggerClass)) {
-                allParameters.add(key.parm);
-            }
-        }
-
-        return allParameters;
+        return new LinkedHashSet<Object>(getDispatch(triggerClass).parameters);
     }
 
 
     /**
-     * Get a modifiable set containing the parameters mapped to a given trigger
-     * class.
+     * Get an unmodifiable set containing the transitions mapped to a given
+     * trigger class and parameter.
      *
      * <p>An iterator over the returned set will produce the transitions in the
      * order in which they were added to this mapping. This operation will not
      * return <code>null</code>, although it may return an empty set.</p>
      *
+     * <p>Results are resolved once per concrete trigger class and parameter
+     * and shared between callers, so the returned set must not be
+     * modified.</p>
+     *
      * @param triggerClass a trigger, possibly mapped to some transitions
      * @param param optional parameter which may further condition the mapping
      *
      * @return transitions to be fired
      */
-    public Set getTransitions(Class triggerClass, Object param) {
-        Set allTransitions = new LinkedHashSet();
-
-        //add transitions to the set
-        Iterator<TriggerTransitionKey> iter = keyTransitions.keySet().iterator();
-        while (iter.hasNext()) {
-            TriggerTransitionKey key = iter.next();
-            int score = key.score(triggerClass, param);
-            if (score > NO_MATCH_SCORE) {
-                allTransitions.addAll(keyTransitions.get(key));
-            }
-        }
+    public Set<Transition> getTransitions(Class triggerClass, Object param) {
+        return getDispatch(triggerClass).getTransitions(param);
+    }
+
+    /**
+     * Get the transitions mapped to a given trigger class and parameter as a
+     * shared array, in the same order as {@link #getTransitions(Class,
+     * Object)}. Used on the fire path, where iterating a Set would allocate.
+     *
+     * @param triggerClass a trigger class
+     * @param param parameter object, may be <code>null</code>
+     *
+     * @return an array of Transitions that must not be modified
+     */
+    Transition[] getTransitionArray(Class triggerClass, Object param) {
+        return getDispatch(triggerClass).getTransitionArray(param);
+    }
 
-        return allTransitions;
+    /**
+     * Returns the dispatch index entry for a concrete trigger class, building
+     * it from the mapped keys if this class hasn't been seen since the last
+     * mapping was added.
+     *
+     * @param triggerClass a trigger class
+     *
+     * @return a TriggerDispatch, never null
+     */
+    private TriggerDispatch getDispatch(Class triggerClass) {
+        TriggerDispatch dispatch = dispatchIndex.get(triggerClass);
+        if (dispatch == null) {
+            dispatch = new TriggerDispatch(triggerClass);
+            dispatchIndex.put(triggerClass, dispatch);
+        }
+        return dispatch;
     }
 
     /**
@@ -282,19 +389,11 @@ public class TriggerTransitionMap {
      */
     public Condition getCondition(Class triggerClass, Transition trans,
                                   Object param) {
-        Condition condition = null;
-
-        Iterator<TriggerTransitionConditionKey> iterator = transitionConditions.keySet().iterator();
-        while (iterator.hasNext() && condition == null) {
-            TriggerTransitionConditionKey ttcKey =
-                iterator.next();
-            int score = ttcKey.score(triggerClass, trans, param);
-            if (score > NO_MATCH_SCORE) {
-                condition = transitionConditions.get(ttcKey);
-            }
+        ConditionTable table = transitionConditions.get(trans);
+        if (table == null) {
+            return null;
         }
-
-        return condition;
+        return table.getDispatch(triggerClass).getCondition(param);
     }
 
     /**
@@ -329,6 +428,43 @@ public class TriggerTransitionMap {
         transitions.add(walkState);
     }
 
+    /**
+     * Walks every transition that can fire in a machine started at
+     * <code>rootState</code>, whatever triggers are pulled, the same way
+     * {@link #isParameterViable(Class, Object, Set)} walks the transitions of
+     * one trigger class: from each state that can be active, through the
+     * transitions exiting it, to the states their firing activates. Conditions
+     * are assumed to pass.
+     *
+     * @param rootState the root state of the machine
+     * @param reachableTransitions receives every transition that can fire
+     *
+     * @return every state that can be active, including the root
+     */
+    Set<State> getReachableStates(State rootState,
+                                  Set<Transition> reachableTransitions) {
+        Set<State> reached = new LinkedHashSet<State>();
+        recordActivatedChildStates(rootState, reached);
+        LinkedList<State> unwalked = new LinkedList<State>(reached);
+        while (!unwalked.isEmpty()) {
+            Set exiting = getTransitionsExitingState(unwalked.removeFirst());
+            for (Iterator it = exiting.iterator(); it.hasNext();) {
+                Transition t = (Transition) it.next();
+                if (!reachableTransitions.add(t)) {
+                    continue;
+                }
+                Set entered = transitionEntryStates.get(t);
+                for (Iterator states = entered.iterator(); states.hasNext();) {
+                    State state = (State) states.next();
+                    if (reached.add(state)) {
+                        unwalked.add(state);
+                    }
+                }
+            }
+        }
+        return reached;
+    }
+
     /**
      * Returns a set of all the states guaranteed to be active as a result of a
      * particular transition.
@@ -431,6 +567,388 @@ public class TriggerTransitionMap {
         return anyViable;
     }
 
+    /**
+     * Precomputed transition lookup for a single concrete trigger class. Every
+     * mapped key whose trigger class is assignable from the concrete class is
+     * resolved once into immutable, insertion-ordered transition sets: one
+     * bucket per exact parameter (with wildcard mappings merged in), one for
+     * parameters that only match wildcard mappings, and one for the runtime
+     * wildcard parameter.
+     */
+    private class TriggerDispatch {
+        /** Parameter : unmodifiable Set<Transition> */
+        private Map<Object, Set<Transition>> exact;
+        private Set<Transition> wildcardOnly;
+        private Set<Transition> all;
+        private Set<Object> parameters;
+
+        /** The same buckets as arrays, for iteration without allocation */
+        private Map<Object, Transition[]> exactArrays;
+        private Transition[] wildcardOnlyArray;
+        private Transition[] allArray;
+
+        /**
+         * Initializes a new TriggerDispatch object by scanning every mapped
+         * key once.
+         *
+         * @param triggerClass a concrete trigger class
+         */
+        TriggerDispatch(Class triggerClass) {
+            List<TriggerTransitionKey> matching =
+                new ArrayList<TriggerTransitionKey>();
+            parameters = new LinkedHashSet<Object>();
+            for (TriggerTransitionKey key: keyTransitions.keySet()) {
+                if (key.triggerCls.isAssignableFrom(triggerClass)) {
+                    matching.add(key);
+                    parameters.addAll(valuesOf(key.parm));
+                }
+            }
+
+            //inverted index, value : positions in matching of the keys
+            //mapping it, ascending
+            Map<Object, List<Integer>> postings =
+                new LinkedHashMap<Object, List<Integer>>();
+            List<Integer> wildcardPostings = new ArrayList<Integer>();
+            Set<Transition> wildcards = new LinkedHashSet<Transition>();
+            for (int i = 0; i < matching.size(); i++) {
+                TriggerTransitionKey key = matching.get(i);
+                if (key.wildcard) {
+                    wildcardPostings.add(i);
+                    wildcards.addAll(keyTransitions.get(key));
+                    continue;
+                }
+                for (Object value: exactKeysOf(key.parm)) {
+                    List<Integer> posting = postings.get(value);
+                    if (posting == null) {
+                        posting = new ArrayList<Integer>();
+                        postings.put(value, posting);
+                    }
+                    posting.add(i);
+                }
+            }
+
+            exact = new HashMap<Object, Set<Transition>>();
+            for (Map.Entry<Object, List<Integer>> entry: postings.entrySet()) {
+                exact.put(entry.getKey(),
+                    merge(matching, entry.getValue(), wildcardPostings));
+            }
+            wildcardOnly = freeze(wildcards);
+            all = bucketFor(matching, triggerClass, WILDCARD_MATCH);
+
+            exactArrays = new HashMap<Object, Transition[]>();
+            for (Map.Entry<Object, Set<Transition>> entry: exact.entrySet()) {
+                exactArrays.put(entry.getKey(), toArray(entry.getValue()));
+            }
+            wildcardOnlyArray = toArray(wildcardOnly);
+            allArray = toArray(all);
+        }
+
+        /**
+         * Copies a bucket into an array.
+         *
+         * @param transitions a Set of Transitions
+         *
+         * @return an array of Transitions, in iteration order
+         */
+        private Transition[] toArray(Set<Transition> transitions) {
+            return transitions.toArray(new Transition[transitions.size()]);
+        }
+
+        /**
+         * Looks up the transitions for a runtime parameter as a shared array.
+         *
+         * @param param a runtime trigger parameter, may be null or wildcard
+         *
+         * @return an array of Transitions that must not be modified
+         */
+        Transition[] getTransitionArray(Object param) {
+            if (WILDCARD_MATCH.equals(param)) {
+                return allArray;
+            }
+            Transition[] bucket = exactArrays.get(param);
+            if (bucket == null) {
+                bucket = wildcardOnlyArray;
+            }
+            return bucket;
+        }
+
+        /**
+         * Builds the ordered union of the transitions under two posting lists
+         * of keys, merged into mapping order.
+         *
+         * @param matching keys matching this dispatch's trigger class, in
+         *                 mapping order
+         * @param keys ascending positions in matching of the keys mapping one
+         *             value
+         * @param wildcards ascending positions in matching of the wildcard
+         *                  keys
+         *
+         * @return an unmodifiable Set of Transitions
+         */
+        private Set<Transition> merge(List<TriggerTransitionKey> matching,
+                                      List<Integer> keys,
+                                      List<Integer> wildcards) {
+            Set<Transition> bucket = new LinkedHashSet<Transition>();
+            int k = 0;
+            int w = 0;
+            while (k < keys.size() || w < wildcards.size()) {
+                int next;
+                if (w == wildcards.size() || (k < keys.size()
+                        && keys.get(k) < wildcards.get(w))) {
+                    next = keys.get(k++);
+                } else {
+                    next = wildcards.get(w++);
+                }
+                bucket.addAll(keyTransitions.get(matching.get(next)));
+            }
+            return freeze(bucket);
+        }
+
+        /**
+         * Builds the ordered union of the transitions under every key that
+         * scores a match against a trigger class and parameter.
+         *
+         * @param matching keys matching this dispatch's trigger class, in
+         *                 mapping order
+         * @param triggerClass the concrete trigger class
+         * @param param a runtime parameter
+         *
+         * @return an unmodifiable Set of Transitions
+         */
+        private Set<Transition> bucketFor(List<TriggerTransitionKey> matching,
+                                          Class triggerClass, Object param) {
+            Set<Transition> bucket = new LinkedHashSet<Transition>();
+            for (TriggerTransitionKey key: matching) {
+                if (key.score(triggerClass, param) > NO_MATCH_SCORE) {
+                    bucket.addAll(keyTransitions.get(key));
+                }
+            }
+            return freeze(bucket);
+        }
+
+        /**
+         * Looks up the transitions for a runtime parameter.
+         *
+         * @param param a runtime trigger parameter, may be null or wildcard
+         *
+         * @return an unmodifiable Set of Transitions
+         */
+        Set<Transition> getTransitions(Object param) {
+            if (WILDCARD_MATCH.equals(param)) {
+                return all;
+            }
+            Set<Transition> bucket = exact.get(param);
+            if (bucket == null) {
+                bucket = wildcardOnly;
+            }
+            return bucket;
+        }
+
+        /**
+         * Wraps a set for sharing, substituting the empty set where possible.
+         *
+         * @param transitions a Set of Transitions
+         *
+         * @return an unmodifiable Set of Transitions
+         */
+        private Set<Transition> freeze(Set<Transition> transitions) {
+            if (transitions.isEmpty()) {
+                return Collections.emptySet();
+            }
+            return Collections.unmodifiableSet(transitions);
+        }
+    }
+
+    /**
+     * The conditions mapped to a single transition, indexed by trigger class
+     * and then by exact or wildcard parameter.
+     */
+    private class ConditionTable {
+        /** TriggerTransitionConditionKey : Condition, in mapping order */
+        private Map<TriggerTransitionConditionKey, Condition> conditions =
+            new LinkedHashMap<TriggerTransitionConditionKey, Condition>();
+
+        /** Class : ConditionDispatch */
+        private Map<Class, ConditionDispatch> byClass =
+            new ConcurrentHashMap<Class, ConditionDispatch>();
+
+        /**
+         * Maps a condition, replacing any condition previously mapped under
+         * an equal key.
+         *
+         * @param key a TriggerTransitionConditionKey
+         * @param condition a Condition
+         */
+        void put(TriggerTransitionConditionKey key, Condition condition) {
+            conditions.put(key, condition);
+            byClass.clear();
+        }
+
+        /**
+         * Returns the parameter lookup for a concrete trigger class.
+         *
+         * @param triggerClass a trigger class
+         *
+         * @return a ConditionDispatch, never null
+         */
+        ConditionDispatch getDispatch(Class triggerClass) {
+            ConditionDispatch dispatch = byClass.get(triggerClass);
+            if (dispatch == null) {
+                dispatch = new ConditionDispatch(this, triggerClass);
+                byClass.put(triggerClass, dispatch);
+            }
+            return dispatch;
+        }
+    }
+
+    /**
+     * The conditions of one transition that apply to a concrete trigger
+     * class. An exact parameter match is preferred over a wildcard mapping.
+     */
+    private class ConditionDispatch {
+        /** Parameter : Condition */
+        private Map<Object, Condition> exact =
+            new HashMap<Object, Condition>();
+        private Condition wildcard;
+        private Condition any;
+
+        /**
+         * Initializes a new ConditionDispatch object.
+         *
+         * @param table the transition's ConditionTable
+         * @param triggerClass a concrete trigger class
+         */
+        ConditionDispatch(ConditionTable table, Class triggerClass) {
+            for (Map.Entry<TriggerTransitionConditionKey, Condition> entry:
+                    table.conditions.entrySet()) {
+                TriggerTransitionConditionKey key = entry.getKey();
+                if (!key.triggerCls.isAssignableFrom(triggerClass)) {
+                    continue;
+                }
+                if (key.wildcard) {
+                    if (wildcard == null) {
+                        wildcard = entry.getValue();
+                    }
+                } else {
+                    for (Object value: exactKeysOf(key.parm)) {
+                        if (!exact.containsKey(value)) {
+                            exact.put(value, entry.getValue());
+                        }
+                    }
+                }
+                if (any == null && key.parm != null) {
+                    any = entry.getValue();
+                }
+            }
+        }
+
+        /**
+         * Looks up the condition for a runtime parameter.
+         *
+         * @param param a runtime trigger parameter, may be null or wildcard
+         *
+         * @return a Condition, or null
+         */
+        Condition getCondition(Object param) {
+            if (WILDCARD_MATCH.equals(param)) {
+                return any;
+            }
+            Condition condition = exact.get(param);
+            if (condition == null) {
+                condition = wildcard;
+            }
+            return condition;
+        }
+    }
+
+    /**
+     * One call to addTriggerTransition: a trigger class and parameter, the
+     * transition mapped to them and its condition, if any.
+     */
+    public static final class Mapping {
+        private final Class triggerClass;
+        private final Object param;
+        private final Transition transition;
+        private final Condition condition;
+
+        /**
+         * Initializes a new Mapping object.
+         *
+         * @param triggerClass class of a trigger implementation
+         * @param param parameter object, may be <code>null</code>
+         * @param transition the mapped transition
+         * @param condition a condition, may be <code>null</code>
+         */
+        Mapping(Class triggerClass, Object param, Transition transition,
+                Condition condition) {
+            this.triggerClass = triggerClass;
+            this.param = param;
+            this.transition = transition;
+            this.condition = condition;
+        }
+
+        /**
+         * @return the class of a trigger implementation
+         */
+        public Class getTriggerClass() {
+            return triggerClass;
+        }
+
+        /**
+         * @return the mapping parameter, may be <code>null</code>
+         */
+        public Object getParam() {
+            return param;
+        }
+
+        /**
+         * @return the mapped transition
+         */
+        public Transition getTransition() {
+            return transition;
+        }
+
+        /**
+         * @return the mapping's condition, or <code>null</code>
+         */
+        public Condition getCondition() {
+            return condition;
+        }
+    }
+
+    /**
+     * The runtime parameters a mapping parameter matches exactly: the members
+     * of a Set, or else the parameter itself.
+     *
+     * @param param a mapping parameter, may be <code>null</code>
+     *
+     * @return a Collection of parameter values
+     */
+    private static Collection<?> valuesOf(Object param) {
+        if (param instanceof Set) {
+            return (Set<?>) param;
+        }
+        return Collections.singleton(param);
+    }
+
+    /**
+     * The runtime parameters a mapping parameter is looked up under: those it
+     * {@linkplain #valuesOf(Object) matches}, and a Set itself, which still
+     * matches when pulled whole.
+     *
+     * @param param a mapping parameter, may be <code>null</code>
+     *
+     * @return a Collection of parameter values
+     */
+    private static Collection<?> exactKeysOf(Object param) {
+        if (param instanceof Set) {
+            List<Object> keys = new ArrayList<Object>((Set<?>) param);
+            keys.add(param);
+            return keys;
+        }
+        return Collections.singleton(param);
+    }
+
     /**
      * Key for internal trigger-transition map.
      *
@@ -457,7 +975,8 @@ public class TriggerTransitionMap {
 
         /**
          * Scores a candidate key as an exact match, a wildcard match, or no
-         * match at all.
+         * match at all. A key over a Set of parameters matches the Set and
+         * each of its members exactly.
          *
          * @param triggerClass class of a trigger implementation
          * @param param optional additional key parameter
@@ -471,6 +990,12 @@ public class TriggerTransitionMap {
                     if (param == null) {
                         score = EXACT_MATCH_SCORE;
                     }
+                } else if (parm instanceof Set) {
+                    if (parm.equals(param) || ((Set) parm).contains(param)) {
+                        score = EXACT_MATCH_SCORE;
+                    } else if (WILDCARD_MATCH.equals(param)) {
+                        score = WILDCARD_MATCH_SCORE;
+                    }
                 } else if (parm.equals(param)) {
                     score = EXACT_MATCH_SCORE;
                 } else if (wildcard) {
@@ -547,36 +1072,6 @@ public class TriggerTransitionMap {
             wildcard = WILDCARD_MATCH.equals(param);
         }
 
-        /**
-         * Scores a candidate key as an exact match, a wildcard match, or no
-         * match at all.
-         *
-         * @param triggerClass class of a trigger implementation
-         * @param trans a Transition object
-         * @param param optional additional key parameter
-         *
-         * @return degree of match
-         */
-        public int score(Class triggerClass, Transition trans, Object param) {
-            int score = NO_MATCH_SCORE;
-            if (triggerCls.isAssignableFrom(triggerClass)) {
-                if (trans == this.transition) {
-                    if (parm == null) {
-                        if (param == null) {
-                            score = EXACT_MATCH_SCORE;
-                        }
-                    } else if (parm.equals(param)) {
-                        score = EXACT_MATCH_SCORE;
-                    } else if (wildcard) {
-                        score = WILDCARD_MATCH_SCORE;
-                    } else if (WILDCARD_MATCH.equals(param)) {
-                        score = WILDCARD_MATCH_SCORE;
-                    }
-                }
-            }
-            return score;
-        }
-
         /**
          * Hash code, in accordance with definition of equality.
          *
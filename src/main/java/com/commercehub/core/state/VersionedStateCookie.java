@@ -0,0 +1,22 @@
+package com.commercehub.core.state;
+
+/**
+ * A StateCookie that remembers which chart it was last filled from, by
+ * {@link StateChart#getFingerprint() fingerprint}, so that {@link
+ * ChartVersions} can tell which revision of a chart its path names belong to.
+ * StateMachines stamp these cookies whenever they fill them.
+ * @author Matthew Mark Miller
+ */
+public interface VersionedStateCookie extends StateCookie {
+    /**
+     * The fingerprint of the chart this cookie was last filled from.
+     * @return a fingerprint, or 0 if the cookie has never been stamped
+     */
+    long getChartFingerprint();
+
+    /**
+     * Records the chart this cookie's states belong to.
+     * @param chartFingerprint a chart fingerprint
+     */
+    void setChartFingerprint(long chartFingerprint);
+}
@@ -0,0 +1,130 @@
+package com.commercehub.core.state.annotations;
+
+import com.commercehub.core.state.ClientImplProvider;
+import com.commercehub.core.state.StateAction;
+import com.commercehub.core.state.Trigger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link ClientImplProvider} that finds {@link RefName} classes in the
+ * indexes written by {@link RefNameProcessor} when they were compiled, rather
+ * than by scanning the class path. Every index on the class path is read once,
+ * when the provider is created, and classes are loaded the first time they
+ * are asked for.
+ *
+ * <p>Names the indexes don't hold, and every name if there are no indexes,
+ * fall back to an {@link AnnotationBasedClientImplProvider}, which is created
+ * the first time it's needed. Classes compiled without the processor are
+ * still found, but the first miss pays for a full class-path scan.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public class IndexedClientImplProvider implements ClientImplProvider {
+    private final ClassLoader classLoader;
+
+    /** RefName : class name */
+    private final Map<String, String> triggers = new HashMap<String, String>();
+    private final Map<String, String> actions = new HashMap<String, String>();
+
+    private AnnotationBasedClientImplProvider scan;
+
+    /**
+     * Initializes a new IndexedClientImplProvider from the indexes visible to
+     * the loader that loaded this class.
+     *
+     * @throws IOException if an index can't be read
+     */
+    public IndexedClientImplProvider() throws IOException {
+        this(IndexedClientImplProvider.class.getClassLoader());
+    }
+
+    /**
+     * Initializes a new IndexedClientImplProvider.
+     *
+     * @param classLoader finds the indexes and loads the classes they name
+     *
+     * @throws IOException if an index can't be read
+     */
+    public IndexedClientImplProvider(ClassLoader classLoader)
+        throws IOException {
+        this.classLoader = classLoader;
+        Enumeration<URL> indexes =
+            classLoader.getResources(RefNameProcessor.INDEX);
+        while (indexes.hasMoreElements()) {
+            read(indexes.nextElement());
+        }
+    }
+
+    private void read(URL index) throws IOException {
+        BufferedReader in = new BufferedReader(
+            new InputStreamReader(index.openStream(), "UTF-8"));
+        try {
+            for (String line = in.readLine(); line != null;
+                    line = in.readLine()) {
+                String[] fields = line.split("\t");
+                if (fields.length != 3) {
+                    continue;
+                }
+                if (RefNameProcessor.TRIGGER.equals(fields[0])) {
+                    triggers.put(fields[1], fields[2]);
+                } else if (RefNameProcessor.ACTION.equals(fields[0])) {
+                    actions.put(fields[1], fields[2]);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Whether any index was found. Without one, every lookup scans.
+     *
+     * @return true if at least one indexed class was found
+     */
+    public boolean isIndexed() {
+        return !triggers.isEmpty() || !actions.isEmpty();
+    }
+
+    @Override
+    public Class getTriggerClass(String name) {
+        Class c = load(triggers.get(name), Trigger.class);
+        return c != null ? c : getScan().getTriggerClass(name);
+    }
+
+    @Override
+    public Class getActionClass(String name) {
+        Class c = load(actions.get(name), StateAction.class);
+        return c != null ? c : getScan().getActionClass(name);
+    }
+
+    /**
+     * Loads an indexed class, checking that it still is what the index says.
+     *
+     * @return the class, or null if the index is stale
+     */
+    private Class load(String className, Class expected) {
+        if (className == null) {
+            return null;
+        }
+        try {
+            Class c = Class.forName(className, false, classLoader);
+            return expected.isAssignableFrom(c) ? c : null;
+        } catch (ClassNotFoundException cnfe) {
+            return null;
+        }
+    }
+
+    private synchronized AnnotationBasedClientImplProvider getScan() {
+        if (scan == null) {
+            scan = new AnnotationBasedClientImplProvider();
+        }
+        return scan;
+    }
+}
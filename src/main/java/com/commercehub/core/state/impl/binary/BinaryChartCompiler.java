@@ -0,0 +1,122 @@
+package com.commercehub.core.state.impl.binary;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xml.sax.SAXException;
+
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.impl.xml.ClientImplRegistry;
+import com.commercehub.core.state.impl.xml.XMLStateMachineFactory;
+
+/**
+ * Compiles state-machine documents ahead of time into charts that {@link
+ * BinaryChartLoader} loads without parsing or wiring. Run by the
+ * <code>compileCharts</code> build task, or from the command line:
+ *
+ * <pre>java com.commercehub.core.state.impl.binary.BinaryChartCompiler
+ *     -clientimpl clientimpl.xml -d outputDir statemachine.xml...</pre>
+ *
+ * <p>Each document <code>name.xml</code> is compiled to
+ * <code>outputDir/name.chart</code>. The trigger and action classes named in
+ * the client-impl must be on the class path.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public final class BinaryChartCompiler {
+    /** Extension of compiled chart files */
+    public static final String EXTENSION = ".chart";
+
+    private static final String USAGE = "Usage: BinaryChartCompiler "
+        + "-clientimpl <clientimpl.xml> -d <output directory> "
+        + "<statemachine.xml>...";
+
+    private BinaryChartCompiler() {
+    }
+
+    /**
+     * Compiles the documents named on the command line.
+     *
+     * @param args see the class description
+     *
+     * @throws Exception if a document can't be read, parsed or written
+     */
+    public static void main(String[] args) throws Exception {
+        File clientImpl = null;
+        File outputDir = null;
+        List<File> documents = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-clientimpl".equals(args[i]) && i + 1 < args.length) {
+                clientImpl = new File(args[++i]);
+            } else if ("-d".equals(args[i]) && i + 1 < args.length) {
+                outputDir = new File(args[++i]);
+            } else {
+                documents.add(new File(args[i]));
+            }
+        }
+        if (clientImpl == null || outputDir == null || documents.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Can't create " + outputDir);
+        }
+
+        ClientImplRegistry registry = readClientImpl(clientImpl);
+        for (File document: documents) {
+            String name = document.getName();
+            if (name.endsWith(".xml")) {
+                name = name.substring(0, name.length() - ".xml".length());
+            }
+            File chart = new File(outputDir, name + EXTENSION);
+            compile(document, registry, chart);
+            System.out.println("Compiled " + document + " to " + chart);
+        }
+    }
+
+    /**
+     * Parses and wires a state-machine document and writes its compiled
+     * form.
+     *
+     * @param document a state-machine document
+     * @param clientImpl the client-impl it's wired against
+     * @param chartFile the file to write
+     *
+     * @throws IOException if a file can't be read or written
+     * @throws SAXException if the document can't be parsed or wired
+     */
+    public static void compile(File document, ClientImplRegistry clientImpl,
+                               File chartFile)
+                        throws IOException, SAXException {
+        StateChart chart;
+        InputStream in = new FileInputStream(document);
+        try {
+            chart = new XMLStateMachineFactory().getStateChartFromInputStream(
+                in, clientImpl);
+        } finally {
+            in.close();
+        }
+        OutputStream out = new FileOutputStream(chartFile);
+        try {
+            BinaryChartWriter.write(chart, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static ClientImplRegistry readClientImpl(File clientImpl)
+                                              throws IOException, SAXException {
+        InputStream in = new FileInputStream(clientImpl);
+        try {
+            return new XMLStateMachineFactory().getClientImplRegistry(in);
+        } finally {
+            in.close();
+        }
+    }
+}
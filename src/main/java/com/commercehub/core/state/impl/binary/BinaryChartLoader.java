@@ -0,0 +1,392 @@
+package com.commercehub.core.state.impl.binary;
+
+import static com.commercehub.core.state.impl.binary.ChartFormat.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.commercehub.core.state.Condition;
+import com.commercehub.core.state.ConcurrentState;
+import com.commercehub.core.state.ExclusiveState;
+import com.commercehub.core.state.PropertyValuePair;
+import com.commercehub.core.state.State;
+import com.commercehub.core.state.StateAction;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateMachineConfigurationException;
+import com.commercehub.core.state.Transition;
+import com.commercehub.core.state.Trigger;
+import com.commercehub.core.state.TriggerTransitionMap;
+
+/**
+ * Loads charts compiled by {@link BinaryChartCompiler}. States, transitions
+ * and mappings are rebuilt directly from their tables, by ordinal, so loading
+ * does no XML parsing, expression parsing or path lookups; files are
+ * memory-mapped rather than read.
+ *
+ * <p>A loader instantiates each action class once and shares the instance
+ * between every chart it loads, as a client-impl registry does. Loaders are
+ * thread-safe.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public class BinaryChartLoader {
+    private final ClassLoader classLoader;
+
+    /** Class name : shared StateAction */
+    private final Map<String, StateAction> actions =
+        new HashMap<String, StateAction>();
+
+    /**
+     * Initializes a new BinaryChartLoader that loads trigger and action classes
+     * with the loader that loaded this class.
+     */
+    public BinaryChartLoader() {
+        this(BinaryChartLoader.class.getClassLoader());
+    }
+
+    /**
+     * Initializes a new BinaryChartLoader.
+     *
+     * @param classLoader loads the trigger and action classes named in charts
+     */
+    public BinaryChartLoader(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Memory-maps a compiled chart file and loads it.
+     *
+     * @param file a file written by {@link BinaryChartCompiler}
+     *
+     * @return a frozen StateChart
+     *
+     * @throws IOException if the file can't be read
+     * @throws StateMachineConfigurationException if the file isn't a compiled
+     *                                            chart, or names a class that
+     *                                            can't be loaded
+     */
+    public StateChart load(File file)
+                    throws IOException, StateMachineConfigurationException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            return load(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads a compiled chart from the remaining bytes of a buffer.
+     *
+     * @param buffer the compiled form of a chart
+     *
+     * @return a frozen StateChart
+     *
+     * @throws StateMachineConfigurationException if the buffer doesn't hold a
+     *                                            compiled chart, or names a
+     *                                            class that can't be loaded
+     */
+    public StateChart load(ByteBuffer buffer)
+                    throws StateMachineConfigurationException {
+        try {
+            return new Reader(buffer.duplicate()).read();
+        } catch (BufferUnderflowException ex) {
+            throw new StateMachineConfigurationException(
+                "Compiled chart is truncated.", ex);
+        } catch (RuntimeException ex) {
+            //an index or kind that doesn't fit the tables it refers to
+            throw new StateMachineConfigurationException(
+                "Compiled chart is corrupt.", ex);
+        }
+    }
+
+    /**
+     * Returns the shared instance of an action class, instantiating it on
+     * first use.
+     *
+     * @param className a StateAction class name
+     *
+     * @return a StateAction
+     *
+     * @throws StateMachineConfigurationException if the class can't be
+     *                                            instantiated
+     */
+    private synchronized StateAction getAction(String className)
+                                        throws StateMachineConfigurationException {
+        StateAction action = actions.get(className);
+        if (action == null) {
+            try {
+                action = (StateAction) Class.forName(className, true,
+                    classLoader).newInstance();
+            } catch (Exception ex) {
+                throw new StateMachineConfigurationException(
+                    "State Action " + className + " can't be instantiated.",
+                    ex);
+            }
+            actions.put(className, action);
+        }
+        return action;
+    }
+
+    /**
+     * Reads one chart. See {@link ChartFormat} for the layout.
+     */
+    private class Reader {
+        private final ByteBuffer in;
+        private String[] strings;
+        private Class[] triggerClasses;
+        private StateAction[] actionTable;
+        private State[] states;
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        StateChart read() throws StateMachineConfigurationException {
+            if (in.getInt() != MAGIC) {
+                throw new StateMachineConfigurationException(
+                    "Not a compiled chart.");
+            }
+            short version = in.getShort();
+            if (version != VERSION) {
+                throw new StateMachineConfigurationException(
+                    "Compiled chart version " + version + " isn't supported; "
+                    + "recompile it.");
+            }
+            long fingerprint = in.getLong();
+            strings = new String[in.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] utf8 = new byte[in.getInt()];
+                in.get(utf8);
+                strings[i] = new String(utf8, UTF_8);
+            }
+            String description = readString();
+
+            triggerClasses = new Class[in.getInt()];
+            for (int i = 0; i < triggerClasses.length; i++) {
+                String className = readString();
+                try {
+                    triggerClasses[i] = Class.forName(className, false,
+                        classLoader);
+                } catch (ClassNotFoundException ex) {
+                    throw new StateMachineConfigurationException(
+                        "Trigger " + className + " can't be loaded.", ex);
+                }
+                if (!Trigger.class.isAssignableFrom(triggerClasses[i])) {
+                    throw new StateMachineConfigurationException(
+                        className + " isn't a Trigger.");
+                }
+            }
+            actionTable = new StateAction[in.getInt()];
+            for (int i = 0; i < actionTable.length; i++) {
+                actionTable[i] = getAction(readString());
+            }
+
+            readStates();
+            Transition[] transitions = readTransitions();
+            TriggerTransitionMap map = new TriggerTransitionMap();
+            int mappingCount = in.getInt();
+            for (int i = 0; i < mappingCount; i++) {
+                Class triggerClass = triggerClasses[in.getInt()];
+                Object param = readValue();
+                Transition transition = transitions[in.getInt()];
+                Condition condition = readCondition();
+                if (condition == null) {
+                    map.addTriggerTransition(triggerClass, param, transition);
+                } else {
+                    map.addTriggerTransition(triggerClass, param, transition,
+                        condition);
+                }
+            }
+
+            Map<String, List<String>> properties =
+                new LinkedHashMap<String, List<String>>();
+            int propertyCount = in.getInt();
+            for (int i = 0; i < propertyCount; i++) {
+                String name = readString();
+                List<String> values = new LinkedList<String>();
+                int valueCount = in.getInt();
+                for (int j = 0; j < valueCount; j++) {
+                    values.add(readString());
+                }
+                properties.put(name, values);
+            }
+            List<PropertyValuePair> defaults =
+                new LinkedList<PropertyValuePair>();
+            int defaultCount = in.getInt();
+            for (int i = 0; i < defaultCount; i++) {
+                defaults.add(new PropertyValuePair(readString(), readValue()));
+            }
+
+            StateChart chart = new StateChart(states[0], description,
+                properties, defaults, map);
+            if (chart.getFingerprint() != fingerprint) {
+                throw new StateMachineConfigurationException(
+                    "Compiled chart " + chart.getName() + " doesn't match "
+                    + "the chart it was compiled from.");
+            }
+            return chart;
+        }
+
+        /**
+         * Builds the state tree. Parents always precede their children, and
+         * adding children in ordinal order reproduces the original ordinals.
+         */
+        private void readStates() throws StateMachineConfigurationException {
+            states = new State[in.getInt()];
+            int[] defaultChildren = new int[states.length];
+            for (int i = 0; i < states.length; i++) {
+                byte kind = in.get();
+                byte history = in.get();
+                String name = readString();
+                boolean deep = (history & DEEP_HISTORY) != 0;
+                if (kind == EXCLUSIVE) {
+                    states[i] = new ExclusiveState(name,
+                        (history & HISTORY) != 0, deep);
+                } else if (kind == CONCURRENT) {
+                    states[i] = new ConcurrentState(name, deep);
+                } else {
+                    throw new StateMachineConfigurationException(
+                        "Unknown state kind " + kind + " for " + name + ".");
+                }
+                int parent = in.getInt();
+                if (parent != NONE) {
+                    states[parent].addChild(states[i]);
+                }
+                defaultChildren[i] = in.getInt();
+                int entryCount = in.getInt();
+                for (int j = 0; j < entryCount; j++) {
+                    states[i].addEntryAction(actionTable[in.getInt()],
+                        readValue());
+                }
+                int exitCount = in.getInt();
+                for (int j = 0; j < exitCount; j++) {
+                    states[i].addExitAction(actionTable[in.getInt()],
+                        readValue());
+                }
+            }
+            for (int i = 0; i < states.length; i++) {
+                if (defaultChildren[i] != NONE) {
+                    ((ExclusiveState) states[i]).setDefaultChild(
+                        states[defaultChildren[i]]);
+                }
+            }
+        }
+
+        private Transition[] readTransitions()
+                                 throws StateMachineConfigurationException {
+            Transition[] transitions = new Transition[in.getInt()];
+            for (int i = 0; i < transitions.length; i++) {
+                String name = readString();
+                State exit = states[in.getInt()];
+                State entry = states[in.getInt()];
+                transitions[i] = new Transition(exit, entry, name);
+                int actionCount = in.getInt();
+                for (int j = 0; j < actionCount; j++) {
+                    transitions[i].addAction(actionTable[in.getInt()],
+                        readValue());
+                }
+                int rankCount = in.getInt();
+                for (int j = 0; j < rankCount; j++) {
+                    transitions[i].addRankedState(states[in.getInt()]);
+                }
+            }
+            return transitions;
+        }
+
+        private Object readValue() throws StateMachineConfigurationException {
+            byte tag = in.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case STRING:
+                    return readString();
+                case STRING_SET:
+                    return readStringSet();
+                case PROPERTY:
+                    return new PropertyValuePair(readString(), readValue());
+                default:
+                    throw new StateMachineConfigurationException(
+                        "Unknown value tag " + tag + ".");
+            }
+        }
+
+        private Condition readCondition()
+                                 throws StateMachineConfigurationException {
+            byte kind = in.get();
+            if (kind == NONE) {
+                return null;
+            }
+            Condition condition = new Condition();
+            readClauses(condition);
+            return condition;
+        }
+
+        /**
+         * Reads the clauses of a condition into it, through the same builder
+         * methods the expression parser uses.
+         *
+         * @param parent the Condition to add clauses to
+         */
+        private void readClauses(Condition parent)
+                          throws StateMachineConfigurationException {
+            int clauseCount = in.getInt();
+            for (int i = 0; i < clauseCount; i++) {
+                byte kind = in.get();
+                switch (kind) {
+                    case Condition.AND:
+                        readClauses(parent.addAndClause());
+                        break;
+                    case Condition.OR:
+                        readClauses(parent.addOrClause());
+                        break;
+                    case Condition.NOT:
+                        readClauses(parent.addNotClause());
+                        break;
+                    case Condition.ANY:
+                        parent.addAnyClause(readStringSet());
+                        break;
+                    case Condition.ALL:
+                        parent.addAllClause(readStringSet());
+                        break;
+                    case Condition.SOME:
+                        parent.addSomeClause(readStringSet());
+                        break;
+                    case Condition.NONE:
+                        parent.addNoneClause(readStringSet());
+                        break;
+                    default:
+                        throw new StateMachineConfigurationException(
+                            "Unknown condition kind " + kind + ".");
+                }
+            }
+        }
+
+        private Set<String> readStringSet() {
+            int size = in.getInt();
+            Set<String> set = new HashSet<String>();
+            for (int i = 0; i < size; i++) {
+                set.add(readString());
+            }
+            return set;
+        }
+
+        private String readString() {
+            int index = in.getInt();
+            return index == NONE ? null : strings[index];
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.commercehub.core.state.impl.binary;
+
+import static com.commercehub.core.state.impl.binary.ChartFormat.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.commercehub.core.state.Condition;
+import com.commercehub.core.state.ConcurrentState;
+import com.commercehub.core.state.ExclusiveState;
+import com.commercehub.core.state.ParametricAction;
+import com.commercehub.core.state.PropertyValuePair;
+import com.commercehub.core.state.State;
+import com.commercehub.core.state.StateAction;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.Transition;
+import com.commercehub.core.state.TriggerTransitionMap;
+
+/**
+ * Writes a wired StateChart in the compact binary form read by {@link
+ * BinaryChartLoader}: its state table in ordinal order, its transitions,
+ * ranks and actions, its trigger mappings in mapping order with their parsed
+ * conditions, and its property maps. Triggers and actions are recorded by
+ * class name, so the file stands alone; no client-impl document is needed to
+ * load it.
+ *
+ * <p>Only charts built from state-machine documents can be written: action
+ * and trigger parameters must be null, Strings, Sets of Strings or
+ * PropertyValuePairs of those, and every action must have a public no-arg
+ * constructor.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public final class BinaryChartWriter {
+    /** String : index in the string table */
+    private final Map<String, Integer> strings =
+        new LinkedHashMap<String, Integer>();
+
+    /** Trigger Class : index */
+    private final Map<Class, Integer> triggers =
+        new LinkedHashMap<Class, Integer>();
+
+    /** StateAction : index; each instance is loaded as one instance */
+    private final Map<StateAction, Integer> actions =
+        new IdentityHashMap<StateAction, Integer>();
+    private final List<StateAction> actionOrder = new ArrayList<StateAction>();
+
+    /** Transition : index */
+    private final Map<Transition, Integer> transitions =
+        new IdentityHashMap<Transition, Integer>();
+    private final List<Transition> transitionOrder =
+        new ArrayList<Transition>();
+
+    /**
+     * Writes a chart to a stream. The stream is not closed.
+     *
+     * @param chart a StateChart
+     * @param out a stream to write to
+     *
+     * @throws IOException if the stream can't be written
+     * @throws IllegalArgumentException if the chart holds a parameter or
+     *                                  action that can't be written, or any
+     *                                  activity or timeout
+     */
+    public static void write(StateChart chart, OutputStream out)
+                      throws IOException {
+        out.write(toByteArray(chart));
+    }
+
+    /**
+     * Writes a chart to a new byte array.
+     *
+     * @param chart a StateChart
+     *
+     * @return the chart's compiled form
+     *
+     * @throws IllegalArgumentException if the chart holds a parameter or
+     *                                  action that can't be written, or any
+     *                                  activity or timeout
+     */
+    public static byte[] toByteArray(StateChart chart) {
+        try {
+            return new BinaryChartWriter().compile(chart);
+        } catch (IOException ex) {
+            //in-memory streams don't throw
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private BinaryChartWriter() {
+    }
+
+    /**
+     * Writes the body first, collecting strings, classes and transitions, then
+     * prefixes it with the tables it refers to.
+     *
+     * @param chart a StateChart
+     *
+     * @return the chart's compiled form
+     *
+     * @throws IOException never
+     */
+    private byte[] compile(StateChart chart) throws IOException {
+        TriggerTransitionMap map = chart.getTriggerTransitionMap();
+        List<TriggerTransitionMap.Mapping> mappings = map.getMappings();
+        for (TriggerTransitionMap.Mapping mapping: mappings) {
+            Transition transition = mapping.getTransition();
+            if (!transitions.containsKey(transition)) {
+                transitions.put(transition, transitionOrder.size());
+                transitionOrder.add(transition);
+            }
+        }
+
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        int stateCount = chart.getStateCount();
+        body.writeInt(stateCount);
+        for (int i = 0; i < stateCount; i++) {
+            writeState(body, chart.getState(i));
+        }
+
+        body.writeInt(transitionOrder.size());
+        for (Transition transition: transitionOrder) {
+            writeString(body, transition.getName());
+            body.writeInt(transition.getExitState().getOrdinal());
+            body.writeInt(transition.getEntryState().getOrdinal());
+            writeActions(body, transition.getActions());
+            Collection ranked = transition.getRankedStates();
+            body.writeInt(ranked.size());
+            for (Object state: ranked) {
+                body.writeInt(((State) state).getOrdinal());
+            }
+        }
+
+        body.writeInt(mappings.size());
+        for (TriggerTransitionMap.Mapping mapping: mappings) {
+            body.writeInt(indexOf(mapping.getTriggerClass()));
+            writeValue(body, mapping.getParam());
+            body.writeInt(transitions.get(mapping.getTransition()));
+            writeCondition(body, mapping.getCondition());
+        }
+
+        Map<String, List<String>> properties =
+            chart.getPossiblePropertyValueMap();
+        body.writeInt(properties.size());
+        for (Map.Entry<String, List<String>> entry: properties.entrySet()) {
+            writeString(body, entry.getKey());
+            body.writeInt(entry.getValue().size());
+            for (String value: entry.getValue()) {
+                writeString(body, value);
+            }
+        }
+        List<PropertyValuePair> defaults = chart.getDefaultPropertyValues();
+        body.writeInt(defaults.size());
+        for (PropertyValuePair pvp: defaults) {
+            writeString(body, pvp.getProperty());
+            writeValue(body, pvp.getValue());
+        }
+        body.flush();
+
+        //the header refers to strings too, so index them before writing it
+        int description = indexOf(chart.getDescription());
+        List<Integer> triggerNames = new ArrayList<Integer>();
+        for (Class triggerClass: triggers.keySet()) {
+            triggerNames.add(indexOf(triggerClass.getName()));
+        }
+        List<Integer> actionNames = new ArrayList<Integer>();
+        for (StateAction action: actionOrder) {
+            actionNames.add(indexOf(action.getClass().getName()));
+        }
+
+        ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(
+            bodyBytes.size() + 16 * strings.size());
+        DataOutputStream out = new DataOutputStream(fileBytes);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(chart.getFingerprint());
+        out.writeInt(strings.size());
+        for (String string: strings.keySet()) {
+            byte[] utf8 = string.getBytes(UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+        out.writeInt(description);
+        writeIndexes(out, triggerNames);
+        writeIndexes(out, actionNames);
+        bodyBytes.writeTo(out);
+        out.flush();
+        return fileBytes.toByteArray();
+    }
+
+    private void writeState(DataOutputStream out, State state)
+                     throws IOException {
+        byte history = state.isDeepHistory() ? DEEP_HISTORY : 0;
+        int defaultChild = NONE;
+        if (state instanceof ExclusiveState) {
+            ExclusiveState exclusive = (ExclusiveState) state;
+            out.writeByte(EXCLUSIVE);
+            if (exclusive.isHistory()) {
+                history |= HISTORY;
+            }
+            if (exclusive.getDefaultChild() != null) {
+                defaultChild = exclusive.getDefaultChild().getOrdinal();
+            }
+        } else if (state instanceof ConcurrentState) {
+            out.writeByte(CONCURRENT);
+        } else {
+            throw new IllegalArgumentException("Can't write State "
+                + state.getPathName() + " of " + state.getClass());
+        }
+        if (!state.getActivities().isEmpty() || state.getTimeout() != null) {
+            //the format has no activities or timeouts; a chart without them
+            //would behave differently once loaded
+            throw new IllegalArgumentException("Can't write the activities "
+                + "or timeout of State " + state.getPathName());
+        }
+        out.writeByte(history);
+        writeString(out, state.getName());
+        State parent = state.getParent();
+        out.writeInt(parent == null ? NONE : parent.getOrdinal());
+        out.writeInt(defaultChild);
+        writeActions(out, state.getEntryActions());
+        writeActions(out, state.getExitActions());
+    }
+
+    private void writeActions(DataOutputStream out, List actionList)
+                       throws IOException {
+        out.writeInt(actionList.size());
+        for (Object element: actionList) {
+            ParametricAction action = (ParametricAction) element;
+            out.writeInt(indexOf(action.getStateAction()));
+            writeValue(out, action.getParam());
+        }
+    }
+
+    private void writeValue(DataOutputStream out, Object value)
+                     throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Set) {
+            Set set = (Set) value;
+            out.writeByte(STRING_SET);
+            out.writeInt(set.size());
+            for (Object element: set) {
+                writeString(out, (String) element);
+            }
+        } else if (value instanceof PropertyValuePair) {
+            PropertyValuePair pvp = (PropertyValuePair) value;
+            out.writeByte(PROPERTY);
+            writeString(out, pvp.getProperty());
+            writeValue(out, pvp.getValue());
+        } else {
+            throw new IllegalArgumentException("Can't write parameter "
+                + value + " of " + value.getClass());
+        }
+    }
+
+    private void writeCondition(DataOutputStream out, Condition condition)
+                         throws IOException {
+        if (condition == null) {
+            out.writeByte(NONE);
+            return;
+        }
+        out.writeByte(condition.getKind());
+        Set<String> checkStates = condition.getCheckStates();
+        if (checkStates != null) {
+            out.writeInt(checkStates.size());
+            for (String state: checkStates) {
+                writeString(out, state);
+            }
+        } else {
+            List<Condition> clauses = condition.getClauses();
+            out.writeInt(clauses.size());
+            for (Condition clause: clauses) {
+                writeCondition(out, clause);
+            }
+        }
+    }
+
+    private void writeString(DataOutputStream out, String string)
+                      throws IOException {
+        out.writeInt(indexOf(string));
+    }
+
+    private void writeIndexes(DataOutputStream out, List<Integer> indexes)
+                       throws IOException {
+        out.writeInt(indexes.size());
+        for (int index: indexes) {
+            out.writeInt(index);
+        }
+    }
+
+    private int indexOf(String string) {
+        if (string == null) {
+            return NONE;
+        }
+        Integer index = strings.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.put(string, index);
+        }
+        return index;
+    }
+
+    private int indexOf(Class triggerClass) {
+        Integer index = triggers.get(triggerClass);
+        if (index == null) {
+            index = triggers.size();
+            triggers.put(triggerClass, index);
+        }
+        return index;
+    }
+
+    private int indexOf(StateAction action) {
+        Integer index = actions.get(action);
+        if (index == null) {
+            index = actionOrder.size();
+            actions.put(action, index);
+            actionOrder.add(action);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,68 @@
+package com.commercehub.core.state.impl.binary;
+
+import java.nio.charset.Charset;
+
+/**
+ * Layout of a compiled chart file, shared by {@link BinaryChartWriter} and
+ * {@link BinaryChartLoader}. All numbers are big-endian.
+ *
+ * <pre>
+ * int     MAGIC
+ * short   VERSION
+ * long    fingerprint of the state tree
+ * int     string count, then for each: int length, UTF-8 bytes
+ * string  description
+ * int     trigger class count, then a class name string for each
+ * int     action class count, then a class name string for each
+ * int     state count, then in ordinal order:
+ *         byte kind, byte history flags, string name, int parent ordinal,
+ *         int default child ordinal, actions entry, actions exit
+ * int     transition count, then for each:
+ *         string name, int exit ordinal, int entry ordinal, actions,
+ *         int ranked state count, then an ordinal for each
+ * int     mapping count, then in mapping order:
+ *         int trigger index, value param, int transition index, condition
+ * int     property count, then for each:
+ *         string name, int value count, then a string for each value
+ * int     default property count, then for each: string name, value
+ *
+ * string  int index into the string table, NONE for null
+ * actions int count, then for each: int action index, value param
+ * value   byte tag, then nothing (NULL), a string (STRING), an int count
+ *         and that many strings (STRING_SET), or a string and a value
+ *         (PROPERTY)
+ * condition
+ *         byte {@link com.commercehub.core.state.Condition#getKind() kind},
+ *         NONE for no condition; ANY, ALL, SOME and NONE clauses are
+ *         followed by an int count and that many strings, other kinds by
+ *         an int count and that many conditions
+ * </pre>
+ *
+ * @author Matthew Mark Miller
+ */
+final class ChartFormat {
+    /** "PLYC" */
+    static final int MAGIC = 0x504C5943;
+
+    /** Incremented whenever the layout changes */
+    static final short VERSION = 1;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** A null string, or a mapping without a condition */
+    static final int NONE = -1;
+
+    static final byte EXCLUSIVE = 0;
+    static final byte CONCURRENT = 1;
+
+    static final byte HISTORY = 1;
+    static final byte DEEP_HISTORY = 2;
+
+    static final byte NULL = 0;
+    static final byte STRING = 1;
+    static final byte STRING_SET = 2;
+    static final byte PROPERTY = 3;
+
+    private ChartFormat() {
+    }
+}
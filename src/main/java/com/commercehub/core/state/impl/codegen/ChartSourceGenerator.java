@@ -0,0 +1,820 @@
+package com.commercehub.core.state.impl.codegen;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.commercehub.core.state.Condition;
+import com.commercehub.core.state.State;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.Transition;
+import com.commercehub.core.state.TriggerTransitionMap;
+import com.commercehub.core.state.impl.xml.ClientImplRegistry;
+import com.commercehub.core.state.impl.xml.XMLStateMachineFactory;
+
+/**
+ * Generates a Java class specialized to one chart: a {@link
+ * com.commercehub.core.state.StateMachine} subclass whose
+ * <code>pullTrigger</code>, <code>isApplicable</code> and <code>getRank</code>
+ * dispatch with <code>switch</code> statements over the chart's trigger
+ * classes and parameters, test exit and ranked states by ordinal, and evaluate
+ * conditions as inlined boolean expressions. Transitions still fire through
+ * their compiled plans, so the generated class can't diverge from the generic
+ * engine on entry, exit or history.
+ *
+ * <p>The generated class is constructed on a chart built from the same
+ * definition, by any factory; its constructor checks that the chart matches.
+ * Trigger classes it wasn't generated for, such as subclasses of mapped
+ * triggers, and parameters other than Strings and null, are handed to the
+ * generic implementation. Generated sources compile as Java 6.</p>
+ *
+ * <p>Run by the <code>generateChartSources</code> build task, or from the
+ * command line:</p>
+ *
+ * <pre>java com.commercehub.core.state.impl.codegen.ChartSourceGenerator
+ *     -clientimpl clientimpl.xml -d outputDir -package com.example.charts
+ *     statemachine.xml...</pre>
+ *
+ * <p>Each document <code>order-statemachine.xml</code> generates
+ * <code>OrderStateMachine.java</code>.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public final class ChartSourceGenerator {
+    private static final String USAGE = "Usage: ChartSourceGenerator "
+        + "-clientimpl <clientimpl.xml> -d <output directory> "
+        + "-package <package> <statemachine.xml>...";
+
+    private static final String SUFFIX = "StateMachine";
+
+    /** Looks up the transitions of parameters that aren't mapped exactly */
+    private static final Object UNMAPPED = new Object();
+
+    private final StateChart chart;
+    private final String packageName;
+    private final String className;
+    private final StringBuilder out = new StringBuilder();
+    private int indent;
+
+    /** Distinct trigger classes, in mapping order */
+    private final List<Class> triggers = new ArrayList<Class>();
+
+    /** Transition : field index, in mapping order */
+    private final Map<Transition, Integer> transitions =
+        new IdentityHashMap<Transition, Integer>();
+    private final List<Transition> transitionOrder =
+        new ArrayList<Transition>();
+
+    /** The transitions looked up by each trigger class and parameter */
+    private final List<Bucket> buckets = new ArrayList<Bucket>();
+
+    /** Condition : class index */
+    private final Map<Condition, Integer> conditions =
+        new IdentityHashMap<Condition, Integer>();
+    private final List<Condition> conditionOrder = new ArrayList<Condition>();
+
+    /** State set : field index */
+    private final Map<Set<String>, Integer> stateSets =
+        new LinkedHashMap<Set<String>, Integer>();
+
+    private ChartSourceGenerator(StateChart chart, String packageName,
+                                 String className) {
+        this.chart = chart;
+        this.packageName = packageName;
+        this.className = className;
+    }
+
+    /**
+     * Generates the source of a class specialized to a chart.
+     *
+     * @param chart a StateChart
+     * @param packageName the package of the generated class, may be empty
+     * @param className the simple name of the generated class
+     * @param writer receives the source; it isn't closed
+     *
+     * @throws IOException if the source can't be written
+     * @throws IllegalArgumentException if the chart holds a condition that
+     *                                  can't be generated
+     */
+    public static void generate(StateChart chart, String packageName,
+                                String className, Writer writer)
+                         throws IOException {
+        ChartSourceGenerator generator =
+            new ChartSourceGenerator(chart, packageName, className);
+        generator.index();
+        generator.emit();
+        writer.write(generator.out.toString());
+        writer.flush();
+    }
+
+    /**
+     * Names the class generated for a state-machine document: its file name in
+     * camel case, ending in StateMachine.
+     *
+     * @param document a state-machine document
+     *
+     * @return a Java identifier
+     */
+    public static String classNameFor(File document) {
+        String name = document.getName();
+        if (name.endsWith(".xml")) {
+            name = name.substring(0, name.length() - ".xml".length());
+        }
+        StringBuilder camel = new StringBuilder();
+        boolean upper = true;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isJavaIdentifierPart(c) || c == '_' || c == '$') {
+                upper = true;
+            } else if (upper) {
+                camel.append(Character.toUpperCase(c));
+                upper = false;
+            } else {
+                camel.append(c);
+            }
+        }
+        String base = camel.toString();
+        if (base.toLowerCase().endsWith(SUFFIX.toLowerCase())) {
+            base = base.substring(0, base.length() - SUFFIX.length());
+        }
+        if (base.length() == 0 || !Character.isJavaIdentifierStart(base.charAt(0))) {
+            base = "Chart" + base;
+        }
+        return base + SUFFIX;
+    }
+
+    /**
+     * Generates sources for the documents named on the command line.
+     *
+     * @param args see the class description
+     *
+     * @throws Exception if a document can't be read, parsed or written
+     */
+    public static void main(String[] args) throws Exception {
+        File clientImpl = null;
+        File outputDir = null;
+        String packageName = null;
+        List<File> documents = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-clientimpl".equals(args[i]) && i + 1 < args.length) {
+                clientImpl = new File(args[++i]);
+            } else if ("-d".equals(args[i]) && i + 1 < args.length) {
+                outputDir = new File(args[++i]);
+            } else if ("-package".equals(args[i]) && i + 1 < args.length) {
+                packageName = args[++i];
+            } else {
+                documents.add(new File(args[i]));
+            }
+        }
+        if (clientImpl == null || outputDir == null || packageName == null
+                || documents.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        File packageDir = packageName.length() == 0 ? outputDir
+            : new File(outputDir, packageName.replace('.', File.separatorChar));
+        if (!packageDir.isDirectory() && !packageDir.mkdirs()) {
+            throw new IOException("Can't create " + packageDir);
+        }
+
+        XMLStateMachineFactory factory = new XMLStateMachineFactory();
+        ClientImplRegistry registry;
+        InputStream in = new FileInputStream(clientImpl);
+        try {
+            registry = factory.getClientImplRegistry(in);
+        } finally {
+            in.close();
+        }
+        for (File document: documents) {
+            StateChart chart;
+            in = new FileInputStream(document);
+            try {
+                chart = factory.getStateChartFromInputStream(in, registry);
+            } finally {
+                in.close();
+            }
+            String className = classNameFor(document);
+            File source = new File(packageDir, className + ".java");
+            Writer writer = new OutputStreamWriter(
+                new FileOutputStream(source), "UTF-8");
+            try {
+                generate(chart, packageName, className, writer);
+            } finally {
+                writer.close();
+            }
+            System.out.println("Generated " + source + " from " + document);
+        }
+    }
+
+    /**
+     * Resolves every trigger class and parameter the chart maps into buckets
+     * of transitions and conditions, using the map's own lookups so that the
+     * generated dispatch agrees with it.
+     */
+    private void index() {
+        TriggerTransitionMap map = chart.getTriggerTransitionMap();
+        for (TriggerTransitionMap.Mapping mapping: map.getMappings()) {
+            if (!triggers.contains(mapping.getTriggerClass())) {
+                triggers.add(mapping.getTriggerClass());
+            }
+            if (!transitions.containsKey(mapping.getTransition())) {
+                transitions.put(mapping.getTransition(),
+                    transitionOrder.size());
+                transitionOrder.add(mapping.getTransition());
+            }
+        }
+        for (Class triggerClass: triggers) {
+            Set<String> params = new LinkedHashSet<String>();
+            for (Object param: map.getParameters(triggerClass)) {
+                if (param instanceof String) {
+                    params.add((String) param);
+                }
+            }
+            params.add(TriggerTransitionMap.WILDCARD_MATCH);
+            bucket(map, triggerClass, null);
+            for (String param: params) {
+                bucket(map, triggerClass, param);
+            }
+            bucket(map, triggerClass, UNMAPPED);
+        }
+    }
+
+    private void bucket(TriggerTransitionMap map, Class triggerClass,
+                        Object param) {
+        Bucket bucket = new Bucket(buckets.size(), triggerClass, param);
+        for (Transition transition: map.getTransitions(triggerClass, param)) {
+            Condition condition =
+                map.getCondition(triggerClass, transition, param);
+            bucket.transitions.add(transition);
+            bucket.conditions.add(condition);
+            if (condition != null && !conditions.containsKey(condition)) {
+                conditions.put(condition, conditionOrder.size());
+                conditionOrder.add(condition);
+                indexStateSets(condition);
+            }
+        }
+        buckets.add(bucket);
+    }
+
+    private void indexStateSets(Condition condition) {
+        Set<String> states = condition.getCheckStates();
+        if (states != null) {
+            if (!stateSets.containsKey(states)) {
+                stateSets.put(states, stateSets.size());
+            }
+        } else {
+            for (Condition clause: condition.getClauses()) {
+                indexStateSets(clause);
+            }
+        }
+    }
+
+    private void emit() {
+        line("// Generated by " + getClass().getSimpleName()
+            + " from state machine " + chart.getName() + ". Do not edit.");
+        if (packageName.length() > 0) {
+            line("package " + packageName + ";");
+        }
+        line("");
+        if (!conditionOrder.isEmpty()) {
+            line("import java.util.Arrays;");
+            line("import java.util.Collections;");
+            line("import java.util.HashSet;");
+            line("import java.util.Iterator;");
+        }
+        line("import java.util.List;");
+        if (!conditionOrder.isEmpty()) {
+            line("import java.util.Set;");
+        }
+        line("");
+        line("import com.commercehub.core.state.ActivationRecord;");
+        if (!conditionOrder.isEmpty()) {
+            line("import com.commercehub.core.state.Condition;");
+            line("import com.commercehub.core.state.ConditionEvaluator;");
+        }
+        line("import com.commercehub.core.state.StateChart;");
+        line("import com.commercehub.core.state.StateCookie;");
+        line("import com.commercehub.core.state.StateMachine;");
+        if (chart.hasTimeouts()) {
+            line("import com.commercehub.core.state.TimeoutTrigger;");
+        }
+        line("import com.commercehub.core.state.Transition;");
+        line("import com.commercehub.core.state.TransitionRecordFactory;");
+        line("import com.commercehub.core.state.Trigger;");
+        line("import com.commercehub.core.state.TriggerTransitionMap;");
+        line("");
+        line("/**");
+        line(" * The " + javadoc(chart.getName()) + " state machine, with trigger "
+            + "dispatch, ranks and conditions");
+        line(" * compiled to code. Construct it on a StateChart built from the "
+            + "same definition.");
+        line(" */");
+        open("public class " + className + " extends StateMachine {");
+        line("private static final long FINGERPRINT = "
+            + chart.getFingerprint() + "L;");
+        line("private static final int MAPPINGS = "
+            + chart.getTriggerTransitionMap().getMappings().size() + ";");
+        line("");
+        for (Map.Entry<Set<String>, Integer> entry: stateSets.entrySet()) {
+            StringBuilder names = new StringBuilder();
+            for (String state: entry.getKey()) {
+                if (names.length() > 0) {
+                    names.append(", ");
+                }
+                names.append(literal(state));
+            }
+            line("private static final Set<String> S" + entry.getValue()
+                + " = states(" + names + ");");
+        }
+        for (int i = 0; i < conditionOrder.size(); i++) {
+            line("private static final Condition C" + i + " = new Condition"
+                + i + "();");
+        }
+        if (!conditionOrder.isEmpty()) {
+            line("");
+        }
+        for (int i = 0; i < triggers.size(); i++) {
+            line("private final Class trigger" + i + ";");
+        }
+        for (int i = 0; i < transitionOrder.size(); i++) {
+            line("private final Transition t" + i + ";");
+        }
+        line("");
+        emitConstructor();
+        emitBucket();
+        emitPullTrigger();
+        emitIsApplicable();
+        emitGetRank();
+        emitChecks();
+        if (!conditionOrder.isEmpty()) {
+            emitConditionSupport();
+        }
+        close("}");
+    }
+
+    private void emitConstructor() {
+        line("/**");
+        line(" * Initializes a new, unattached " + className + ".");
+        line(" *");
+        line(" * @param chart a chart built from the " + javadoc(chart.getName())
+            + " definition");
+        line(" *");
+        line(" * @throws IllegalArgumentException if the chart was built from "
+            + "another definition");
+        line(" */");
+        open("public " + className + "(StateChart chart) {");
+        line("super(chart);");
+        line("List<TriggerTransitionMap.Mapping> mappings =");
+        line("    chart.getTriggerTransitionMap().getMappings();");
+        open("if (chart.getFingerprint() != FINGERPRINT "
+            + "|| mappings.size() != MAPPINGS) {");
+        line("throw mismatch(chart);");
+        close("}");
+        List<TriggerTransitionMap.Mapping> mappings =
+            chart.getTriggerTransitionMap().getMappings();
+        for (int i = 0; i < triggers.size(); i++) {
+            int mapping = 0;
+            while (mappings.get(mapping).getTriggerClass() != triggers.get(i)) {
+                mapping++;
+            }
+            line("trigger" + i + " = trigger(chart, mappings.get(" + mapping
+                + "), " + literal(triggers.get(i).getName()) + ");");
+        }
+        for (int i = 0; i < transitionOrder.size(); i++) {
+            Transition transition = transitionOrder.get(i);
+            int mapping = 0;
+            while (mappings.get(mapping).getTransition() != transition) {
+                mapping++;
+            }
+            line("t" + i + " = transition(chart, mappings.get(" + mapping
+                + "), " + transition.getExitState().getOrdinal() + ", "
+                + transition.getEntryState().getOrdinal() + ");");
+        }
+        close("}");
+        line("");
+    }
+
+    private void emitBucket() {
+        line("/**");
+        line(" * Numbers the transitions mapped to a trigger class and "
+            + "parameter.");
+        line(" *");
+        line(" * @return a bucket, or -1 to use the generic lookup");
+        line(" */");
+        open("private int bucket(Class triggerClass, Object param) {");
+        int next = 0;
+        for (int i = 0; i < triggers.size(); i++) {
+            open("if (triggerClass == trigger" + i + ") {");
+            Bucket nullBucket = buckets.get(next++);
+            open("if (param == null) {");
+            line("return " + nullBucket.index + ";");
+            close("}");
+            open("if (!(param instanceof String)) {");
+            line("return -1;");
+            close("}");
+            Map<Integer, List<Bucket>> byHash = new TreeMap<Integer, List<Bucket>>();
+            while (buckets.get(next).param != UNMAPPED) {
+                Bucket bucket = buckets.get(next++);
+                int hash = bucket.param.hashCode();
+                List<Bucket> collisions = byHash.get(hash);
+                if (collisions == null) {
+                    collisions = new ArrayList<Bucket>();
+                    byHash.put(hash, collisions);
+                }
+                collisions.add(bucket);
+            }
+            open("switch (param.hashCode()) {");
+            for (Map.Entry<Integer, List<Bucket>> entry: byHash.entrySet()) {
+                open("case " + entry.getKey() + ":");
+                for (Bucket bucket: entry.getValue()) {
+                    open("if (" + literal((String) bucket.param)
+                        + ".equals(param)) {");
+                    line("return " + bucket.index + ";");
+                    close("}");
+                }
+                line("break;");
+                close("");
+            }
+            close("}");
+            line("return " + buckets.get(next++).index + ";");
+            close("}");
+        }
+        line("return -1;");
+        close("}");
+        line("");
+    }
+
+    private void emitPullTrigger() {
+        line("/**");
+        line(" * @see StateMachine#pullTrigger(Trigger, Object, "
+            + "TransitionRecordFactory)");
+        line(" */");
+        //locks as StateMachine does, when triggers come from other threads
+        if (chart.hasActivities() || chart.hasTimeouts()) {
+            line("public synchronized boolean pullTrigger(Trigger trigger,");
+            open("        Object param, TransitionRecordFactory factory) {");
+        } else {
+            line("public boolean pullTrigger(Trigger trigger, Object param,");
+            open("        TransitionRecordFactory factory) {");
+        }
+        line("int bucket = bucket(trigger.getClass(), param);");
+        open("if (bucket < 0) {");
+        line("return super.pullTrigger(trigger, param, factory);");
+        close("}");
+        line("StateCookie cookie = getStateful().getStateCookie();");
+        line("ActivationRecord record = getActivationRecord();");
+        line("boolean fired = false;");
+        open("switch (bucket) {");
+        for (Bucket bucket: buckets) {
+            if (bucket.transitions.isEmpty()) {
+                continue;
+            }
+            open("case " + bucket.index + ":");
+            for (int i = 0; i < bucket.transitions.size(); i++) {
+                Transition transition = bucket.transitions.get(i);
+                Condition condition = bucket.conditions.get(i);
+                open("if (" + canFire(transition) + ") {");
+                line("fired |= fire(trigger, param, t"
+                    + transitions.get(transition) + ", "
+                    + (condition == null ? "null" : "C" + conditions.get(condition))
+                    + ", factory);");
+                close("}");
+            }
+            line("break;");
+            close("");
+        }
+        close("}");
+        open(chart.hasTimeouts()
+            ? "if (fired || trigger instanceof TimeoutTrigger) {"
+            : "if (fired) {");
+        line("saveState(cookie);");
+        close("}");
+        line("return fired;");
+        close("}");
+        line("");
+    }
+
+    private void emitIsApplicable() {
+        line("/**");
+        line(" * @see StateMachine#isApplicable(Class, Object)");
+        line(" */");
+        line("public boolean isApplicable("
+            + "Class<? extends Trigger> triggerClass,");
+        open("        Object param) {");
+        line("ActivationRecord record = getActivationRecord();");
+        open("switch (bucket(triggerClass, param)) {");
+        open("case -1:");
+        line("return super.isApplicable(triggerClass, param);");
+        close("");
+        for (Bucket bucket: buckets) {
+            if (bucket.transitions.isEmpty()) {
+                continue;
+            }
+            open("case " + bucket.index + ":");
+            StringBuilder any = new StringBuilder();
+            Set<Integer> exits = new LinkedHashSet<Integer>();
+            for (Transition transition: bucket.transitions) {
+                exits.add(transition.getExitState().getOrdinal());
+            }
+            for (int exit: exits) {
+                if (any.length() > 0) {
+                    any.append(" || ");
+                }
+                any.append("record.isActive(").append(exit).append(")");
+            }
+            line("return " + any + ";");
+            close("");
+        }
+        open("default:");
+        line("return false;");
+        close("");
+        close("}");
+        close("}");
+        line("");
+    }
+
+    private void emitGetRank() {
+        line("/**");
+        line(" * @see StateMachine#getRank(Class, Object)");
+        line(" */");
+        open("public int getRank(Class<? extends Trigger> triggerClass, "
+            + "Object param) {");
+        line("ActivationRecord record = getActivationRecord();");
+        line("int rank = RANK_INAPPLICABLE_PARAMETER;");
+        open("switch (bucket(triggerClass, param)) {");
+        open("case -1:");
+        line("return super.getRank(triggerClass, param);");
+        close("");
+        for (Bucket bucket: buckets) {
+            if (bucket.transitions.isEmpty()) {
+                continue;
+            }
+            open("case " + bucket.index + ":");
+            for (Transition transition: bucket.transitions) {
+                open("if (" + canFire(transition) + ") {");
+                StringBuilder rank = new StringBuilder();
+                int position = 0;
+                for (Object state: transition.getRankedStates()) {
+                    rank.append("record.isActive(")
+                        .append(((State) state).getOrdinal())
+                        .append(") ? ").append(position++).append(" : ");
+                }
+                rank.append("RANK_APPLICABLE_BUT_UNRANKED");
+                line("rank = Math.min(rank, " + rank + ");");
+                close("}");
+            }
+            line("break;");
+            close("");
+        }
+        close("}");
+        line("return rank;");
+        close("}");
+        line("");
+    }
+
+    private void emitChecks() {
+        line("private static Class trigger(StateChart chart,");
+        open("        TriggerTransitionMap.Mapping mapping, String name) {");
+        open("if (!mapping.getTriggerClass().getName().equals(name)) {");
+        line("throw mismatch(chart);");
+        close("}");
+        line("return mapping.getTriggerClass();");
+        close("}");
+        line("");
+        line("private static Transition transition(StateChart chart,");
+        open("        TriggerTransitionMap.Mapping mapping, "
+            + "int exit, int entry) {");
+        line("Transition transition = mapping.getTransition();");
+        line("if (transition.getExitState().getOrdinal() != exit");
+        open("        || transition.getEntryState().getOrdinal() != entry) {");
+        line("throw mismatch(chart);");
+        close("}");
+        line("return transition;");
+        close("}");
+        line("");
+        open("private static IllegalArgumentException mismatch(StateChart chart) {");
+        line("return new IllegalArgumentException(\"Chart \" + chart.getName()");
+        line("    + \" isn't the chart " + className
+            + " was generated from.\");");
+        close("}");
+    }
+
+    private void emitConditionSupport() {
+        for (int i = 0; i < conditionOrder.size(); i++) {
+            Condition condition = conditionOrder.get(i);
+            line("");
+            open("private static final class Condition" + i
+                + " extends Condition {");
+            open("public boolean eval(Set statefuls, "
+                + "ConditionEvaluator evaluator) {");
+            line("return " + expression(condition) + ";");
+            close("}");
+            line("");
+            open("public String toString() {");
+            line("return " + literal(condition.toString()) + ";");
+            close("}");
+            close("}");
+        }
+        line("");
+        open("private static Set<String> states(String... names) {");
+        line("return Collections.unmodifiableSet(");
+        line("    new HashSet<String>(Arrays.asList(names)));");
+        close("}");
+        line("");
+        line("private static boolean any(Set statefuls, "
+            + "ConditionEvaluator evaluator,");
+        open("        Set<String> states) {");
+        open("for (Iterator i = statefuls.iterator(); i.hasNext();) {");
+        open("if (evaluator.isInCondition(states, i.next())) {");
+        line("return true;");
+        close("}");
+        close("}");
+        line("return false;");
+        close("}");
+        line("");
+        line("private static boolean all(Set statefuls, "
+            + "ConditionEvaluator evaluator,");
+        open("        Set<String> states) {");
+        open("for (Iterator i = statefuls.iterator(); i.hasNext();) {");
+        open("if (!evaluator.isInCondition(states, i.next())) {");
+        line("return false;");
+        close("}");
+        close("}");
+        line("return !statefuls.isEmpty();");
+        close("}");
+        line("");
+        line("private static boolean some(Set statefuls, "
+            + "ConditionEvaluator evaluator,");
+        open("        Set<String> states) {");
+        line("boolean in = false;");
+        line("boolean out = false;");
+        open("for (Iterator i = statefuls.iterator(); i.hasNext();) {");
+        open("if (evaluator.isInCondition(states, i.next())) {");
+        line("in = true;");
+        close("} else {");
+        indent++;
+        line("out = true;");
+        close("}");
+        open("if (in && out) {");
+        line("return true;");
+        close("}");
+        close("}");
+        line("return false;");
+        close("}");
+        line("");
+        line("private static boolean none(Set statefuls, "
+            + "ConditionEvaluator evaluator,");
+        open("        Set<String> states) {");
+        line("return !any(statefuls, evaluator, states);");
+        close("}");
+    }
+
+    /**
+     * Translates a condition into a boolean expression with the same meaning
+     * as its eval method.
+     *
+     * @param condition a Condition or clause
+     *
+     * @return a Java expression
+     */
+    private String expression(Condition condition) {
+        List<Condition> clauses = condition.getClauses();
+        switch (condition.getKind()) {
+            case Condition.ROOT:
+            case Condition.OR:
+                return join(clauses, " || ");
+            case Condition.AND:
+                return join(clauses, " && ");
+            case Condition.NOT:
+                if (clauses.isEmpty()) {
+                    throw new IllegalArgumentException(
+                        "NOT clause without an operand in " + condition);
+                }
+                return "!" + expression(clauses.get(clauses.size() - 1));
+            case Condition.ANY:
+                return test("any", condition);
+            case Condition.ALL:
+                return test("all", condition);
+            case Condition.SOME:
+                return test("some", condition);
+            case Condition.NONE:
+                return test("none", condition);
+            default:
+                throw new IllegalArgumentException("Can't generate "
+                    + condition.getClass());
+        }
+    }
+
+    private String join(Collection<Condition> clauses, String operator) {
+        if (clauses.isEmpty()) {
+            return "false";
+        }
+        StringBuilder joined = new StringBuilder("(");
+        for (Condition clause: clauses) {
+            if (joined.length() > 1) {
+                joined.append(operator);
+            }
+            joined.append(expression(clause));
+        }
+        return joined.append(')').toString();
+    }
+
+    private String test(String method, Condition clause) {
+        return method + "(statefuls, evaluator, S"
+            + stateSets.get(clause.getCheckStates()) + ")";
+    }
+
+    private static String canFire(Transition transition) {
+        return "record.isActive(" + transition.getExitState().getOrdinal()
+            + ")";
+    }
+
+    private static String javadoc(String text) {
+        return text.replace("*/", "*&#47;");
+    }
+
+    private static String literal(String text) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    literal.append("\\\"");
+                    break;
+                case '\\':
+                    literal.append("\\\\");
+                    break;
+                case '\n':
+                    literal.append("\\n");
+                    break;
+                case '\r':
+                    literal.append("\\r");
+                    break;
+                case '\t':
+                    literal.append("\\t");
+                    break;
+                default:
+                    if (c < ' ' || c > '~') {
+                        literal.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        literal.append(c);
+                    }
+            }
+        }
+        return literal.append('"').toString();
+    }
+
+    private void line(String text) {
+        if (text.length() > 0) {
+            for (int i = 0; i < indent; i++) {
+                out.append("    ");
+            }
+            out.append(text);
+        }
+        out.append('\n');
+    }
+
+    private void open(String text) {
+        line(text);
+        indent++;
+    }
+
+    private void close(String text) {
+        indent--;
+        if (text.length() > 0) {
+            line(text);
+        }
+    }
+
+    /**
+     * The transitions, and their conditions, looked up by one trigger class
+     * and parameter.
+     */
+    private static class Bucket {
+        private final int index;
+        private final Class triggerClass;
+        private final Object param;
+        private final List<Transition> transitions =
+            new ArrayList<Transition>();
+        private final List<Condition> conditions = new ArrayList<Condition>();
+
+        Bucket(int index, Class triggerClass, Object param) {
+            this.index = index;
+            this.triggerClass = triggerClass;
+            this.param = param;
+        }
+    }
+}
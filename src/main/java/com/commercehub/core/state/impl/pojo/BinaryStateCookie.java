@@ -0,0 +1,563 @@
+package com.commercehub.core.state.impl.pojo;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.commercehub.core.state.OrdinalStateCookie;
+import com.commercehub.core.state.State;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.TimedStateCookie;
+
+/**
+ * A compact state cookie that records active and history states by their
+ * ordinal in a {@link StateChart}, for persistence as a few bytes rather than
+ * as serialized path name sets.
+ *
+ * <p>The encoding written by {@link #writeTo(ByteBuffer)} is a format version
+ * byte, the 8 byte {@link StateChart#getFingerprint() fingerprint} of the
+ * chart, and then the active and history ordinals, each as a count followed by
+ * ascending ordinals delta-encoded as unsigned varints. The deadlines of armed
+ * timeouts follow as a count and, for each, its state's delta-encoded ordinal
+ * and the deadline as a zigzag varint. A typical order with a handful of
+ * active states takes under 20 bytes. The root state is never written.
+ * Encodings of version 1, written before deadlines were kept, are still
+ * read.</p>
+ *
+ * <p>StateMachines built from a chart with the same fingerprint load and fill
+ * this cookie by copying bitsets; all other uses go through path names,
+ * resolved against the cookie's chart. A {@link
+ * com.commercehub.core.state.ChartMigration} moves the cookie onto a new
+ * revision of its chart.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public class BinaryStateCookie implements OrdinalStateCookie,
+        TimedStateCookie {
+    /** Encoding format version */
+    public static final byte FORMAT_VERSION = 2;
+
+    /** The last format version without timeout deadlines */
+    private static final byte UNTIMED_VERSION = 1;
+
+    private StateChart chart;
+    private long[] active;
+    private long[] history;
+
+    /** state ordinal : deadline, in ascending ordinal order */
+    private final TreeMap<Integer, Long> deadlines = new TreeMap<Integer, Long>();
+
+    /**
+     * Initializes a new, empty BinaryStateCookie.
+     *
+     * @param chart the StateChart whose ordinals this cookie records
+     */
+    public BinaryStateCookie(StateChart chart) {
+        this.chart = chart;
+        int words = (chart.getStateCount() + 63) >>> 6;
+        active = new long[words];
+        history = new long[words];
+    }
+
+    /**
+     * @see com.commercehub.core.state.OrdinalStateCookie#getChartFingerprint()
+     */
+    public long getChartFingerprint() {
+        return chart.getFingerprint();
+    }
+
+    /**
+     * @see com.commercehub.core.state.OrdinalStateCookie#copyStates(long[],
+     *      long[])
+     */
+    public void copyStates(long[] activeWords, long[] historyWords) {
+        System.arraycopy(active, 0, activeWords, 0, active.length);
+        System.arraycopy(history, 0, historyWords, 0, history.length);
+    }
+
+    /**
+     * @see com.commercehub.core.state.OrdinalStateCookie#setStates(long,
+     *      long[], long[])
+     */
+    public void setStates(long chartFingerprint, long[] activeWords,
+                          long[] historyWords) {
+        if (chartFingerprint != chart.getFingerprint()) {
+            throw new IllegalArgumentException("States belong to a chart "
+                + "other than " + chart.getName() + ".");
+        }
+        System.arraycopy(activeWords, 0, active, 0, active.length);
+        System.arraycopy(historyWords, 0, history, 0, history.length);
+        active[0] &= ~1L;
+        history[0] &= ~1L;
+    }
+
+    /**
+     * Moves this cookie onto another chart, typically a new revision of its
+     * own, then replaces its contents. Encodings this cookie writes
+     * afterwards carry the new chart's fingerprint.
+     *
+     * @see com.commercehub.core.state.OrdinalStateCookie#setStates(StateChart,
+     *      long[], long[])
+     */
+    public void setStates(StateChart newChart, long[] activeWords,
+                          long[] historyWords) {
+        if (newChart.getFingerprint() != chart.getFingerprint()) {
+            int words = (newChart.getStateCount() + 63) >>> 6;
+            Map<String, Long> named = getTimeoutDeadlines();
+            deadlines.clear();
+            for (Map.Entry<String, Long> entry: named.entrySet()) {
+                State state = newChart.findByName(entry.getKey());
+                if (state != null) {
+                    deadlines.put(Integer.valueOf(state.getOrdinal()),
+                        entry.getValue());
+                }
+            }
+            chart = newChart;
+            active = new long[words];
+            history = new long[words];
+        }
+        setStates(newChart.getFingerprint(), activeWords, historyWords);
+    }
+
+    /**
+     * The chart whose ordinals this cookie records.
+     *
+     * @return a StateChart
+     */
+    public StateChart getStateChart() {
+        return chart;
+    }
+
+    /**
+     * The number of bytes {@link #writeTo(ByteBuffer)} will write.
+     *
+     * @return a byte count
+     */
+    public int getEncodedSize() {
+        int size = varintSize(deadlines.size());
+        int last = 0;
+        for (Map.Entry<Integer, Long> entry: deadlines.entrySet()) {
+            int ordinal = entry.getKey().intValue();
+            size += varintSize(ordinal - last)
+                + varlongSize(zigzag(entry.getValue().longValue()));
+            last = ordinal;
+        }
+        return 1 + 8 + encodedSize(active) + encodedSize(history) + size;
+    }
+
+    /**
+     * Writes this cookie at the buffer's position.
+     *
+     * @param buffer a ByteBuffer with at least {@link #getEncodedSize()} bytes
+     *               remaining
+     *
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(FORMAT_VERSION);
+        buffer.putLong(chart.getFingerprint());
+        writeBits(buffer, active);
+        writeBits(buffer, history);
+        writeVarint(buffer, deadlines.size());
+        int last = 0;
+        for (Map.Entry<Integer, Long> entry: deadlines.entrySet()) {
+            int ordinal = entry.getKey().intValue();
+            writeVarint(buffer, ordinal - last);
+            writeVarlong(buffer, zigzag(entry.getValue().longValue()));
+            last = ordinal;
+        }
+    }
+
+    /**
+     * Replaces this cookie's contents with a cookie read from the buffer's
+     * position.
+     *
+     * @param buffer a ByteBuffer positioned at an encoded cookie
+     *
+     * @throws IllegalArgumentException if the encoding is malformed, of an
+     *                                  unknown version, or was written for a
+     *                                  chart with a different fingerprint. The
+     *                                  cookie is left empty.
+     */
+    public void readFrom(ByteBuffer buffer) {
+        try {
+            byte version = buffer.get();
+            if (version != FORMAT_VERSION && version != UNTIMED_VERSION) {
+                throw new IllegalArgumentException(
+                    "Unknown cookie format version " + version + ".");
+            }
+            long fingerprint = buffer.getLong();
+            if (fingerprint != chart.getFingerprint()) {
+                throw new IllegalArgumentException("Cookie was written for a "
+                    + "chart other than " + chart.getName() + ".");
+            }
+            readBits(buffer, active);
+            readBits(buffer, history);
+            deadlines.clear();
+            if (version != UNTIMED_VERSION) {
+                readDeadlines(buffer);
+            }
+        } catch (BufferUnderflowException bue) {
+            clear();
+            throw new IllegalArgumentException("Cookie is truncated.");
+        } catch (IllegalArgumentException iae) {
+            clear();
+            throw iae;
+        }
+    }
+
+    /**
+     * The number of bytes needed to write a bitset.
+     *
+     * @param words a bitset
+     *
+     * @return a byte count
+     */
+    private int encodedSize(long[] words) {
+        int size = 0;
+        int count = 0;
+        int last = 0;
+        for (int i = nextSetBit(words, 0); i >= 0; i = nextSetBit(words, i + 1)) {
+            size += varintSize(i - last);
+            last = i;
+            count++;
+        }
+        return size + varintSize(count);
+    }
+
+    /**
+     * Writes a bitset as a count followed by delta-encoded ordinals.
+     *
+     * @param buffer a ByteBuffer
+     * @param words a bitset
+     */
+    private void writeBits(ByteBuffer buffer, long[] words) {
+        int count = 0;
+        for (int i = 0; i < words.length; i++) {
+            count += Long.bitCount(words[i]);
+        }
+        writeVarint(buffer, count);
+        int last = 0;
+        for (int i = nextSetBit(words, 0); i >= 0; i = nextSetBit(words, i + 1)) {
+            writeVarint(buffer, i - last);
+            last = i;
+        }
+    }
+
+    /**
+     * Reads a bitset written by {@link #writeBits(ByteBuffer, long[])}.
+     *
+     * @param buffer a ByteBuffer
+     * @param words receives the bitset
+     */
+    private void readBits(ByteBuffer buffer, long[] words) {
+        Arrays.fill(words, 0L);
+        int count = readVarint(buffer);
+        int ordinal = 0;
+        for (int i = 0; i < count; i++) {
+            ordinal += readVarint(buffer);
+            if (ordinal < 1 || ordinal >= chart.getStateCount()) {
+                throw new IllegalArgumentException("Cookie names state "
+                    + ordinal + ", which isn't in " + chart.getName() + ".");
+            }
+            words[ordinal >>> 6] |= 1L << ordinal;
+        }
+    }
+
+    /**
+     * Reads the deadlines written by {@link #writeTo(ByteBuffer)}.
+     *
+     * @param buffer a ByteBuffer positioned after the history ordinals
+     */
+    private void readDeadlines(ByteBuffer buffer) {
+        int count = readVarint(buffer);
+        int ordinal = 0;
+        for (int i = 0; i < count; i++) {
+            ordinal += readVarint(buffer);
+            if (ordinal < 1 || ordinal >= chart.getStateCount()) {
+                throw new IllegalArgumentException("Cookie times state "
+                    + ordinal + ", which isn't in " + chart.getName() + ".");
+            }
+            deadlines.put(Integer.valueOf(ordinal),
+                Long.valueOf(unzigzag(readVarlong(buffer))));
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varlongSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeVarlong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long readVarlong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Cookie has a malformed varint.");
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Cookie has a malformed varint.");
+    }
+
+    private static int nextSetBit(long[] words, int from) {
+        int index = from >>> 6;
+        if (index >= words.length) {
+            return -1;
+        }
+        long word = words[index] & (-1L << from);
+        while (word == 0) {
+            if (++index == words.length) {
+                return -1;
+            }
+            word = words[index];
+        }
+        return (index << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * Resolves a State of this cookie's chart.
+     *
+     * @param state a State
+     *
+     * @return its ordinal, or -1 if it isn't in this cookie's chart
+     */
+    private int ordinalOf(State state) {
+        int ordinal = state.getOrdinal();
+        if (ordinal < 0 || ordinal >= chart.getStateCount()
+                || chart.getState(ordinal) != state) {
+            State named = chart.findByName(state.getPathName());
+            ordinal = named == null ? -1 : named.getOrdinal();
+        }
+        return ordinal;
+    }
+
+    /**
+     * Resolves a path name of this cookie's chart.
+     *
+     * @param stateName a path name
+     *
+     * @return the State's ordinal
+     *
+     * @throws IllegalArgumentException if there is no such State
+     */
+    private int ordinalOf(String stateName) {
+        State state = chart.findByName(stateName);
+        if (state == null) {
+            throw new IllegalArgumentException("No state " + stateName
+                + " in " + chart.getName() + ".");
+        }
+        return state.getOrdinal();
+    }
+
+    private boolean get(long[] words, int ordinal) {
+        return ordinal > 0 && (words[ordinal >>> 6] & (1L << ordinal)) != 0;
+    }
+
+    private void set(long[] words, int ordinal) {
+        if (ordinal > 0) {
+            words[ordinal >>> 6] |= 1L << ordinal;
+        }
+    }
+
+    private void setAll(long[] words, Set<String> statePathNames) {
+        Arrays.fill(words, 0L);
+        for (Iterator<String> it = statePathNames.iterator(); it.hasNext();) {
+            set(words, ordinalOf(it.next()));
+        }
+    }
+
+    private Set<String> pathNames(long[] words) {
+        Set<String> names = new LinkedHashSet<String>();
+        for (int i = nextSetBit(words, 1); i >= 0; i = nextSetBit(words, i + 1)) {
+            names.add(chart.getState(i).getPathName());
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    public boolean isNew() {
+        for (int i = 0; i < active.length; i++) {
+            if (active[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @see com.commercehub.core.state.StateCookie#clear()
+     */
+    public void clear() {
+        Arrays.fill(active, 0L);
+        Arrays.fill(history, 0L);
+        deadlines.clear();
+    }
+
+    public boolean isActive(State state) {
+        return state != null && get(active, ordinalOf(state));
+    }
+
+    public boolean isActive(String stateName) {
+        if (stateName == null) {
+            return false;
+        }
+        State state = chart.findByName(stateName);
+        return state != null && get(active, state.getOrdinal());
+    }
+
+    /**
+     * @see com.commercehub.core.state.StateCookie#getHistoryChild(State)
+     */
+    public State getHistoryChild(State parentState) {
+        int parent = ordinalOf(parentState);
+        if (parent < 0) {
+            return null;
+        }
+        int first = chart.getFirstChildOrdinal(parent);
+        for (int i = first, end = first + chart.getChildCount(parent);
+                i < end; i++) {
+            if (get(history, i)) {
+                return chart.getState(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @see com.commercehub.core.state.StateCookie#setHistoryChild(State)
+     */
+    public void setHistoryChild(State childState) {
+        set(history, ordinalOf(childState.getPathName()));
+    }
+
+    /**
+     * Sets the history states in this cookie to <code>states</code>. Any
+     * previous history states are replaced.
+     *
+     * @param states set of fully qualified state path names
+     *
+     * @throws IllegalArgumentException if a path name isn't in this cookie's
+     *                                  chart
+     */
+    public void setHistoryStates(Set<String> states) {
+        setAll(history, states);
+    }
+
+    public void setActive(State state) {
+        if (state != null) {
+            setActive(state.getPathName());
+        }
+    }
+
+    public void setActive(String stateName) {
+        set(active, ordinalOf(stateName));
+    }
+
+    public void setActive(Set<String> statePathNames) {
+        setAll(active, statePathNames);
+    }
+
+    public Set<String> getActiveStatePathNames() {
+        return pathNames(active);
+    }
+
+    public Set<String> getHistoryStatePathNames() {
+        return pathNames(history);
+    }
+
+    /**
+     * @see com.commercehub.core.state.TimedStateCookie#getTimeoutDeadlines()
+     */
+    public Map<String, Long> getTimeoutDeadlines() {
+        Map<String, Long> named = new LinkedHashMap<String, Long>();
+        for (Map.Entry<Integer, Long> entry: deadlines.entrySet()) {
+            named.put(chart.getState(entry.getKey().intValue()).getPathName(),
+                entry.getValue());
+        }
+        return Collections.unmodifiableMap(named);
+    }
+
+    /**
+     * @see com.commercehub.core.state.TimedStateCookie#setTimeoutDeadlines(Map)
+     *
+     * @throws IllegalArgumentException if a path name isn't in this cookie's
+     *                                  chart
+     */
+    public void setTimeoutDeadlines(Map<String, Long> newDeadlines) {
+        TreeMap<Integer, Long> resolved = new TreeMap<Integer, Long>();
+        for (Map.Entry<String, Long> entry: newDeadlines.entrySet()) {
+            resolved.put(Integer.valueOf(ordinalOf(entry.getKey())),
+                entry.getValue());
+        }
+        deadlines.clear();
+        deadlines.putAll(resolved);
+    }
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString() {
+        StringBuffer sb = new StringBuffer("");
+        sb.append("Active States:");
+        sb.append(getActiveStatePathNames());
+
+        sb.append("Historic States:");
+        sb.append(getHistoryStatePathNames());
+
+        return sb.toString();
+    }
+}
@@ -2,12 +2,15 @@ package com.commercehub.core.state.impl.pojo;
 
 import java.io.Serializable;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 import com.commercehub.core.state.State;
-import com.commercehub.core.state.StateCookie;
+import com.commercehub.core.state.TimedStateCookie;
+import com.commercehub.core.state.VersionedStateCookie;
 
 /**
  * A state cookie using state sets, reducable to a state string in the model:
@@ -16,12 +19,19 @@ import com.commercehub.core.state.StateCookie;
  * @author m3
  *
  */
-public class SerializableStateCookie implements StateCookie, Serializable{
+public class SerializableStateCookie implements VersionedStateCookie,
+        TimedStateCookie, Serializable{
 	private static final long serialVersionUID = -7432399227832996727L;
 
+    /** 0 in cookies serialized before charts were versioned */
+    private long chartFingerprint;
+
     private Set<String> activeCookies; 
     private Set<String> historyCookies;
 
+    /** null in cookies serialized before states had timeouts */
+    private HashMap<String, Long> timeoutDeadlines;
+
     public SerializableStateCookie() {
         activeCookies = new HashSet<String>();
         historyCookies = new HashSet<String>();
@@ -78,6 +88,7 @@ public class SerializableStateCookie implements StateCookie, Serializable{
     public void clear() {
         activeCookies.clear();
         historyCookies.clear();
+        timeoutDeadlines = null;
     }
 
     /**
@@ -110,6 +121,38 @@ public class SerializableStateCookie implements StateCookie, Serializable{
         historyCookies = states;
     }
 
+    /**
+     * @see com.commercehub.core.state.VersionedStateCookie#getChartFingerprint()
+     */
+    public long getChartFingerprint() {
+        return chartFingerprint;
+    }
+
+    /**
+     * @see com.commercehub.core.state.VersionedStateCookie#setChartFingerprint(long)
+     */
+    public void setChartFingerprint(long chartFingerprint) {
+        this.chartFingerprint = chartFingerprint;
+    }
+
+    /**
+     * @see com.commercehub.core.state.TimedStateCookie#getTimeoutDeadlines()
+     */
+    public Map<String, Long> getTimeoutDeadlines() {
+        if (timeoutDeadlines == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(timeoutDeadlines);
+    }
+
+    /**
+     * @see com.commercehub.core.state.TimedStateCookie#setTimeoutDeadlines(Map)
+     */
+    public void setTimeoutDeadlines(Map<String, Long> deadlines) {
+        timeoutDeadlines = deadlines.isEmpty()
+            ? null : new HashMap<String, Long>(deadlines);
+    }
+
     public boolean isNew() {
         return activeCookies.isEmpty();
     }
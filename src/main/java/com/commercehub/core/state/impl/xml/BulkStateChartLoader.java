@@ -0,0 +1,568 @@
+package com.commercehub.core.state.impl.xml;
+
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateMachineConfigurationException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Loads every state-machine and client-impl document under a directory or
+ * class-path prefix in parallel, and publishes the wired charts into a
+ * {@link StateChartRegistry}.
+ *
+ * <p>Documents are told apart by their root element. Each state-machine
+ * document is wired against the client-impl document in its own directory,
+ * or failing that the nearest one above it, and is registered under its path
+ * relative to the directory or prefix, without the <code>.xml</code>
+ * extension: <code>orders/order-statemachine</code>. A directory may hold at
+ * most one client-impl.</p>
+ *
+ * <p>Loading runs in three rounds on the executor: every document is read and
+ * sniffed, then every client-impl is loaded, then every state-machine is
+ * parsed and wired. Parsing goes through an {@link XMLStateMachineFactory}, so
+ * documents it has already seen aren't parsed again. A document that fails
+ * drops out of later rounds, but the others carry on, so one load reports
+ * every broken document; nothing is registered unless every document
+ * loads.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public class BulkStateChartLoader {
+    private static final String EXTENSION = ".xml";
+    private static final String CLIENT_IMPL = "state-machine-client-impl";
+    private static final String STATE_MACHINE = "state-machine";
+
+    /** Shared by all loaders; guarded by itself */
+    private static final XMLInputFactory INPUT_FACTORY;
+
+    static {
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    private final StateChartRegistry registry;
+    private final ExecutorService executor;
+    private final XMLStateMachineFactory factory = new XMLStateMachineFactory();
+
+    /**
+     * Initializes a new BulkStateChartLoader that loads each batch on a new
+     * pool with a thread per processor.
+     *
+     * @param registry receives the loaded charts
+     */
+    public BulkStateChartLoader(StateChartRegistry registry) {
+        this(registry, null);
+    }
+
+    /**
+     * Initializes a new BulkStateChartLoader that loads on a given executor.
+     * The executor isn't shut down.
+     *
+     * @param registry receives the loaded charts
+     * @param executor runs the loading, or null to use a new pool per batch
+     */
+    public BulkStateChartLoader(StateChartRegistry registry,
+                                ExecutorService executor) {
+        this.registry = registry;
+        this.executor = executor;
+    }
+
+    /**
+     * Loads every <code>.xml</code> document under a directory.
+     *
+     * @param directory a directory tree of documents
+     *
+     * @return the time spent on each document, in path order
+     *
+     * @throws IOException if the directory can't be listed
+     * @throws StateMachineConfigurationException if any document can't be
+     *                                            loaded; nothing is
+     *                                            registered
+     */
+    public List<DocumentTiming> loadDirectory(File directory)
+        throws IOException, StateMachineConfigurationException {
+        if (!directory.isDirectory()) {
+            throw new IOException(directory + " isn't a directory");
+        }
+        List<Document> documents = new ArrayList<Document>();
+        listDirectory(directory, "", documents);
+        return load(documents);
+    }
+
+    /**
+     * Loads every <code>.xml</code> resource under a class-path prefix, from
+     * directories and jars, using the loader that loaded this class.
+     *
+     * @param prefix a resource path such as <code>com/example/charts</code>
+     *
+     * @return the time spent on each document, in path order
+     *
+     * @throws IOException if the class path can't be listed
+     * @throws StateMachineConfigurationException if any document can't be
+     *                                            loaded; nothing is
+     *                                            registered
+     */
+    public List<DocumentTiming> loadClassPath(String prefix)
+        throws IOException, StateMachineConfigurationException {
+        return loadClassPath(prefix,
+            BulkStateChartLoader.class.getClassLoader());
+    }
+
+    /**
+     * Loads every <code>.xml</code> resource under a class-path prefix, from
+     * directories and jars. Jars must hold an entry for the prefix directory,
+     * as those built by the jar tool and Gradle do.
+     *
+     * @param prefix a resource path such as <code>com/example/charts</code>
+     * @param classLoader the loader whose class path is searched
+     *
+     * @return the time spent on each document, in path order
+     *
+     * @throws IOException if the class path can't be listed
+     * @throws StateMachineConfigurationException if any document can't be
+     *                                            loaded; nothing is
+     *                                            registered
+     */
+    public List<DocumentTiming> loadClassPath(String prefix,
+                                              ClassLoader classLoader)
+        throws IOException, StateMachineConfigurationException {
+        String path = prefix;
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        List<Document> documents = new ArrayList<Document>();
+        Enumeration<URL> roots = classLoader.getResources(path);
+        while (roots.hasMoreElements()) {
+            URL root = roots.nextElement();
+            if ("file".equals(root.getProtocol())) {
+                listDirectory(new File(decode(root.getPath())), "", documents);
+            } else if ("jar".equals(root.getProtocol())) {
+                listJar(root, path.length() == 0 ? "" : path + "/",
+                    documents);
+            } else {
+                throw new IOException("Can't list " + root);
+            }
+        }
+        return load(documents);
+    }
+
+    private void listDirectory(File directory, String relativePath,
+                               List<Document> documents) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file: files) {
+            String name = relativePath + file.getName();
+            if (file.isDirectory()) {
+                listDirectory(file, name + "/", documents);
+            } else if (name.endsWith(EXTENSION)) {
+                documents.add(new FileDocument(name, file));
+            }
+        }
+    }
+
+    private void listJar(URL root, String path, List<Document> documents)
+        throws IOException {
+        URLConnection connection = root.openConnection();
+        if (!(connection instanceof JarURLConnection)) {
+            throw new IOException("Can't list " + root);
+        }
+        connection.setUseCaches(false);
+        JarFile jar = ((JarURLConnection) connection).getJarFile();
+        try {
+            List<String> names = new ArrayList<String>();
+            for (Enumeration<JarEntry> entries = jar.entries();
+                    entries.hasMoreElements();) {
+                JarEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && entry.getName().startsWith(path)
+                        && entry.getName().endsWith(EXTENSION)) {
+                    names.add(entry.getName());
+                }
+            }
+            Collections.sort(names);
+            String base = root.toString();
+            base = base.substring(0, base.indexOf("!/") + 2);
+            for (String name: names) {
+                documents.add(new UrlDocument(name.substring(path.length()),
+                    new URL(base + name)));
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    private List<DocumentTiming> load(final List<Document> documents)
+        throws StateMachineConfigurationException {
+        ExecutorService pool = executor;
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        }
+        try {
+            return load(documents, pool);
+        } finally {
+            if (pool != executor) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private List<DocumentTiming> load(List<Document> documents,
+                                      ExecutorService pool)
+        throws StateMachineConfigurationException {
+        runAll(pool, documents, new Step() {
+            public void run(Document document) throws Exception {
+                document.read();
+            }
+        });
+
+        List<Document> clientImpls = new ArrayList<Document>();
+        List<Document> stateMachines = new ArrayList<Document>();
+        for (Document document: documents) {
+            if (document.failure == null) {
+                (document.clientImpl ? clientImpls : stateMachines)
+                    .add(document);
+            }
+        }
+        runAll(pool, clientImpls, new Step() {
+            public void run(Document document) throws Exception {
+                document.registry = factory.getClientImplRegistry(
+                    new ByteArrayInputStream(document.bytes));
+            }
+        });
+
+        final Map<String, Document> clientImplsByDirectory =
+            new HashMap<String, Document>();
+        for (Document clientImpl: clientImpls) {
+            Document other = clientImplsByDirectory.put(
+                clientImpl.getDirectory(), clientImpl);
+            if (other != null) {
+                clientImpl.failure = new StateMachineConfigurationException(
+                    "Directory /" + clientImpl.getDirectory() + " holds two "
+                    + "client-impls: " + other.path + " and "
+                    + clientImpl.path);
+            }
+        }
+        runAll(pool, stateMachines, new Step() {
+            public void run(Document document) throws Exception {
+                document.chart = factory.getStateChartFromInputStream(
+                    new ByteArrayInputStream(document.bytes),
+                    findClientImpl(document, clientImplsByDirectory));
+            }
+        });
+
+        List<DocumentTiming> timings = new ArrayList<DocumentTiming>();
+        StringBuilder failed = new StringBuilder();
+        Throwable firstFailure = null;
+        int failures = 0;
+        for (Document document: documents) {
+            if (document.failure != null) {
+                failed.append(failures++ == 0 ? "" : ", ")
+                    .append(document.path);
+                if (firstFailure == null) {
+                    firstFailure = document.failure;
+                }
+            }
+            timings.add(new DocumentTiming(document.getName(),
+                document.getSource(), document.clientImpl, document.elapsed));
+        }
+        if (failures > 0) {
+            throw new StateMachineConfigurationException(failures + " of "
+                + documents.size() + " documents failed to load: " + failed,
+                firstFailure);
+        }
+        for (Document document: stateMachines) {
+            registry.register(document.getName(), document.chart);
+        }
+        return timings;
+    }
+
+    /**
+     * Finds the registry a state-machine document is wired against.
+     *
+     * @param stateMachine a state-machine document
+     * @param clientImpls client-impl documents by directory
+     *
+     * @return a ClientImplRegistry
+     *
+     * @throws StateMachineConfigurationException if the nearest client-impl
+     *                                            didn't load, or there is
+     *                                            none
+     */
+    private static ClientImplRegistry findClientImpl(Document stateMachine,
+        Map<String, Document> clientImpls)
+        throws StateMachineConfigurationException {
+        String directory = stateMachine.getDirectory();
+        while (true) {
+            Document clientImpl = clientImpls.get(directory);
+            if (clientImpl != null) {
+                if (clientImpl.failure != null) {
+                    throw new StateMachineConfigurationException(
+                        "Client-impl " + clientImpl.path + " didn't load",
+                        clientImpl.failure);
+                }
+                return clientImpl.registry;
+            }
+            if (directory.length() == 0) {
+                throw new StateMachineConfigurationException(
+                    "No client-impl found for " + stateMachine.path);
+            }
+            int slash = directory.lastIndexOf('/', directory.length() - 2);
+            directory = directory.substring(0, slash + 1);
+        }
+    }
+
+    /**
+     * Runs a step on each document in parallel and waits for all of them.
+     * The time each step takes is added to its document, and a step that
+     * fails records its failure on the document.
+     */
+    private static void runAll(ExecutorService pool, List<Document> documents,
+                               final Step step)
+        throws StateMachineConfigurationException {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final Document document: documents) {
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    long start = System.nanoTime();
+                    try {
+                        step.run(document);
+                    } catch (Exception ex) {
+                        document.failure = ex;
+                    } finally {
+                        document.elapsed += System.nanoTime() - start;
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Object> result: pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new StateMachineConfigurationException(
+                "Interrupted while loading state charts", ie);
+        } catch (ExecutionException ee) {
+            //an Error; the tasks catch everything else
+            throw new StateMachineConfigurationException(
+                "Loading state charts failed", ee.getCause());
+        }
+    }
+
+    private static String decode(String path)
+        throws UnsupportedEncodingException {
+        return URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+    }
+
+    /**
+     * The time it took to load one document.
+     */
+    public static final class DocumentTiming {
+        private final String name;
+        private final String source;
+        private final boolean clientImpl;
+        private final long elapsedNanos;
+
+        DocumentTiming(String name, String source, boolean clientImpl,
+                       long elapsedNanos) {
+            this.name = name;
+            this.source = source;
+            this.clientImpl = clientImpl;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * The name the document's chart is registered under.
+         *
+         * @return a name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Where the document was read from.
+         *
+         * @return a file path or URL
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * Whether the document is a client-impl rather than a state-machine.
+         *
+         * @return true for a client-impl
+         */
+        public boolean isClientImpl() {
+            return clientImpl;
+        }
+
+        /**
+         * The time spent reading, parsing and wiring the document, excluding
+         * time spent waiting for a thread.
+         *
+         * @return nanoseconds
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public String toString() {
+            return name + (clientImpl ? " (client-impl)" : "") + ": "
+                + (elapsedNanos / 1000) / 1000.0 + " ms";
+        }
+    }
+
+    /**
+     * One round of loading, applied to each document.
+     */
+    private interface Step {
+        void run(Document document) throws Exception;
+    }
+
+    /**
+     * A document being loaded. Each field is written by one round's task and
+     * read by later rounds, after invokeAll has waited for it.
+     */
+    private abstract static class Document {
+        private final String path;
+        private byte[] bytes;
+        private boolean clientImpl;
+        private ClientImplRegistry registry;
+        private StateChart chart;
+        private Exception failure;
+        private long elapsed;
+
+        Document(String path) {
+            this.path = path;
+        }
+
+        abstract InputStream open() throws IOException;
+
+        abstract String getSource();
+
+        String getName() {
+            return path.substring(0, path.length() - EXTENSION.length());
+        }
+
+        /**
+         * @return the path of the document's directory, ending with a slash,
+         *         or an empty String at the top
+         */
+        String getDirectory() {
+            return path.substring(0, path.lastIndexOf('/') + 1);
+        }
+
+        void read() throws IOException, StateMachineConfigurationException {
+            InputStream in = open();
+            try {
+                bytes = XMLStateMachineFactory.readFully(in);
+            } finally {
+                in.close();
+            }
+            String root = getRootElement();
+            if (CLIENT_IMPL.equals(root)) {
+                clientImpl = true;
+            } else if (!STATE_MACHINE.equals(root)) {
+                throw new StateMachineConfigurationException(path
+                    + " is neither a state-machine nor a client-impl: <"
+                    + root + ">");
+            }
+        }
+
+        private String getRootElement()
+            throws StateMachineConfigurationException {
+            try {
+                XMLStreamReader reader;
+                synchronized (INPUT_FACTORY) {
+                    reader = INPUT_FACTORY.createXMLStreamReader(
+                        new ByteArrayInputStream(bytes));
+                }
+                try {
+                    while (reader.next() != XMLStreamReader.START_ELEMENT) {
+                        //skip the prolog and any DOCTYPE
+                    }
+                    return reader.getLocalName();
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException xse) {
+                throw new StateMachineConfigurationException(
+                    path + " can't be parsed", xse);
+            }
+        }
+    }
+
+    private static class FileDocument extends Document {
+        private final File file;
+
+        FileDocument(String path, File file) {
+            super(path);
+            this.file = file;
+        }
+
+        InputStream open() throws IOException {
+            return new FileInputStream(file);
+        }
+
+        String getSource() {
+            return file.getPath();
+        }
+    }
+
+    private static class UrlDocument extends Document {
+        private final URL url;
+
+        UrlDocument(String path, URL url) {
+            super(path);
+            this.url = url;
+        }
+
+        InputStream open() throws IOException {
+            URLConnection connection = url.openConnection();
+            connection.setUseCaches(false);
+            return connection.getInputStream();
+        }
+
+        String getSource() {
+            return url.toString();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.commercehub.core.state.impl.xml;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.commercehub.core.state.Activity;
+import com.commercehub.core.state.ClientImplProvider;
+import com.commercehub.core.state.StateAction;
+import com.commercehub.core.state.Stateful;
+import com.commercehub.core.state.Trigger;
+
+/**
+ * The contents of a parsed state-machine-client-impl document: trigger
+ * classes, stateful classes, and action and activity singletons, each by the
+ * name state-machine documents refer to it by. A registry is immutable once
+ * built, so any number of state-machine documents may be wired against it,
+ * from any number of threads; actions and activities are instantiated once
+ * per registry and shared by every chart wired against it.
+ *
+ * <p>Obtain one with {@link
+ * XMLStateMachineFactory#getClientImplRegistry(java.io.InputStream)}, which
+ * parses each distinct document once, or from a {@link StateMachineHandler}
+ * that has parsed a client-impl document.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public final class ClientImplRegistry implements ClientImplProvider {
+    private final Map<String, Class<? extends Trigger>> triggerClasses;
+    private final Map<String, StateAction> actions;
+    private final Map<String, Activity> activities;
+    private final Map<String, Class<? extends Stateful>> statefulClasses;
+
+    /** Digest of the source document, or null if not built by a factory */
+    private final String digest;
+
+    /**
+     * Initializes a new ClientImplRegistry from copies of its maps.
+     *
+     * @param triggerClasses trigger name : Trigger class
+     * @param actions action name : StateAction
+     * @param activities activity name : Activity
+     * @param statefulClasses stateful name : Stateful class
+     * @param digest digest of the source document, or null
+     */
+    ClientImplRegistry(Map<String, Class<? extends Trigger>> triggerClasses,
+                       Map<String, StateAction> actions,
+                       Map<String, Activity> activities,
+                       Map<String, Class<? extends Stateful>> statefulClasses,
+                       String digest) {
+        this.triggerClasses = Collections.unmodifiableMap(
+            new HashMap<String, Class<? extends Trigger>>(triggerClasses));
+        this.actions = Collections.unmodifiableMap(
+            new HashMap<String, StateAction>(actions));
+        this.activities = Collections.unmodifiableMap(
+            new HashMap<String, Activity>(activities));
+        this.statefulClasses = Collections.unmodifiableMap(
+            new HashMap<String, Class<? extends Stateful>>(statefulClasses));
+        this.digest = digest;
+    }
+
+    /**
+     * Returns a copy of this registry recording the digest of its source
+     * document.
+     *
+     * @param sourceDigest a digest
+     *
+     * @return a ClientImplRegistry
+     */
+    ClientImplRegistry withDigest(String sourceDigest) {
+        return new ClientImplRegistry(triggerClasses, actions, activities,
+            statefulClasses, sourceDigest);
+    }
+
+    /**
+     * The digest of the document this registry was parsed from, used to key
+     * charts wired against it.
+     *
+     * @return a digest, or null if this registry wasn't built by an {@link
+     *         XMLStateMachineFactory}
+     */
+    String getDigest() {
+        return digest;
+    }
+
+    /**
+     * @see com.commercehub.core.state.ClientImplProvider#getTriggerClass(String)
+     */
+    public Class<? extends Trigger> getTriggerClass(String name) {
+        return triggerClasses.get(name);
+    }
+
+    /**
+     * @see com.commercehub.core.state.ClientImplProvider#getActionClass(String)
+     */
+    public Class getActionClass(String name) {
+        StateAction action = actions.get(name);
+        return action == null ? null : action.getClass();
+    }
+
+    /**
+     * The shared instance of a named action.
+     *
+     * @param name an action-defn name
+     *
+     * @return a StateAction, or null if no action has that name
+     */
+    public StateAction getAction(String name) {
+        return actions.get(name);
+    }
+
+    /**
+     * The shared instance of a named activity.
+     *
+     * @param name an activity-defn name
+     *
+     * @return an Activity, or null if no activity has that name
+     */
+    public Activity getActivity(String name) {
+        return activities.get(name);
+    }
+
+    /**
+     * The class of a named stateful.
+     *
+     * @param name a stateful-defn name
+     *
+     * @return a Stateful class, or null if no stateful has that name
+     */
+    public Class<? extends Stateful> getStatefulClass(String name) {
+        return statefulClasses.get(name);
+    }
+
+    /**
+     * The names of all triggers in this registry.
+     *
+     * @return an unmodifiable Set of names
+     */
+    public Set<String> getTriggerNames() {
+        return triggerClasses.keySet();
+    }
+
+    /**
+     * The names of all actions in this registry.
+     *
+     * @return an unmodifiable Set of names
+     */
+    public Set<String> getActionNames() {
+        return actions.keySet();
+    }
+
+    /**
+     * The names of all activities in this registry.
+     *
+     * @return an unmodifiable Set of names
+     */
+    public Set<String> getActivityNames() {
+        return activities.keySet();
+    }
+}
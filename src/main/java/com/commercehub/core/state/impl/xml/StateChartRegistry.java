@@ -0,0 +1,182 @@
+package com.commercehub.core.state.impl.xml;
+
+import com.commercehub.core.state.ChartVersions;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.StateMachineConfigurationException;
+import com.commercehub.core.state.Stateful;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Wired {@link StateChart StateCharts}, by name. Charts are immutable, so a
+ * registry can be filled once at start-up, by a {@link BulkStateChartLoader}
+ * or by hand, and then shared by every thread that needs machines. Registries
+ * are thread-safe.
+ *
+ * <p>A chart may be replaced while machines are running with {@link
+ * #publish(String, StateChart, Map)}, which keeps every revision published
+ * under the name. Machines already running keep their revision; Statefuls
+ * attached through {@link #attach(String, Stateful)} have their cookies
+ * migrated to the current revision first.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public class StateChartRegistry {
+    /** Name : StateChart */
+    private final ConcurrentMap<String, StateChart> charts =
+        new ConcurrentHashMap<String, StateChart>();
+
+    /** Name : revisions, for names that have been published */
+    private final ConcurrentMap<String, ChartVersions> versions =
+        new ConcurrentHashMap<String, ChartVersions>();
+
+    /**
+     * Registers a chart under a name, replacing any chart already registered
+     * under it and forgetting its revisions. Cookies of the replaced chart
+     * aren't migrated; use {@link #publish(String, StateChart, Map)} for that.
+     *
+     * @param name a name
+     * @param chart a wired StateChart
+     *
+     * @return the chart previously registered under the name, or null
+     */
+    public synchronized StateChart register(String name, StateChart chart) {
+        if (name == null || chart == null) {
+            throw new IllegalArgumentException("name and chart are required");
+        }
+        versions.remove(name);
+        return charts.put(name, chart);
+    }
+
+    /**
+     * Publishes a new revision of the chart registered under a name. The
+     * chart already registered becomes revision 1 the first time a name is
+     * published.
+     *
+     * @param name a name
+     * @param chart the new revision
+     * @param pathMap old path name : new path name; see {@link
+     *                com.commercehub.core.state.ChartMigration}
+     *
+     * @return the new revision's number
+     *
+     * @throws StateMachineConfigurationException if no chart is registered
+     *                                            under the name, or the path
+     *                                            map doesn't fit the charts
+     */
+    public synchronized int publish(String name, StateChart chart,
+                                    Map<String, String> pathMap)
+        throws StateMachineConfigurationException {
+        if (chart == null || pathMap == null) {
+            throw new IllegalArgumentException("chart and pathMap are required");
+        }
+        ChartVersions revisions = versions.get(name);
+        if (revisions == null) {
+            StateChart current = charts.get(name);
+            if (current == null) {
+                throw new StateMachineConfigurationException(
+                    "No state chart is registered as " + name);
+            }
+            revisions = new ChartVersions(current);
+            versions.put(name, revisions);
+        }
+        int version = revisions.publish(chart, pathMap);
+        charts.put(name, chart);
+        return version;
+    }
+
+    /**
+     * Returns the revisions published under a name.
+     *
+     * @param name a name
+     *
+     * @return the revisions, or null if nothing has been published under the
+     *         name
+     */
+    public ChartVersions getVersions(String name) {
+        return versions.get(name);
+    }
+
+    /**
+     * Attaches a Stateful to a new machine of the chart registered under a
+     * name, first migrating its cookie if it was written by an earlier
+     * revision.
+     *
+     * @param name a name
+     * @param stateful a Stateful
+     *
+     * @return the attached StateMachine
+     *
+     * @throws StateMachineConfigurationException if no chart is registered
+     *                                            under the name, or the cookie
+     *                                            belongs to none of its
+     *                                            revisions
+     */
+    public StateMachine attach(String name, Stateful stateful)
+        throws StateMachineConfigurationException {
+        ChartVersions revisions = versions.get(name);
+        if (revisions != null) {
+            return revisions.attach(stateful);
+        }
+        StateMachine machine = newStateMachine(name);
+        machine.attachStateful(stateful);
+        return machine;
+    }
+
+    /**
+     * Returns the chart registered under a name.
+     *
+     * @param name a name
+     *
+     * @return a StateChart, or null if none is registered under the name
+     */
+    public StateChart getStateChart(String name) {
+        return charts.get(name);
+    }
+
+    /**
+     * Creates a new, unattached StateMachine of the chart registered under a
+     * name.
+     *
+     * @param name a name
+     *
+     * @return a new StateMachine
+     *
+     * @throws StateMachineConfigurationException if no chart is registered
+     *                                            under the name
+     */
+    public StateMachine newStateMachine(String name)
+        throws StateMachineConfigurationException {
+        StateChart chart = charts.get(name);
+        if (chart == null) {
+            throw new StateMachineConfigurationException(
+                "No state chart is registered as " + name);
+        }
+        return chart.newStateMachine();
+    }
+
+    /**
+     * Returns the registered names, sorted.
+     *
+     * @return an unmodifiable snapshot of the names
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(
+            new TreeSet<String>(charts.keySet()));
+    }
+
+    /**
+     * The number of registered charts.
+     *
+     * @return a count
+     */
+    public int size() {
+        return charts.size();
+    }
+}
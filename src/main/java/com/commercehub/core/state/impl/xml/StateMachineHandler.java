@@ -3,25 +3,27 @@ package com.commercehub.core.state.impl.xml;
 
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.StringTokenizer;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import com.commercehub.core.state.Activity;
 import com.commercehub.core.state.ConcurrentState;
 import com.commercehub.core.state.Condition;
 import com.commercehub.core.state.ExclusiveState;
 import com.commercehub.core.state.PropertyValuePair;
 import com.commercehub.core.state.SetPropertyStateAction;
 import com.commercehub.core.state.State;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateChartOptimizer;
 import com.commercehub.core.state.StateAction;
 import com.commercehub.core.state.StateMachine;
 import com.commercehub.core.state.StateMachineConfigurationException;
 import com.commercehub.core.state.Stateful;
+import com.commercehub.core.state.TimeoutTrigger;
 import com.commercehub.core.state.Transition;
 import com.commercehub.core.state.Trigger;
 import com.commercehub.core.state.TriggerTransitionMap;
@@ -33,6 +35,15 @@ import com.commercehub.core.state.TriggerTransitionMap;
  * references generated during parsing are not consumed in the production of a
  * State Machine. Meaning you can pass one client-impl, then each corresponding
  * state-machine, without needing to re-parse the client file and vica versa.
+ *
+ * <p>A parsed client-impl is kept as an immutable {@link ClientImplRegistry}.
+ * To wire many state-machine documents against one client-impl, parse it once
+ * and give its registry to a {@link #StateMachineHandler(ClientImplRegistry)
+ * new handler} for each state-machine document.</p>
+ *
+ * <p>A handler {@link #setOptimizing(boolean) set to optimize} runs the
+ * {@link StateChartOptimizer} over the wired states and mappings before the
+ * chart is built, and keeps its {@link #getOptimizationReport() report}.</p>
  */
 public class StateMachineHandler extends DefaultHandler {
     private static StateAction a;
@@ -50,7 +61,9 @@ public class StateMachineHandler extends DefaultHandler {
     private LinkedList<Ref> triggerMapRefList;
     private LinkedList<PropertyValuePair> defaultPropertyValues;
 
-    private StateMachine stateMachine;
+    private State rootState;
+    private String description;
+    private StateChart stateChart;
     private HashMap<String, LinkedList<String>> possiblePropertyValueMap;
     private LinkedList<String> currentPropertyList;
 
@@ -60,8 +73,12 @@ public class StateMachineHandler extends DefaultHandler {
 
     /** Used for parsing a state-machine-client-impl */
     private HashMap<String, StateAction> actionMap;
-    private HashMap<String, TriggerDef> triggerMap;
-    private HashMap<String, StatefulDef> statefulMap;
+    private HashMap<String, Activity> activityMap;
+    private HashMap<String, Class<? extends Trigger>> triggerMap;
+    private HashMap<String, Class<? extends Stateful>> statefulMap;
+
+    /** The parsed or supplied client-impl */
+    private ClientImplRegistry clientImpl;
 
     /**
      * Used during WireEvents to provide visibility of a triggertransition map
@@ -75,6 +92,10 @@ public class StateMachineHandler extends DefaultHandler {
 
     private ExpressionParser conditionParser;
 
+    /** Whether to optimize the chart before it's built */
+    private boolean optimizing;
+    private StateChartOptimizer.Report optimizationReport;
+
     /**
      * Initializes a new StateMachineHandler object.
      */
@@ -83,6 +104,37 @@ public class StateMachineHandler extends DefaultHandler {
         elementStack = new LinkedList<String>();
     }
 
+    /**
+     * Initializes a new StateMachineHandler that wires against an already
+     * parsed client-impl. Only a state-machine document need be parsed.
+     *
+     * @param clientImpl a ClientImplRegistry
+     */
+    public StateMachineHandler(ClientImplRegistry clientImpl) {
+        this();
+        this.clientImpl = clientImpl;
+    }
+
+    /**
+     * Sets whether {@link #getWiredStateChart()} optimizes the chart before
+     * building it. Off by default.
+     *
+     * @param optimizing true to prune and merge with a StateChartOptimizer
+     */
+    public void setOptimizing(boolean optimizing) {
+        this.optimizing = optimizing;
+    }
+
+    /**
+     * What optimizing the wired chart removed.
+     *
+     * @return a Report, or null if the chart hasn't been built with
+     *         optimization on
+     */
+    public StateChartOptimizer.Report getOptimizationReport() {
+        return optimizationReport;
+    }
+
     /**
      * Receive notification of the beginning of an element. Dispatches these
      * notifications to startXXX and handleXXX methods for each element type.
@@ -113,6 +165,10 @@ public class StateMachineHandler extends DefaultHandler {
                 startTransition(attrs);
             } else if (qName.equals("exit-action-ref")) {
                 handleExitActionRef(attrs);
+            } else if (qName.equals("activity-ref")) {
+                handleActivityRef(attrs);
+            } else if (qName.equals("timeout")) {
+                handleTimeout(attrs);
             } else if (qName.equals("transition-ref")) {
                 handleTransitionRef(attrs);
             } else if (qName.equals("trigger-map")) {
@@ -123,6 +179,8 @@ public class StateMachineHandler extends DefaultHandler {
                 handleTriggerDefn(attrs);
             } else if (qName.equals("action-defn")) {
                 handleActionDefn(attrs);
+            } else if (qName.equals("activity-defn")) {
+                handleActivityDefn(attrs);
             } else if (qName.equals("stateful-defn")) {
                 handleStatefulDefn(attrs);
             } else if (qName.equals("property")) {
@@ -333,7 +391,6 @@ public class StateMachineHandler extends DefaultHandler {
         String concurrent = attrs.getValue("concurrent");
         String defaultChild = attrs.getValue("default-child-ref");
 
-        State rootState;
         if ("true".equals(concurrent)) {
             rootState = new ConcurrentState(attrs.getValue("name"), false);
         } else {
@@ -343,9 +400,8 @@ public class StateMachineHandler extends DefaultHandler {
         possiblePropertyValueMap = new HashMap<String, LinkedList<String>>();
         defaultPropertyValues = new LinkedList<PropertyValuePair>();
 
-        stateMachine =
-            new StateMachine(rootState, attrs.getValue("description"),
-                possiblePropertyValueMap, defaultPropertyValues);
+        description = attrs.getValue("description");
+        stateChart = null;
 
         stateStack.addLast(rootState);
         defaultStateStack.addLast(defaultChild);
@@ -501,6 +557,28 @@ public class StateMachineHandler extends DefaultHandler {
                 ActionRefTypes.STATE_EXIT));
     }
 
+    /**
+     * Receive notification of the empty element "activity-ref".
+     *
+     * @param attrs attributes attached to element, never <code>null</code>
+     */
+    public void handleActivityRef(Attributes attrs) {
+        String ref = attrs.getValue("ref");
+        String param = attrs.getValue("param");
+        refList.add(new ActivityRef(stateStack.getLast(), ref, param));
+    }
+
+    /**
+     * Receive notification of the empty element "timeout".
+     *
+     * @param attrs attributes attached to element, never <code>null</code>
+     */
+    public void handleTimeout(Attributes attrs) {
+        refList.add(new TimeoutRef(stateStack.getLast(),
+                attrs.getValue("delay"), attrs.getValue("ref"),
+                attrs.getValue("param")));
+    }
+
     /**
      * Receive notification of the beginning of element "trigger-map".
      *
@@ -530,23 +608,54 @@ public class StateMachineHandler extends DefaultHandler {
     }
 
     /**
-     * Clears the private trigger, action and stateful maps in preparation for a
-     * new state-machine-client definition.
+     * Clears the private trigger, action, activity and stateful maps in
+     * preparation for a new state-machine-client definition.
      *
      * @param attrs
      */
     public void startStateMachineClientImpl(Attributes attrs) {
-        triggerMap = new HashMap<String, TriggerDef>();
+        triggerMap = new HashMap<String, Class<? extends Trigger>>();
         actionMap = new HashMap<String, StateAction>();
-        statefulMap = new HashMap<String, StatefulDef>();
+        activityMap = new HashMap<String, Activity>();
+        statefulMap = new HashMap<String, Class<? extends Stateful>>();
     }
 
+    /**
+     * Receive notification of the end of element "state-machine-client-impl".
+     * The definitions parsed become this handler's ClientImplRegistry.
+     */
     public void endStateMachineClientImpl() {
+        clientImpl = new ClientImplRegistry(triggerMap, actionMap,
+                activityMap, statefulMap, null);
+        triggerMap = null;
+        actionMap = null;
+        activityMap = null;
+        statefulMap = null;
     }
 
     /**
-     * Handles Trigger-def elements, creating triggerdef skeletongs and adding
-     * them to a triggerMap keyed by name.
+     * Returns the client-impl this handler wires against, either parsed by it
+     * or supplied when it was created.
+     *
+     * @return an immutable ClientImplRegistry
+     *
+     * @throws StateMachineConfigurationException if this handler has not
+     *                                            parsed a client-impl
+     *                                            document
+     */
+    public ClientImplRegistry getClientImplRegistry()
+                                  throws StateMachineConfigurationException {
+        if (clientImpl == null) {
+            throw new StateMachineConfigurationException("The State Machine "
+                + "Handler has not parsed a state-machine-client-impl XML "
+                + "file.");
+        }
+        return clientImpl;
+    }
+
+    /**
+     * Handles Trigger-def elements, loading trigger classes and adding them
+     * to a triggerMap keyed by name.
      *
      * @param attrs
      */
@@ -555,9 +664,8 @@ public class StateMachineHandler extends DefaultHandler {
         String classic = attrs.getValue("class");
         try {
             triggerMap.put(name,
-                new TriggerDef(name,
-                    (Class<? extends Trigger>) Class.forName(classic, false,
-                        getClass().getClassLoader())));
+                (Class<? extends Trigger>) Class.forName(classic, false,
+                    getClass().getClassLoader()));
         } catch (ClassNotFoundException cnfe) {
 //            log.error("Cannot create Trigger defintion " + name
 //                + ", could not find " + classic, cnfe, LOG_ANCHOR_4);
@@ -590,8 +698,27 @@ public class StateMachineHandler extends DefaultHandler {
     }
 
     /**
-     * handles Stateful Definitions, creating StatefulDef skeletons and adding
-     * them to a statefulMap
+     * Handles activity-defn elements, creating them and adding them to an
+     * activityMap keyed by name for later access by {@link ActivityRef#wire()}
+     *
+     * @param attrs
+     */
+    public void handleActivityDefn(Attributes attrs) {
+        String name = attrs.getValue("name");
+        String classic = attrs.getValue("class");
+        try {
+            @SuppressWarnings("unchecked")
+            Class<Activity> activityClass =
+                (Class<Activity>) Class.forName(classic);
+            activityMap.put(name, activityClass.newInstance());
+        } catch (Exception ex) {
+            //left undefined; an activity-ref to it fails when wired
+        }
+    }
+
+    /**
+     * handles Stateful Definitions, loading Stateful classes and adding them
+     * to a statefulMap
      *
      * @param attrs
      */
@@ -600,8 +727,8 @@ public class StateMachineHandler extends DefaultHandler {
             String name = attrs.getValue("name");
             String classic = attrs.getValue("class");
             statefulMap.put(name,
-                new StatefulDef(name,
-                    (Class<? extends Stateful>) Class.forName(classic, false,getClass().getClassLoader())));
+                (Class<? extends Stateful>) Class.forName(classic, false,
+                    getClass().getClassLoader()));
         } catch (ClassNotFoundException cnfe) {
 //            log.error("Cannot create Stateful defintion", cnfe, LOG_ANCHOR_2);
         }
@@ -630,28 +757,32 @@ public class StateMachineHandler extends DefaultHandler {
 
     /**
      * Returns a fully wired (Trigger and Actions mapped to their corresponding
-     * States and Transitions) StateMachine. This handler should have been used
+     * States and Transitions) StateChart. This handler should have been used
      * to parse both a state-machine and a state-machine-impl class by then.
+     * The chart is built once; later calls return the same chart.
      *
-     * @return A fully wired State Machine
+     * @return A fully wired, frozen StateChart
      *
      * @throws StateMachineConfigurationException A configuration error
      *                                            indicating this state machine
      *                                            handler has been called
      *                                            improperly
      */
-    public StateMachine getWiredStateMachine()
-                                      throws StateMachineConfigurationException {
-        if (stateMachine == null) {
+    public StateChart getWiredStateChart()
+                                  throws StateMachineConfigurationException {
+        if (rootState == null) {
             throw new StateMachineConfigurationException("The State Machine "
                 + "Handler has not yet parsed a state-machine XML file.  No "
                 + "state machine can be returned.");
         }
-        if (statefulMap == null) {
+        if (clientImpl == null) {
             throw new StateMachineConfigurationException("The State Machine "
                 + "Handler has not parsed a state-machine-client-impl XML "
                 + "file.  No state machine can be returned.");
         }
+        if (stateChart != null) {
+            return stateChart;
+        }
 
         triggerTransMap = new TriggerTransitionMap();
 
@@ -661,9 +792,34 @@ public class StateMachineHandler extends DefaultHandler {
         if (!refList.isEmpty()) {
             wireEvents(refList);
         }
-        stateMachine.setTriggerTransitionMap(this.triggerTransMap);
+        if (optimizing) {
+            optimizationReport =
+                StateChartOptimizer.optimize(rootState, triggerTransMap);
+            triggerTransMap = optimizationReport.getTriggerTransitionMap();
+        }
+        stateChart = new StateChart(rootState, description,
+                possiblePropertyValueMap, defaultPropertyValues,
+                triggerTransMap);
+
+        return stateChart;
+    }
 
-        return stateMachine;
+    /**
+     * Returns a new StateMachine running the fully wired StateChart parsed by
+     * this handler.
+     *
+     * @return A fully wired State Machine
+     *
+     * @throws StateMachineConfigurationException A configuration error
+     *                                            indicating this state machine
+     *                                            handler has been called
+     *                                            improperly
+     *
+     * @see #getWiredStateChart()
+     */
+    public StateMachine getWiredStateMachine()
+                                      throws StateMachineConfigurationException {
+        return getWiredStateChart().newStateMachine();
     }
 
     /**
@@ -710,71 +866,23 @@ public class StateMachineHandler extends DefaultHandler {
         /**
          * Makes a real transition out of our little skeleton
          *
-         * @return A Transition wired to two States and a StateMachine
+         * @return A Transition wired to two States
          *
          * @throws StateMachineConfigurationException
          */
         Transition make() throws StateMachineConfigurationException {
-            State entryState = stateMachine.findByName(entryRef);
+            State entryState = rootState.findDescendant(entryRef);
             if (entryState == null) {
                 throw new StateMachineConfigurationException("Error handling "
-                    + stateMachine.getName() + ".  Transition " + name
+                    + rootState.getName() + ".  Transition " + name
                     + " is looking for nonexistant State " + entryRef + ".");
             }
             Transition realTrans =
-                new Transition(stateMachine, exitState, entryState, name);
+                new Transition(exitState, entryState, name);
             return realTrans;
         }
     }
 
-    /**
-     * Trigger Definition Skeleton
-     *
-     * @author mmiller
-     */
-    private class TriggerDef {
-        /** Name of a Trigger */
-        String name;
-
-        /** Class of a Trigger */
-        Class<? extends Trigger> triggerClass;
-
-        /**
-         * Initializes a new TriggerDef object.
-         *
-         * @param name
-         * @param triggerClass
-         */
-        TriggerDef(String name, Class<? extends Trigger> triggerClass) {
-            this.name = name;
-            this.triggerClass = triggerClass;
-        }
-    }
-
-    /**
-     * Stateful Definition Skeleton
-     *
-     * @author mmiller
-     */
-    private class StatefulDef {
-        /** Name of a Stateful */
-        String name;
-
-        /** Class of a Stateful */
-        Class<? extends Stateful> statefulClass;
-
-        /**
-         * Initializes a new StatefulDef object.
-         *
-         * @param name
-         * @param statefulClass
-         */
-        StatefulDef(String name, Class<? extends Stateful> statefulClass) {
-            this.name = name;
-            this.statefulClass = statefulClass;
-        }
-    }
-
     /**
      * Trigger Reference Skeleton
      *
@@ -800,18 +908,8 @@ public class StateMachineHandler extends DefaultHandler {
             //parse the parameter
             this.param = param;
             if (param instanceof String) {
-                String paramStr = (String) param;
-                if (paramStr.startsWith("{") && paramStr.endsWith("}")) {
-                    StringTokenizer st =
-                        new StringTokenizer(paramStr.substring(1,
-                                paramStr.length() - 1), ",");
-
-                    HashSet<String> hs = new HashSet<String>();
-                    while (st.hasMoreTokens()) {
-                        hs.add(st.nextToken());
-                    }
-                    this.param = hs;
-                }
+                this.param =
+                    StreamingStateChartLoader.parseParam((String) param);
             }
         }
 
@@ -839,17 +937,18 @@ public class StateMachineHandler extends DefaultHandler {
                                   IllegalAccessException,
                                   StateMachineConfigurationException {
             Transition trans = transitionMap.get(transRef);
-            TriggerDef td = triggerMap.get(triggerRef);
-            if (td == null) {
+            Class<? extends Trigger> triggerClass =
+                clientImpl.getTriggerClass(triggerRef);
+            if (triggerClass == null) {
                 throw new StateMachineConfigurationException(
                     "Trigger " + triggerRef
                     + " isn't defined in a clientimpl file.");
             }
             if (condition == null) {
-                triggerTransMap.addTriggerTransition(td.triggerClass, param,
+                triggerTransMap.addTriggerTransition(triggerClass, param,
                     trans);
             } else {
-                triggerTransMap.addTriggerTransition(td.triggerClass, param,
+                triggerTransMap.addTriggerTransition(triggerClass, param,
                     trans, condition);
             }
         }
@@ -944,7 +1043,7 @@ public class StateMachineHandler extends DefaultHandler {
         public void wire() throws InstantiationException,
                                   IllegalAccessException,
                                   StateMachineConfigurationException {
-            StateAction a = (StateAction) actionMap.get(actionRef);
+            StateAction a = clientImpl.getAction(actionRef);
             if (a == null) {
                 throw new StateMachineConfigurationException(
                     "State Action " + actionRef
@@ -965,6 +1064,79 @@ public class StateMachineHandler extends DefaultHandler {
         }
     }
 
+    /**
+     * Activity Reference Skeleton
+     *
+     * @author Matthew Mark Miller
+     */
+    private class ActivityRef implements Ref {
+        private State state;
+        private String activityRef;
+        private String param;
+
+        /**
+         * Initializes a new ActivityRef object.
+         *
+         * @param state
+         * @param activityRef
+         * @param param
+         */
+        ActivityRef(State state, String activityRef, String param) {
+            this.state = state;
+            this.activityRef = activityRef;
+            this.param = param;
+        }
+
+        /**
+         * @see Ref#wire()
+         */
+        public void wire() throws StateMachineConfigurationException {
+            Activity a = clientImpl.getActivity(activityRef);
+            if (a == null) {
+                throw new StateMachineConfigurationException(
+                    "Activity " + activityRef
+                    + " is not defined in a clientimpl file.");
+            }
+            state.addActivity(a, param);
+        }
+    }
+
+    /**
+     * Timeout Reference Skeleton
+     *
+     * @author Matthew Mark Miller
+     */
+    private class TimeoutRef implements Ref {
+        private State state;
+        private String delay;
+        private String triggerRef;
+        private String param;
+
+        /**
+         * Initializes a new TimeoutRef object.
+         *
+         * @param state
+         * @param delay
+         * @param triggerRef
+         * @param param
+         */
+        TimeoutRef(State state, String delay, String triggerRef,
+                   String param) {
+            this.state = state;
+            this.delay = delay;
+            this.triggerRef = triggerRef;
+            this.param = param;
+        }
+
+        /**
+         * @see Ref#wire()
+         */
+        public void wire() throws StateMachineConfigurationException {
+            state.setTimeout(StreamingStateChartLoader.parseTimeout(
+                    clientImpl, delay, triggerRef, param));
+        }
+    }
+
     /**
      * DOCUMENT ME!
      *
@@ -990,7 +1162,7 @@ public class StateMachineHandler extends DefaultHandler {
          * @throws StateMachineConfigurationException DOCUMENT ME!
          */
         void make(Transition trans) throws StateMachineConfigurationException {
-            State state = stateMachine.findByName(stateRef);
+            State state = rootState.findDescendant(stateRef);
             if (state != null) {
                 trans.addRankedState(state);
             } else {
@@ -0,0 +1,707 @@
+package com.commercehub.core.state.impl.xml;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.commercehub.core.state.Activity;
+import com.commercehub.core.state.ConcurrentState;
+import com.commercehub.core.state.Condition;
+import com.commercehub.core.state.ExclusiveState;
+import com.commercehub.core.state.PropertyValuePair;
+import com.commercehub.core.state.SetPropertyStateAction;
+import com.commercehub.core.state.State;
+import com.commercehub.core.state.StateAction;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateChartOptimizer;
+import com.commercehub.core.state.StateMachineConfigurationException;
+import com.commercehub.core.state.StateTimeout;
+import com.commercehub.core.state.TimeoutTrigger;
+import com.commercehub.core.state.Transition;
+import com.commercehub.core.state.Trigger;
+import com.commercehub.core.state.TriggerTransitionMap;
+
+/**
+ * Loads a state-machine document into a StateChart in one streaming pass,
+ * wired against an already parsed client-impl. An alternative to a {@link
+ * StateMachineHandler} for large documents: it builds the same chart, with
+ * less garbage and less work per element.
+ *
+ * <p>Elements are read from a StAX XMLStreamReader and dispatched through a
+ * table of element codes. States, their actions and properties are wired as
+ * they are read. A transition is made as soon as its element starts if its
+ * entry state has already been read, and its actions and ranked states are
+ * added to it at once; transitions into states further on are made, and
+ * their buffered actions and ranks added, in a fix-up pass over flat arrays
+ * at the end of the document. Mappings are always recorded and added at the
+ * end, trigger-map mappings first and then the others in document order, as
+ * a StateMachineHandler adds them; a mapping needs the whole tree under its
+ * entry state, and the order of mappings decides which transition fires.</p>
+ *
+ * <p>Like a StateMachineHandler, the loader skips references it can't
+ * resolve: an undefined trigger or action, a ranked state that doesn't
+ * exist. Like it too, the loader fails to build a chart with a transition
+ * into a state that doesn't exist. The references inside a transition
+ * element belong to that element's transition; a trigger-map refers to
+ * transitions by name, the last of a name winning.</p>
+ *
+ * <p>A loader keeps no state between documents and may be shared by
+ * threads.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+public class StreamingStateChartLoader {
+    /** Shared by all loaders; guarded by itself */
+    private static final XMLInputFactory INPUT_FACTORY;
+
+    static {
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    private static final StateAction SET_PROPERTY =
+        new SetPropertyStateAction();
+
+    private static final int STATE_MACHINE = 1;
+    private static final int STATE = 2;
+    private static final int TRANSITION = 3;
+    private static final int TRIGGER_REF = 4;
+    private static final int TRANSITION_ACTION_REF = 5;
+    private static final int TRANSITION_SET_PROPERTY = 6;
+    private static final int STATE_RANK = 7;
+    private static final int ENTRY_ACTION_REF = 8;
+    private static final int EXIT_ACTION_REF = 9;
+    private static final int ENTRY_SET_PROPERTY = 10;
+    private static final int EXIT_SET_PROPERTY = 11;
+    private static final int TRIGGER_MAP = 12;
+    private static final int TRANSITION_REF = 13;
+    private static final int CONDITION = 14;
+    private static final int PROPERTY = 15;
+    private static final int VALUE = 16;
+    private static final int ACTIVITY_REF = 17;
+    private static final int TIMEOUT = 18;
+
+    /** Element name : element code; never modified once built */
+    private static final Map<String, Integer> ELEMENTS =
+        new HashMap<String, Integer>();
+
+    static {
+        ELEMENTS.put("state-machine", STATE_MACHINE);
+        ELEMENTS.put("state", STATE);
+        ELEMENTS.put("transition", TRANSITION);
+        ELEMENTS.put("trigger-ref", TRIGGER_REF);
+        ELEMENTS.put("transition-action-ref", TRANSITION_ACTION_REF);
+        ELEMENTS.put("transition-set-property", TRANSITION_SET_PROPERTY);
+        ELEMENTS.put("state-rank", STATE_RANK);
+        ELEMENTS.put("entry-action-ref", ENTRY_ACTION_REF);
+        ELEMENTS.put("exit-action-ref", EXIT_ACTION_REF);
+        ELEMENTS.put("entry-set-property", ENTRY_SET_PROPERTY);
+        ELEMENTS.put("exit-set-property", EXIT_SET_PROPERTY);
+        ELEMENTS.put("trigger-map", TRIGGER_MAP);
+        ELEMENTS.put("transition-ref", TRANSITION_REF);
+        ELEMENTS.put("condition", CONDITION);
+        ELEMENTS.put("property", PROPERTY);
+        ELEMENTS.put("value", VALUE);
+        ELEMENTS.put("activity-ref", ACTIVITY_REF);
+        ELEMENTS.put("timeout", TIMEOUT);
+    }
+
+    private final ClientImplRegistry clientImpl;
+    private final boolean optimizing;
+
+    /**
+     * Initializes a new StreamingStateChartLoader that builds charts as they
+     * are defined.
+     *
+     * @param clientImpl the client-impl documents are wired against
+     */
+    public StreamingStateChartLoader(ClientImplRegistry clientImpl) {
+        this(clientImpl, false);
+    }
+
+    /**
+     * Initializes a new StreamingStateChartLoader.
+     *
+     * @param clientImpl the client-impl documents are wired against
+     * @param optimizing true to prune and merge each chart with a {@link
+     *                   StateChartOptimizer} before building it
+     */
+    public StreamingStateChartLoader(ClientImplRegistry clientImpl,
+                                     boolean optimizing) {
+        if (clientImpl == null) {
+            throw new IllegalArgumentException("clientImpl may not be null");
+        }
+        this.clientImpl = clientImpl;
+        this.optimizing = optimizing;
+    }
+
+    /**
+     * Reads a state-machine document and builds its chart. The stream is
+     * read to the end of the document but not closed.
+     *
+     * @param stateMachineStream a state-machine document
+     *
+     * @return a wired, frozen StateChart
+     *
+     * @throws StateMachineConfigurationException if the document can't be
+     *                                            read or parsed, isn't a
+     *                                            state-machine, or has a
+     *                                            malformed condition
+     */
+    public StateChart load(InputStream stateMachineStream)
+                    throws StateMachineConfigurationException {
+        try {
+            XMLStreamReader reader;
+            synchronized (INPUT_FACTORY) {
+                reader = INPUT_FACTORY.createXMLStreamReader(
+                    stateMachineStream);
+            }
+            try {
+                return new Pass(reader).run();
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException xse) {
+            throw new StateMachineConfigurationException(
+                "The state-machine document can't be parsed", xse);
+        }
+    }
+
+    /**
+     * Builds the StateTimeout of a timeout element, the same way for both
+     * loaders. Without a ref, the timeout pulls a plain TimeoutTrigger.
+     *
+     * @throws StateMachineConfigurationException if the delay isn't a
+     *         non-negative number of milliseconds, or the ref doesn't name a
+     *         TimeoutTrigger class that can be instantiated
+     */
+    static StateTimeout parseTimeout(ClientImplRegistry clientImpl,
+                                     String delay, String triggerRef,
+                                     String param)
+                              throws StateMachineConfigurationException {
+        long delayMillis;
+        try {
+            delayMillis = Long.parseLong(delay);
+        } catch (NumberFormatException nfe) {
+            throw new StateMachineConfigurationException("Timeout delay "
+                + delay + " is not a number of milliseconds.");
+        }
+        Class<? extends TimeoutTrigger> triggerClass = TimeoutTrigger.class;
+        if (triggerRef != null) {
+            Class<? extends Trigger> mapped =
+                clientImpl.getTriggerClass(triggerRef);
+            if (mapped == null
+                    || !TimeoutTrigger.class.isAssignableFrom(mapped)) {
+                throw new StateMachineConfigurationException("Trigger "
+                    + triggerRef + " is not a TimeoutTrigger defined in a "
+                    + "clientimpl file.");
+            }
+            triggerClass = mapped.asSubclass(TimeoutTrigger.class);
+        }
+        try {
+            return new StateTimeout(delayMillis, triggerClass, param);
+        } catch (IllegalArgumentException iae) {
+            throw new StateMachineConfigurationException(iae.getMessage(),
+                iae);
+        }
+    }
+
+    /**
+     * Parses a trigger parameter the way a StateMachineHandler does:
+     * <code>{a,b,c}</code> is a Set of its trimmed, non-empty values, and
+     * anything else is itself.
+     */
+    static Object parseParam(String param) {
+        if (param == null || !param.startsWith("{") || !param.endsWith("}")) {
+            return param;
+        }
+        StringTokenizer st = new StringTokenizer(
+            param.substring(1, param.length() - 1), ",");
+        Set<String> values = new LinkedHashSet<String>();
+        while (st.hasMoreTokens()) {
+            String value = st.nextToken().trim();
+            if (value.length() > 0) {
+                values.add(value);
+            }
+        }
+        return Collections.unmodifiableSet(values);
+    }
+
+    /**
+     * Mappings recorded while reading, in document order, as parallel
+     * arrays. A row whose trigger is undefined is kept, so a condition that
+     * follows it has a row to belong to, and skipped when the mappings are
+     * added.
+     */
+    private static final class MappingRows {
+        /** Transition slot, or -1 to look the transition up by name */
+        private int[] slots = new int[16];
+        private String[] names = new String[16];
+        private Class[] triggers = new Class[16];
+        private Object[] params = new Object[16];
+        private Condition[] conditions = new Condition[16];
+        private int size;
+
+        void add(int slot, String name, Class<? extends Trigger> trigger,
+                 Object param) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, slots.length * 2);
+                names = Arrays.copyOf(names, names.length * 2);
+                triggers = Arrays.copyOf(triggers, triggers.length * 2);
+                params = Arrays.copyOf(params, params.length * 2);
+                conditions = Arrays.copyOf(conditions, conditions.length * 2);
+            }
+            slots[size] = slot;
+            names[size] = name;
+            triggers[size] = trigger;
+            params[size] = param;
+            size++;
+        }
+
+        void setLastCondition(Condition condition) {
+            if (size > 0) {
+                conditions[size - 1] = condition;
+            }
+        }
+    }
+
+    /**
+     * The state of reading one document.
+     */
+    private final class Pass {
+        private final XMLStreamReader reader;
+        private final ExpressionParser conditionParser =
+            new ExpressionParser();
+
+        private State rootState;
+        private String description;
+        private final Map<String, List<String>> possiblePropertyValueMap =
+            new HashMap<String, List<String>>();
+        private final List<PropertyValuePair> defaultPropertyValues =
+            new LinkedList<PropertyValuePair>();
+        private List<String> currentPropertyList;
+
+        /** Open states and their default-child-refs; stateDepth deep */
+        private State[] stateStack = new State[16];
+        private String[] defaultStack = new String[16];
+        private int stateDepth;
+
+        /**
+         * Transition slots, in document order. A slot's Transition is null
+         * until its entry state is found.
+         */
+        private Transition[] transitions = new Transition[64];
+        private State[] exitStates = new State[64];
+        private String[] entryRefs = new String[64];
+        private String[] transitionNames = new String[64];
+        private int transitionCount;
+
+        /** The slot of the open transition element, or -1 */
+        private int currentTransition = -1;
+
+        /** Whether a slot has ranks waiting for the fix-up pass */
+        private boolean[] rankPending = new boolean[64];
+
+        /** Actions of slots made in the fix-up pass, in document order */
+        private int[] actionSlots = new int[16];
+        private StateAction[] actions = new StateAction[16];
+        private Object[] actionParams = new Object[16];
+        private int actionCount;
+
+        /** Ranks waiting for the fix-up pass, in document order */
+        private int[] rankSlots = new int[16];
+        private String[] rankRefs = new String[16];
+        private int rankCount;
+
+        private final MappingRows triggerMapRows = new MappingRows();
+        private final MappingRows triggerRows = new MappingRows();
+
+        /** The open trigger-map's trigger and parameter */
+        private String triggerMapRef;
+        private Object triggerMapParam;
+        private boolean inTriggerMap;
+
+        Pass(XMLStreamReader reader) {
+            this.reader = reader;
+        }
+
+        StateChart run() throws XMLStreamException,
+                                StateMachineConfigurationException {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamReader.START_ELEMENT) {
+                    startElement();
+                } else if (event == XMLStreamReader.END_ELEMENT) {
+                    if (endElement()) {
+                        break;
+                    }
+                }
+            }
+            if (rootState == null) {
+                throw new StateMachineConfigurationException(
+                    "The document has no state-machine element.");
+            }
+            return build();
+        }
+
+        private String attr(String name) {
+            return reader.getAttributeValue(null, name);
+        }
+
+        private void startElement() throws XMLStreamException,
+                                           StateMachineConfigurationException {
+            Integer code = ELEMENTS.get(reader.getLocalName());
+            if (code == null) {
+                return;
+            }
+            if (rootState == null && code.intValue() != STATE_MACHINE) {
+                throw new StateMachineConfigurationException("<"
+                    + reader.getLocalName()
+                    + "> isn't part of a state-machine document.");
+            }
+            switch (code.intValue()) {
+                case STATE_MACHINE:
+                    startStateMachine();
+                    break;
+                case STATE:
+                    startState();
+                    break;
+                case TRANSITION:
+                    startTransition();
+                    break;
+                case TRIGGER_REF:
+                    if (currentTransition >= 0) {
+                        triggerRows.add(currentTransition, null,
+                            clientImpl.getTriggerClass(attr("ref")),
+                            parseParam(attr("param")));
+                    }
+                    break;
+                case TRANSITION_ACTION_REF:
+                    addTransitionAction(clientImpl.getAction(attr("ref")),
+                        attr("param"));
+                    break;
+                case TRANSITION_SET_PROPERTY:
+                    addTransitionAction(SET_PROPERTY, new PropertyValuePair(
+                        attr("name"), attr("value")));
+                    break;
+                case STATE_RANK:
+                    addRank(attr("ref"));
+                    break;
+                case ENTRY_ACTION_REF:
+                    StateAction entryAction =
+                        clientImpl.getAction(attr("ref"));
+                    if (entryAction != null) {
+                        currentState().addEntryAction(entryAction,
+                            attr("param"));
+                    }
+                    break;
+                case EXIT_ACTION_REF:
+                    StateAction exitAction = clientImpl.getAction(attr("ref"));
+                    if (exitAction != null) {
+                        currentState().addExitAction(exitAction,
+                            attr("param"));
+                    }
+                    break;
+                case ACTIVITY_REF:
+                    Activity activity = clientImpl.getActivity(attr("ref"));
+                    if (activity == null) {
+                        //a state left without its activity would never leave
+                        throw new StateMachineConfigurationException(
+                            "Activity " + attr("ref")
+                            + " is not defined in a clientimpl file.");
+                    }
+                    currentState().addActivity(activity, attr("param"));
+                    break;
+                case TIMEOUT:
+                    currentState().setTimeout(parseTimeout(clientImpl,
+                        attr("delay"), attr("ref"), attr("param")));
+                    break;
+                case ENTRY_SET_PROPERTY:
+                    currentState().addEntryAction(SET_PROPERTY,
+                        new PropertyValuePair(attr("name"), attr("value")));
+                    break;
+                case EXIT_SET_PROPERTY:
+                    currentState().addExitAction(SET_PROPERTY,
+                        new PropertyValuePair(attr("name"), attr("value")));
+                    break;
+                case TRIGGER_MAP:
+                    inTriggerMap = true;
+                    triggerMapRef = attr("ref");
+                    triggerMapParam = parseParam(attr("param"));
+                    break;
+                case TRANSITION_REF:
+                    triggerMapRows.add(-1, attr("ref"),
+                        clientImpl.getTriggerClass(triggerMapRef),
+                        triggerMapParam);
+                    break;
+                case CONDITION:
+                    //reads through the end of the condition element
+                    String expression = reader.getElementText();
+                    Condition condition;
+                    try {
+                        condition = conditionParser.parse(expression);
+                    } catch (ParseException pe) {
+                        throw new StateMachineConfigurationException(
+                            "Malformed condition " + expression, pe);
+                    }
+                    if (inTriggerMap) {
+                        triggerMapRows.setLastCondition(condition);
+                    } else {
+                        triggerRows.setLastCondition(condition);
+                    }
+                    break;
+                case PROPERTY:
+                    currentPropertyList = new LinkedList<String>();
+                    possiblePropertyValueMap.put(attr("name"),
+                        currentPropertyList);
+                    String defaultValue = attr("default-value");
+                    if (defaultValue != null) {
+                        defaultPropertyValues.add(new PropertyValuePair(
+                            attr("name"), defaultValue));
+                    }
+                    break;
+                case VALUE:
+                    if (currentPropertyList != null) {
+                        currentPropertyList.add(attr("text"));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * @return true at the end of the state-machine element
+         */
+        private boolean endElement() {
+            Integer code = ELEMENTS.get(reader.getLocalName());
+            if (code == null) {
+                return false;
+            }
+            switch (code.intValue()) {
+                case STATE_MACHINE:
+                    return true;
+                case STATE:
+                    stateDepth--;
+                    break;
+                case TRANSITION:
+                    currentTransition = -1;
+                    break;
+                case TRIGGER_MAP:
+                    inTriggerMap = false;
+                    triggerMapRef = null;
+                    triggerMapParam = null;
+                    break;
+                default:
+                    break;
+            }
+            return false;
+        }
+
+        private State currentState() {
+            return stateStack[stateDepth - 1];
+        }
+
+        private void pushState(State state, String defaultChildRef) {
+            if (stateDepth == stateStack.length) {
+                stateStack = Arrays.copyOf(stateStack, stateStack.length * 2);
+                defaultStack =
+                    Arrays.copyOf(defaultStack, defaultStack.length * 2);
+            }
+            stateStack[stateDepth] = state;
+            defaultStack[stateDepth] = defaultChildRef;
+            stateDepth++;
+        }
+
+        private void startStateMachine()
+                                throws StateMachineConfigurationException {
+            if (rootState != null) {
+                throw new StateMachineConfigurationException(
+                    "A state-machine may not contain another state-machine.");
+            }
+            if ("true".equals(attr("concurrent"))) {
+                rootState = new ConcurrentState(attr("name"), false);
+            } else {
+                rootState = new ExclusiveState(attr("name"), false, false);
+            }
+            description = attr("description");
+            pushState(rootState, attr("default-child-ref"));
+        }
+
+        private void startState() {
+            String history = attr("history");
+            String name = attr("name");
+            State newState;
+            if ("true".equals(attr("concurrent"))) {
+                newState = new ConcurrentState(name, "deep".equals(history));
+            } else {
+                newState = new ExclusiveState(name, "self".equals(history),
+                        "deep".equals(history));
+            }
+            State parent = currentState();
+            parent.addChild(newState);
+            if (parent instanceof ExclusiveState
+                    && name.equals(defaultStack[stateDepth - 1])) {
+                ((ExclusiveState) parent).setDefaultChild(newState);
+            }
+            pushState(newState, attr("default-child-ref"));
+        }
+
+        private void startTransition() {
+            if (transitionCount == transitions.length) {
+                transitions =
+                    Arrays.copyOf(transitions, transitions.length * 2);
+                exitStates = Arrays.copyOf(exitStates, exitStates.length * 2);
+                entryRefs = Arrays.copyOf(entryRefs, entryRefs.length * 2);
+                transitionNames =
+                    Arrays.copyOf(transitionNames, transitionNames.length * 2);
+                rankPending =
+                    Arrays.copyOf(rankPending, rankPending.length * 2);
+            }
+            int slot = transitionCount++;
+            String entryRef = attr("entry");
+            String name = attr("name");
+            State exitState = currentState();
+            exitStates[slot] = exitState;
+            entryRefs[slot] = entryRef;
+            transitionNames[slot] = name;
+            //a backward reference is wired now, a forward one in fixUp()
+            State entryState = rootState.findDescendant(entryRef);
+            if (entryState != null) {
+                transitions[slot] = new Transition(exitState, entryState,
+                        name);
+            }
+            currentTransition = slot;
+        }
+
+        private void addTransitionAction(StateAction action, Object param) {
+            if (action == null || currentTransition < 0) {
+                return;
+            }
+            Transition transition = transitions[currentTransition];
+            if (transition != null) {
+                transition.addAction(action, param);
+                return;
+            }
+            if (actionCount == actionSlots.length) {
+                actionSlots =
+                    Arrays.copyOf(actionSlots, actionSlots.length * 2);
+                actions = Arrays.copyOf(actions, actions.length * 2);
+                actionParams =
+                    Arrays.copyOf(actionParams, actionParams.length * 2);
+            }
+            actionSlots[actionCount] = currentTransition;
+            actions[actionCount] = action;
+            actionParams[actionCount] = param;
+            actionCount++;
+        }
+
+        private void addRank(String stateRef) {
+            if (currentTransition < 0) {
+                return;
+            }
+            Transition transition = transitions[currentTransition];
+            if (transition != null && !rankPending[currentTransition]) {
+                State state = rootState.findDescendant(stateRef);
+                if (state != null) {
+                    transition.addRankedState(state);
+                    return;
+                }
+            }
+            //keep this transition's ranks in order behind the pending one
+            rankPending[currentTransition] = true;
+            if (rankCount == rankSlots.length) {
+                rankSlots = Arrays.copyOf(rankSlots, rankSlots.length * 2);
+                rankRefs = Arrays.copyOf(rankRefs, rankRefs.length * 2);
+            }
+            rankSlots[rankCount] = currentTransition;
+            rankRefs[rankCount] = stateRef;
+            rankCount++;
+        }
+
+        /**
+         * Makes the transitions into states that followed them, and adds
+         * the actions and ranks that waited for them.
+         *
+         * @throws StateMachineConfigurationException if a transition's entry
+         *                                            state doesn't exist
+         */
+        private void fixUp() throws StateMachineConfigurationException {
+            for (int slot = 0; slot < transitionCount; slot++) {
+                if (transitions[slot] == null) {
+                    State entryState =
+                        rootState.findDescendant(entryRefs[slot]);
+                    if (entryState == null) {
+                        throw new StateMachineConfigurationException(
+                            "Error handling " + rootState.getName()
+                            + ".  Transition " + transitionNames[slot]
+                            + " is looking for nonexistant State "
+                            + entryRefs[slot] + ".");
+                    }
+                    transitions[slot] = new Transition(exitStates[slot],
+                            entryState, transitionNames[slot]);
+                }
+            }
+            for (int i = 0; i < actionCount; i++) {
+                transitions[actionSlots[i]].addAction(actions[i],
+                    actionParams[i]);
+            }
+            for (int i = 0; i < rankCount; i++) {
+                State state = rootState.findDescendant(rankRefs[i]);
+                if (state != null) {
+                    transitions[rankSlots[i]].addRankedState(state);
+                }
+            }
+        }
+
+        private void addMappings(MappingRows rows,
+                                 Map<String, Transition> byName,
+                                 TriggerTransitionMap map) {
+            for (int i = 0; i < rows.size; i++) {
+                Transition transition = rows.slots[i] < 0
+                    ? byName.get(rows.names[i]) : transitions[rows.slots[i]];
+                Class triggerClass = rows.triggers[i];
+                if (transition == null || triggerClass == null) {
+                    continue;
+                }
+                if (rows.conditions[i] == null) {
+                    map.addTriggerTransition(triggerClass, rows.params[i],
+                        transition);
+                } else {
+                    map.addTriggerTransition(triggerClass, rows.params[i],
+                        transition, rows.conditions[i]);
+                }
+            }
+        }
+
+        private StateChart build() throws StateMachineConfigurationException {
+            fixUp();
+            Map<String, Transition> byName = new HashMap<String, Transition>();
+            if (triggerMapRows.size > 0) {
+                for (int slot = 0; slot < transitionCount; slot++) {
+                    byName.put(transitionNames[slot], transitions[slot]);
+                }
+            }
+            TriggerTransitionMap map = new TriggerTransitionMap();
+            addMappings(triggerMapRows, byName, map);
+            addMappings(triggerRows, byName, map);
+            if (optimizing) {
+                map = StateChartOptimizer.optimize(rootState, map)
+                    .getTriggerTransitionMap();
+            }
+            return new StateChart(rootState, description,
+                possiblePropertyValueMap, defaultPropertyValues, map);
+        }
+    }
+}
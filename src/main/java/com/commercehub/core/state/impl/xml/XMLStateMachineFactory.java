@@ -1,22 +1,24 @@
 
 package com.commercehub.core.state.impl.xml;
 
-import com.commercehub.core.state.StateCookie;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateChartOptimizer;
 import com.commercehub.core.state.StateMachine;
 import com.commercehub.core.state.StateMachineConfigurationException;
-import com.commercehub.core.state.Stateful;
 
 import org.xml.sax.SAXException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Set;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import javax.sql.DataSource;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -26,32 +28,396 @@ import javax.xml.parsers.SAXParserFactory;
  * com.commercehub.core.state.StateMachineFactory} that creates new, fully
  * modelled and wired StateMachine objects from XML.
  *
+ * <p>Parsed definitions are cached for the life of the JVM, keyed by a
+ * SHA-256 digest of the state-machine and client-impl documents. Since a
+ * {@link StateChart} is immutable and shared by all the machines created from
+ * it, a document pair is parsed and wired at most once; later calls with the
+ * same bytes return the cached chart, or a new StateMachine of it. Any change
+ * to either document is a new key, and is parsed afresh.</p>
+ *
+ * <p>Client-impl documents are cached the same way, as {@link
+ * ClientImplRegistry ClientImplRegistries}. Where many state-machine
+ * documents share one client-impl, load it once with {@link
+ * #getClientImplRegistry(InputStream)} and wire each state-machine document
+ * against the registry with {@link #getStateChartFromInputStream(InputStream,
+ * ClientImplRegistry)}; its trigger and stateful classes are loaded, and its
+ * actions instantiated, only once.</p>
+ *
+ * <p>A factory {@link #XMLStateMachineFactory(boolean) created to optimize}
+ * runs each chart through a {@link StateChartOptimizer} before building it.
+ * Optimized and unoptimized charts of the same documents are cached apart.
+ * {@link #getOptimizationReport(InputStream, ClientImplRegistry)} reports
+ * what optimizing a document would remove.</p>
+ *
  * @author jply
  * @author Matthew Mark Miller
  * @author pmogren
  */
 public class XMLStateMachineFactory {
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /** Shared by all factories; guarded by itself */
+    private static final SAXParserFactory PARSER_FACTORY;
+
+    static {
+        PARSER_FACTORY = SAXParserFactory.newInstance();
+        PARSER_FACTORY.setValidating(false);
+    }
+
+    /** Definition digest : Cached StateChart */
+    private static final ConcurrentMap<String, Cached<StateChart>> DEFINITIONS =
+        new ConcurrentHashMap<String, Cached<StateChart>>();
+
+    /** Client-impl digest : Cached ClientImplRegistry */
+    private static final ConcurrentMap<String, Cached<ClientImplRegistry>>
+        CLIENT_IMPLS =
+            new ConcurrentHashMap<String, Cached<ClientImplRegistry>>();
+
+    /** Whether charts are optimized before they're built */
+    private final boolean optimizing;
+
+    /**
+     * Initializes a new XMLStateMachineFactory that builds charts as they are
+     * defined.
+     */
+    public XMLStateMachineFactory() {
+        this(false);
+    }
+
+    /**
+     * Initializes a new XMLStateMachineFactory.
+     *
+     * @param optimizing true to prune and merge each chart with a {@link
+     *                   StateChartOptimizer} before building it
+     */
+    public XMLStateMachineFactory(boolean optimizing) {
+        this.optimizing = optimizing;
+    }
+
+    /**
+     * Parses a state-machine document and its client-impl document into a new
+     * StateMachine.
+     *
+     * @param stateMachineStream a state-machine document
+     * @param clientImplStream a state-machine-client-impl document
+     *
+     * @return a wired StateMachine, sharing the StateChart of every other
+     *         machine created from the same documents
+     *
+     * @throws StateMachineConfigurationException if the documents don't
+     *                                            describe a valid machine
+     * @throws SAXException if either document can't be parsed
+     * @throws IOException if either document can't be read
+     */
     public StateMachine getStateMachineFromInputStreams(InputStream stateMachineStream,
         InputStream clientImplStream) throws StateMachineConfigurationException, SAXException,
         IOException {
-        StateMachineHandler handler = new StateMachineHandler();
-        StateMachine stateMachine = null;
+        return getStateChartFromInputStreams(stateMachineStream,
+            clientImplStream).newStateMachine();
+    }
+
+    /**
+     * Returns the immutable StateChart for a state-machine document and its
+     * client-impl document, from which any number of StateMachines may be
+     * created. Both streams are read to the end, but not closed. The
+     * documents are only parsed if no chart has yet been built from the same
+     * bytes.
+     *
+     * @param stateMachineStream a state-machine document
+     * @param clientImplStream a state-machine-client-impl document
+     *
+     * @return a wired StateChart
+     *
+     * @throws StateMachineConfigurationException if the documents don't
+     *                                            describe a valid machine
+     * @throws SAXException if either document can't be parsed
+     * @throws IOException if either document can't be read
+     */
+    public StateChart getStateChartFromInputStreams(InputStream stateMachineStream,
+        InputStream clientImplStream) throws StateMachineConfigurationException, SAXException,
+        IOException {
+        byte[] stateMachine = readFully(stateMachineStream);
+        return getStateChart(stateMachine,
+            getClientImplRegistry(readFully(clientImplStream)));
+    }
+
+    /**
+     * Parses a state-machine document into a new StateMachine wired against a
+     * client-impl that has already been loaded.
+     *
+     * @param stateMachineStream a state-machine document
+     * @param clientImpl a ClientImplRegistry
+     *
+     * @return a wired StateMachine, sharing the StateChart of every other
+     *         machine created from the same document and registry
+     *
+     * @throws StateMachineConfigurationException if the document doesn't
+     *                                            describe a valid machine
+     * @throws SAXException if the document can't be parsed
+     * @throws IOException if the document can't be read
+     */
+    public StateMachine getStateMachineFromInputStream(InputStream stateMachineStream,
+        ClientImplRegistry clientImpl) throws StateMachineConfigurationException, SAXException,
+        IOException {
+        return getStateChartFromInputStream(stateMachineStream, clientImpl)
+            .newStateMachine();
+    }
 
+    /**
+     * Returns the immutable StateChart for a state-machine document wired
+     * against a client-impl that has already been loaded. The stream is read
+     * to the end, but not closed. Charts are cached by document and registry
+     * only for registries obtained from {@link
+     * #getClientImplRegistry(InputStream)}.
+     *
+     * @param stateMachineStream a state-machine document
+     * @param clientImpl a ClientImplRegistry
+     *
+     * @return a wired StateChart
+     *
+     * @throws StateMachineConfigurationException if the document doesn't
+     *                                            describe a valid machine
+     * @throws SAXException if the document can't be parsed
+     * @throws IOException if the document can't be read
+     */
+    public StateChart getStateChartFromInputStream(InputStream stateMachineStream,
+        ClientImplRegistry clientImpl) throws StateMachineConfigurationException, SAXException,
+        IOException {
+        byte[] stateMachine = readFully(stateMachineStream);
+        if (clientImpl.getDigest() == null) {
+            return parse(stateMachine, clientImpl, optimizing)
+                .getWiredStateChart();
+        }
+        return getStateChart(stateMachine, clientImpl);
+    }
+
+    /**
+     * Loads a client-impl document into an immutable registry that any
+     * number of state-machine documents may be wired against. The stream is
+     * read to the end, but not closed. Each distinct document is parsed once.
+     *
+     * @param clientImplStream a state-machine-client-impl document
+     *
+     * @return a ClientImplRegistry
+     *
+     * @throws StateMachineConfigurationException if the document isn't a
+     *                                            client-impl
+     * @throws SAXException if the document can't be parsed
+     * @throws IOException if the document can't be read
+     */
+    public ClientImplRegistry getClientImplRegistry(InputStream clientImplStream)
+        throws StateMachineConfigurationException, SAXException, IOException {
+        return getClientImplRegistry(readFully(clientImplStream));
+    }
+
+    private ClientImplRegistry getClientImplRegistry(final byte[] clientImpl)
+        throws StateMachineConfigurationException, SAXException, IOException {
+        final String key = digest(clientImpl);
+        return lookup(CLIENT_IMPLS, key, new Creator<ClientImplRegistry>() {
+            public ClientImplRegistry create()
+                throws StateMachineConfigurationException, SAXException,
+                    IOException {
+                StateMachineHandler handler = new StateMachineHandler();
+                newSAXParser().parse(new ByteArrayInputStream(clientImpl),
+                    handler);
+                return handler.getClientImplRegistry().withDigest(key);
+            }
+        });
+    }
+
+    private StateChart getStateChart(final byte[] stateMachine,
+                                     final ClientImplRegistry clientImpl)
+        throws StateMachineConfigurationException, SAXException, IOException {
+        String key = digest(stateMachine) + ':' + clientImpl.getDigest();
+        if (optimizing) {
+            key += ":optimized";
+        }
+        return lookup(DEFINITIONS, key, new Creator<StateChart>() {
+            public StateChart create()
+                throws StateMachineConfigurationException, SAXException,
+                    IOException {
+                return parse(stateMachine, clientImpl, optimizing)
+                    .getWiredStateChart();
+            }
+        });
+    }
+
+    /**
+     * Returns the value cached under a key, creating it if there is none. A
+     * value that can't be created is not cached.
+     *
+     * @param cache a cache
+     * @param key a digest
+     * @param creator creates the value if nothing is cached yet
+     *
+     * @return the cached value
+     */
+    private static <T> T lookup(ConcurrentMap<String, Cached<T>> cache,
+                                String key, Creator<T> creator)
+        throws StateMachineConfigurationException, SAXException, IOException {
+        Cached<T> cached = cache.get(key);
+        if (cached == null) {
+            Cached<T> created = new Cached<T>();
+            cached = cache.putIfAbsent(key, created);
+            if (cached == null) {
+                cached = created;
+            }
+        }
         try {
-            SAXParserFactory pfactory = SAXParserFactory.newInstance();
-            pfactory.setValidating(false);
+            return cached.get(creator);
+        } catch (StateMachineConfigurationException smce) {
+            cache.remove(key, cached);
+            throw smce;
+        } catch (SAXException saxe) {
+            cache.remove(key, cached);
+            throw saxe;
+        } catch (IOException ioe) {
+            cache.remove(key, cached);
+            throw ioe;
+        } catch (RuntimeException re) {
+            cache.remove(key, cached);
+            throw re;
+        }
+    }
+
+    /**
+     * Discards every cached definition and client-impl registry, so that
+     * documents are parsed again the next time they are seen. Machines and
+     * charts already handed out are unaffected.
+     */
+    public static void clearDefinitionCache() {
+        DEFINITIONS.clear();
+        CLIENT_IMPLS.clear();
+    }
+
+    /**
+     * The number of distinct document pairs currently cached.
+     *
+     * @return a count
+     */
+    static int getCachedDefinitionCount() {
+        return DEFINITIONS.size();
+    }
+
+    /**
+     * Optimizes a state-machine document, bypassing the cache, and reports
+     * what was removed. The stream is read to the end, but not closed.
+     *
+     * @param stateMachineStream a state-machine document
+     * @param clientImpl a ClientImplRegistry
+     *
+     * @return what the StateChartOptimizer removed from the chart
+     *
+     * @throws StateMachineConfigurationException if the document doesn't
+     *                                            describe a valid machine
+     * @throws SAXException if the document can't be parsed
+     * @throws IOException if the document can't be read
+     */
+    public StateChartOptimizer.Report getOptimizationReport(
+        InputStream stateMachineStream, ClientImplRegistry clientImpl)
+        throws StateMachineConfigurationException, SAXException, IOException {
+        StateMachineHandler handler =
+            parse(readFully(stateMachineStream), clientImpl, true);
+        handler.getWiredStateChart();
+        return handler.getOptimizationReport();
+    }
+
+    /**
+     * Parses a state-machine document, bypassing the cache.
+     *
+     * @param stateMachine a state-machine document
+     * @param clientImpl the client-impl to wire against
+     * @param optimizing whether the chart is to be optimized
+     *
+     * @return a handler ready to build the wired StateChart
+     *
+     * @throws SAXException if the document can't be parsed
+     * @throws IOException if the document can't be read
+     */
+    private static StateMachineHandler parse(byte[] stateMachine,
+                                             ClientImplRegistry clientImpl,
+                                             boolean optimizing)
+        throws StateMachineConfigurationException, SAXException, IOException {
+        StateMachineHandler handler = new StateMachineHandler(clientImpl);
+        handler.setOptimizing(optimizing);
+        newSAXParser().parse(new ByteArrayInputStream(stateMachine), handler);
+        return handler;
+    }
 
-            SAXParser parser = pfactory.newSAXParser();
-            parser.parse(stateMachineStream, handler);
-            parser.parse(clientImplStream, handler);
-            stateMachine = handler.getWiredStateMachine();
+    private static SAXParser newSAXParser()
+        throws StateMachineConfigurationException, SAXException {
+        try {
+            synchronized (PARSER_FACTORY) {
+                return PARSER_FACTORY.newSAXParser();
+            }
         } catch (ParserConfigurationException pcx) {
             String msg = "Java-XML setup is incorrect on this machine";
             StateMachineConfigurationException smcx =
                     new StateMachineConfigurationException(msg, pcx);
             throw smcx;
         }
+    }
+
+    /**
+     * Digests a document.
+     *
+     * @param document a document
+     *
+     * @return the digest as a hexadecimal String
+     *
+     * @throws StateMachineConfigurationException if this JVM has no SHA-256
+     */
+    private static String digest(byte[] document)
+        throws StateMachineConfigurationException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new StateMachineConfigurationException(
+                DIGEST_ALGORITHM + " is not available on this machine", nsae);
+        }
+        byte[] hash = md.digest(document);
+        StringBuffer sb = new StringBuffer(hash.length * 2);
+        for (int i = 0; i < hash.length; i++) {
+            sb.append(Character.forDigit((hash[i] >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(hash[i] & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A cache entry, created by the first thread to ask for it. Other threads
+     * asking for the same key wait for that thread rather than repeat its
+     * work.
+     */
+    private static class Cached<T> {
+        private T value;
+
+        synchronized T get(Creator<T> creator)
+            throws StateMachineConfigurationException, SAXException,
+                IOException {
+            if (value == null) {
+                value = creator.create();
+            }
+            return value;
+        }
+    }
 
-        return stateMachine;
+    /**
+     * Parses a document into a value to cache.
+     */
+    private interface Creator<T> {
+        T create()
+            throws StateMachineConfigurationException, SAXException,
+                IOException;
     }
 }
@@ -0,0 +1,200 @@
+package com.commercehub.core.state.impl.xml;
+
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.StateMachineConfigurationException;
+import com.commercehub.core.state.StateMachinePool;
+
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link StateMachinePool} of machines built and wired by an {@link
+ * XMLStateMachineFactory}. Each definition is registered once, by name, with
+ * its state-machine and client-impl documents; the documents are parsed into a
+ * {@link StateChart} the first time the pool needs a machine for them, and
+ * every later machine for that definition shares the same chart.
+ *
+ * @author Matthew Mark Miller
+ */
+public class XMLStateMachinePool extends StateMachinePool {
+    private final XMLStateMachineFactory factory;
+
+    /** Definition name : Documents */
+    private final Map<String, Documents> definitions;
+
+    /**
+     * Initializes a new XMLStateMachinePool object.
+     *
+     * @param maxPerDefinition the most machines that will be created for any
+     *                         one definition
+     * @param maxWaitMillis how long a borrower will wait for a machine to be
+     *                      returned. Zero or less waits indefinitely.
+     */
+    public XMLStateMachinePool(int maxPerDefinition, long maxWaitMillis) {
+        super(maxPerDefinition, maxWaitMillis);
+        factory = new XMLStateMachineFactory();
+        definitions = new ConcurrentHashMap<String, Documents>();
+    }
+
+    /**
+     * Registers a machine definition under a name. The streams are read fully
+     * but not closed. A definition registered again under the same name
+     * replaces the old one: its idle machines are discarded, and machines
+     * still checked out are discarded when they are returned.
+     *
+     * @param definition the name machines will be borrowed under
+     * @param stateMachineStream a state-machine document
+     * @param clientImplStream a state-machine-client-impl document
+     *
+     * @throws IOException if either stream can't be read
+     */
+    public void addDefinition(String definition,
+                              InputStream stateMachineStream,
+                              InputStream clientImplStream)
+        throws IOException {
+        Documents replaced = definitions.put(definition,
+            new Documents(readFully(stateMachineStream),
+                readFully(clientImplStream)));
+        if (replaced != null) {
+            evictIdle(definition);
+        }
+    }
+
+    /**
+     * Whether a returned machine was built from the chart of the definition
+     * currently registered under its name.
+     *
+     * @see StateMachinePool#isCurrent(String, StateMachine)
+     */
+    protected boolean isCurrent(String definition, StateMachine machine) {
+        Documents documents = definitions.get(definition);
+        return documents != null
+            && documents.isChartOf(machine.getStateChart());
+    }
+
+    /**
+     * Builds a new machine from a registered definition.
+     *
+     * @param definition a registered definition name
+     *
+     * @return a wired StateMachine
+     *
+     * @throws StateMachineConfigurationException if the definition isn't
+     *                                            registered or can't be
+     *                                            parsed
+     */
+    protected StateMachine createStateMachine(String definition)
+        throws StateMachineConfigurationException {
+        Documents documents = definitions.get(definition);
+        if (documents == null) {
+            throw new StateMachineConfigurationException("No state machine "
+                + "definition is registered as " + definition + ".");
+        }
+        return documents.getStateChart(definition).newStateMachine();
+    }
+
+    /**
+     * Parses a registered definition into a StateChart.
+     *
+     * @param definition a registered definition name
+     * @param documents its documents
+     *
+     * @return a wired StateChart
+     *
+     * @throws StateMachineConfigurationException if the definition can't be
+     *                                            parsed
+     */
+    private StateChart parse(String definition, Documents documents)
+        throws StateMachineConfigurationException {
+        try {
+            return factory.getStateChartFromInputStreams(
+                new ByteArrayInputStream(documents.stateMachine),
+                new ByteArrayInputStream(documents.clientImpl));
+        } catch (StateMachineConfigurationException smce) {
+            throw smce;
+        } catch (SAXException saxe) {
+            throw new StateMachineConfigurationException(
+                "Could not parse definition " + definition, saxe);
+        } catch (IOException ioe) {
+            throw new StateMachineConfigurationException(
+                "Could not read definition " + definition, ioe);
+        }
+    }
+
+    /**
+     * Reads a stream into a byte array.
+     *
+     * @param in an InputStream
+     *
+     * @return the stream's contents
+     *
+     * @throws IOException if the stream can't be read
+     */
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The raw documents of a registered definition, and the chart parsed from
+     * them.
+     */
+    private class Documents {
+        private final byte[] stateMachine;
+        private final byte[] clientImpl;
+        private StateChart chart;
+
+        /**
+         * Initializes a new Documents object.
+         *
+         * @param stateMachine a state-machine document
+         * @param clientImpl a state-machine-client-impl document
+         */
+        Documents(byte[] stateMachine, byte[] clientImpl) {
+            this.stateMachine = stateMachine;
+            this.clientImpl = clientImpl;
+        }
+
+        /**
+         * Returns the chart for these documents, parsing them on first use.
+         *
+         * @param definition the name these documents are registered under
+         *
+         * @return a wired StateChart
+         *
+         * @throws StateMachineConfigurationException if the documents can't
+         *                                            be parsed
+         */
+        synchronized StateChart getStateChart(String definition)
+            throws StateMachineConfigurationException {
+            if (chart == null) {
+                chart = parse(definition, this);
+            }
+            return chart;
+        }
+
+        /**
+         * Whether a chart was parsed from these documents.
+         *
+         * @param stateChart a StateChart
+         *
+         * @return true if it is this definition's chart
+         */
+        synchronized boolean isChartOf(StateChart stateChart) {
+            return chart != null && chart == stateChart;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.commercehub.core.state.annotations;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Indexes the classes tagged with <code>@RefName</code> at compile time, so
+ * that <code>IndexedClientImplProvider</code> can find them without scanning
+ * the class path. Each compilation writes the triggers and actions it
+ * compiled to {@link #INDEX} in its class output, one per line:
+ *
+ * <pre>trigger&lt;TAB&gt;refName&lt;TAB&gt;binary.ClassName
+ * action&lt;TAB&gt;refName&lt;TAB&gt;binary.ClassName</pre>
+ *
+ * <p>The processor is registered as a service, so javac runs it whenever this
+ * library is on the processor path. A class that is both a trigger and an
+ * action is indexed as both; a tagged class that is neither is reported as a
+ * warning and skipped, as the class-path scan would skip it.</p>
+ *
+ * @author Matthew Mark Miller
+ */
+@SupportedAnnotationTypes(RefNameProcessor.REF_NAME)
+public class RefNameProcessor extends AbstractProcessor {
+    /** The index resource, relative to the class path root */
+    public static final String INDEX = "META-INF/state-machine/refnames";
+
+    /** Index kind of Trigger classes */
+    public static final String TRIGGER = "trigger";
+
+    /** Index kind of StateAction classes */
+    public static final String ACTION = "action";
+
+    static final String REF_NAME =
+        "com.commercehub.core.state.annotations.RefName";
+    private static final String TRIGGER_TYPE =
+        "com.commercehub.core.state.Trigger";
+    private static final String ACTION_TYPE =
+        "com.commercehub.core.state.StateAction";
+
+    /** Index lines, gathered over every round */
+    private final List<String> entries = new ArrayList<String>();
+
+    /**
+     * Supports whatever the compiler running it supports; the processor only
+     * reads class declarations.
+     *
+     * @return the latest supported source version
+     */
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    public boolean process(Set<? extends TypeElement> annotations,
+                           RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeIndex();
+            return false;
+        }
+        TypeElement refName =
+            processingEnv.getElementUtils().getTypeElement(REF_NAME);
+        if (refName == null) {
+            return false;
+        }
+        for (Element element: roundEnv.getElementsAnnotatedWith(refName)) {
+            if (element.getKind() == ElementKind.CLASS) {
+                index((TypeElement) element);
+            }
+        }
+        return false;
+    }
+
+    private void index(TypeElement type) {
+        String name = getRefName(type);
+        String className =
+            processingEnv.getElementUtils().getBinaryName(type).toString();
+        boolean trigger = isA(type, TRIGGER_TYPE);
+        boolean action = isA(type, ACTION_TYPE);
+        if (trigger) {
+            entries.add(TRIGGER + '\t' + name + '\t' + className);
+        }
+        if (action) {
+            entries.add(ACTION + '\t' + name + '\t' + className);
+        }
+        if (!trigger && !action) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                "@RefName(\"" + name + "\") is on a class that is neither a "
+                + "Trigger nor a StateAction", type);
+        }
+    }
+
+    private String getRefName(TypeElement type) {
+        for (AnnotationMirror mirror: type.getAnnotationMirrors()) {
+            TypeElement annotation =
+                (TypeElement) mirror.getAnnotationType().asElement();
+            if (annotation.getQualifiedName().contentEquals(REF_NAME)) {
+                for (ExecutableElement key:
+                        mirror.getElementValues().keySet()) {
+                    AnnotationValue value = mirror.getElementValues().get(key);
+                    return String.valueOf(value.getValue());
+                }
+            }
+        }
+        throw new IllegalStateException(type + " has no @RefName");
+    }
+
+    private boolean isA(TypeElement type, String supertype) {
+        TypeElement element =
+            processingEnv.getElementUtils().getTypeElement(supertype);
+        if (element == null) {
+            return false;
+        }
+        Types types = processingEnv.getTypeUtils();
+        TypeMirror erasure = types.erasure(element.asType());
+        return types.isAssignable(types.erasure(type.asType()), erasure);
+    }
+
+    private void writeIndex() {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Collections.sort(entries);
+        try {
+            FileObject index = processingEnv.getFiler().createResource(
+                StandardLocation.CLASS_OUTPUT, "", INDEX);
+            Writer out = new OutputStreamWriter(index.openOutputStream(),
+                "UTF-8");
+            try {
+                for (String entry: entries) {
+                    out.write(entry);
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                "Can't write " + INDEX + ": " + ioe);
+        }
+    }
+}
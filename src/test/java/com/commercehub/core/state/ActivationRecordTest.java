@@ -0,0 +1,101 @@
+package com.commercehub.core.state;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+
+public class ActivationRecordTest {
+    private static final int BRANCHES = 70;
+
+    private StateChart chart;
+
+    @Before
+    public void setUp() {
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        ExclusiveState[] branches = new ExclusiveState[BRANCHES];
+        for (int i = 0; i < BRANCHES; i++) {
+            branches[i] = new ExclusiveState("s" + i, false, false);
+            ExclusiveState leaf = new ExclusiveState("leaf", false, false);
+            branches[i].addChild(leaf);
+            branches[i].setDefaultChild(leaf);
+            root.addChild(branches[i]);
+        }
+        root.setDefaultChild(branches[0]);
+
+        TriggerTransitionMap map = new TriggerTransitionMap();
+        map.addTriggerTransition(HubActionTrigger.class, "go",
+            new Transition(branches[0],
+                root.findDescendant("s" + (BRANCHES - 1) + ".leaf"), "go"));
+        chart = new StateChart(root, null, null, null, map);
+    }
+
+    @Test
+    public void testChildrenAreNumberedContiguously() {
+        assertEquals(1 + 2 * BRANCHES, chart.getStateCount());
+        State root = chart.getRootState();
+        assertEquals(-1, chart.getParentOrdinal(0));
+        assertEquals(1, chart.getFirstChildOrdinal(0));
+        assertEquals(BRANCHES, chart.getChildCount(0));
+        for (int i = 1; i <= BRANCHES; i++) {
+            State branch = chart.getState(i);
+            assertSame(root, branch.getParent());
+            State leaf = chart.getState(chart.getFirstChildOrdinal(i));
+            assertSame(branch, leaf.getParent());
+            assertEquals(i, chart.getParentOrdinal(leaf.getOrdinal()));
+        }
+    }
+
+    @Test
+    public void testActivationAcrossWordsSurvivesCookie() {
+        String last = "s" + (BRANCHES - 1);
+        Cookied first = new Cookied();
+        StateMachine sm = chart.newStateMachine();
+        sm.attachStateful(first);
+        assertTrue(sm.isInState("s0.leaf"));
+
+        assertTrue(sm.pullTrigger(new HubActionTrigger(), "go", null));
+        assertTrue(sm.isInState(last + ".leaf"));
+        assertFalse(sm.isInState("s0"));
+        assertEquals(3, sm.getActiveStates().size());
+        assertTrue(first.cookie.isActive(last + ".leaf"));
+        assertTrue(first.cookie.getHistoryStatePathNames().contains(
+                "s0.leaf"));
+
+        StateMachine reloaded = chart.newStateMachine();
+        reloaded.attachStateful(first);
+        assertEquals(sm.getActiveStates(), reloaded.getActiveStates());
+        ActivationRecord record = reloaded.getActivationRecord();
+        ExclusiveState s0 = (ExclusiveState) chart.findByName("s0");
+        assertSame(chart.findByName("s0.leaf"), s0.getHistoryChild(record));
+        assertSame(chart.findByName(last + ".leaf"),
+            ((ExclusiveState) chart.findByName(last)).getActiveChild(record));
+        assertNull(s0.getActiveChild(record));
+    }
+
+    private static class Cookied implements Stateful {
+        private StateCookie cookie = new SerializableStateCookie();
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public boolean pullTrigger(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+        }
+
+        public boolean isInState(String statePath) {
+            return false;
+        }
+    }
+}
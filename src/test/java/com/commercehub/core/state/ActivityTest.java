@@ -0,0 +1,364 @@
+package com.commercehub.core.state;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+
+public class ActivityTest {
+    private ExclusiveState idle;
+    private ExclusiveState working;
+    private ExclusiveState done;
+    private TriggerTransitionMap map;
+
+    @Before
+    public void setUp() {
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        idle = new ExclusiveState("idle", false, false);
+        working = new ExclusiveState("working", false, false);
+        done = new ExclusiveState("done", false, false);
+        root.addChild(idle);
+        root.addChild(working);
+        root.addChild(done);
+        root.setDefaultChild(idle);
+        map = new TriggerTransitionMap();
+        map.addTriggerTransition(StepTrigger.class, "go",
+            new Transition(idle, working, "go"));
+        map.addTriggerTransition(StepTrigger.class, "stop",
+            new Transition(working, idle, "stop"));
+        map.addTriggerTransition(ActivityCompletedTrigger.class, "ok",
+            new Transition(working, done, "finished"));
+        map.addTriggerTransition(ActivityCompletedTrigger.class,
+            ActivityCompletedTrigger.FAILED,
+            new Transition(working, idle, "failed"));
+    }
+
+    @Test
+    public void testCompletionFiresThroughMailbox() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        working.addActivity(new Activity() {
+                public Object perform(Stateful stateful, Object param)
+                    throws InterruptedException {
+                    release.await();
+                    return param;
+                }
+            }, "ok");
+        LatchAction arrived = new LatchAction();
+        done.addEntryAction(arrived, null);
+        StateChart chart = new StateChart(idle.getParent(), null, null, null,
+            map);
+        assertTrue(chart.hasActivities());
+
+        StateMachineExecutor executor = new StateMachineExecutor(1);
+        try {
+            CookieStateful stateful = new CookieStateful();
+            StateMachineExecutor.Mailbox mailbox =
+                executor.attach(chart, stateful);
+            assertSame(mailbox, mailbox.getStateMachine().getActivityHost());
+            assertTrue(mailbox.submit(new StepTrigger(), "go").get(10,
+                TimeUnit.SECONDS));
+            assertEquals(1, mailbox.getStateMachine()
+                .getRunningActivityCount());
+
+            release.countDown();
+            assertTrue(arrived.latch.await(10, TimeUnit.SECONDS));
+            //queued behind the completion, so sees its saved state
+            assertFalse(mailbox.submit(new StepTrigger(), "stop").get(10,
+                TimeUnit.SECONDS));
+            assertTrue(stateful.cookie.isActive("done"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testExitInterruptsActivity() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        working.addActivity(new Activity() {
+                public Object perform(Stateful stateful, Object param) {
+                    started.countDown();
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch (InterruptedException expected) {
+                        interrupted.countDown();
+                    }
+                    return "ok";
+                }
+            }, null);
+        StateChart chart = new StateChart(idle.getParent(), null, null, null,
+            map);
+        CookieStateful stateful = new CookieStateful();
+        StateMachine machine = chart.newStateMachine();
+        machine.attachStateful(stateful);
+        stateful.machine = machine;
+
+        assertTrue(stateful.pullTrigger(new StepTrigger(), "go"));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(stateful.pullTrigger(new StepTrigger(), "stop"));
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertEquals(0, machine.getRunningActivityCount());
+        assertTrue(stateful.cookie.isActive("idle"));
+    }
+
+    @Test
+    public void testChildTransitionStopsParentActivity() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        ExclusiveState step = new ExclusiveState("step", false, false);
+        working.addChild(step);
+        working.setDefaultChild(step);
+        working.addActivity(new Activity() {
+                public Object perform(Stateful stateful, Object param) {
+                    started.countDown();
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch (InterruptedException expected) {
+                        interrupted.countDown();
+                    }
+                    return "ok";
+                }
+            }, null);
+        map.addTriggerTransition(StepTrigger.class, "leave",
+            new Transition(step, idle, "leave"));
+        StateChart chart = new StateChart(idle.getParent(), null, null, null,
+            map);
+        CookieStateful stateful = new CookieStateful();
+        StateMachine machine = chart.newStateMachine();
+        machine.attachStateful(stateful);
+        stateful.machine = machine;
+
+        assertTrue(stateful.pullTrigger(new StepTrigger(), "go"));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        //leaving the child exits its parent too
+        assertTrue(stateful.pullTrigger(new StepTrigger(), "leave"));
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertEquals(0, machine.getRunningActivityCount());
+        assertFalse(stateful.cookie.isActive("working"));
+    }
+
+    @Test
+    public void testCompletionWaitsForOwnersTrigger() throws Exception {
+        //an activity on a parent outlives a transition between its children
+        ExclusiveState first = new ExclusiveState("first", false, false);
+        ExclusiveState second = new ExclusiveState("second", false, false);
+        working.addChild(first);
+        working.addChild(second);
+        working.setDefaultChild(first);
+        final CountDownLatch finish = new CountDownLatch(1);
+        working.addActivity(new Activity() {
+                public Object perform(Stateful stateful, Object param)
+                    throws InterruptedException {
+                    finish.await();
+                    return "ok";
+                }
+            }, null);
+        BlockingAction blocking = new BlockingAction();
+        Transition step = new Transition(first, second, "step");
+        step.addAction(blocking, null);
+        map.addTriggerTransition(StepTrigger.class, "step", step);
+        final LatchAction arrived = new LatchAction();
+        done.addEntryAction(arrived, null);
+        StateChart chart = new StateChart(idle.getParent(), null, null, null,
+            map);
+        final CookieStateful stateful = new CookieStateful();
+        StateMachine machine = chart.newStateMachine();
+        machine.attachStateful(stateful);
+        stateful.machine = machine;
+        assertTrue(stateful.pullTrigger(new StepTrigger(), "go"));
+
+        //the owner pulls a trigger, on a thread of its own, whose action
+        //blocks while the activity completes
+        Thread owner = new Thread(new Runnable() {
+                public void run() {
+                    stateful.machine.pullTrigger(new StepTrigger(), "step",
+                        null);
+                }
+            });
+        owner.start();
+        assertTrue(blocking.entered.await(10, TimeUnit.SECONDS));
+        finish.countDown();
+        assertFalse(arrived.latch.await(200, TimeUnit.MILLISECONDS));
+
+        blocking.release.countDown();
+        owner.join(10000);
+        assertTrue(arrived.latch.await(10, TimeUnit.SECONDS));
+        //waits for the completion's trigger to finish, and fires nothing
+        assertFalse(stateful.pullTrigger(new StepTrigger(), "go"));
+        assertTrue(stateful.cookie.isActive("done"));
+    }
+
+    @Test
+    public void testStaleCompletionIsIgnored() {
+        final int[] runs = new int[1];
+        working.addActivity(new Activity() {
+                public Object perform(Stateful stateful, Object param)
+                    throws Exception {
+                    if (++runs[0] == 3) {
+                        throw new IllegalStateException("third time");
+                    }
+                    return "ok";
+                }
+            }, null);
+        StateChart chart = new StateChart(idle.getParent(), null, null, null,
+            map);
+        CookieStateful stateful = new CookieStateful();
+        StateMachine machine = chart.newStateMachine();
+        InlineHost host = new InlineHost();
+        machine.setActivityHost(host);
+        machine.attachStateful(stateful);
+
+        machine.pullTrigger(new StepTrigger(), "go", null);
+        machine.pullTrigger(new StepTrigger(), "stop", null);
+        machine.pullTrigger(new StepTrigger(), "go", null);
+        assertEquals(2, host.triggers.size());
+
+        //the first activation's completion arrives after its state was exited
+        assertFalse(machine.pullTrigger(host.triggers.get(0),
+            host.params.get(0), null));
+        assertTrue(stateful.cookie.isActive("working"));
+        assertTrue(machine.pullTrigger(host.triggers.get(1),
+            host.params.get(1), null));
+        assertTrue(stateful.cookie.isActive("done"));
+
+        //a failing activity completes with FAILED
+        stateful = new CookieStateful();
+        machine.attachStateful(stateful);
+        machine.pullTrigger(new StepTrigger(), "go", null);
+        ActivityCompletedTrigger failed =
+            (ActivityCompletedTrigger) host.triggers.get(2);
+        assertEquals(ActivityCompletedTrigger.FAILED, host.params.get(2));
+        assertTrue(failed.getFailure() instanceof IllegalStateException);
+        assertSame(working.getActivities().get(0), failed.getActivity());
+        assertTrue(machine.pullTrigger(failed, host.params.get(2), null));
+        assertTrue(stateful.cookie.isActive("idle"));
+    }
+
+    @Test
+    public void testAttachResumesActiveActivities() {
+        final List<Object> performed = new ArrayList<Object>();
+        working.addActivity(new Activity() {
+                public Object perform(Stateful stateful, Object param) {
+                    performed.add(param);
+                    return "ok";
+                }
+            }, "resumed");
+        StateChart chart = new StateChart(idle.getParent(), null, null, null,
+            map);
+        StateMachine machine = chart.newStateMachine();
+        InlineHost host = new InlineHost();
+        machine.setActivityHost(host);
+
+        CookieStateful fresh = new CookieStateful();
+        machine.attachStateful(fresh);
+        assertTrue(performed.isEmpty());
+
+        CookieStateful saved = new CookieStateful();
+        saved.cookie.setActive("working");
+        machine.attachStateful(saved);
+        assertEquals(1, performed.size());
+        assertEquals("resumed", performed.get(0));
+        assertTrue(machine.pullTrigger(host.triggers.get(0),
+            host.params.get(0), null));
+        assertTrue(saved.cookie.isActive("done"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFrozenStateRefusesActivities() {
+        new StateChart(idle.getParent(), null, null, null, map);
+        working.addActivity(new Activity() {
+                public Object perform(Stateful stateful, Object param) {
+                    return null;
+                }
+            }, null);
+    }
+
+    /**
+     * Steps between states.
+     */
+    public static class StepTrigger implements Trigger {
+        public boolean eval(Stateful stateful, Object param,
+                            Condition condition) {
+            return true;
+        }
+    }
+
+    /**
+     * Counts down when executed.
+     */
+    private static class LatchAction implements StateAction {
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        public void execute(Stateful stateful, Object param) {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Blocks until released.
+     */
+    private static class BlockingAction implements StateAction {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        public void execute(Stateful stateful, Object param) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Runs activities on the calling thread, and keeps their completions.
+     */
+    private static class InlineHost implements ActivityHost {
+        private final List<Trigger> triggers = new ArrayList<Trigger>();
+        private final List<Object> params = new ArrayList<Object>();
+
+        public void execute(Runnable activity) {
+            activity.run();
+        }
+
+        public void deliver(Stateful stateful, Trigger trigger,
+                            Object param) {
+            triggers.add(trigger);
+            params.add(param);
+        }
+    }
+
+    private static class CookieStateful implements Stateful {
+        private final StateCookie cookie = new SerializableStateCookie();
+        private StateMachine machine;
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public synchronized boolean pullTrigger(Trigger trigger,
+                                                Object param) {
+            return machine.pullTrigger(trigger, param, null);
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+        }
+
+        public boolean isInState(String statePath) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.commercehub.core.state;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+import com.commercehub.core.state.impl.xml.ClientImplRegistry;
+import com.commercehub.core.state.impl.xml.XMLStateMachineFactory;
+
+public class StateChartOptimizerTest {
+    private static final String XML = "/com/commercehub/core/state/impl/xml/";
+
+    /** a.a3 and z can't be entered; go is mapped twice and ranks z */
+    private static final String DEAD_BRANCHES =
+        "<state-machine name=\"root\" concurrent=\"false\" "
+        + "default-child-ref=\"a\">"
+        + "<state name=\"a\" default-child-ref=\"a1\">"
+        + "<state name=\"a1\"><entry-action-ref ref=\"EntryAction\"/></state>"
+        + "<state name=\"a2\"><entry-action-ref ref=\"EntryAction\"/></state>"
+        + "<state name=\"a3\"><state name=\"x\"/>"
+        + "<transition name=\"dead\" entry=\"a.a1\">"
+        + "<trigger-ref ref=\"HubActionTrigger\" param=\"dead\"/>"
+        + "</transition>"
+        + "</state>"
+        + "<transition name=\"go\" entry=\"a.a2\">"
+        + "<trigger-ref ref=\"HubActionTrigger\" param=\"go\"/>"
+        + "<trigger-ref ref=\"HubActionTrigger\" param=\"go\"/>"
+        + "<state-rank ref=\"z\"/>"
+        + "<transition-action-ref ref=\"TransitionAction\"/>"
+        + "</transition>"
+        + "</state>"
+        + "<state name=\"z\">"
+        + "<transition name=\"back\" entry=\"a\">"
+        + "<trigger-ref ref=\"HubActionTrigger\" param=\"back\"/>"
+        + "</transition>"
+        + "</state>"
+        + "</state-machine>";
+
+    @After
+    public void tearDown() {
+        ExitAction.clear();
+        EntryAction.clear();
+        TransitionAction.clear();
+    }
+
+    private ClientImplRegistry clientImpl() throws Exception {
+        return new XMLStateMachineFactory().getClientImplRegistry(
+            getClass().getResourceAsStream(XML + "clientimpl.xml"));
+    }
+
+    private static InputStream deadBranches() throws Exception {
+        return new ByteArrayInputStream(DEAD_BRANCHES.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void testReportsWhatWasRemoved() throws Exception {
+        StateChartOptimizer.Report report = new XMLStateMachineFactory()
+            .getOptimizationReport(deadBranches(), clientImpl());
+        assertEquals(Arrays.asList("z", "a.a3", "a.a3.x"),
+            report.getRemovedStates());
+        assertEquals(Arrays.asList("back", "dead"),
+            report.getRemovedTransitions());
+        assertEquals(1, report.getRemovedRanks());
+        assertEquals(1, report.getCollapsedMappings());
+        assertEquals(1, report.getMergedActions());
+        assertFalse(report.isEmpty());
+        assertEquals(1, report.getTriggerTransitionMap().getMappings().size());
+    }
+
+    @Test
+    public void testOptimizedChartRunsLikeTheOriginal() throws Exception {
+        StateChart original = new XMLStateMachineFactory()
+            .getStateChartFromInputStream(deadBranches(), clientImpl());
+        StateChart optimized = new XMLStateMachineFactory(true)
+            .getStateChartFromInputStream(deadBranches(), clientImpl());
+        assertNotSame(original, optimized);
+        assertEquals(7, original.getStateCount());
+        assertEquals(4, optimized.getStateCount());
+        assertNull(optimized.findByName("a.a3"));
+        assertTrue(original.getFingerprint() != optimized.getFingerprint());
+
+        ParametricAction a1 =
+            optimized.findByName("a.a1").getEntryActions().get(0);
+        ParametricAction a2 =
+            optimized.findByName("a.a2").getEntryActions().get(0);
+        assertSame(a1, a2);
+
+        SerializableStateCookie originalCookie = new SerializableStateCookie();
+        SerializableStateCookie optimizedCookie =
+            new SerializableStateCookie();
+        StateMachine originalMachine = original.newStateMachine();
+        StateMachine optimizedMachine = optimized.newStateMachine();
+        originalMachine.attachStateful(new CookieStateful(originalCookie));
+        optimizedMachine.attachStateful(new CookieStateful(optimizedCookie));
+        for (String param: new String[] {"dead", "go", "back"}) {
+            int entered = EntryAction.timesExecuted();
+            int transitioned = TransitionAction.timesExecuted();
+            boolean fired = originalMachine.pullTrigger(
+                new HubActionTrigger(), param, null);
+            int originalEntries = EntryAction.timesExecuted() - entered;
+            int originalActions =
+                TransitionAction.timesExecuted() - transitioned;
+            entered = EntryAction.timesExecuted();
+            transitioned = TransitionAction.timesExecuted();
+            assertEquals(param, fired, optimizedMachine.pullTrigger(
+                new HubActionTrigger(), param, null));
+            assertEquals(param, originalEntries,
+                EntryAction.timesExecuted() - entered);
+            assertEquals(param, originalActions,
+                TransitionAction.timesExecuted() - transitioned);
+            assertEquals(param, originalCookie.getActiveStatePathNames(),
+                optimizedCookie.getActiveStatePathNames());
+        }
+        assertEquals(originalMachine.getActiveStateString(),
+            optimizedMachine.getActiveStateString());
+    }
+
+    @Test
+    public void testKeepsStatesEnteredByDefault() throws Exception {
+        //C.D.F is neither a default child nor the entry of any transition
+        StateChartOptimizer.Report report = new XMLStateMachineFactory()
+            .getOptimizationReport(getClass().getResourceAsStream(XML
+                + "concurrent-alphabetical-statemachine.xml"), clientImpl());
+        assertEquals(Collections.singletonList("C.D.F"),
+            report.getRemovedStates());
+        assertTrue(report.getRemovedTransitions().isEmpty());
+        assertEquals(0, report.getCollapsedMappings());
+    }
+
+    private static class CookieStateful implements Stateful {
+        private StateCookie cookie;
+
+        CookieStateful(StateCookie cookie) {
+            this.cookie = cookie;
+        }
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public boolean pullTrigger(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+        }
+
+        public boolean isInState(String statePath) {
+            return false;
+        }
+    }
+}
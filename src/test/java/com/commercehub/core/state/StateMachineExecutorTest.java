@@ -0,0 +1,270 @@
+package com.commercehub.core.state;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+
+public class StateMachineExecutorTest {
+    private static final int STATEFULS = 200;
+    private static final int FLIPS = 50;
+
+    private StateChart chart;
+    private StateMachineExecutor executor;
+
+    @Before
+    public void setUp() {
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        ExclusiveState a = new ExclusiveState("a", false, false);
+        ExclusiveState b = new ExclusiveState("b", false, false);
+        root.addChild(a);
+        root.addChild(b);
+        root.setDefaultChild(a);
+        TriggerTransitionMap map = new TriggerTransitionMap();
+        map.addTriggerTransition(SerialTrigger.class, "flip",
+            new Transition(a, b, "ab"));
+        map.addTriggerTransition(SerialTrigger.class, "flop",
+            new Transition(b, a, "ba"));
+        chart = new StateChart(root, null, null, null, map);
+        executor = new StateMachineExecutor(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRunsEachStatefulsTriggersInOrder() throws Exception {
+        List<StateMachineExecutor.Mailbox> mailboxes =
+            new ArrayList<StateMachineExecutor.Mailbox>();
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < STATEFULS; i++) {
+            mailboxes.add(executor.attach(chart, new SerialStateful()));
+        }
+        //interleave submissions so every mailbox is busy at once; a flop
+        //run before its flip wouldn't fire
+        SerialTrigger trigger = new SerialTrigger();
+        for (int flip = 0; flip < FLIPS; flip++) {
+            for (StateMachineExecutor.Mailbox mailbox: mailboxes) {
+                results.add(mailbox.submit(trigger, "flip"));
+                results.add(mailbox.submit(trigger, "flop"));
+            }
+        }
+        for (Future<Boolean> result: results) {
+            assertTrue(result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(0, trigger.overlaps.get());
+        for (StateMachineExecutor.Mailbox mailbox: mailboxes) {
+            assertEquals(0, mailbox.getPendingCount());
+            SerialStateful stateful =
+                (SerialStateful) mailbox.getStateMachine().getStateful();
+            assertEquals(2 * FLIPS, stateful.pulls);
+            assertTrue(stateful.cookie.isActive("a"));
+        }
+    }
+
+    @Test
+    public void testYieldsAfterBatch() throws Exception {
+        final List<Runnable> runs = new ArrayList<Runnable>();
+        Executor manual = new Executor() {
+                public void execute(Runnable command) {
+                    runs.add(command);
+                }
+            };
+        StateMachineExecutor batched = new StateMachineExecutor(manual, 2);
+        StateMachineExecutor.Mailbox mailbox =
+            batched.attach(chart, new SerialStateful());
+        SerialTrigger trigger = new SerialTrigger();
+        Future<Boolean> first = mailbox.submit(trigger, "flip");
+        mailbox.submit(trigger, "flop");
+        Future<Boolean> third = mailbox.submit(trigger, "flip");
+        Future<Boolean> unmapped = mailbox.submit(trigger, "other");
+        assertEquals(1, runs.size());
+        assertEquals(4, mailbox.getPendingCount());
+
+        runs.remove(0).run();
+        assertTrue(first.isDone());
+        assertFalse(third.isDone());
+        assertEquals(2, mailbox.getPendingCount());
+        //rescheduled itself for the rest
+        assertEquals(1, runs.size());
+
+        runs.remove(0).run();
+        assertTrue(third.get());
+        assertFalse(unmapped.get());
+        assertTrue(runs.isEmpty());
+        assertTrue(mailbox.getStateMachine().isInState("b"));
+
+        Future<?> detached = mailbox.detach();
+        runs.remove(0).run();
+        detached.get();
+        assertNull(mailbox.getStateMachine().getStateful());
+    }
+
+    @Test
+    public void testFailedTriggerFailsOnlyItsFuture() throws Exception {
+        StateMachineExecutor.Mailbox mailbox =
+            executor.attach(chart, new SerialStateful());
+        Future<Boolean> failed = mailbox.submit(new SerialTrigger() {
+                public boolean eval(Stateful stateful, Object param,
+                                    Condition condition) {
+                    throw new IllegalStateException("refused");
+                }
+            }, "flip");
+        Future<Boolean> next = mailbox.submit(new SerialTrigger(), "flop");
+        try {
+            failed.get(10, TimeUnit.SECONDS);
+            fail("The trigger's exception should fail its Future");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        assertFalse(next.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRejectedMailboxCancelsWaitingTriggers() throws Exception {
+        StateMachineExecutor rejecting = new StateMachineExecutor(
+            new Executor() {
+                public void execute(Runnable command) {
+                    throw new RejectedExecutionException("shut down");
+                }
+            }, 1);
+        StateMachineExecutor.Mailbox mailbox =
+            rejecting.attach(chart, new SerialStateful());
+        try {
+            mailbox.submit(new SerialTrigger(), "flip");
+            fail("A rejected mailbox should refuse triggers");
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(0, mailbox.getPendingCount());
+    }
+
+    @Test
+    public void testDetachedMailboxRefusesTriggers() throws Exception {
+        StateMachineExecutor.Mailbox mailbox =
+            executor.attach(chart, new SerialStateful());
+        mailbox.detach().get(10, TimeUnit.SECONDS);
+        try {
+            mailbox.submit(new SerialTrigger(), "flip");
+            fail("A detached mailbox should refuse triggers");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            mailbox.detach();
+            fail("A mailbox should only detach once");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(0, mailbox.getPendingCount());
+    }
+
+    @Test
+    public void testDropsStaleDeliveries() throws Exception {
+        final List<Runnable> runs = new ArrayList<Runnable>();
+        Executor manual = new Executor() {
+                public void execute(Runnable command) {
+                    runs.add(command);
+                }
+            };
+        StateMachineExecutor queued = new StateMachineExecutor(manual, 8);
+        SerialStateful stateful = new SerialStateful();
+        StateMachineExecutor.Mailbox mailbox = queued.attach(chart, stateful);
+
+        //another Stateful's completion never reaches the queue
+        mailbox.deliver(new SerialStateful(), new SerialTrigger(), "flip");
+        assertEquals(0, mailbox.getPendingCount());
+
+        //one queued before the detach is dropped when it runs
+        mailbox.deliver(stateful, new SerialTrigger(), "flip");
+        mailbox.getStateMachine().detachStateful();
+        runs.remove(0).run();
+        assertEquals(0, stateful.pulls);
+
+        mailbox.getStateMachine().attachStateful(stateful);
+        mailbox.detach();
+        mailbox.deliver(stateful, new SerialTrigger(), "flip");
+        assertEquals(1, mailbox.getPendingCount());
+        runs.remove(0).run();
+        assertEquals(0, stateful.pulls);
+        assertTrue(runs.isEmpty());
+    }
+
+    @Test
+    public void testActionsMaySubmitToTheirOwnMailbox() throws Exception {
+        final CountDownLatch followed = new CountDownLatch(1);
+        final StateMachineExecutor.Mailbox[] box =
+            new StateMachineExecutor.Mailbox[1];
+        box[0] = executor.attach(chart, new SerialStateful());
+        box[0].submit(new SerialTrigger() {
+                public boolean eval(Stateful stateful, Object param,
+                                    Condition condition) {
+                    box[0].submit(new SerialTrigger(), "flop");
+                    followed.countDown();
+                    return true;
+                }
+            }, "flip").get(10, TimeUnit.SECONDS);
+        assertTrue(followed.await(10, TimeUnit.SECONDS));
+        box[0].detach().get(10, TimeUnit.SECONDS);
+        assertTrue(box[0].getStateMachine().isInState("a"));
+    }
+
+    /**
+     * Fails the test if two triggers run on one Stateful at once.
+     */
+    public static class SerialTrigger implements Trigger {
+        private final AtomicInteger overlaps = new AtomicInteger();
+
+        public boolean eval(Stateful stateful, Object param,
+                            Condition condition) {
+            SerialStateful serial = (SerialStateful) stateful;
+            if (serial.running.incrementAndGet() != 1) {
+                overlaps.incrementAndGet();
+            }
+            Thread.yield();
+            serial.pulls++;
+            serial.running.decrementAndGet();
+            return true;
+        }
+    }
+
+    private static class SerialStateful implements Stateful {
+        private final StateCookie cookie = new SerializableStateCookie();
+        private final AtomicInteger running = new AtomicInteger();
+
+        /** Only touched by this Stateful's mailbox */
+        private int pulls;
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public boolean pullTrigger(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+        }
+
+        public boolean isInState(String statePath) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.commercehub.core.state;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.commercehub.core.state.impl.pojo.BinaryStateCookie;
+
+public class StateTest {
+    private static final int LEVELS = 10;
+
+    private final Log log = new Log();
+    private StateChart chart;
+    private ExclusiveState[] left;
+    private ExclusiveState[] right;
+
+    /**
+     * Two chains of LEVELS states under the root, with a transition from the
+     * bottom of each to the bottom of the other, and one from the bottom of the
+     * left chain to a leaf beside its middle.
+     */
+    @Before
+    public void setUp() {
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        left = chain(root, "l");
+        right = chain(root, "r");
+        root.setDefaultChild(left[0]);
+        ExclusiveState side = new ExclusiveState("side", false, false);
+        left[LEVELS / 2 - 1].addChild(side);
+
+        TriggerTransitionMap map = new TriggerTransitionMap();
+        Transition across =
+            new Transition(left[LEVELS - 1], right[LEVELS - 1], "across");
+        across.addAction(log, "across");
+        map.addTriggerTransition(HubActionTrigger.class, "across", across);
+        map.addTriggerTransition(HubActionTrigger.class, "back",
+            new Transition(right[LEVELS - 1], left[LEVELS - 1], "back"));
+        map.addTriggerTransition(HubActionTrigger.class, "side",
+            new Transition(left[LEVELS - 1], side, "side"));
+        chart = new StateChart(root, null, null, null, map);
+    }
+
+    private ExclusiveState[] chain(ExclusiveState root, String prefix) {
+        ExclusiveState[] states = new ExclusiveState[LEVELS];
+        ExclusiveState parent = root;
+        for (int i = 0; i < LEVELS; i++) {
+            states[i] = new ExclusiveState(prefix + i, false, false);
+            states[i].addEntryAction(log, "+" + prefix + i);
+            states[i].addExitAction(log, "-" + prefix + i);
+            parent.addChild(states[i]);
+            if (parent != root) {
+                parent.setDefaultChild(states[i]);
+            }
+            parent = states[i];
+        }
+        return states;
+    }
+
+    @Test
+    public void testAncestorsAreComputedWhenFrozen() {
+        State bottom = left[LEVELS - 1];
+        assertEquals(0, chart.getRootState().getDepth());
+        assertEquals(LEVELS, bottom.getDepth());
+        assertSame(chart.getRootState(), bottom.getAncestor(0));
+        for (int i = 0; i < LEVELS; i++) {
+            assertSame(left[i], bottom.getAncestor(i + 1));
+        }
+        assertEquals(Arrays.asList(chart.getRootState(), left[0], left[1],
+            left[2], left[3], left[4], left[5], left[6], left[7], left[8],
+            left[9]), bottom.getPath());
+        //the returned list is the caller's
+        bottom.getPath().clear();
+        assertEquals(LEVELS + 1, bottom.getPath().size());
+    }
+
+    @Test
+    public void testNearestActiveAncestor() {
+        StateMachine sm = chart.newStateMachine();
+        sm.attachStateful(new Cookied(new BinaryStateCookie(chart)));
+        ActivationRecord record = sm.getActivationRecord();
+        assertEquals(LEVELS, left[LEVELS - 1].getNearestActiveDepth(record));
+        assertEquals(0, right[LEVELS - 1].getNearestActiveDepth(record));
+
+        assertTrue(sm.pullTrigger(new HubActionTrigger(), "across", null));
+        assertTrue(sm.isInState("r0.r1.r2.r3.r4.r5.r6.r7.r8.r9"));
+        assertFalse(sm.isInState("l0"));
+        assertEquals(0, left[LEVELS - 1].getNearestActiveDepth(record));
+
+        assertTrue(sm.pullTrigger(new HubActionTrigger(), "back", null));
+        assertEquals(LEVELS, left[LEVELS - 1].getNearestActiveDepth(record));
+        assertTrue(sm.pullTrigger(new HubActionTrigger(), "side", null));
+        assertTrue(sm.isInState("l0.l1.l2.l3.l4.side"));
+        assertFalse(sm.isInState("l0.l1.l2.l3.l4.l5"));
+        assertEquals(LEVELS / 2,
+            left[LEVELS - 1].getNearestActiveDepth(record));
+    }
+
+    @Test
+    public void testTransitionPlans() {
+        Transition[] across = chart.getTriggerTransitionMap()
+            .getTransitionArray(HubActionTrigger.class, "across");
+        assertEquals(0, across[0].getPlan().getLcaDepth());
+        assertTrue(across[0].getPlan().hasExitChain());
+        Transition[] side = chart.getTriggerTransitionMap()
+            .getTransitionArray(HubActionTrigger.class, "side");
+        assertEquals(LEVELS / 2, side[0].getPlan().getLcaDepth());
+        assertTrue(side[0].getPlan().hasExitChain());
+
+        StateMachine sm = chart.newStateMachine();
+        sm.attachStateful(new Cookied(new BinaryStateCookie(chart)));
+        log.clear();
+        assertTrue(sm.pullTrigger(new HubActionTrigger(), "across", null));
+        StringBuffer expected = new StringBuffer();
+        for (int i = LEVELS - 1; i >= 0; i--) {
+            expected.append("-l").append(i).append(' ');
+        }
+        expected.append("across ");
+        for (int i = 0; i < LEVELS; i++) {
+            expected.append("+r").append(i).append(' ');
+        }
+        assertEquals(expected.toString(), log.toString());
+    }
+
+    private static class Log implements StateAction {
+        private final StringBuffer entries = new StringBuffer();
+
+        public void execute(Stateful stateful, Object param) {
+            entries.append(param).append(' ');
+        }
+
+        void clear() {
+            entries.setLength(0);
+        }
+
+        public String toString() {
+            return entries.toString();
+        }
+    }
+
+    private static class Cookied implements Stateful {
+        private final StateCookie cookie;
+
+        Cookied(StateCookie cookie) {
+            this.cookie = cookie;
+        }
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public boolean pullTrigger(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+        }
+
+        public boolean isInState(String statePath) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package com.commercehub.core.state;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.commercehub.core.state.impl.pojo.BinaryStateCookie;
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+
+public class StateTimeoutTest {
+    private TimingWheelTest.ManualClock clock;
+    private TimingWheel wheel;
+    private ExclusiveState waiting;
+    private StateChart chart;
+
+    @Before
+    public void setUp() {
+        clock = new TimingWheelTest.ManualClock(10000);
+        wheel = new TimingWheel(clock, 10, 16);
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        ExclusiveState idle = new ExclusiveState("idle", false, false);
+        waiting = new ExclusiveState("waiting", false, false);
+        ExclusiveState expired = new ExclusiveState("expired", false, false);
+        root.addChild(idle);
+        root.addChild(waiting);
+        root.addChild(expired);
+        root.setDefaultChild(idle);
+        waiting.setTimeout(5000, ReminderTrigger.class, "late");
+        TriggerTransitionMap map = new TriggerTransitionMap();
+        map.addTriggerTransition(StepTrigger.class, "wait",
+            new Transition(idle, waiting, "wait"));
+        map.addTriggerTransition(StepTrigger.class, "answer",
+            new Transition(waiting, idle, "answer"));
+        map.addTriggerTransition(ReminderTrigger.class, "late",
+            new Transition(waiting, expired, "late"));
+        chart = new StateChart(root, null, null, null, map);
+    }
+
+    @Test
+    public void testTimeoutFiresMappedTransition() {
+        assertTrue(chart.hasTimeouts());
+        MachineStateful stateful = new MachineStateful(chart, wheel);
+        assertEquals(0, stateful.machine.getArmedTimeoutCount());
+        assertTrue(stateful.pullTrigger(new StepTrigger(), "wait"));
+        assertEquals(1, stateful.machine.getArmedTimeoutCount());
+        assertEquals(Long.valueOf(15000), ((TimedStateCookie) stateful.cookie)
+            .getTimeoutDeadlines().get("waiting"));
+
+        clock.now = 14999;
+        assertEquals(0, wheel.advance());
+        clock.now = 15000;
+        assertEquals(1, wheel.advance());
+        assertTrue(stateful.cookie.isActive("expired"));
+        assertEquals(1, stateful.pulled.size());
+        assertEquals(15000, ((TimeoutTrigger) stateful.pulled.get(0))
+            .getDeadline());
+        assertEquals(0, stateful.machine.getArmedTimeoutCount());
+        assertTrue(((TimedStateCookie) stateful.cookie)
+            .getTimeoutDeadlines().isEmpty());
+    }
+
+    @Test
+    public void testExitCancelsTimeout() {
+        MachineStateful stateful = new MachineStateful(chart, wheel);
+        stateful.pullTrigger(new StepTrigger(), "wait");
+        stateful.pullTrigger(new StepTrigger(), "answer");
+        assertEquals(0, wheel.size());
+        clock.now = 20000;
+        assertEquals(0, wheel.advance());
+        assertTrue(stateful.cookie.isActive("idle"));
+
+        //re-entry arms a new timeout, from the time of re-entry
+        stateful.pullTrigger(new StepTrigger(), "wait");
+        clock.now = 24990;
+        assertEquals(0, wheel.advance());
+        clock.now = 25000;
+        assertEquals(1, wheel.advance());
+        assertTrue(stateful.cookie.isActive("expired"));
+    }
+
+    @Test
+    public void testChildTransitionCancelsParentTimeout() {
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        ExclusiveState idle = new ExclusiveState("idle", false, false);
+        ExclusiveState parent = new ExclusiveState("waiting", false, false);
+        ExclusiveState inner = new ExclusiveState("inner", false, false);
+        root.addChild(idle);
+        root.addChild(parent);
+        parent.addChild(inner);
+        root.setDefaultChild(idle);
+        parent.setDefaultChild(inner);
+        parent.setTimeout(5000, ReminderTrigger.class, "late");
+        TriggerTransitionMap map = new TriggerTransitionMap();
+        map.addTriggerTransition(StepTrigger.class, "wait",
+            new Transition(idle, parent, "wait"));
+        map.addTriggerTransition(StepTrigger.class, "answer",
+            new Transition(inner, idle, "answer"));
+        map.addTriggerTransition(ReminderTrigger.class, "late",
+            new Transition(root, parent, "late"));
+        StateChart nested = new StateChart(root, null, null, null, map);
+
+        MachineStateful stateful = new MachineStateful(nested, wheel);
+        stateful.pullTrigger(new StepTrigger(), "wait");
+        assertEquals(1, stateful.machine.getArmedTimeoutCount());
+        //leaving the child exits its timed parent too
+        assertTrue(stateful.pullTrigger(new StepTrigger(), "answer"));
+        assertEquals(0, stateful.machine.getArmedTimeoutCount());
+        assertEquals(0, wheel.size());
+        clock.now = 20000;
+        assertEquals(0, wheel.advance());
+        assertTrue(stateful.cookie.isActive("idle"));
+    }
+
+    @Test
+    public void testStaleTimeoutIsIgnored() {
+        MachineStateful stateful = new MachineStateful(chart, wheel);
+        stateful.holding = true;
+        stateful.pullTrigger(new StepTrigger(), "wait");
+        clock.now = 15000;
+        assertEquals(1, wheel.advance());
+        Trigger stale = stateful.held.get(0);
+
+        //the state is exited and re-entered before the timeout is pulled
+        stateful.pullTrigger(new StepTrigger(), "answer");
+        stateful.pullTrigger(new StepTrigger(), "wait");
+        assertFalse(stateful.machine.pullTrigger(stale, "late", null));
+        assertTrue(stateful.cookie.isActive("waiting"));
+
+        //a timeout pulled by hand isn't armed, and always fires
+        assertTrue(stateful.machine.pullTrigger(new ReminderTrigger(), "late",
+            null));
+        assertTrue(stateful.cookie.isActive("expired"));
+    }
+
+    @Test
+    public void testCookieKeepsRemainingDelay() {
+        MachineStateful first = new MachineStateful(chart, wheel);
+        first.pullTrigger(new StepTrigger(), "wait");
+        first.machine.detachStateful();
+        assertEquals(0, wheel.size());
+
+        //attached again, later, the timeout keeps its original deadline
+        clock.now = 12000;
+        StateMachine machine = chart.newStateMachine();
+        machine.setTimingWheel(wheel);
+        machine.setActivityHost(InlineHost.INSTANCE);
+        MachineStateful second = new MachineStateful(machine, first.cookie);
+        assertEquals(1, machine.getArmedTimeoutCount());
+        clock.now = 15000;
+        assertEquals(1, wheel.advance());
+        assertTrue(second.cookie.isActive("expired"));
+
+        //a deadline that passed while detached expires on the next tick
+        MachineStateful third = new MachineStateful(chart, wheel);
+        third.pullTrigger(new StepTrigger(), "wait");
+        third.machine.detachStateful();
+        clock.now = 30000;
+        machine = chart.newStateMachine();
+        machine.setTimingWheel(wheel);
+        machine.setActivityHost(InlineHost.INSTANCE);
+        MachineStateful fourth = new MachineStateful(machine, third.cookie);
+        clock.now = 30010;
+        assertEquals(1, wheel.advance());
+        assertTrue(fourth.cookie.isActive("expired"));
+    }
+
+    @Test
+    public void testBinaryCookieKeepsRemainingDelay() {
+        StateMachine machine = chart.newStateMachine();
+        machine.setTimingWheel(wheel);
+        machine.setActivityHost(InlineHost.INSTANCE);
+        MachineStateful first = new MachineStateful(machine,
+            new BinaryStateCookie(chart));
+        first.pullTrigger(new StepTrigger(), "wait");
+        first.machine.detachStateful();
+        ByteBuffer buffer = ByteBuffer.allocate(
+            ((BinaryStateCookie) first.cookie).getEncodedSize());
+        ((BinaryStateCookie) first.cookie).writeTo(buffer);
+        assertFalse(buffer.hasRemaining());
+        buffer.flip();
+
+        //restored and attached again, later, the timeout keeps its deadline
+        BinaryStateCookie restored = new BinaryStateCookie(chart);
+        restored.readFrom(buffer);
+        assertEquals(Long.valueOf(15000),
+            restored.getTimeoutDeadlines().get("waiting"));
+        clock.now = 12000;
+        machine = chart.newStateMachine();
+        machine.setTimingWheel(wheel);
+        machine.setActivityHost(InlineHost.INSTANCE);
+        MachineStateful second = new MachineStateful(machine, restored);
+        assertEquals(1, machine.getArmedTimeoutCount());
+        clock.now = 15000;
+        assertEquals(1, wheel.advance());
+        assertTrue(second.cookie.isActive("expired"));
+        assertTrue(restored.getTimeoutDeadlines().isEmpty());
+
+        //an expired deadline survives the round trip too
+        restored.setTimeoutDeadlines(Collections.singletonMap("waiting",
+            Long.valueOf(TimedStateCookie.EXPIRED)));
+        buffer = ByteBuffer.allocate(restored.getEncodedSize());
+        restored.writeTo(buffer);
+        buffer.flip();
+        BinaryStateCookie expired = new BinaryStateCookie(chart);
+        expired.readFrom(buffer);
+        assertEquals(restored.getTimeoutDeadlines(),
+            expired.getTimeoutDeadlines());
+    }
+
+    @Test
+    public void testExpiredTimeoutIsNotRearmed() {
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        ExclusiveState only = new ExclusiveState("only", false, false);
+        root.addChild(only);
+        root.setDefaultChild(only);
+        only.setTimeout(100, TimeoutTrigger.class, null);
+        StateChart unmapped = new StateChart(root, null, null, null,
+            new TriggerTransitionMap());
+
+        MachineStateful stateful = new MachineStateful(unmapped, wheel);
+        assertEquals(1, wheel.size());
+        clock.now = 10100;
+        assertEquals(1, wheel.advance());
+        assertTrue(stateful.cookie.isActive("only"));
+        assertEquals(Long.valueOf(TimedStateCookie.EXPIRED),
+            ((TimedStateCookie) stateful.cookie).getTimeoutDeadlines()
+                .get("only"));
+        stateful.machine.detachStateful();
+
+        StateMachine machine = unmapped.newStateMachine();
+        machine.setTimingWheel(wheel);
+        machine.setActivityHost(InlineHost.INSTANCE);
+        new MachineStateful(machine, stateful.cookie);
+        assertEquals(0, wheel.size());
+        assertEquals(0, machine.getArmedTimeoutCount());
+    }
+
+    @Test
+    public void testTimeoutIsNotPulledOnWheelThread() throws Exception {
+        final CountDownLatch pulled = new CountDownLatch(1);
+        final Thread[] puller = new Thread[1];
+        StateMachine machine = chart.newStateMachine();
+        machine.setTimingWheel(wheel);
+        //the default host
+        MachineStateful stateful = new MachineStateful(machine,
+            new SerializableStateCookie()) {
+                public boolean pullTrigger(Trigger trigger, Object param) {
+                    if (trigger instanceof TimeoutTrigger) {
+                        puller[0] = Thread.currentThread();
+                        pulled.countDown();
+                    }
+                    return false;
+                }
+            };
+        machine.pullTrigger(new StepTrigger(), "wait", null);
+        clock.now = 15000;
+        assertEquals(1, wheel.advance());
+        assertTrue(pulled.await(10, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), puller[0]);
+    }
+
+    @Test
+    public void testTimeoutWaitsForOwnersTrigger() throws Exception {
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        ExclusiveState timed = new ExclusiveState("timed", false, false);
+        ExclusiveState first = new ExclusiveState("first", false, false);
+        ExclusiveState second = new ExclusiveState("second", false, false);
+        ExclusiveState late = new ExclusiveState("late", false, false);
+        root.addChild(timed);
+        root.addChild(late);
+        timed.addChild(first);
+        timed.addChild(second);
+        root.setDefaultChild(timed);
+        timed.setDefaultChild(first);
+        timed.setTimeout(100, ReminderTrigger.class, "late");
+        LatchAction arrived = new LatchAction();
+        late.addEntryAction(arrived, null);
+        BlockingAction blocking = new BlockingAction();
+        Transition step = new Transition(first, second, "step");
+        step.addAction(blocking, null);
+        TriggerTransitionMap map = new TriggerTransitionMap();
+        map.addTriggerTransition(StepTrigger.class, "step", step);
+        map.addTriggerTransition(ReminderTrigger.class, "late",
+            new Transition(timed, late, "late"));
+        StateChart nested = new StateChart(root, null, null, null, map);
+
+        //the default host
+        StateMachine machine = nested.newStateMachine();
+        machine.setTimingWheel(wheel);
+        final MachineStateful stateful = new MachineStateful(machine,
+            new SerializableStateCookie());
+        Thread owner = new Thread(new Runnable() {
+                public void run() {
+                    stateful.pullTrigger(new StepTrigger(), "step");
+                }
+            });
+        owner.start();
+        assertTrue(blocking.entered.await(10, TimeUnit.SECONDS));
+        clock.now = 10100;
+        assertEquals(1, wheel.advance());
+        assertFalse(arrived.latch.await(200, TimeUnit.MILLISECONDS));
+
+        blocking.release.countDown();
+        owner.join(10000);
+        assertTrue(arrived.latch.await(10, TimeUnit.SECONDS));
+        //waits for the timeout's trigger to finish, and fires nothing
+        assertFalse(stateful.pullTrigger(new StepTrigger(), "step"));
+        assertTrue(stateful.cookie.isActive("late"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTriggerNeedsPublicConstructor() {
+        new ExclusiveState("s", false, false).setTimeout(1,
+            HiddenTrigger.class, null);
+    }
+
+    /**
+     * Steps between states.
+     */
+    public static class StepTrigger implements Trigger {
+        public boolean eval(Stateful stateful, Object param,
+                            Condition condition) {
+            return true;
+        }
+    }
+
+    /**
+     * Pulled when an answer is late.
+     */
+    public static class ReminderTrigger extends TimeoutTrigger {
+    }
+
+    /**
+     * Can't be instantiated by a machine.
+     */
+    public static class HiddenTrigger extends TimeoutTrigger {
+        private HiddenTrigger() {
+        }
+    }
+
+    /**
+     * Counts down when executed.
+     */
+    private static class LatchAction implements StateAction {
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        public void execute(Stateful stateful, Object param) {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Blocks until released.
+     */
+    private static class BlockingAction implements StateAction {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        public void execute(Stateful stateful, Object param) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Delivers expired timeouts on the thread that advances the wheel, so
+     * tests see them as soon as advance returns.
+     */
+    private static class InlineHost implements ActivityHost {
+        static final InlineHost INSTANCE = new InlineHost();
+
+        public void execute(Runnable activity) {
+            activity.run();
+        }
+
+        public void deliver(Stateful stateful, Trigger trigger,
+                            Object param) {
+            stateful.pullTrigger(trigger, param);
+        }
+    }
+
+    /**
+     * A Stateful that owns its machine, and records the triggers pulled on
+     * it. A holding stateful keeps triggers instead of pulling them.
+     */
+    private static class MachineStateful implements Stateful {
+        private final StateCookie cookie;
+        private final StateMachine machine;
+        private final List<Trigger> pulled = new ArrayList<Trigger>();
+        private final List<Trigger> held = new ArrayList<Trigger>();
+        private boolean holding;
+
+        MachineStateful(StateChart chart, TimingWheel wheel) {
+            this(wheelMachine(chart, wheel), new SerializableStateCookie());
+        }
+
+        MachineStateful(StateMachine machine, StateCookie cookie) {
+            this.cookie = cookie;
+            this.machine = machine;
+            machine.attachStateful(this);
+        }
+
+        private static StateMachine wheelMachine(StateChart chart,
+                                                 TimingWheel wheel) {
+            StateMachine machine = chart.newStateMachine();
+            machine.setTimingWheel(wheel);
+            machine.setActivityHost(InlineHost.INSTANCE);
+            return machine;
+        }
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public boolean pullTrigger(Trigger trigger, Object param) {
+            if (holding && trigger instanceof TimeoutTrigger) {
+                held.add(trigger);
+                return false;
+            }
+            if (trigger instanceof TimeoutTrigger) {
+                pulled.add(trigger);
+            }
+            return machine.pullTrigger(trigger, param, null);
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+        }
+
+        public boolean isInState(String statePath) {
+            return false;
+        }
+    }
+}
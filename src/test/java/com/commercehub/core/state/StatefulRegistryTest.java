@@ -0,0 +1,213 @@
+package com.commercehub.core.state;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+
+public class StatefulRegistryTest {
+    private static final int IDS = 8;
+    private static final int THREADS = 16;
+    private static final int PULLS = 500;
+
+    private StateChart chart;
+
+    @Before
+    public void setUp() {
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        ExclusiveState a = new ExclusiveState("a", false, false);
+        ExclusiveState b = new ExclusiveState("b", false, false);
+        root.addChild(a);
+        root.addChild(b);
+        root.setDefaultChild(a);
+        TriggerTransitionMap map = new TriggerTransitionMap();
+        map.addTriggerTransition(CountingTrigger.class, "again",
+            new Transition(a, a, "again"));
+        Transition leave = new Transition(a, b, "leave");
+        leave.addRankedState(a);
+        map.addTriggerTransition(CountingTrigger.class, "leave", leave);
+        chart = new StateChart(root, null, null, null, map);
+    }
+
+    @Test
+    public void testStripesAreAPowerOfTwo() {
+        assertEquals(1, new StatefulRegistry(1).getStripeCount());
+        assertEquals(8, new StatefulRegistry(5).getStripeCount());
+        assertEquals(8, new StatefulRegistry(8).getStripeCount());
+        assertTrue(new StatefulRegistry().getStripeCount()
+            >= Runtime.getRuntime().availableProcessors());
+    }
+
+    @Test
+    public void testSerializesTriggersPerId() throws Exception {
+        //two stripes, so ids share locks too
+        final StatefulRegistry registry = new StatefulRegistry(2);
+        final List<CountingStateful> statefuls =
+            new ArrayList<CountingStateful>();
+        for (int i = 0; i < IDS; i++) {
+            CountingStateful stateful = new CountingStateful();
+            statefuls.add(stateful);
+            registry.attach("order-" + i, chart, stateful);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Callable<Object>> callers = new ArrayList<Callable<Object>>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                callers.add(new Callable<Object>() {
+                        public Object call() {
+                            CountingTrigger trigger = new CountingTrigger();
+                            for (int i = 0; i < PULLS; i++) {
+                                String id = "order-" + ((thread + i) % IDS);
+                                assertTrue(registry.pullTrigger(id, trigger,
+                                    "again", null));
+                                assertTrue(registry.isApplicable(id,
+                                    CountingTrigger.class, "leave"));
+                                assertEquals(0, registry.getRank(id,
+                                    CountingTrigger.class, "leave"));
+                                assertTrue(registry.isSupported(id,
+                                    CountingTrigger.class, "again"));
+                            }
+                            return null;
+                        }
+                    });
+            }
+            for (Future<Object> result: pool.invokeAll(callers)) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        int total = 0;
+        for (CountingStateful stateful: statefuls) {
+            total += stateful.pulls;
+        }
+        assertEquals(THREADS * PULLS, total);
+        assertEquals(Collections.singleton("a"),
+            registry.getActiveStatePathNames("order-0"));
+    }
+
+    @Test
+    public void testAttachReplacesAndDetachForgets() throws Exception {
+        StatefulRegistry registry = new StatefulRegistry();
+        CountingStateful first = new CountingStateful();
+        CountingStateful second = new CountingStateful();
+        StateMachine replaced = registry.attach("order", chart, first);
+        registry.attach("order", chart, second);
+        assertNull(replaced.getStateCookie());
+        StateCookie before = registry.copyStateCookie("order",
+            new SerializableStateCookie());
+        assertNotSame(second.cookie, before);
+        assertEquals(1, registry.size());
+
+        assertTrue(registry.pullTrigger("order", new CountingTrigger(),
+            "leave", null));
+        assertTrue(second.cookie.isActive("b"));
+        //a copy doesn't follow later triggers
+        assertTrue(before.isActive("a"));
+        assertFalse(before.isActive("b"));
+        assertTrue(registry.copyStateCookie("order",
+            new SerializableStateCookie()).isActive("b"));
+        assertFalse(registry.isApplicable("order", CountingTrigger.class,
+            "leave"));
+        assertEquals(StateMachine.RANK_INAPPLICABLE_PARAMETER,
+            registry.getRank("order", CountingTrigger.class, "leave"));
+        assertEquals(2, registry.getSupportedParameters("order",
+            CountingTrigger.class).size());
+
+        assertTrue(registry.detach("order"));
+        assertFalse(registry.detach("order"));
+        assertFalse(registry.contains("order"));
+        try {
+            registry.pullTrigger("order", new CountingTrigger(), "again",
+                null);
+            fail("A detached id should not take triggers");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testCompletionsArePulledThroughRegistry() throws Exception {
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        ExclusiveState idle = new ExclusiveState("idle", false, false);
+        ExclusiveState working = new ExclusiveState("working", false, false);
+        root.addChild(idle);
+        root.addChild(working);
+        root.setDefaultChild(idle);
+        working.addActivity(new Activity() {
+                public Object perform(Stateful stateful, Object param) {
+                    return "done";
+                }
+            }, null);
+        TriggerTransitionMap map = new TriggerTransitionMap();
+        map.addTriggerTransition(CountingTrigger.class, "go",
+            new Transition(idle, working, "go"));
+        map.addTriggerTransition(ActivityCompletedTrigger.class, "done",
+            new Transition(working, idle, "done"));
+        StateChart activities = new StateChart(root, null, null, null, map);
+
+        StatefulRegistry registry = new StatefulRegistry();
+        //the Stateful itself ignores triggers, so the completion must come
+        //back through the registry
+        registry.attach("order", activities, new CountingStateful());
+        long deadline = System.currentTimeMillis()
+            + TimeUnit.SECONDS.toMillis(10);
+        assertTrue(registry.pullTrigger("order", new CountingTrigger(), "go",
+            null));
+        while (!registry.getActiveStatePathNames("order").contains("idle")) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Counts its pulls on the Stateful without synchronizing, so pulls that
+     * overlap lose counts.
+     */
+    public static class CountingTrigger implements Trigger {
+        public boolean eval(Stateful stateful, Object param,
+                            Condition condition) {
+            CountingStateful counting = (CountingStateful) stateful;
+            int pulls = counting.pulls;
+            Thread.yield();
+            counting.pulls = pulls + 1;
+            return true;
+        }
+    }
+
+    private static class CountingStateful implements Stateful {
+        private final StateCookie cookie = new SerializableStateCookie();
+        private int pulls;
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public boolean pullTrigger(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+        }
+
+        public boolean isInState(String statePath) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.commercehub.core.state;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+    @Test
+    public void testNeverExpiresEarly() {
+        ManualClock clock = new ManualClock(1000);
+        TimingWheel wheel = new TimingWheel(clock, 10, 4);
+        List<Long> fired = new ArrayList<Long>();
+        wheel.schedule(new Recorder(clock, fired), 1025);
+        clock.now = 1024;
+        assertEquals(0, wheel.advance());
+        clock.now = 1029;
+        assertEquals(0, wheel.advance());
+        clock.now = 1030;
+        assertEquals(1, wheel.advance());
+        assertEquals(Long.valueOf(1030), fired.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testPastDeadlineExpiresOnNextTick() {
+        ManualClock clock = new ManualClock(1000);
+        TimingWheel wheel = new TimingWheel(clock, 10, 4);
+        TimingWheel.Timeout timeout = wheel.schedule(new Recorder(clock,
+            new ArrayList<Long>()), 0);
+        assertEquals(0, wheel.advance());
+        clock.now = 1010;
+        assertEquals(1, wheel.advance());
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+    }
+
+    @Test
+    public void testCascadesAcrossLevels() {
+        //four slots per level, so these deadlines span many levels
+        ManualClock clock = new ManualClock(0);
+        TimingWheel wheel = new TimingWheel(clock, 1, 4);
+        Random random = new Random(42);
+        List<Long> fired = new ArrayList<Long>();
+        for (int i = 0; i < 2000; i++) {
+            long deadline = 1 + random.nextInt(5000);
+            wheel.schedule(new Deadline(deadline, clock, fired), deadline);
+        }
+        assertEquals(2000, wheel.size());
+        for (clock.now = 1; clock.now <= 5000; clock.now++) {
+            wheel.advance();
+        }
+        assertEquals(2000, fired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCancelledTimeoutsNeverRun() {
+        ManualClock clock = new ManualClock(0);
+        TimingWheel wheel = new TimingWheel(clock, 1, 8);
+        List<Long> fired = new ArrayList<Long>();
+        List<TimingWheel.Timeout> timeouts =
+            new ArrayList<TimingWheel.Timeout>();
+        for (int i = 1; i <= 100000; i++) {
+            timeouts.add(wheel.schedule(new Recorder(clock, fired), i));
+        }
+        for (int i = 0; i < timeouts.size(); i += 2) {
+            assertTrue(timeouts.get(i).cancel());
+        }
+        assertEquals(50000, wheel.size());
+        clock.now = 100000;
+        assertEquals(50000, wheel.advance());
+        assertEquals(50000, fired.size());
+
+        TimingWheel.Timeout early = new TimingWheel.Timeout(
+            new Recorder(clock, fired));
+        early.cancel();
+        wheel.schedule(early, 100001);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopOthers() {
+        ManualClock clock = new ManualClock(0);
+        TimingWheel wheel = new TimingWheel(clock);
+        List<Long> fired = new ArrayList<Long>();
+        wheel.schedule(new Runnable() {
+                public void run() {
+                    throw new IllegalStateException("boom");
+                }
+            }, 100);
+        wheel.schedule(new Recorder(clock, fired), 100);
+        clock.now = 100;
+        try {
+            wheel.advance();
+            fail("The task's exception should be rethrown");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, fired.size());
+    }
+
+    /**
+     * A clock moved by hand.
+     */
+    static class ManualClock implements Clock {
+        long now;
+
+        ManualClock(long now) {
+            this.now = now;
+        }
+
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    /**
+     * Records the time it ran at.
+     */
+    private static class Recorder implements Runnable {
+        private final ManualClock clock;
+        private final List<Long> fired;
+
+        Recorder(ManualClock clock, List<Long> fired) {
+            this.clock = clock;
+            this.fired = fired;
+        }
+
+        public void run() {
+            fired.add(Long.valueOf(clock.now));
+        }
+    }
+
+    /**
+     * Checks that it runs on the tick of its deadline.
+     */
+    private static class Deadline implements Runnable {
+        private final long deadline;
+        private final ManualClock clock;
+        private final List<Long> fired;
+
+        Deadline(long deadline, ManualClock clock, List<Long> fired) {
+            this.deadline = deadline;
+            this.clock = clock;
+            this.fired = fired;
+        }
+
+        public void run() {
+            assertEquals(deadline, clock.now);
+            fired.add(Long.valueOf(clock.now));
+        }
+    }
+}
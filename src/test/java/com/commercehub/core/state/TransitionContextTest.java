@@ -0,0 +1,164 @@
+package com.commercehub.core.state;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+
+public class TransitionContextTest {
+    private static final int THREADS = 32;
+
+    @After
+    public void tearDown() {
+        TransitionContext.remove();
+    }
+
+    @Test
+    public void testUnusedThreadHasNoContext() {
+        assertNull(TransitionContext.current());
+        assertNull(TransitionContext.capture());
+        Runnable task = new Runnable() {
+                public void run() {
+                }
+            };
+        assertSame(task, TransitionContext.wrap(task));
+        assertNull(TransitionContext.current());
+    }
+
+    @Test
+    public void testThreadsKeepTheirOwnContexts() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Callable<Object>> callers = new ArrayList<Callable<Object>>();
+            for (int t = 0; t < THREADS; t++) {
+                final String name = "thread-" + t;
+                callers.add(new Callable<Object>() {
+                        public Object call() {
+                            for (int i = 0; i < 1000; i++) {
+                                TransitionContext context =
+                                    TransitionContext.getInstance();
+                                context.setContext("who", name);
+                                context.setContext("i", String.valueOf(i));
+                                assertEquals(name,
+                                    context.getContextMap().get("who"));
+                                TransitionContext.remove();
+                            }
+                            return null;
+                        }
+                    });
+            }
+            for (Future<Object> result: pool.invokeAll(callers)) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testWrappedTaskSeesCapturedCopy() throws Exception {
+        TransitionContext.getInstance().setContext("order", "42");
+        final Map[] seen = new Map[1];
+        Runnable task = TransitionContext.wrap(new Runnable() {
+                public void run() {
+                    TransitionContext context =
+                        TransitionContext.getInstance();
+                    seen[0] = context.getContextMap();
+                    context.setContext("order", "changed");
+                }
+            });
+        TransitionContext.getInstance().setContext("order", "43");
+
+        Thread thread = new Thread(task);
+        thread.start();
+        thread.join();
+        assertEquals("42", seen[0].get("order"));
+        assertEquals("43",
+            TransitionContext.getInstance().getContextMap().get("order"));
+
+        //running in place restores the caller's own context
+        task.run();
+        assertEquals("43",
+            TransitionContext.getInstance().getContextMap().get("order"));
+    }
+
+    @Test
+    public void testMailboxTriggersSeeSubmittersContext() throws Exception {
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        ExclusiveState a = new ExclusiveState("a", false, false);
+        root.addChild(a);
+        root.setDefaultChild(a);
+        TriggerTransitionMap map = new TriggerTransitionMap();
+        map.addTriggerTransition(ContextTrigger.class, "go",
+            new Transition(a, a, "go"));
+        StateChart chart = new StateChart(root, null, null, null, map);
+
+        StateMachineExecutor executor = new StateMachineExecutor(1);
+        try {
+            final SerializableStateCookie cookie =
+                new SerializableStateCookie();
+            StateMachineExecutor.Mailbox mailbox =
+                executor.attach(chart, new Stateful() {
+                    public boolean isSupported(Trigger trigger,
+                                               Object param) {
+                        return false;
+                    }
+
+                    public boolean pullTrigger(Trigger trigger,
+                                               Object param) {
+                        return false;
+                    }
+
+                    public StateCookie getStateCookie() {
+                        return cookie;
+                    }
+
+                    public void notifyPropertyChanged(String propertyName,
+                                                      Object newValue) {
+                    }
+
+                    public boolean isInState(String statePath) {
+                        return false;
+                    }
+                });
+            TransitionContext.getInstance().setContext("user", "alice");
+            ContextTrigger trigger = new ContextTrigger();
+            assertTrue(mailbox.submit(trigger, "go").get(10,
+                TimeUnit.SECONDS));
+            assertEquals("alice", trigger.user);
+
+            TransitionContext.remove();
+            assertTrue(mailbox.submit(trigger, "go").get(10,
+                TimeUnit.SECONDS));
+            assertNull(trigger.user);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Records the user in the context it runs with.
+     */
+    public static class ContextTrigger implements Trigger {
+        private volatile String user;
+
+        public boolean eval(Stateful stateful, Object param,
+                            Condition condition) {
+            TransitionContext context = TransitionContext.current();
+            user = context == null
+                ? null : (String) context.getContextMap().get("user");
+            return true;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.commercehub.core.state;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TriggerTransitionMapTest {
+    private TriggerTransitionMap map;
+    private Transition exact;
+    private Transition wildcard;
+    private Transition unparameterized;
+    private Transition sub;
+
+    @Before
+    public void setUp() {
+        ExclusiveState root = new ExclusiveState("root", false, false);
+        ExclusiveState a = new ExclusiveState("a", false, false);
+        ExclusiveState b = new ExclusiveState("b", false, false);
+        root.addChild(a);
+        root.addChild(b);
+
+        exact = new Transition(a, b, "exact");
+        wildcard = new Transition(b, a, "wildcard");
+        unparameterized = new Transition(a, a, "unparameterized");
+        sub = new Transition(b, b, "sub");
+
+        map = new TriggerTransitionMap();
+        map.addTriggerTransition(HubActionTrigger.class, "go", exact);
+        map.addTriggerTransition(HubActionTrigger.class, "*", wildcard);
+        map.addTriggerTransition(HubActionTrigger.class, null,
+            unparameterized);
+        map.addTriggerTransition(HubActionTriggerSub.class, "go", sub);
+    }
+
+    @Test
+    public void testExactParameterIncludesWildcardInMappingOrder() {
+        assertEquals(Arrays.asList(exact, wildcard),
+            asList(map.getTransitions(HubActionTrigger.class, "go")));
+    }
+
+    @Test
+    public void testUnmappedParameterOnlyMatchesWildcard() {
+        assertEquals(Arrays.asList(wildcard),
+            asList(map.getTransitions(HubActionTrigger.class, "stop")));
+        assertEquals(Arrays.asList(wildcard, unparameterized),
+            asList(map.getTransitions(HubActionTrigger.class, null)));
+    }
+
+    @Test
+    public void testRuntimeWildcard() {
+        assertEquals(Arrays.asList(exact, wildcard),
+            asList(map.getTransitions(HubActionTrigger.class, "*")));
+    }
+
+    @Test
+    public void testSubclassDispatch() {
+        assertEquals(Arrays.asList(exact, wildcard, sub),
+            asList(map.getTransitions(HubActionTriggerSub.class, "go")));
+        assertTrue(map.getTransitions(HairTrigger.class, "go").isEmpty());
+    }
+
+    @Test
+    public void testResultsAreSharedAndRebuiltOnMapping() {
+        Set<Transition> first =
+            map.getTransitions(HubActionTrigger.class, "go");
+        assertSame(first, map.getTransitions(HubActionTrigger.class, "go"));
+        try {
+            first.clear();
+            fail("Dispatch results should be unmodifiable");
+        } catch (UnsupportedOperationException expected) {
+        }
+
+        map.addTriggerTransition(HubActionTrigger.class, "go", sub);
+        assertEquals(Arrays.asList(exact, sub, wildcard),
+            asList(map.getTransitions(HubActionTrigger.class, "go")));
+    }
+
+    @Test
+    public void testConditionLookupPrefersExactParameter() {
+        Condition exactCondition = new Condition();
+        Condition wildcardCondition = new Condition();
+        map.addTriggerTransition(SimpleConditionalTrigger.class, "go",
+            exact, exactCondition);
+        map.addTriggerTransition(SimpleConditionalTrigger.class, "*",
+            exact, wildcardCondition);
+        map.indexConditions();
+
+        assertSame(exactCondition,
+            map.getCondition(SimpleConditionalTrigger.class, exact, "go"));
+        assertSame(wildcardCondition,
+            map.getCondition(SimpleConditionalTrigger.class, exact, "stop"));
+        assertSame(exactCondition,
+            map.getCondition(SimpleConditionalTrigger.class, exact, "*"));
+        assertNull(map.getCondition(SimpleConditionalTrigger.class, wildcard,
+                "go"));
+        assertNull(map.getCondition(HubActionTrigger.class, exact, "go"));
+    }
+
+    @Test
+    public void testSetParameterMatchesEachMember() {
+        Transition labelled = new Transition(exact.getExitState(),
+            exact.getEntryState(), "labelled");
+        Condition condition = new Condition();
+        map.addTriggerTransition(HubActionTrigger.class,
+            new LinkedHashSet<String>(Arrays.asList("go", "stop")), labelled,
+            condition);
+
+        assertEquals(Arrays.asList(exact, wildcard, labelled),
+            asList(map.getTransitions(HubActionTrigger.class, "go")));
+        assertEquals(Arrays.asList(wildcard, labelled),
+            asList(map.getTransitions(HubActionTrigger.class, "stop")));
+        assertEquals(Arrays.asList(wildcard),
+            asList(map.getTransitions(HubActionTrigger.class, "pause")));
+        assertTrue(asList(map.getTransitions(HubActionTrigger.class, "*"))
+            .contains(labelled));
+        assertEquals(Arrays.asList("go", "*", null, "stop"),
+            new LinkedList<Object>(
+                map.getParameters(HubActionTrigger.class)));
+
+        assertSame(condition,
+            map.getCondition(HubActionTrigger.class, labelled, "stop"));
+        assertNull(
+            map.getCondition(HubActionTrigger.class, labelled, "pause"));
+    }
+
+    @Test
+    public void testSetParameterMatchesWholeSet() {
+        Transition labelled = new Transition(exact.getExitState(),
+            exact.getEntryState(), "labelled");
+        Condition condition = new Condition();
+        map.addTriggerTransition(HubActionTrigger.class,
+            new LinkedHashSet<String>(Arrays.asList("go", "stop")), labelled,
+            condition);
+
+        Set<String> whole = new HashSet<String>(Arrays.asList("stop", "go"));
+        assertEquals(Arrays.asList(wildcard, labelled),
+            asList(map.getTransitions(HubActionTrigger.class, whole)));
+        assertSame(condition,
+            map.getCondition(HubActionTrigger.class, labelled, whole));
+        assertEquals(Arrays.asList(wildcard),
+            asList(map.getTransitions(HubActionTrigger.class,
+                Collections.singleton("go"))));
+    }
+
+    private List<Transition> asList(Set<Transition> transitions) {
+        return new LinkedList<Transition>(transitions);
+    }
+}
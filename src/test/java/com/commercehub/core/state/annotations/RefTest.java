@@ -1,6 +1,7 @@
 package com.commercehub.core.state.annotations;
 
 import com.commercehub.core.state.Condition;
+import com.commercehub.core.state.EntryAction;
 import com.commercehub.core.state.HairTrigger;
 import com.commercehub.core.state.Stateful;
 import com.commercehub.core.state.Trigger;
@@ -9,8 +10,12 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.reflections.Reflections;
 
+import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.net.URL;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.Set;
 
 import static java.lang.System.out;
@@ -50,6 +55,32 @@ public class RefTest {
         assertTrue("Could not find via reflection", HairTrigger.class.isAssignableFrom(c));
     }
 
+    @Test
+    public void testLookupUsingIndex() throws IOException {
+        IndexedClientImplProvider index = new IndexedClientImplProvider();
+        assertTrue("Build should have indexed @RefName classes", index.isIndexed());
+
+        assertSame(Tongs.class, index.getTriggerClass("beezl"));
+        assertSame(HairTrigger.class, index.getTriggerClass("hair"));
+        assertSame(EntryAction.class, index.getActionClass("EntryAction"));
+        assertNull(index.getActionClass("hair"));
+    }
+
+    @Test
+    public void testLookupFallsBackToScan() throws IOException {
+        ClassLoader unindexed = new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            public Enumeration<URL> getResources(String name) throws IOException {
+                if (RefNameProcessor.INDEX.equals(name)) {
+                    return Collections.enumeration(Collections.<URL>emptyList());
+                }
+                return super.getResources(name);
+            }
+        };
+        IndexedClientImplProvider index = new IndexedClientImplProvider(unindexed);
+        assertFalse(index.isIndexed());
+        assertSame(HairTrigger.class, index.getTriggerClass("hair"));
+    }
 
     @RefName("beezl")
     class Tongs implements Trigger {
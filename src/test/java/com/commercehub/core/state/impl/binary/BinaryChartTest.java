@@ -0,0 +1,211 @@
+package com.commercehub.core.state.impl.binary;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.commercehub.core.state.EntryAction;
+import com.commercehub.core.state.ExitAction;
+import com.commercehub.core.state.HubActionTrigger;
+import com.commercehub.core.state.State;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateCookie;
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.StateMachineConfigurationException;
+import com.commercehub.core.state.Stateful;
+import com.commercehub.core.state.Transition;
+import com.commercehub.core.state.TransitionAction;
+import com.commercehub.core.state.Trigger;
+import com.commercehub.core.state.TriggerTransitionMap;
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+import com.commercehub.core.state.impl.xml.ClientImplRegistry;
+import com.commercehub.core.state.impl.xml.XMLStateMachineFactory;
+
+public class BinaryChartTest {
+    private static final String XML = "/com/commercehub/core/state/impl/xml/";
+
+    private static final String CONDITIONAL =
+        "<state-machine name=\"root\" concurrent=\"false\" "
+        + "description=\"conditions\" default-child-ref=\"a\">"
+        + "<property name=\"color\" default-value=\"red\">"
+        + "<value text=\"red\"/><value text=\"blue\"/></property>"
+        + "<state name=\"a\" history=\"self\" default-child-ref=\"b\">"
+        + "<state name=\"b\"/><state name=\"c\"/>"
+        + "<transition name=\"go\" entry=\"d\">"
+        + "<trigger-ref ref=\"HubActionTrigger\" param=\"go\">"
+        + "<condition>ANY(x) AND NOT (ALL(y, z) OR NONE(w))</condition>"
+        + "</trigger-ref>"
+        + "<state-rank ref=\"a.c\"/>"
+        + "</transition>"
+        + "</state>"
+        + "<state name=\"d\"><entry-action-ref ref=\"EntryAction\"/></state>"
+        + "</state-machine>";
+
+    @After
+    public void tearDown() {
+        ExitAction.clear();
+        EntryAction.clear();
+        TransitionAction.clear();
+    }
+
+    private ClientImplRegistry clientImpl() throws Exception {
+        return new XMLStateMachineFactory().getClientImplRegistry(
+            getClass().getResourceAsStream(XML + "clientimpl.xml"));
+    }
+
+    private StateChart parse(InputStream stateMachine) throws Exception {
+        return new XMLStateMachineFactory().getStateChartFromInputStream(
+            stateMachine, clientImpl());
+    }
+
+    @Test
+    public void testCompiledChartRunsLikeTheParsedChart() throws Exception {
+        File document = File.createTempFile("concurrent", ".xml");
+        File compiled = File.createTempFile("concurrent", ".chart");
+        document.deleteOnExit();
+        compiled.deleteOnExit();
+        copy(getClass().getResourceAsStream(XML
+            + "concurrent-alphabetical-statemachine.xml"), document);
+        BinaryChartCompiler.compile(document, clientImpl(), compiled);
+
+        StateChart parsed = parse(getClass().getResourceAsStream(XML
+            + "concurrent-alphabetical-statemachine.xml"));
+        StateChart loaded = new BinaryChartLoader().load(compiled);
+        assertEquals(parsed.getFingerprint(), loaded.getFingerprint());
+        assertEquals(parsed.getStateCount(), loaded.getStateCount());
+        assertEquals(parsed.getPossiblePropertyValueMap(),
+            loaded.getPossiblePropertyValueMap());
+        assertEquals(
+            parsed.getTriggerTransitionMap().getMappings().size(),
+            loaded.getTriggerTransitionMap().getMappings().size());
+
+        Recorder parsedStateful = new Recorder();
+        Recorder loadedStateful = new Recorder();
+        StateMachine parsedMachine = parsed.newStateMachine();
+        StateMachine loadedMachine = loaded.newStateMachine();
+        parsedMachine.attachStateful(parsedStateful);
+        loadedMachine.attachStateful(loadedStateful);
+        for (String param: new String[] {"exc-to-conc", "internal", "a",
+                "conc-to-exc", "exc-to-conc"}) {
+            int entered = EntryAction.timesExecuted();
+            int exited = ExitAction.timesExecuted();
+            boolean fired =
+                parsedMachine.pullTrigger(new HubActionTrigger(), param, null);
+            int parsedEntries = EntryAction.timesExecuted() - entered;
+            int parsedExits = ExitAction.timesExecuted() - exited;
+            entered = EntryAction.timesExecuted();
+            exited = ExitAction.timesExecuted();
+            assertEquals(param, fired,
+                loadedMachine.pullTrigger(new HubActionTrigger(), param, null));
+            assertEquals(param, parsedEntries,
+                EntryAction.timesExecuted() - entered);
+            assertEquals(param, parsedExits,
+                ExitAction.timesExecuted() - exited);
+            assertEquals(param, parsedMachine.getActiveStateString(),
+                loadedMachine.getActiveStateString());
+        }
+        assertFalse(parsedStateful.properties.isEmpty());
+        assertEquals(parsedStateful.properties, loadedStateful.properties);
+    }
+
+    @Test
+    public void testConditionsRanksAndPropertiesAreCompiled() throws Exception {
+        StateChart parsed = parse(
+            new ByteArrayInputStream(CONDITIONAL.getBytes("UTF-8")));
+        StateChart loaded = new BinaryChartLoader().load(
+            ByteBuffer.wrap(BinaryChartWriter.toByteArray(parsed)));
+
+        assertEquals("conditions", loaded.getDescription());
+        assertEquals(parsed.getPossiblePropertyValueMap(),
+            loaded.getPossiblePropertyValueMap());
+        assertEquals("color: red",
+            loaded.getDefaultPropertyValues().get(0).toString());
+        assertEquals(parsed.getFingerprint(), loaded.getFingerprint());
+
+        TriggerTransitionMap.Mapping expected =
+            parsed.getTriggerTransitionMap().getMappings().get(0);
+        TriggerTransitionMap.Mapping actual =
+            loaded.getTriggerTransitionMap().getMappings().get(0);
+        assertSame(HubActionTrigger.class, actual.getTriggerClass());
+        assertEquals("go", actual.getParam());
+        assertEquals(expected.getCondition().toString(),
+            actual.getCondition().toString());
+
+        Transition go = actual.getTransition();
+        assertEquals("go", go.getName());
+        assertEquals("a", go.getExitState().getPathName());
+        assertEquals("d", go.getEntryState().getPathName());
+        List<String> ranked = new ArrayList<String>();
+        for (Object state: go.getRankedStates()) {
+            ranked.add(((State) state).getPathName());
+        }
+        assertEquals("[a.c]", ranked.toString());
+    }
+
+    @Test
+    public void testRejectsCorruptCharts() throws Exception {
+        byte[] compiled = BinaryChartWriter.toByteArray(parse(
+            new ByteArrayInputStream(CONDITIONAL.getBytes("UTF-8"))));
+        BinaryChartLoader loader = new BinaryChartLoader();
+        try {
+            loader.load(ByteBuffer.wrap(compiled, 0, compiled.length - 1));
+            fail("Truncated chart should not load");
+        } catch (StateMachineConfigurationException expected) {
+        }
+        compiled[0] = '<';
+        try {
+            loader.load(ByteBuffer.wrap(compiled));
+            fail("Only compiled charts should load");
+        } catch (StateMachineConfigurationException expected) {
+        }
+    }
+
+    private static void copy(InputStream in, File file) throws Exception {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static class Recorder implements Stateful {
+        private final StateCookie cookie = new SerializableStateCookie();
+        private final List<String> properties = new ArrayList<String>();
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public boolean pullTrigger(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+            properties.add(propertyName + "=" + newValue);
+        }
+
+        public boolean isInState(String statePath) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.commercehub.core.state.impl.codegen;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.commercehub.core.state.EntryAction;
+import com.commercehub.core.state.ExitAction;
+import com.commercehub.core.state.HubActionTrigger;
+import com.commercehub.core.state.SimpleConditionalTrigger;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateCookie;
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.Stateful;
+import com.commercehub.core.state.TransitionAction;
+import com.commercehub.core.state.Trigger;
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+import com.commercehub.core.state.impl.xml.XMLStateMachineFactory;
+
+public class ChartSourceGeneratorTest {
+    private static final String XML = "/com/commercehub/core/state/impl/xml/";
+
+    private static final String CLIENT_IMPL =
+        "<state-machine-client-impl>"
+        + "<trigger-defn name=\"HubActionTrigger\" "
+        + "class=\"com.commercehub.core.state.HubActionTrigger\"/>"
+        + "<trigger-defn name=\"conditional\" "
+        + "class=\"com.commercehub.core.state.SimpleConditionalTrigger\"/>"
+        + "<action-defn name=\"EntryAction\" "
+        + "class=\"com.commercehub.core.state.EntryAction\"/>"
+        + "</state-machine-client-impl>";
+
+    private static final String CONDITIONAL =
+        "<state-machine name=\"root\" concurrent=\"false\" "
+        + "default-child-ref=\"a\">"
+        + "<state name=\"a\" default-child-ref=\"b\">"
+        + "<state name=\"b\"/><state name=\"c\"/>"
+        + "<transition name=\"go\" entry=\"d\">"
+        + "<trigger-ref ref=\"conditional\" param=\"go\">"
+        + "<condition>ANY(x) AND NOT (ALL(y, z) OR NONE(w))</condition>"
+        + "</trigger-ref>"
+        + "<trigger-ref ref=\"HubActionTrigger\" param=\"*\"/>"
+        + "<state-rank ref=\"a.c\"/><state-rank ref=\"a.b\"/>"
+        + "</transition>"
+        + "<transition name=\"some\" entry=\"a.c\">"
+        + "<trigger-ref ref=\"conditional\">"
+        + "<condition>SOME(x)</condition>"
+        + "</trigger-ref>"
+        + "</transition>"
+        + "</state>"
+        + "<state name=\"d\"><entry-action-ref ref=\"EntryAction\"/></state>"
+        + "</state-machine>";
+
+    /** Holds the classes each test compiles; deleted after the test */
+    @Rule
+    public TemporaryFolder generatedClasses = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        ExitAction.clear();
+        EntryAction.clear();
+        TransitionAction.clear();
+    }
+
+    private static StateChart parse(InputStream stateMachine) throws Exception {
+        XMLStateMachineFactory factory = new XMLStateMachineFactory();
+        return factory.getStateChartFromInputStream(stateMachine,
+            factory.getClientImplRegistry(new ByteArrayInputStream(
+                CLIENT_IMPL.getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void testClassNames() {
+        assertEquals("OrderStateMachine", ChartSourceGenerator.classNameFor(
+            new File("order-statemachine.xml")));
+        assertEquals("ConcurrentAlphabeticalStateMachine",
+            ChartSourceGenerator.classNameFor(
+                new File("concurrent-alphabetical-statemachine.xml")));
+        assertEquals("Chart1StateMachine", ChartSourceGenerator.classNameFor(
+            new File("1.xml")));
+    }
+
+    @Test
+    public void testGeneratedMachineRunsLikeTheGenericMachine()
+            throws Exception {
+        StateChart chart = parse(getClass().getResourceAsStream(XML
+            + "concurrent-alphabetical-statemachine.xml"));
+        StateMachine generic = chart.newStateMachine();
+        StateMachine generated = instantiate(chart, "ConcurrentStateMachine");
+        assertNotSame(StateMachine.class, generated.getClass());
+        generic.attachStateful(new Observable());
+        generated.attachStateful(new Observable());
+
+        for (String param: new String[] {"exc-to-conc", "internal", "a",
+                "unmapped", "conc-to-exc", null, "exc-to-conc", "*"}) {
+            assertEquals(param,
+                generic.isApplicable(HubActionTrigger.class, param),
+                generated.isApplicable(HubActionTrigger.class, param));
+            assertEquals(param, generic.getRank(HubActionTrigger.class, param),
+                generated.getRank(HubActionTrigger.class, param));
+            int entered = EntryAction.timesExecuted();
+            boolean fired =
+                generic.pullTrigger(new HubActionTrigger(), param, null);
+            int genericEntries = EntryAction.timesExecuted() - entered;
+            entered = EntryAction.timesExecuted();
+            assertEquals(param, fired,
+                generated.pullTrigger(new HubActionTrigger(), param, null));
+            assertEquals(param, genericEntries,
+                EntryAction.timesExecuted() - entered);
+            assertEquals(param, generic.getActiveStateString(),
+                generated.getActiveStateString());
+        }
+    }
+
+    @Test
+    public void testInlinedConditionsAndRanks() throws Exception {
+        StateChart chart = parse(
+            new ByteArrayInputStream(CONDITIONAL.getBytes("UTF-8")));
+        String source = generate(chart, "ConditionalStateMachine");
+        assertTrue(source, source.contains("private static boolean some("));
+
+        List<Set<Stateful>> observations = new ArrayList<Set<Stateful>>();
+        observations.add(Collections.<Stateful>emptySet());
+        observations.add(observed(new Observable("x")));
+        observations.add(observed(new Observable("x", "y")));
+        observations.add(observed(new Observable("x", "w")));
+        observations.add(observed(new Observable("x", "y", "w")));
+        observations.add(observed(new Observable("x"), new Observable()));
+        observations.add(observed(new Observable("x", "z"),
+            new Observable("y")));
+        Class machineClass = compile(chart, "ConditionalStateMachine");
+        for (Set<Stateful> observed: observations) {
+            for (String param: new String[] {"go", null, "other"}) {
+                StateMachine generic = chart.newStateMachine();
+                StateMachine generated = (StateMachine) machineClass
+                    .getConstructor(StateChart.class).newInstance(chart);
+                generic.attachStateful(new Observable());
+                generated.attachStateful(new Observable());
+                String context = observed + " " + param;
+                assertEquals(context,
+                    generic.getRank(SimpleConditionalTrigger.class, param),
+                    generated.getRank(SimpleConditionalTrigger.class, param));
+                assertEquals(context,
+                    generic.pullTrigger(
+                        new SimpleConditionalTrigger(observed), param, null),
+                    generated.pullTrigger(
+                        new SimpleConditionalTrigger(observed), param, null));
+                assertEquals(context, generic.getActiveStateString(),
+                    generated.getActiveStateString());
+                assertEquals(context,
+                    generic.getRank(HubActionTrigger.class, "any"),
+                    generated.getRank(HubActionTrigger.class, "any"));
+            }
+        }
+    }
+
+    @Test
+    public void testRejectsAnotherChart() throws Exception {
+        StateChart chart = parse(
+            new ByteArrayInputStream(CONDITIONAL.getBytes("UTF-8")));
+        StateChart other = parse(getClass().getResourceAsStream(XML
+            + "concurrent-alphabetical-statemachine.xml"));
+        Class machineClass = compile(chart, "MismatchStateMachine");
+        try {
+            machineClass.getConstructor(StateChart.class).newInstance(other);
+            fail("A generated machine should only run its own chart");
+        } catch (InvocationTargetException expected) {
+            assertTrue(expected.getCause()
+                instanceof IllegalArgumentException);
+        }
+    }
+
+    private static String generate(StateChart chart, String className)
+            throws Exception {
+        StringWriter source = new StringWriter();
+        ChartSourceGenerator.generate(chart, "generated", className, source);
+        return source.toString();
+    }
+
+    private StateMachine instantiate(StateChart chart, String className)
+            throws Exception {
+        return (StateMachine) compile(chart, className)
+            .getConstructor(StateChart.class).newInstance(chart);
+    }
+
+    /**
+     * Compiles the class generated for a chart in the test's temporary folder
+     * and loads it.
+     */
+    private Class compile(StateChart chart, String className)
+            throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assume.assumeNotNull(compiler);
+        File dir = generatedClasses.newFolder();
+        File packageDir = new File(dir, "generated");
+        assertTrue(packageDir.mkdirs());
+        File sourceFile = new File(packageDir, className + ".java");
+        Writer writer = new OutputStreamWriter(
+            new FileOutputStream(sourceFile), "UTF-8");
+        try {
+            writer.write(generate(chart, className));
+        } finally {
+            writer.close();
+        }
+        int status = compiler.run(null, null, null, "-nowarn",
+            "-classpath", System.getProperty("java.class.path"),
+            "-d", dir.getPath(), sourceFile.getPath());
+        assertEquals("Generated source didn't compile", 0, status);
+        ClassLoader loader = new URLClassLoader(new URL[] {dir.toURI().toURL()},
+            ChartSourceGeneratorTest.class.getClassLoader());
+        return loader.loadClass("generated." + className);
+    }
+
+    private static Set<Stateful> observed(Stateful... statefuls) {
+        return new HashSet<Stateful>(Arrays.asList(statefuls));
+    }
+
+    private static class Observable implements Stateful {
+        private final StateCookie cookie = new SerializableStateCookie();
+        private final Set<String> states;
+
+        Observable(String... states) {
+            this.states = new HashSet<String>(Arrays.asList(states));
+        }
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public boolean pullTrigger(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+        }
+
+        public boolean isInState(String statePath) {
+            return states.contains(statePath);
+        }
+
+        public String toString() {
+            return states.toString();
+        }
+    }
+}
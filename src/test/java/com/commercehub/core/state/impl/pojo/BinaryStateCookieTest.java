@@ -0,0 +1,140 @@
+package com.commercehub.core.state.impl.pojo;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.commercehub.core.state.EntryAction;
+import com.commercehub.core.state.ExitAction;
+import com.commercehub.core.state.HubActionTrigger;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateCookie;
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.Stateful;
+import com.commercehub.core.state.TransitionAction;
+import com.commercehub.core.state.Trigger;
+import com.commercehub.core.state.impl.xml.XMLStateMachineFactory;
+
+public class BinaryStateCookieTest {
+    private static final String XML = "/com/commercehub/core/state/impl/xml/";
+
+    @After
+    public void tearDown() {
+        ExitAction.clear();
+        EntryAction.clear();
+        TransitionAction.clear();
+    }
+
+    private StateChart parse(String stateMachine) throws Exception {
+        return new XMLStateMachineFactory().getStateChartFromInputStreams(
+            getClass().getResourceAsStream(XML + stateMachine),
+            getClass().getResourceAsStream(XML + "clientimpl.xml"));
+    }
+
+    @Test
+    public void testRoundTripMatchesPathNameCookie() throws Exception {
+        StateChart chart = parse("exclusive-alphabetical-statemachine.xml");
+        CookieStateful binary =
+            new CookieStateful(new BinaryStateCookie(chart));
+        CookieStateful serializable =
+            new CookieStateful(new SerializableStateCookie());
+        StateMachine binaryMachine = chart.newStateMachine();
+        StateMachine serializableMachine = chart.newStateMachine();
+        binaryMachine.attachStateful(binary);
+        serializableMachine.attachStateful(serializable);
+        for (String param: new String[] {"siblings", "ancestors"}) {
+            binaryMachine.pullTrigger(new HubActionTrigger(), param, null);
+            serializableMachine.pullTrigger(new HubActionTrigger(), param,
+                null);
+        }
+        assertEquals(serializable.cookie.getActiveStatePathNames(),
+            binary.cookie.getActiveStatePathNames());
+        assertEquals(serializable.cookie.getHistoryStatePathNames(),
+            binary.cookie.getHistoryStatePathNames());
+        assertTrue(binary.cookie.getHistoryStatePathNames().contains("C.G"));
+
+        BinaryStateCookie written = (BinaryStateCookie) binary.cookie;
+        ByteBuffer buffer = ByteBuffer.allocate(written.getEncodedSize());
+        written.writeTo(buffer);
+        assertFalse(buffer.hasRemaining());
+        assertTrue(buffer.capacity() < 20);
+        buffer.flip();
+
+        //a separately parsed chart of the same definition shares ordinals
+        StateChart reparsed = parse("exclusive-alphabetical-statemachine.xml");
+        assertEquals(chart.getFingerprint(), reparsed.getFingerprint());
+        BinaryStateCookie read = new BinaryStateCookie(reparsed);
+        read.readFrom(buffer);
+        StateMachine reloaded = reparsed.newStateMachine();
+        reloaded.attachStateful(new CookieStateful(read));
+        assertEquals("B", reloaded.getActiveStateString());
+
+        reloaded.pullTrigger(new HubActionTrigger(), "self", null);
+        assertEquals(serializable.cookie.getHistoryStatePathNames(),
+            read.getHistoryStatePathNames());
+    }
+
+    @Test
+    public void testRejectsOtherCharts() throws Exception {
+        StateChart exclusive = parse("exclusive-alphabetical-statemachine.xml");
+        StateChart concurrent =
+            parse("concurrent-alphabetical-statemachine.xml");
+        assertTrue(exclusive.getFingerprint() != concurrent.getFingerprint());
+
+        BinaryStateCookie cookie = new BinaryStateCookie(exclusive);
+        cookie.setActive("C");
+        cookie.setActive("C.F");
+        ByteBuffer buffer = ByteBuffer.allocate(cookie.getEncodedSize());
+        cookie.writeTo(buffer);
+        buffer.flip();
+
+        BinaryStateCookie other = new BinaryStateCookie(concurrent);
+        try {
+            other.readFrom(buffer);
+            fail("Cookie should only load into its own chart");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertTrue(other.isNew());
+
+        buffer.rewind();
+        buffer.limit(buffer.limit() - 1);
+        BinaryStateCookie truncated = new BinaryStateCookie(exclusive);
+        try {
+            truncated.readFrom(buffer);
+            fail("Truncated cookie should not load");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertTrue(truncated.isNew());
+    }
+
+    private static class CookieStateful implements Stateful {
+        private StateCookie cookie;
+
+        CookieStateful(StateCookie cookie) {
+            this.cookie = cookie;
+        }
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public boolean pullTrigger(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+        }
+
+        public boolean isInState(String statePath) {
+            return false;
+        }
+    }
+}
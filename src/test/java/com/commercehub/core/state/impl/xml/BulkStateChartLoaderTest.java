@@ -0,0 +1,193 @@
+package com.commercehub.core.state.impl.xml;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.StateMachineConfigurationException;
+
+public class BulkStateChartLoaderTest {
+    private static final String PREFIX = "com/commercehub/core/state/impl/xml";
+    private static final String CLIENT_IMPL = "clientimpl.xml";
+    private static final String CONCURRENT =
+        "concurrent-alphabetical-statemachine.xml";
+    private static final String EXCLUSIVE =
+        "exclusive-alphabetical-statemachine.xml";
+
+    private ExecutorService executor;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        directory = File.createTempFile("charts", "");
+        assertTrue(directory.delete());
+        assertTrue(new File(directory, "nested/deeper").mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+        delete(directory);
+    }
+
+    @Test
+    public void testLoadsADirectoryTree() throws Exception {
+        copy(CLIENT_IMPL, CLIENT_IMPL);
+        copy(CONCURRENT, CONCURRENT);
+        copy(EXCLUSIVE, "nested/deeper/" + EXCLUSIVE);
+        StateChartRegistry registry = new StateChartRegistry();
+        List<BulkStateChartLoader.DocumentTiming> timings =
+            new BulkStateChartLoader(registry, executor)
+                .loadDirectory(directory);
+
+        assertEquals(Arrays.asList("concurrent-alphabetical-statemachine",
+            "nested/deeper/exclusive-alphabetical-statemachine"),
+            new ArrayList<String>(registry.getNames()));
+        assertEquals(3, timings.size());
+        assertEquals("clientimpl", timings.get(0).getName());
+        assertTrue(timings.get(0).isClientImpl());
+        for (BulkStateChartLoader.DocumentTiming timing: timings) {
+            assertTrue(timing.toString(), timing.getElapsedNanos() > 0);
+        }
+        StateMachine machine = registry.newStateMachine(
+            "nested/deeper/exclusive-alphabetical-statemachine");
+        assertSame(registry.getStateChart(
+            "nested/deeper/exclusive-alphabetical-statemachine"),
+            machine.getStateChart());
+    }
+
+    @Test
+    public void testPublishesNothingIfADocumentFails() throws Exception {
+        copy(CLIENT_IMPL, CLIENT_IMPL);
+        copy(CONCURRENT, CONCURRENT);
+        write("nested/broken.xml", "<state-machine name=\"x\">");
+        write("nested/deeper/odd.xml", "<not-a-chart/>");
+        StateChartRegistry registry = new StateChartRegistry();
+        try {
+            new BulkStateChartLoader(registry, executor)
+                .loadDirectory(directory);
+            fail("Broken documents should not load");
+        } catch (StateMachineConfigurationException expected) {
+            assertTrue(expected.getMessage(),
+                expected.getMessage().contains("nested/broken.xml"));
+            assertTrue(expected.getMessage(),
+                expected.getMessage().contains("nested/deeper/odd.xml"));
+        }
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testRequiresAClientImpl() throws Exception {
+        copy(CLIENT_IMPL, "nested/" + CLIENT_IMPL);
+        copy(CONCURRENT, CONCURRENT);
+        try {
+            new BulkStateChartLoader(new StateChartRegistry(), executor)
+                .loadDirectory(directory);
+            fail("A chart above every client-impl should not load");
+        } catch (StateMachineConfigurationException expected) {
+        }
+    }
+
+    @Test
+    public void testLoadsAClassPathPrefix() throws Exception {
+        StateChartRegistry registry = new StateChartRegistry();
+        new BulkStateChartLoader(registry).loadClassPath(PREFIX);
+        assertTrue(registry.getNames().toString(), registry.getNames()
+            .contains("concurrent-alphabetical-statemachine"));
+        assertTrue(registry.getNames().toString(), registry.getNames()
+            .contains("exclusive-alphabetical-statemachine"));
+    }
+
+    @Test
+    public void testLoadsAClassPathPrefixFromAJar() throws Exception {
+        File jar = new File(directory, "charts.jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new JarEntry("charts/"));
+            for (String name: new String[] {CLIENT_IMPL, CONCURRENT,
+                    EXCLUSIVE}) {
+                out.putNextEntry(new JarEntry("charts/" + name));
+                InputStream in = resource(name);
+                try {
+                    pipe(in, out);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        ClassLoader classLoader = new URLClassLoader(
+            new URL[] {jar.toURI().toURL()}, getClass().getClassLoader());
+        StateChartRegistry registry = new StateChartRegistry();
+        List<BulkStateChartLoader.DocumentTiming> timings =
+            new BulkStateChartLoader(registry, executor)
+                .loadClassPath("charts/", classLoader);
+        assertEquals(3, timings.size());
+        assertEquals(Arrays.asList("concurrent-alphabetical-statemachine",
+            "exclusive-alphabetical-statemachine"),
+            new ArrayList<String>(registry.getNames()));
+        assertTrue(timings.get(1).getSource(),
+            timings.get(1).getSource().startsWith("jar:"));
+    }
+
+    private InputStream resource(String name) {
+        return getClass().getResourceAsStream("/" + PREFIX + "/" + name);
+    }
+
+    private void copy(String resource, String path) throws Exception {
+        InputStream in = resource(resource);
+        OutputStream out = new FileOutputStream(new File(directory, path));
+        try {
+            pipe(in, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private void write(String path, String content) throws Exception {
+        OutputStream out = new FileOutputStream(new File(directory, path));
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void pipe(InputStream in, OutputStream out)
+            throws Exception {
+        byte[] buf = new byte[4096];
+        for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+            out.write(buf, 0, n);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,269 @@
+package com.commercehub.core.state.impl.xml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.commercehub.core.state.ChartMigration;
+import com.commercehub.core.state.ChartVersions;
+import com.commercehub.core.state.EntryAction;
+import com.commercehub.core.state.ExitAction;
+import com.commercehub.core.state.HubActionTrigger;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateCookie;
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.StateMachineConfigurationException;
+import com.commercehub.core.state.Stateful;
+import com.commercehub.core.state.TransitionAction;
+import com.commercehub.core.state.Trigger;
+import com.commercehub.core.state.impl.pojo.BinaryStateCookie;
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+
+public class ChartVersionsTest {
+    private static final String V1 =
+        "<state-machine name=\"order\" concurrent=\"false\" "
+        + "default-child-ref=\"open\">"
+        + "<state name=\"open\" default-child-ref=\"new\">"
+        + "<state name=\"new\"/><state name=\"reviewed\"/>"
+        + "<transition name=\"review\" entry=\"open.reviewed\">"
+        + "<trigger-ref ref=\"HubActionTrigger\" param=\"review\"/>"
+        + "</transition>"
+        + "<transition name=\"ship\" entry=\"shipped\">"
+        + "<trigger-ref ref=\"HubActionTrigger\" param=\"ship\"/>"
+        + "</transition>"
+        + "</state>"
+        + "<state name=\"shipped\"/>"
+        + "</state-machine>";
+
+    /** open.new is renamed, open.reviewed is dropped, shipped is renamed */
+    private static final String V2 =
+        "<state-machine name=\"order\" concurrent=\"false\" "
+        + "default-child-ref=\"open\">"
+        + "<state name=\"open\" default-child-ref=\"pending\">"
+        + "<state name=\"pending\"/><state name=\"held\"/>"
+        + "<transition name=\"hold\" entry=\"open.held\">"
+        + "<trigger-ref ref=\"HubActionTrigger\" param=\"hold\"/>"
+        + "</transition>"
+        + "<transition name=\"ship\" entry=\"dispatched\">"
+        + "<trigger-ref ref=\"HubActionTrigger\" param=\"ship\"/>"
+        + "</transition>"
+        + "</state>"
+        + "<state name=\"dispatched\"/>"
+        + "</state-machine>";
+
+    @After
+    public void tearDown() {
+        ExitAction.clear();
+        EntryAction.clear();
+        TransitionAction.clear();
+    }
+
+    private StateChart parse(String stateMachine) throws Exception {
+        return new XMLStateMachineFactory().getStateChartFromInputStreams(
+            new ByteArrayInputStream(stateMachine.getBytes("UTF-8")),
+            getClass().getResourceAsStream("clientimpl.xml"));
+    }
+
+    private static Map<String, String> pathMap() {
+        Map<String, String> pathMap = new HashMap<String, String>();
+        pathMap.put("open.new", "open.pending");
+        pathMap.put("open.reviewed", null);
+        pathMap.put("shipped", "dispatched");
+        return pathMap;
+    }
+
+    private static Set<String> paths(String... paths) {
+        return new HashSet<String>(Arrays.asList(paths));
+    }
+
+    @Test
+    public void testMigratesPathCookieOnAttach() throws Exception {
+        StateChart v1 = parse(V1);
+        StateChart v2 = parse(V2);
+        ChartVersions versions = new ChartVersions(v1);
+        CookieStateful shipping =
+            new CookieStateful(new SerializableStateCookie());
+        CookieStateful reviewed =
+            new CookieStateful(new SerializableStateCookie());
+        StateMachine running = versions.attach(shipping);
+        versions.attach(reviewed).pullTrigger(new HubActionTrigger(),
+            "review", null);
+        assertEquals(paths("open", "open.reviewed"),
+            reviewed.cookie.getActiveStatePathNames());
+
+        assertEquals(2, versions.publish(v2, pathMap()));
+        assertSame(v2, versions.getCurrent());
+
+        //the running machine keeps the revision it was created from
+        running.pullTrigger(new HubActionTrigger(), "ship", null);
+        assertSame(v1, running.getStateChart());
+        assertEquals(paths("shipped"),
+            shipping.cookie.getActiveStatePathNames());
+
+        StateMachine migrated = versions.attach(shipping);
+        assertSame(v2, migrated.getStateChart());
+        assertEquals(paths("dispatched"),
+            shipping.cookie.getActiveStatePathNames());
+        assertEquals(v2.getFingerprint(),
+            ((SerializableStateCookie) shipping.cookie).getChartFingerprint());
+
+        //a dropped State falls back to its parent's default child
+        migrated = versions.attach(reviewed);
+        assertEquals(paths("open", "open.pending"),
+            reviewed.cookie.getActiveStatePathNames());
+        migrated.pullTrigger(new HubActionTrigger(), "hold", null);
+        assertEquals(paths("open", "open.held"),
+            reviewed.cookie.getActiveStatePathNames());
+
+        //attaching a current cookie leaves it alone
+        versions.attach(reviewed);
+        assertEquals(paths("open", "open.held"),
+            reviewed.cookie.getActiveStatePathNames());
+    }
+
+    @Test
+    public void testInfersRevisionOfUnstampedCookie() throws Exception {
+        ChartVersions versions = new ChartVersions(parse(V1));
+        versions.publish(parse(V2), pathMap());
+        //written before charts were versioned
+        SerializableStateCookie cookie = new SerializableStateCookie();
+        cookie.setActive("open");
+        cookie.setActive("open.new");
+        versions.attach(new CookieStateful(cookie));
+        assertEquals(paths("open", "open.pending"),
+            cookie.getActiveStatePathNames());
+
+        SerializableStateCookie stranger = new SerializableStateCookie();
+        stranger.setActive("closed");
+        try {
+            versions.attach(new CookieStateful(stranger));
+            fail("Cookie of no revision should not attach");
+        } catch (StateMachineConfigurationException expected) {
+        }
+    }
+
+    @Test
+    public void testMigratesBinaryCookie() throws Exception {
+        StateChart v1 = parse(V1);
+        StateChart v2 = parse(V2);
+        ChartVersions versions = new ChartVersions(v1);
+        BinaryStateCookie cookie = new BinaryStateCookie(v1);
+        CookieStateful stateful = new CookieStateful(cookie);
+        versions.attach(stateful).pullTrigger(new HubActionTrigger(), "ship",
+            null);
+        versions.publish(v2, pathMap());
+
+        versions.attach(stateful);
+        assertSame(v2, cookie.getStateChart());
+        assertEquals(v2.getFingerprint(), cookie.getChartFingerprint());
+        assertEquals(paths("dispatched"), cookie.getActiveStatePathNames());
+
+        ByteBuffer buffer = ByteBuffer.allocate(cookie.getEncodedSize());
+        cookie.writeTo(buffer);
+        buffer.flip();
+        BinaryStateCookie read = new BinaryStateCookie(v2);
+        read.readFrom(buffer);
+        assertEquals(paths("dispatched"), read.getActiveStatePathNames());
+    }
+
+    @Test
+    public void testChainsMigrations() throws Exception {
+        StateChart v1 = parse(V1);
+        StateChart v2 = parse(V2);
+        ChartVersions versions = new ChartVersions(v1);
+        BinaryStateCookie cookie = new BinaryStateCookie(v1);
+        CookieStateful stateful = new CookieStateful(cookie);
+        versions.attach(stateful);
+        versions.publish(v2, pathMap());
+        Map<String, String> back = new HashMap<String, String>();
+        back.put("open.pending", "open.new");
+        back.put("dispatched", "shipped");
+        assertEquals(3, versions.publish(parse(V1), back));
+
+        versions.attach(stateful);
+        assertEquals(v1.getFingerprint(), cookie.getChartFingerprint());
+        assertEquals(paths("open", "open.new"),
+            cookie.getActiveStatePathNames());
+    }
+
+    @Test
+    public void testRejectsUnknownPaths() throws Exception {
+        StateChart v1 = parse(V1);
+        StateChart v2 = parse(V2);
+        ChartVersions versions = new ChartVersions(v1);
+        try {
+            versions.publish(v2,
+                Collections.singletonMap("open.gone", "open.pending"));
+            fail("Unknown old path should not compile");
+        } catch (StateMachineConfigurationException expected) {
+        }
+        try {
+            new ChartMigration(v1, v2,
+                Collections.singletonMap("open.new", "open.gone"));
+            fail("Unknown new path should not compile");
+        } catch (StateMachineConfigurationException expected) {
+        }
+        assertEquals(1, versions.getCurrentVersion());
+        assertSame(v1, versions.getCurrent());
+    }
+
+    @Test
+    public void testRegistryPublishes() throws Exception {
+        StateChart v1 = parse(V1);
+        StateChart v2 = parse(V2);
+        StateChartRegistry registry = new StateChartRegistry();
+        registry.register("order", v1);
+        CookieStateful stateful =
+            new CookieStateful(new SerializableStateCookie());
+        registry.attach("order", stateful).pullTrigger(new HubActionTrigger(),
+            "ship", null);
+
+        assertEquals(2, registry.publish("order", v2, pathMap()));
+        assertSame(v2, registry.getStateChart("order"));
+        assertSame(v1, registry.getVersions("order").getVersion(1));
+        assertSame(v2, registry.attach("order", stateful).getStateChart());
+        assertEquals(paths("dispatched"),
+            stateful.cookie.getActiveStatePathNames());
+
+        registry.register("order", v1);
+        assertNull(registry.getVersions("order"));
+    }
+
+    private static class CookieStateful implements Stateful {
+        private StateCookie cookie;
+
+        CookieStateful(StateCookie cookie) {
+            this.cookie = cookie;
+        }
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public boolean pullTrigger(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+        }
+
+        public boolean isInState(String statePath) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.commercehub.core.state.impl.xml;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.commercehub.core.state.EntryAction;
+import com.commercehub.core.state.ExclusiveState;
+import com.commercehub.core.state.ExitAction;
+import com.commercehub.core.state.HubActionTrigger;
+import com.commercehub.core.state.State;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateCookie;
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.Stateful;
+import com.commercehub.core.state.Transition;
+import com.commercehub.core.state.TransitionAction;
+import com.commercehub.core.state.Trigger;
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+
+public class StateChartTest {
+    private StateChart chart;
+
+    @Before
+    public void setUp() throws Exception {
+        chart = new XMLStateMachineFactory().getStateChartFromInputStreams(
+            getClass().getResourceAsStream(
+                "exclusive-alphabetical-statemachine.xml"),
+            getClass().getResourceAsStream("clientimpl.xml"));
+    }
+
+    @After
+    public void tearDown() {
+        ExitAction.clear();
+        EntryAction.clear();
+        TransitionAction.clear();
+    }
+
+    @Test
+    public void testMachinesShareChartButNotActivation() {
+        StateMachine first = chart.newStateMachine();
+        StateMachine second = chart.newStateMachine();
+        assertSame(first.getRootState(), second.getRootState());
+        assertSame(first.getTriggerTransitionMap(),
+            second.getTriggerTransitionMap());
+
+        first.attachStateful(new ChartStateful());
+        second.attachStateful(new ChartStateful());
+        first.pullTrigger(new HubActionTrigger(), "siblings", null);
+
+        assertEquals("C.G", first.getActiveStateString());
+        assertEquals("C.F", second.getActiveStateString());
+        assertTrue(first.isInState("C.G"));
+        assertFalse(second.isInState("C.G"));
+    }
+
+    @Test
+    public void testOrdinalsAndLookup() {
+        assertEquals(0, chart.getRootState().getOrdinal());
+        for (int i = 0; i < chart.getStateCount(); i++) {
+            State state = chart.getState(i);
+            assertEquals(i, state.getOrdinal());
+            assertSame(state, chart.findByName(state.getPathName()));
+        }
+        assertSame(chart.getRootState(), chart.findByName(""));
+        assertNull(chart.findByName("C.nonexistent"));
+    }
+
+    @Test
+    public void testChartIsFrozen() {
+        State c = chart.findByName("C");
+        try {
+            c.addChild(new ExclusiveState("late", false, false));
+            fail("Frozen states should reject new children");
+        } catch (IllegalStateException expected) {
+        }
+
+        Transition any = (Transition) chart.getTriggerTransitionMap()
+            .getTransitions(HubActionTrigger.class, "siblings").iterator()
+            .next();
+        try {
+            any.addRankedState(c);
+            fail("Frozen transitions should reject modification");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            chart.getTriggerTransitionMap().addTriggerTransition(
+                HubActionTrigger.class, "late", any);
+            fail("Frozen maps should reject new mappings");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testSetParameterFiresForEachMember() throws Exception {
+        StateChart concurrent =
+            new XMLStateMachineFactory().getStateChartFromInputStreams(
+                getClass().getResourceAsStream(
+                    "concurrent-alphabetical-statemachine.xml"),
+                getClass().getResourceAsStream("clientimpl.xml"));
+        assertTrue(concurrent.getTriggerTransitionMap()
+            .getParameters(HubActionTrigger.class).contains("b"));
+        for (String member: new String[] {"a", "b", "c"}) {
+            StateMachine machine = concurrent.newStateMachine();
+            machine.attachStateful(new ChartStateful());
+            machine.pullTrigger(new HubActionTrigger(), "exc-to-conc", null);
+            machine.pullTrigger(new HubActionTrigger(), "conc-to-conc", null);
+            assertFalse(machine.pullTrigger(new HubActionTrigger(), "d",
+                null));
+            assertTrue(member,
+                machine.pullTrigger(new HubActionTrigger(), member, null));
+            assertTrue(member, machine.isInState("J.L.N"));
+        }
+    }
+
+    private static class ChartStateful implements Stateful {
+        private StateCookie cookie = new SerializableStateCookie();
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public boolean pullTrigger(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+        }
+
+        public boolean isInState(String statePath) {
+            return false;
+        }
+    }
+}
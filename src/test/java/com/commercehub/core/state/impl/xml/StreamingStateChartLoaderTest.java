@@ -0,0 +1,268 @@
+package com.commercehub.core.state.impl.xml;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.commercehub.core.state.Condition;
+import com.commercehub.core.state.EntryAction;
+import com.commercehub.core.state.ExitAction;
+import com.commercehub.core.state.HubActionTrigger;
+import com.commercehub.core.state.ParametricAction;
+import com.commercehub.core.state.State;
+import com.commercehub.core.state.StateChart;
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.StateCookie;
+import com.commercehub.core.state.StateMachineConfigurationException;
+import com.commercehub.core.state.Stateful;
+import com.commercehub.core.state.Transition;
+import com.commercehub.core.state.TransitionAction;
+import com.commercehub.core.state.Trigger;
+import com.commercehub.core.state.TriggerTransitionMap;
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+
+public class StreamingStateChartLoaderTest {
+    /**
+     * Transitions into states further on, a trigger-map after the triggers
+     * it precedes, conditions, set parameters and references that don't
+     * resolve.
+     */
+    private static final String FORWARD_REFERENCES =
+        "<state-machine name=\"order\" concurrent=\"false\" "
+        + "default-child-ref=\"open\" description=\"Orders\">"
+        + "<property name=\"status\" default-value=\"new\">"
+        + "<value text=\"new\"/><value text=\"done\"/>"
+        + "</property>"
+        + "<state name=\"open\" default-child-ref=\"new\">"
+        + "<entry-action-ref ref=\"EntryAction\" param=\"open\"/>"
+        + "<exit-set-property name=\"status\" value=\"done\"/>"
+        + "<state name=\"new\">"
+        + "<transition name=\"close\" entry=\"closed.archived\">"
+        + "<trigger-ref ref=\"HubActionTrigger\" param=\"{close, end}\"/>"
+        + "<trigger-ref ref=\"Undefined\" param=\"close\">"
+        + "<condition>ANY(open.new)</condition>"
+        + "</trigger-ref>"
+        + "<transition-action-ref ref=\"TransitionAction\" param=\"1\"/>"
+        + "<transition-set-property name=\"status\" value=\"done\"/>"
+        + "<transition-action-ref ref=\"Undefined\"/>"
+        + "<state-rank ref=\"closed\"/>"
+        + "<state-rank ref=\"open\"/>"
+        + "<state-rank ref=\"missing\"/>"
+        + "</transition>"
+        + "</state>"
+        + "<state name=\"held\">"
+        + "<exit-action-ref ref=\"ExitAction\"/>"
+        + "</state>"
+        + "<transition name=\"hold\" entry=\"open.held\">"
+        + "<state-rank ref=\"closed\"/>"
+        + "<state-rank ref=\"open.new\"/>"
+        + "<trigger-ref ref=\"HubActionTrigger\" param=\"hold\">"
+        + "<condition>ANY(open.new)</condition>"
+        + "</trigger-ref>"
+        + "<transition-action-ref ref=\"TransitionAction\" param=\"2\"/>"
+        + "</transition>"
+        + "</state>"
+        + "<state name=\"closed\" history=\"self\" "
+        + "default-child-ref=\"archived\">"
+        + "<state name=\"archived\"/>"
+        + "<transition name=\"reopen\" entry=\"open\"/>"
+        + "</state>"
+        + "<trigger-map ref=\"HubActionTrigger\" param=\"close\">"
+        + "<transition-ref ref=\"hold\"/>"
+        + "<condition>NONE(open.held)</condition>"
+        + "<transition-ref ref=\"reopen\"/>"
+        + "</trigger-map>"
+        + "</state-machine>";
+
+    @After
+    public void tearDown() {
+        ExitAction.clear();
+        EntryAction.clear();
+        TransitionAction.clear();
+    }
+
+    private ClientImplRegistry clientImpl() throws Exception {
+        return new XMLStateMachineFactory().getClientImplRegistry(
+            getClass().getResourceAsStream("clientimpl.xml"));
+    }
+
+    private static InputStream stream(String stateMachine) throws Exception {
+        return new ByteArrayInputStream(stateMachine.getBytes("UTF-8"));
+    }
+
+    private void assertLoadsAsHandlerDoes(String resource) throws Exception {
+        StateChart parsed = new XMLStateMachineFactory()
+            .getStateChartFromInputStream(
+                getClass().getResourceAsStream(resource), clientImpl());
+        StateChart streamed = new StreamingStateChartLoader(clientImpl())
+            .load(getClass().getResourceAsStream(resource));
+        assertNotSame(parsed, streamed);
+        assertEquals(describe(parsed), describe(streamed));
+        assertEquals(parsed.getFingerprint(), streamed.getFingerprint());
+    }
+
+    @Test
+    public void testLoadsAlphabeticalChartsAsHandlerDoes() throws Exception {
+        assertLoadsAsHandlerDoes("exclusive-alphabetical-statemachine.xml");
+        assertLoadsAsHandlerDoes("concurrent-alphabetical-statemachine.xml");
+    }
+
+    @Test
+    public void testFixesUpForwardReferences() throws Exception {
+        StateChart parsed = new XMLStateMachineFactory()
+            .getStateChartFromInputStream(stream(FORWARD_REFERENCES),
+                clientImpl());
+        StateChart streamed = new StreamingStateChartLoader(clientImpl())
+            .load(stream(FORWARD_REFERENCES));
+        assertEquals(describe(parsed), describe(streamed));
+        assertEquals(parsed.getFingerprint(), streamed.getFingerprint());
+
+        //trigger-map mappings come first, as the handler adds them
+        List<TriggerTransitionMap.Mapping> mappings =
+            streamed.getTriggerTransitionMap().getMappings();
+        assertEquals(4, mappings.size());
+        assertEquals("hold", mappings.get(0).getTransition().getName());
+        assertNotNull(mappings.get(0).getCondition());
+        assertEquals("reopen", mappings.get(1).getTransition().getName());
+        assertNull(mappings.get(1).getCondition());
+        assertEquals("close", mappings.get(2).getTransition().getName());
+        assertEquals("hold", mappings.get(3).getTransition().getName());
+
+        StateMachine machine = streamed.newStateMachine();
+        machine.attachStateful(
+            new CookieStateful(new SerializableStateCookie()));
+        assertTrue(machine.pullTrigger(new HubActionTrigger(), "end", null));
+        assertEquals(1, TransitionAction.timesExecuted());
+        assertTrue(machine.isInState("closed.archived"));
+    }
+
+    @Test
+    public void testRejectsTransitionsIntoMissingStates() throws Exception {
+        String nowhere = FORWARD_REFERENCES.replace("<state name=\"held\">",
+            "<transition name=\"nowhere\" entry=\"missing\">"
+            + "<trigger-ref ref=\"HubActionTrigger\" param=\"nowhere\"/>"
+            + "<transition-action-ref ref=\"TransitionAction\"/>"
+            + "</transition><state name=\"held\">");
+        try {
+            new StreamingStateChartLoader(clientImpl()).load(stream(nowhere));
+            fail("A transition into a missing state should not load");
+        } catch (StateMachineConfigurationException expected) {
+            assertTrue(expected.getMessage().indexOf("missing") >= 0);
+        }
+    }
+
+    @Test
+    public void testOptimizes() throws Exception {
+        StateChart streamed =
+            new StreamingStateChartLoader(clientImpl(), true)
+                .load(stream(FORWARD_REFERENCES));
+        StateChart parsed = new XMLStateMachineFactory(true)
+            .getStateChartFromInputStream(stream(FORWARD_REFERENCES),
+                clientImpl());
+        assertEquals(describe(parsed), describe(streamed));
+    }
+
+    @Test
+    public void testRejectsOtherDocuments() throws Exception {
+        StreamingStateChartLoader loader =
+            new StreamingStateChartLoader(clientImpl());
+        try {
+            loader.load(getClass().getResourceAsStream("clientimpl.xml"));
+            fail("A client-impl is not a state-machine");
+        } catch (StateMachineConfigurationException expected) {
+        }
+        try {
+            loader.load(stream("<state-machine name=\"x\">"));
+            fail("Malformed documents should not load");
+        } catch (StateMachineConfigurationException expected) {
+        }
+        try {
+            loader.load(stream(FORWARD_REFERENCES.replace("NONE(open.held)",
+                "NONE(")));
+            fail("Malformed conditions should not load");
+        } catch (StateMachineConfigurationException expected) {
+        }
+    }
+
+    /**
+     * Everything about a chart that loading decides, one line per part.
+     */
+    private static List<String> describe(StateChart chart) {
+        List<String> lines = new ArrayList<String>();
+        lines.add(chart.getName() + " " + chart.getDescription() + " "
+            + new TreeMap<String, List<String>>(
+                chart.getPossiblePropertyValueMap())
+            + " " + chart.getDefaultPropertyValues());
+        for (int i = 0; i < chart.getStateCount(); i++) {
+            State state = chart.getState(i);
+            lines.add(state.getPathName() + " " + state.getClass().getName()
+                + " entry " + describe(state.getEntryActions())
+                + " exit " + describe(state.getExitActions()));
+        }
+        for (TriggerTransitionMap.Mapping mapping:
+                chart.getTriggerTransitionMap().getMappings()) {
+            Transition transition = mapping.getTransition();
+            List<String> ranked = new ArrayList<String>();
+            for (Iterator it = transition.getRankedStates().iterator();
+                    it.hasNext();) {
+                ranked.add(((State) it.next()).getPathName());
+            }
+            Condition condition = mapping.getCondition();
+            lines.add(mapping.getTriggerClass().getName() + " "
+                + mapping.getParam() + " "
+                + (condition == null ? "" : condition.getKind() + " "
+                    + condition.getCheckStates()) + " -> "
+                + transition.getName() + " "
+                + transition.getExitState().getPathName() + " to "
+                + transition.getEntryState().getPathName() + " ranks "
+                + ranked + " actions " + describe(transition.getActions()));
+        }
+        return lines;
+    }
+
+    private static String describe(List actions) {
+        StringBuffer sb = new StringBuffer();
+        for (Iterator it = actions.iterator(); it.hasNext();) {
+            ParametricAction action = (ParametricAction) it.next();
+            sb.append(action.getStateAction().getClass().getName())
+                .append('(').append(action.getParam()).append(") ");
+        }
+        return sb.toString();
+    }
+
+    private static class CookieStateful implements Stateful {
+        private StateCookie cookie;
+
+        CookieStateful(StateCookie cookie) {
+            this.cookie = cookie;
+        }
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public boolean pullTrigger(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+        }
+
+        public boolean isInState(String statePath) {
+            return false;
+        }
+    }
+}
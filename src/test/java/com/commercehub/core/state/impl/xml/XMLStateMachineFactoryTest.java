@@ -9,6 +9,10 @@ import java.io.StringReader;
 import org.junit.Test;
 import org.xml.sax.SAXException;
 
+import com.commercehub.core.state.EntryAction;
+import com.commercehub.core.state.HubActionTrigger;
+import com.commercehub.core.state.StateAction;
+import com.commercehub.core.state.StateChart;
 import com.commercehub.core.state.StateCookie;
 import com.commercehub.core.state.StateMachine;
 import com.commercehub.core.state.StateMachineConfigurationException;
@@ -38,7 +42,75 @@ public class XMLStateMachineFactoryTest {
 		assertEquals(2, sm.getRootState().getChildren().size());
 		
 	}
+
+	@Test
+	public void testDefinitionsAreParsedOncePerVersion() throws Exception {
+		XMLStateMachineFactory.clearDefinitionCache();
+		StateChart first = new XMLStateMachineFactory().getStateChartFromInputStreams(
+				new ByteArrayInputStream(basicStateMachine.getBytes()),
+				new ByteArrayInputStream(basicClientImpl.getBytes()));
+		StateMachine sm = new XMLStateMachineFactory().getStateMachineFromInputStreams(
+				new ByteArrayInputStream(basicStateMachine.getBytes()),
+				new ByteArrayInputStream(basicClientImpl.getBytes()));
+		assertSame(first, sm.getStateChart());
+		assertNotSame(sm, first.newStateMachine());
+		assertEquals(1, XMLStateMachineFactory.getCachedDefinitionCount());
+
+		String changed = basicStateMachine.replace("\"b\"", "\"c\"");
+		StateChart second = new XMLStateMachineFactory().getStateChartFromInputStreams(
+				new ByteArrayInputStream(changed.getBytes()),
+				new ByteArrayInputStream(basicClientImpl.getBytes()));
+		assertNotSame(first, second);
+		assertNotNull(second.findByName("c"));
+		assertEquals(2, XMLStateMachineFactory.getCachedDefinitionCount());
+
+		try {
+			new XMLStateMachineFactory().getStateChartFromInputStreams(
+					new ByteArrayInputStream("<state-machine".getBytes()),
+					new ByteArrayInputStream(basicClientImpl.getBytes()));
+			fail("Malformed documents should not parse");
+		} catch (SAXException expected) {
+		}
+		assertEquals(2, XMLStateMachineFactory.getCachedDefinitionCount());
+	}
 	
+	@Test
+	public void testClientImplIsLoadedOnceForManyDefinitions() throws Exception {
+		XMLStateMachineFactory.clearDefinitionCache();
+		XMLStateMachineFactory smFact = new XMLStateMachineFactory();
+		ClientImplRegistry clientImpl = smFact.getClientImplRegistry(
+				getClass().getResourceAsStream("clientimpl.xml"));
+		assertSame(clientImpl, smFact.getClientImplRegistry(
+				getClass().getResourceAsStream("clientimpl.xml")));
+		assertSame(HubActionTrigger.class,
+				clientImpl.getTriggerClass("HubActionTrigger"));
+		assertSame(EntryAction.class, clientImpl.getActionClass("EntryAction"));
+
+		StateChart exclusive = smFact.getStateChartFromInputStream(
+				getClass().getResourceAsStream(
+						"exclusive-alphabetical-statemachine.xml"), clientImpl);
+		StateChart concurrent = smFact.getStateChartFromInputStream(
+				getClass().getResourceAsStream(
+						"concurrent-alphabetical-statemachine.xml"), clientImpl);
+		StateAction entry = clientImpl.getAction("EntryAction");
+		assertSame(entry, exclusive.findByName("B").getEntryActions().get(0)
+				.getStateAction());
+		assertSame(entry, concurrent.findByName("B").getEntryActions().get(0)
+				.getStateAction());
+
+		//the two-stream form wires against the same cached registry
+		assertSame(exclusive, smFact.getStateChartFromInputStreams(
+				getClass().getResourceAsStream(
+						"exclusive-alphabetical-statemachine.xml"),
+				getClass().getResourceAsStream("clientimpl.xml")));
+	}
+
+	@Test(expected = StateMachineConfigurationException.class)
+	public void testClientImplRegistryNeedsClientImpl() throws Exception {
+		new XMLStateMachineFactory().getClientImplRegistry(
+				new ByteArrayInputStream(basicStateMachine.getBytes()));
+	}
+
 	public class DummyStateful implements Stateful{
 
 		public boolean isSupported(Trigger trigger, Object param) {
@@ -0,0 +1,165 @@
+package com.commercehub.core.state.impl.xml;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.commercehub.core.state.ActivityHost;
+import com.commercehub.core.state.Clock;
+import com.commercehub.core.state.EntryAction;
+import com.commercehub.core.state.ExitAction;
+import com.commercehub.core.state.HubActionTrigger;
+import com.commercehub.core.state.StateCookie;
+import com.commercehub.core.state.StateMachine;
+import com.commercehub.core.state.StateMachineConfigurationException;
+import com.commercehub.core.state.Stateful;
+import com.commercehub.core.state.TimingWheel;
+import com.commercehub.core.state.TransitionAction;
+import com.commercehub.core.state.Trigger;
+import com.commercehub.core.state.impl.pojo.SerializableStateCookie;
+
+public class XMLStateMachinePoolTest {
+    private static final String EXCLUSIVE = "exclusive";
+
+    private XMLStateMachinePool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        pool = new XMLStateMachinePool(1, 50);
+        pool.addDefinition(EXCLUSIVE,
+            getClass().getResourceAsStream(
+                "exclusive-alphabetical-statemachine.xml"),
+            getClass().getResourceAsStream("clientimpl.xml"));
+    }
+
+    @After
+    public void tearDown() {
+        ExitAction.clear();
+        EntryAction.clear();
+        TransitionAction.clear();
+    }
+
+    @Test
+    public void testDetachReturnsResetMachine()
+        throws StateMachineConfigurationException {
+        PooledStateful first = new PooledStateful();
+        StateMachine sm = pool.attach(EXCLUSIVE, first);
+        sm.pullTrigger(new HubActionTrigger(), "siblings", null);
+        assertEquals("C.G", sm.getActiveStateString());
+        assertEquals(1, pool.getMisses());
+
+        sm.detachStateful();
+        assertEquals(1, pool.getIdleCount(EXCLUSIVE));
+        assertEquals("", sm.getActiveStateString());
+
+        PooledStateful second = new PooledStateful();
+        assertSame(sm, pool.attach(EXCLUSIVE, second));
+        assertEquals("C.F", sm.getActiveStateString());
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getIdleCount(EXCLUSIVE));
+
+        sm.detachStateful();
+        sm.detachStateful();
+        assertEquals("Double detach should only return a machine once", 1,
+            pool.getIdleCount(EXCLUSIVE));
+    }
+
+    @Test
+    public void testDetachResetsHostAndWheel()
+        throws StateMachineConfigurationException {
+        ActivityHost host = new ActivityHost() {
+                public void execute(Runnable activity) {
+                    activity.run();
+                }
+
+                public void deliver(Stateful stateful, Trigger trigger,
+                                    Object param) {
+                    stateful.pullTrigger(trigger, param);
+                }
+            };
+        TimingWheel wheel = new TimingWheel(Clock.SYSTEM);
+        StateMachine sm = pool.borrow(EXCLUSIVE);
+        sm.setActivityHost(host);
+        sm.setTimingWheel(wheel);
+        sm.detachStateful();
+
+        assertSame(sm, pool.borrow(EXCLUSIVE));
+        assertNotSame(host, sm.getActivityHost());
+        assertSame(TimingWheel.getShared(), sm.getTimingWheel());
+    }
+
+    @Test
+    public void testReplacedDefinitionDiscardsOldMachines()
+        throws IOException, StateMachineConfigurationException {
+        StateMachine idle = pool.borrow(EXCLUSIVE);
+        idle.detachStateful();
+        assertEquals(1, pool.getIdleCount(EXCLUSIVE));
+
+        replaceDefinition("concurrent-alphabetical-statemachine.xml");
+        assertEquals(0, pool.getIdleCount(EXCLUSIVE));
+        StateMachine replacing = pool.borrow(EXCLUSIVE);
+        assertNotSame(idle.getStateChart(), replacing.getStateChart());
+
+        //a machine checked out while its definition is replaced isn't
+        //pooled again, and gives up its place under the bound
+        replaceDefinition("exclusive-alphabetical-statemachine.xml");
+        replacing.detachStateful();
+        assertEquals(0, pool.getIdleCount(EXCLUSIVE));
+        StateMachine replaced = pool.borrow(EXCLUSIVE);
+        assertNotSame(replacing.getStateChart(), replaced.getStateChart());
+        replaced.detachStateful();
+        assertSame(replaced, pool.borrow(EXCLUSIVE));
+    }
+
+    private void replaceDefinition(String stateMachine) throws IOException {
+        pool.addDefinition(EXCLUSIVE,
+            getClass().getResourceAsStream(stateMachine),
+            getClass().getResourceAsStream("clientimpl.xml"));
+    }
+
+    @Test
+    public void testBoundedPoolTimesOut()
+        throws StateMachineConfigurationException {
+        pool.borrow(EXCLUSIVE);
+        try {
+            pool.borrow(EXCLUSIVE);
+            fail("Pool should be exhausted");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, pool.getWaits());
+    }
+
+    @Test(expected = StateMachineConfigurationException.class)
+    public void testUnknownDefinition()
+        throws StateMachineConfigurationException {
+        pool.borrow("nonexistent");
+    }
+
+    private static class PooledStateful implements Stateful {
+        private StateCookie cookie = new SerializableStateCookie();
+
+        public boolean isSupported(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public boolean pullTrigger(Trigger trigger, Object param) {
+            return false;
+        }
+
+        public StateCookie getStateCookie() {
+            return cookie;
+        }
+
+        public void notifyPropertyChanged(String propertyName,
+                                          Object newValue) {
+        }
+
+        public boolean isInState(String statePath) {
+            return false;
+        }
+    }
+}